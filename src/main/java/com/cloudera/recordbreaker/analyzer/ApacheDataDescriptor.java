@@ -72,6 +72,13 @@ public class ApacheDataDescriptor extends TextRegexpDataDescriptor {
       return false;
     }
   }
+  public static boolean isApacheLogFile(FilePrefix prefix) {
+    try {
+      return TextRegexpDataDescriptor.isTextRegexpFile(prefix, apacheRegexps);
+    } catch (IOException iex) {
+      return false;
+    }
+  }
   
   public ApacheDataDescriptor(Path p, FileSystem fs) throws IOException {
     super(p, fs, APACHE_TYPE, apacheRegexps, apacheSchemas);
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.Reader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.CharArrayReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+
+import org.apache.hadoop.conf.Configuration;
+
+/***********************************************************
+ * <code>AvroConverter</code> turns a whole text file into a
+ * compressed Avro data file, using every processor.
+ *
+ * The reading thread cuts the input into splits of whole lines,
+ * about SPLIT_CHARS each.  Worker threads parse the splits and
+ * write each one's records as compressed Avro blocks in memory.
+ * The reading thread then copies those blocks, as they are, into
+ * the output file in input order.  At most a few splits per thread
+ * are in flight at once.  Each split is parsed independently, as
+ * if it were a file of its own.
+ *
+ * Subclasses say how to parse a split.  Since parsers usually keep
+ * state from one line to the next, each thread gets its own.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ ***********************************************************/
+abstract class AvroConverter {
+  static String CODEC_KEY = "avro.output.codec";
+  static String DEFAULT_CODEC = "deflate";
+  static int SPLIT_CHARS = 1024 * 1024;
+
+  /**
+   * Parses splits for one thread, and counts the rows it converts and rejects.
+   */
+  static abstract class SplitParser {
+    long numConverted = 0;
+    long numRejected = 0;
+
+    /**
+     * Append the records in <code>split</code> to <code>out</code>.
+     */
+    abstract void parse(Reader split, DataFileWriter<GenericRecord> out) throws IOException;
+  }
+
+  Schema schema;
+  CodecFactory codec;
+  long numConverted = 0;
+  long numRejected = 0;
+
+  /**
+   * The output is compressed with the codec named by CODEC_KEY in
+   * <code>conf</code> (deflate, snappy or null), as for Avro MapReduce output.
+   */
+  AvroConverter(Schema schema, Configuration conf) {
+    this.schema = schema;
+    this.codec = CodecFactory.fromString((conf == null) ? DEFAULT_CODEC : conf.get(CODEC_KEY, DEFAULT_CODEC));
+  }
+
+  abstract SplitParser createSplitParser();
+
+  long getNumConverted() {
+    return numConverted;
+  }
+  long getNumRejected() {
+    return numRejected;
+  }
+
+  DataFileWriter<GenericRecord> createWriter(OutputStream out) throws IOException {
+    DataFileWriter<GenericRecord> writer = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(schema));
+    writer.setCodec(codec);
+    return writer.create(schema, out);
+  }
+
+  /**
+   * Convert everything in <code>in</code>, and write the Avro file to
+   * <code>out</code>.  Both are closed.
+   */
+  void convert(Reader in, OutputStream out) throws IOException {
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    int maxInFlight = 2 * numThreads;
+    final BlockingQueue<SplitParser> parsers = new ArrayBlockingQueue<SplitParser>(numThreads);
+    List<SplitParser> allParsers = new ArrayList<SplitParser>();
+    for (int i = 0; i < numThreads; i++) {
+      SplitParser parser = createSplitParser();
+      parsers.add(parser);
+      allParsers.add(parser);
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      DataFileWriter<GenericRecord> writer = createWriter(out);
+      try {
+        LinkedList<Future<byte[]>> inFlight = new LinkedList<Future<byte[]>>();
+        char buf[] = new char[SPLIT_CHARS];
+        int len = 0;
+        boolean eof = false;
+        while (! eof) {
+          int n = in.read(buf, len, buf.length - len);
+          if (n < 0) {
+            eof = true;
+          } else {
+            len += n;
+            if (len < buf.length) {
+              continue;
+            }
+          }
+
+          // Cut after the last line in the buffer.  A line longer than
+          // the buffer makes it grow.
+          int cut = eof ? len : endOfLastLine(buf, len);
+          if (cut <= 0) {
+            if (! eof) {
+              char newBuf[] = new char[2 * buf.length];
+              System.arraycopy(buf, 0, newBuf, 0, len);
+              buf = newBuf;
+            }
+            continue;
+          }
+          final char split[] = new char[cut];
+          System.arraycopy(buf, 0, split, 0, cut);
+          System.arraycopy(buf, cut, buf, 0, len - cut);
+          len -= cut;
+
+          if (inFlight.size() >= maxInFlight) {
+            appendSplit(writer, awaitSplit(inFlight.removeFirst()));
+          }
+          inFlight.add(pool.submit(new Callable<byte[]>() {
+              public byte[] call() throws IOException, InterruptedException {
+                SplitParser parser = parsers.take();
+                try {
+                  ByteArrayOutputStream bytes = new ByteArrayOutputStream(split.length);
+                  DataFileWriter<GenericRecord> splitWriter = createWriter(bytes);
+                  try {
+                    parser.parse(new CharArrayReader(split), splitWriter);
+                  } finally {
+                    splitWriter.close();
+                  }
+                  return bytes.toByteArray();
+                } finally {
+                  parsers.put(parser);
+                }
+              }
+            }));
+        }
+        while (inFlight.size() > 0) {
+          appendSplit(writer, awaitSplit(inFlight.removeFirst()));
+        }
+      } finally {
+        writer.close();
+      }
+    } finally {
+      pool.shutdownNow();
+      in.close();
+    }
+
+    for (SplitParser parser: allParsers) {
+      numConverted += parser.numConverted;
+      numRejected += parser.numRejected;
+    }
+  }
+
+  /**
+   * The offset just past the last line terminator in buf[0..len), or 0
+   * if there is none.  A '\r' only counts if there is no '\n', so a
+   * "\r\n" pair is never cut in two.
+   */
+  static int endOfLastLine(char buf[], int len) {
+    for (int i = len - 1; i >= 0; i--) {
+      if (buf[i] == '\n') {
+        return i + 1;
+      }
+    }
+    for (int i = len - 2; i >= 0; i--) {
+      if (buf[i] == '\r') {
+        return i + 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Copy a split's blocks into the output.  They were written with the
+   * same schema and codec, so they go in without being recompressed.
+   */
+  void appendSplit(DataFileWriter<GenericRecord> writer, byte splitBytes[]) throws IOException {
+    DataFileStream<GenericRecord> splitIn = new DataFileStream<GenericRecord>(new ByteArrayInputStream(splitBytes), new GenericDatumReader<GenericRecord>());
+    try {
+      writer.appendAllFrom(splitIn, false);
+    } finally {
+      splitIn.close();
+    }
+  }
+
+  static byte[] awaitSplit(Future<byte[]> f) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException ie) {
+      throw new IOException("Interrupted while converting: " + ie.getMessage());
+    } catch (ExecutionException ee) {
+      Throwable t = ee.getCause();
+      if (t instanceof IOException) {
+        throw (IOException) t;
+      } else if (t instanceof RuntimeException) {
+        throw (RuntimeException) t;
+      } else if (t instanceof Error) {
+        throw (Error) t;
+      }
+      throw new IOException("Conversion failed: " + t);
+    }
+  }
+}
@@ -15,6 +15,8 @@
 package com.cloudera.recordbreaker.analyzer;
 
 import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.ByteArrayInputStream;
 import java.util.List;
 import java.util.TreeMap;
 
@@ -36,10 +38,43 @@ import org.apache.hadoop.conf.Configuration;
  *****************************************************/
 public class AvroSequenceFileDataDescriptor extends GenericDataDescriptor {
   final public static String AVROSEQFILE_TYPE = "avrosequencefile";
+  final static byte SEQFILE_METADATA_VERSION = 6;
 
   /**
    * Test whether this is an AvroSequenceFile or not.
    */
+  public static boolean isAvroSequenceFile(FilePrefix prefix) {
+    if (! prefix.startsWith(SequenceFileDataDescriptor.SEQFILE_MAGIC)) {
+      return false;
+    }
+    // Read the header metadata straight out of the prefix, if it fits.
+    // This mirrors the header layout that SequenceFile.Reader expects.
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(prefix.getBytes(), 0, prefix.getLength()));
+      in.skipBytes(SequenceFileDataDescriptor.SEQFILE_MAGIC.length);
+      byte version = in.readByte();
+      if (version == SEQFILE_METADATA_VERSION) {
+        Text.readString(in);               // key class
+        Text.readString(in);               // value class
+        boolean isCompressed = in.readBoolean();
+        in.readBoolean();                  // block-compressed?
+        if (isCompressed) {
+          Text.readString(in);             // codec class
+        }
+        SequenceFile.Metadata seqFileMetadata = new SequenceFile.Metadata();
+        seqFileMetadata.readFields(in);
+        TreeMap<Text, Text> kvs = seqFileMetadata.getMetadata();
+        if (kvs.get(AvroSequenceFile.METADATA_FIELD_KEY_SCHEMA) == null ||
+            kvs.get(AvroSequenceFile.METADATA_FIELD_VALUE_SCHEMA) == null) {
+          return false;
+        }
+      }
+    } catch (IOException iex) {
+      // The header didn't fit in the prefix.  Let SequenceFile.Reader handle it.
+    }
+    return isAvroSequenceFile(prefix.getFS(), prefix.getPath());
+  }
+
   public static boolean isAvroSequenceFile(FileSystem fs, Path p) {
     try {
       SequenceFile.Reader in = new SequenceFile.Reader(fs, p, new Configuration());
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
+/***************************************************************************************
+ * <code>BuiltinFormatDetectors</code> holds the FormatDetectors for the formats that
+ * ship with RecordBreaker.
+ *
+ * Confidences are strictly ordered so that when two detectors accept the same file,
+ * the winner is the one that the original fixed detection order would have chosen:
+ * CSV, XML, Avro, Avro SequenceFile, SequenceFile, Apache log, syslog, and finally
+ * unknown text, which accepts nearly anything textual.
+ *
+ * @author "Michael Cafarella"
+ *****************************************************************************************/
+class BuiltinFormatDetectors {
+  static List<FormatDetector> getDetectors() {
+    List<FormatDetector> detectors = new ArrayList<FormatDetector>();
+    detectors.add(new CSVDetector());
+    detectors.add(new XMLDetector());
+    detectors.add(new AvroDetector());
+    detectors.add(new AvroSequenceFileDetector());
+    detectors.add(new SequenceFileDetector());
+    detectors.add(new ApacheDetector());
+    detectors.add(new SyslogDetector());
+    detectors.add(new UnknownTextDetector());
+    return detectors;
+  }
+
+  static class CSVDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return CSVDataDescriptor.CSV_TYPE;
+    }
+    public int getCost() {
+      return 20;
+    }
+    public double getConfidence() {
+      return 0.97;
+    }
+    public boolean isFormat(FilePrefix prefix) {
+      return CSVDataDescriptor.isCSV(prefix);
+    }
+    public DataDescriptor describeData(FilePrefix prefix, File schemaDbDir, LineSampler sampler) throws IOException {
+      return new CSVDataDescriptor(prefix.getPath(), prefix.getFS(), (CSVCellClassifier) prefix.getDetectorState(CSVDataDescriptor.CSV_TYPE));
+    }
+    public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new CSVDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
+
+  static class XMLDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return XMLDataDescriptor.XML_TYPE;
+    }
+    public int getCost() {
+      return 0;
+    }
+    public double getConfidence() {
+      return 0.95;
+    }
+    public boolean isFormat(FilePrefix prefix) {
+      return prefix.getPath().getName().endsWith(".xml");
+    }
+    public DataDescriptor describeData(FilePrefix prefix, File schemaDbDir, LineSampler sampler) throws IOException {
+      return new XMLDataDescriptor(prefix.getPath(), prefix.getFS());
+    }
+    public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new XMLDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
+
+  static class AvroDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return AvroDataDescriptor.AVRO_TYPE;
+    }
+    public int getCost() {
+      return 0;
+    }
+    public double getConfidence() {
+      return 0.93;
+    }
+    public boolean isFormat(FilePrefix prefix) {
+      return prefix.getPath().getName().endsWith(".avro");
+    }
+    public DataDescriptor describeData(FilePrefix prefix, File schemaDbDir, LineSampler sampler) throws IOException {
+      return new AvroDataDescriptor(prefix.getPath(), prefix.getFS());
+    }
+    public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new AvroDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
+
+  static class AvroSequenceFileDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return AvroSequenceFileDataDescriptor.AVROSEQFILE_TYPE;
+    }
+    public int getCost() {
+      return 1;
+    }
+    public double getConfidence() {
+      return 0.9;
+    }
+    public boolean isFormat(FilePrefix prefix) {
+      return AvroSequenceFileDataDescriptor.isAvroSequenceFile(prefix);
+    }
+    public DataDescriptor describeData(FilePrefix prefix, File schemaDbDir, LineSampler sampler) throws IOException {
+      return new AvroSequenceFileDataDescriptor(prefix.getPath(), prefix.getFS());
+    }
+    public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new AvroSequenceFileDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
+
+  static class SequenceFileDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return SequenceFileDataDescriptor.SEQFILE_TYPE;
+    }
+    public int getCost() {
+      return 1;
+    }
+    public double getConfidence() {
+      return 0.85;
+    }
+    public boolean isFormat(FilePrefix prefix) {
+      return SequenceFileDataDescriptor.isSequenceFile(prefix);
+    }
+    public DataDescriptor describeData(FilePrefix prefix, File schemaDbDir, LineSampler sampler) throws IOException {
+      return new SequenceFileDataDescriptor(prefix.getPath(), prefix.getFS());
+    }
+    public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new SequenceFileDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
+
+  static class ApacheDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return ApacheDataDescriptor.APACHE_TYPE;
+    }
+    public int getCost() {
+      return 50;
+    }
+    public double getConfidence() {
+      return 0.6;
+    }
+    public boolean isFormat(FilePrefix prefix) {
+      return ApacheDataDescriptor.isApacheLogFile(prefix);
+    }
+    public DataDescriptor describeData(FilePrefix prefix, File schemaDbDir, LineSampler sampler) throws IOException {
+      return new ApacheDataDescriptor(prefix.getPath(), prefix.getFS());
+    }
+    public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new ApacheDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
+
+  static class SyslogDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return SyslogDataDescriptor.SYSLOG_TYPE;
+    }
+    public int getCost() {
+      return 50;
+    }
+    public double getConfidence() {
+      return 0.5;
+    }
+    public boolean isFormat(FilePrefix prefix) throws IOException {
+      return SyslogDataDescriptor.isSyslogFile(prefix);
+    }
+    public DataDescriptor describeData(FilePrefix prefix, File schemaDbDir, LineSampler sampler) throws IOException {
+      return new SyslogDataDescriptor(prefix.getPath(), prefix.getFS());
+    }
+    public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new SyslogDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
+
+  static class UnknownTextDetector implements FormatDetector {
+    public String getFileTypeIdentifier() {
+      return UnknownTextDataDescriptor.TEXTDATA_TYPE;
+    }
+    public int getCost() {
+      return 1;
+    }
+    public double getConfidence() {
+      return 0.1;
+    }
+    public boolean isFormat(FilePrefix prefix) {
+      return UnknownTextDataDescriptor.isTextData(prefix);
+    }
+    public DataDescriptor describeData(FilePrefix prefix, File schemaDbDir, LineSampler sampler) throws IOException {
+      // If structure inference fails, the file is treated as unstructured
+      try {
+        return new UnknownTextDataDescriptor(prefix.getFS(), prefix.getPath(), schemaDbDir, sampler);
+      } catch (Exception iex) {
+        return null;
+      }
+    }
+    public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
+      return new UnknownTextDataDescriptor(fs, p, schemaReprs, schemaDescs, schemaBlobs);
+    }
+  }
+}
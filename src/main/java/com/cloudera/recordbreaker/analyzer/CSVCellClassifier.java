@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.apache.avro.Schema;
+
+import au.com.bytecode.opencsv.CSVParser;
+
+/***********************************************************
+ * <code>CSVCellClassifier</code> splits sampled CSV rows into
+ * cells and works out what kind of data each cell holds.  CSV
+ * detection classifies the first rows of the file, and schema
+ * inference carries on with the same classifier from where
+ * detection stopped, so each row is split and classified just once.
+ *
+ * Cells are classified by scanning their characters, rather
+ * than by calling Integer.parseInt() and Double.parseDouble() and
+ * catching the exception that most cells cause.  Whole numbers
+ * are INT or LONG depending on how many digits they have.  Dates
+ * are told apart from other strings, which helps spot header
+ * rows, but are stored as strings.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ ***********************************************************/
+class CSVCellClassifier {
+  // Cell types
+  final static int NONE = -1;
+  final static int INT = 0;
+  final static int LONG = 1;
+  final static int DOUBLE = 2;
+  final static int BOOLEAN = 3;
+  final static int DATE = 4;
+  final static int STRING = 5;
+
+  final static String MAX_INT = "" + Integer.MAX_VALUE;
+  final static String MIN_INT = ("" + Integer.MIN_VALUE).substring(1);
+  final static String MAX_LONG = "" + Long.MAX_VALUE;
+  final static String MIN_LONG = ("" + Long.MIN_VALUE).substring(1);
+
+  CSVParser parser = new CSVParser();
+
+  // Row shapes
+  int numRows = 0;
+  long totalCellCount = 0;
+  List<Integer> cellCounts = new ArrayList<Integer>();
+
+  // The first row, which may be a header, and the types of the rest
+  String firstLine;
+  List<String> firstRow = new ArrayList<String>();
+  int firstRowTypes[] = new int[0];
+  int columnTypes[] = new int[0];
+
+  CSVCellClassifier() {
+  }
+
+  /**
+   * Split and classify the next sampled row.
+   */
+  void addRow(String line) throws IOException {
+    String parts[] = parser.parseLine(line);
+    numRows++;
+    totalCellCount += parts.length;
+    cellCounts.add(parts.length);
+
+    if (numRows == 1) {
+      firstLine = line;
+      firstRowTypes = new int[parts.length];
+    } else if (parts.length > columnTypes.length) {
+      int newTypes[] = new int[parts.length];
+      System.arraycopy(columnTypes, 0, newTypes, 0, columnTypes.length);
+      for (int i = columnTypes.length; i < newTypes.length; i++) {
+        newTypes[i] = NONE;
+      }
+      columnTypes = newTypes;
+    }
+    for (int i = 0; i < parts.length; i++) {
+      //
+      // Find the cell's value without copying it: drop a leading
+      // separator, surrounding whitespace, and surrounding quotes.
+      //
+      String cell = parts[i];
+      int start = 0;
+      int end = cell.length();
+      if (start < end && cell.charAt(start) == ',') {
+        start++;
+      }
+      while (start < end && cell.charAt(start) <= ' ') {
+        start++;
+      }
+      while (end > start && cell.charAt(end-1) <= ' ') {
+        end--;
+      }
+      if (end - start >= 2 && cell.charAt(start) == '"' && cell.charAt(end-1) == '"') {
+        start++;
+        end--;
+        while (start < end && cell.charAt(start) <= ' ') {
+          start++;
+        }
+        while (end > start && cell.charAt(end-1) <= ' ') {
+          end--;
+        }
+      }
+
+      int cellType = classify(cell, start, end);
+      if (numRows == 1) {
+        firstRow.add(cell.substring(start, end));
+        firstRowTypes[i] = cellType;
+      } else {
+        columnTypes[i] = combine(columnTypes[i], cellType);
+      }
+    }
+  }
+
+  int getNumRows() {
+    return numRows;
+  }
+  double getMeanCellCount() {
+    return totalCellCount / (1.0 * numRows);
+  }
+  double getCellCountStddev() {
+    double meanCellCount = getMeanCellCount();
+    double totalVariance = 0;
+    for (Integer v: cellCounts) {
+      totalVariance += Math.pow(v - meanCellCount, 2);
+    }
+    return Math.sqrt(totalVariance / numRows);
+  }
+
+  String getFirstLine() {
+    return firstLine;
+  }
+  List<String> getFirstRow() {
+    return firstRow;
+  }
+  int getFirstRowType(int col) {
+    return firstRowTypes[col];
+  }
+  /**
+   * The type that fits every cell of the column after the first row, or
+   * NONE if there are no such cells.
+   */
+  int getColumnType(int col) {
+    return (col < columnTypes.length) ? columnTypes[col] : NONE;
+  }
+
+  /**
+   * The least-common-denominator of two cell types.
+   */
+  static int combine(int typeA, int typeB) {
+    if (typeA == NONE) {
+      return typeB;
+    }
+    if (typeB == NONE || typeA == typeB) {
+      return typeA;
+    }
+    if (isNumeric(typeA) && isNumeric(typeB)) {
+      return Math.max(typeA, typeB);
+    }
+    return STRING;
+  }
+
+  static boolean isNumeric(int cellType) {
+    return cellType == INT || cellType == LONG || cellType == DOUBLE;
+  }
+
+  /**
+   * The Avro type that stores cells of the given type.
+   */
+  static Schema.Type getAvroType(int cellType) {
+    switch (cellType) {
+    case INT:
+      return Schema.Type.INT;
+    case LONG:
+      return Schema.Type.LONG;
+    case DOUBLE:
+      return Schema.Type.DOUBLE;
+    case BOOLEAN:
+      return Schema.Type.BOOLEAN;
+    case NONE:
+      return Schema.Type.NULL;
+    default:
+      return Schema.Type.STRING;
+    }
+  }
+
+  ///////////////////////////////////////////////////
+  // Classifying a single cell
+  ///////////////////////////////////////////////////
+  static int classify(String s) {
+    return classify(s, 0, s.length());
+  }
+
+  /**
+   * Classify the characters s[start..end).  A cell is INT, LONG or DOUBLE
+   * exactly when Integer.parseInt(), Long.parseLong() or Double.parseDouble()
+   * would accept it, except that hexadecimal floating point and non-ASCII
+   * digits count as strings.
+   */
+  static int classify(String s, int start, int end) {
+    if (start >= end) {
+      return STRING;
+    }
+    if (matches(s, start, end, "true") || matches(s, start, end, "false")) {
+      return BOOLEAN;
+    }
+
+    int i = start;
+    boolean negative = false;
+    char c = s.charAt(i);
+    if (c == '+' || c == '-') {
+      negative = (c == '-');
+      i++;
+    }
+    if (i == end) {
+      return STRING;
+    }
+    if (s.startsWith("NaN", i) && end - i == 3) {
+      return DOUBLE;
+    }
+    if (s.startsWith("Infinity", i) && end - i == 8) {
+      return DOUBLE;
+    }
+
+    // Whole-number part
+    int intStart = i;
+    while (i < end && isDigit(s.charAt(i))) {
+      i++;
+    }
+    int intDigits = i - intStart;
+    if (i == end) {
+      return classifyWholeNumber(s, intStart, end, negative);
+    }
+    c = s.charAt(i);
+    if ((c == '-' || c == '/') && intDigits > 0 && intStart == start) {
+      return isDate(s, start, end) ? DATE : STRING;
+    }
+
+    // Fraction, exponent and type suffix
+    int fracDigits = 0;
+    if (c == '.') {
+      i++;
+      int fracStart = i;
+      while (i < end && isDigit(s.charAt(i))) {
+        i++;
+      }
+      fracDigits = i - fracStart;
+    }
+    if (intDigits + fracDigits == 0) {
+      return STRING;
+    }
+    if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+      i++;
+      if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+        i++;
+      }
+      int expStart = i;
+      while (i < end && isDigit(s.charAt(i))) {
+        i++;
+      }
+      if (i == expStart) {
+        return STRING;
+      }
+    }
+    if (i < end && "fFdD".indexOf(s.charAt(i)) >= 0) {
+      i++;
+    }
+    return (i == end) ? DOUBLE : STRING;
+  }
+
+  /**
+   * The digits s[start..end) fit an int or a long if there are few enough of
+   * them; otherwise the number is only a double.
+   */
+  static int classifyWholeNumber(String s, int start, int end, boolean negative) {
+    while (start < end - 1 && s.charAt(start) == '0') {
+      start++;
+    }
+    int width = end - start;
+    if (width < MAX_INT.length() ||
+        (width == MAX_INT.length() && compareDigits(s, start, negative ? MIN_INT : MAX_INT) <= 0)) {
+      return INT;
+    }
+    if (width < MAX_LONG.length() ||
+        (width == MAX_LONG.length() && compareDigits(s, start, negative ? MIN_LONG : MAX_LONG) <= 0)) {
+      return LONG;
+    }
+    return DOUBLE;
+  }
+
+  /**
+   * Compare the digits at s[start..] with the same number of digits in <code>limit</code>
+   */
+  static int compareDigits(String s, int start, String limit) {
+    for (int i = 0; i < limit.length(); i++) {
+      int diff = s.charAt(start + i) - limit.charAt(i);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Dates are yyyy-mm-dd, mm/dd/yyyy and the like, optionally followed by
+   * a time of day, e.g. "2013-01-05 10:22:33.125"
+   */
+  static boolean isDate(String s, int start, int end) {
+    int parts[] = new int[3];
+    int widths[] = new int[3];
+    char sep = s.charAt(start + digitsAt(s, start, end));
+    int i = start;
+    for (int p = 0; p < 3; p++) {
+      if (p > 0) {
+        if (i >= end || s.charAt(i) != sep) {
+          return false;
+        }
+        i++;
+      }
+      widths[p] = digitsAt(s, i, end);
+      if (widths[p] == 0 || widths[p] > 4) {
+        return false;
+      }
+      parts[p] = Integer.parseInt(s.substring(i, i + widths[p]));
+      i += widths[p];
+    }
+
+    boolean validDate = false;
+    if (widths[0] == 4) {
+      // Year first
+      validDate = widths[1] <= 2 && widths[2] <= 2 && isMonth(parts[1]) && isDay(parts[2]);
+    } else if (widths[0] <= 2 && widths[1] <= 2 && (widths[2] == 2 || widths[2] == 4)) {
+      // Year last, with the month either first or second
+      validDate = (isMonth(parts[0]) && isDay(parts[1])) || (isDay(parts[0]) && isMonth(parts[1]));
+    }
+    if (! validDate) {
+      return false;
+    }
+    if (i == end) {
+      return true;
+    }
+    if (s.charAt(i) != ' ' && s.charAt(i) != 'T') {
+      return false;
+    }
+    return isTime(s, i + 1, end);
+  }
+
+  /**
+   * hh:mm, optionally followed by :ss, fractional seconds and a 'Z'
+   */
+  static boolean isTime(String s, int start, int end) {
+    int i = start;
+    for (int p = 0; p < 3; p++) {
+      if (p > 0) {
+        if (i == end || s.charAt(i) != ':') {
+          if (p == 2) {
+            // No seconds
+            break;
+          }
+          return false;
+        }
+        i++;
+      }
+      int width = digitsAt(s, i, end);
+      if (width == 0 || width > 2) {
+        return false;
+      }
+      i += width;
+    }
+    if (i < end && s.charAt(i) == '.') {
+      i++;
+      int width = digitsAt(s, i, end);
+      if (width == 0) {
+        return false;
+      }
+      i += width;
+    }
+    if (i < end && s.charAt(i) == 'Z') {
+      i++;
+    }
+    return i == end;
+  }
+
+  static int digitsAt(String s, int start, int end) {
+    int i = start;
+    while (i < end && isDigit(s.charAt(i))) {
+      i++;
+    }
+    return i - start;
+  }
+
+  static boolean isMonth(int v) {
+    return v >= 1 && v <= 12;
+  }
+  static boolean isDay(int v) {
+    return v >= 1 && v <= 31;
+  }
+  static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  static boolean matches(String s, int start, int end, String word) {
+    return end - start == word.length() && s.regionMatches(true, start, word, 0, word.length());
+  }
+}
@@ -15,15 +15,13 @@
 package com.cloudera.recordbreaker.analyzer;
 
 import org.apache.avro.Schema;
-import org.apache.avro.io.DatumWriter;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericData;
 
 import java.io.File;
+import java.io.Reader;
 import java.io.IOException;
-import java.io.BufferedReader;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.util.List;
@@ -33,7 +31,8 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 
-import au.com.bytecode.opencsv.CSVParser;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /*****************************************************
  * <code>CSVDataDescriptor</code> describes comma-separated
@@ -44,6 +43,7 @@ import au.com.bytecode.opencsv.CSVParser;
  * @author Michael Cafarella
  *****************************************************/
 public class CSVDataDescriptor extends GenericDataDescriptor {
+  private static final Log LOG = LogFactory.getLog(CSVDataDescriptor.class);
   final public static String CSV_TYPE = "csv";
   private static int MAX_LINES = 25;
   private static int MIN_MEAN_ELTS = 3;
@@ -54,52 +54,61 @@ public class CSVDataDescriptor extends GenericDataDescriptor {
    * Test whether a given file is amenable to CSV processing
    */
   public static boolean isCSV(FileSystem fs, Path p) {
-    String fname = p.getName();    
-    if (fname.endsWith(".csv")) {
+    if (p.getName().endsWith(".csv")) {
       return true;
     }
-    CSVParser parser = new CSVParser();
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-      try {
-        int lineCount = 0;
-        List<Integer> observedEltCounts = new ArrayList<Integer>();
-        int totalEltCount = 0;
-        int minEltCount = Integer.MAX_VALUE;
-        int maxEltCount = -1;
+      return isCSV(new FilePrefix(fs, p));
+    } catch (IOException iex) {
+      return false;
+    }
+  }
 
-        String line = null;
-        while (lineCount < MAX_LINES && ((line = in.readLine()) != null)) {
-          String parts[] = parser.parseLine(line);
-          int numElts = parts.length;
-          minEltCount = Math.min(minEltCount, numElts);
-          maxEltCount = Math.max(maxEltCount, numElts);
-          totalEltCount += numElts;
-          observedEltCounts.add(numElts);
-        
-          lineCount++;
-        }
-        double meanEltCount = totalEltCount / (1.0 * observedEltCounts.size());
-        double totalVariance = 0;
-        for (Integer v: observedEltCounts) {
-          totalVariance += Math.pow(v - meanEltCount, 2);
-        }
-        double variance = totalVariance / observedEltCounts.size();
-        double stddev = Math.sqrt(variance);
-        if (lineCount >= MIN_LINE_COUNT && meanEltCount >= MIN_MEAN_ELTS && ((stddev / meanEltCount) < MAX_ALLOWABLE_LINE_STDDEV)) {
-          return true;
-        }
-      } finally {
-        in.close();
+  /**
+   * Test whether a given file is amenable to CSV processing, using
+   * an already-read prefix of the file.  If it is, the classified
+   * sample rows are kept with the prefix, for schema inference to
+   * carry on from.
+   */
+  public static boolean isCSV(FilePrefix prefix) {
+    String fname = prefix.getPath().getName();
+    if (fname.endsWith(".csv")) {
+      return true;
+    }
+    CSVCellClassifier classifier = new CSVCellClassifier();
+    try {
+      for (String line: prefix.getLines(MAX_LINES)) {
+        classifier.addRow(line);
+      }
+      double meanEltCount = classifier.getMeanCellCount();
+      double stddev = classifier.getCellCountStddev();
+      if (classifier.getNumRows() >= MIN_LINE_COUNT && meanEltCount >= MIN_MEAN_ELTS && ((stddev / meanEltCount) < MAX_ALLOWABLE_LINE_STDDEV)) {
+        prefix.setDetectorState(CSV_TYPE, classifier);
+        return true;
       }
     } catch (IOException ie) {
     }
     return false;
   }
 
+  // The first rows of the file, already classified by isCSV(), or null.
+  // Only needed while the schema is computed.
+  CSVCellClassifier sample;
+
   public CSVDataDescriptor(Path p, FileSystem fs) throws IOException {
+    this(p, fs, null);
+  }
+
+  /**
+   * <code>sample</code> holds the first rows of the file, as classified by
+   * <code>isCSV()</code>.  Schema inference starts from it, and only reads
+   * the rows after it.
+   */
+  CSVDataDescriptor(Path p, FileSystem fs, CSVCellClassifier sample) throws IOException {
     super(p, fs, CSV_TYPE);
+    this.sample = sample;
     schemas.add(new CSVSchemaDescriptor(this));
+    this.sample = null;
   }
 
   public CSVDataDescriptor(Path p, FileSystem fs, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
@@ -118,40 +127,26 @@ public class CSVDataDescriptor extends GenericDataDescriptor {
     // Convert CSV into Avro!!!!
     SchemaDescriptor sd = this.getSchemaDescriptor().get(0);
     List<Schema> unionFreeSchemas = SchemaUtils.getUnionFreeSchemasByFrequency(sd, 100, true);
-    Schema schema = unionFreeSchemas.get(0);
-
-    String headerRowHash = new String(sd.getPayload());
-    CSVRowParser rowParser = new CSVRowParser(schema, headerRowHash);
+    final Schema schema = unionFreeSchemas.get(0);
+    final String headerRowHash = new String(sd.getPayload());
 
-    // Open stream to write out Avro contents
-    DatumWriter<GenericRecord> writer = new GenericDatumWriter<GenericRecord>(schema);
-    DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<GenericRecord>(writer);
-    dataFileWriter.create(schema, dstFs.create(dst, true));
-    int numRecords = 0;
-    int MAX_RECORDS = 1000;
-    try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(srcFs.open(getFilename())));
-      try {
-        String rowStr = null;
-        while (((rowStr = in.readLine()) != null) && (numRecords < MAX_RECORDS)) {
-          if (("" + rowStr.hashCode()).compareTo(headerRowHash) == 0) {
-            continue;
-          }
-          GenericData.Record record = rowParser.parseRow(rowStr);
-          if (record == null) {
-            continue;
-          }
-          if (record.getSchema().toString().hashCode() != schema.toString().hashCode()) {
-            continue;
-          }
-          dataFileWriter.append(record);
-          numRecords++;
+    AvroConverter converter = new AvroConverter(schema, conf) {
+        SplitParser createSplitParser() {
+          return new SplitParser() {
+            void parse(Reader split, DataFileWriter<GenericRecord> out) throws IOException {
+              CSVRecordReader reader = new CSVRecordReader(split, schema, headerRowHash);
+              // Each record is written out before the next is read, so it can be reused
+              GenericData.Record record = null;
+              while ((record = reader.next(record)) != null) {
+                out.append(record);
+              }
+              numConverted += reader.getNumRecords();
+              numRejected += reader.getNumMalformedRows();
+            }
+          };
         }
-      } finally {
-        in.close();
-      }
-    } finally {
-      dataFileWriter.close();
-    }
+      };
+    converter.convert(new InputStreamReader(srcFs.open(getFilename())), dstFs.create(dst, true));
+    LOG.info("Converted " + converter.getNumConverted() + " rows of " + getFilename() + " to Avro; skipped " + converter.getNumRejected() + " malformed rows");
   }
 }
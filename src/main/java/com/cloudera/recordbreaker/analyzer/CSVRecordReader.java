@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.Reader;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.apache.avro.util.Utf8;
+import org.apache.avro.generic.GenericData;
+
+/***********************************************************************
+ * <code>CSVRecordReader</code> streams the rows of a CSV file as Avro
+ * records with a given (flat) schema.  It does the same job as running
+ * each line through CSVRowParser, but without the per-row garbage: lines
+ * are read into a reusable char buffer, cells are split into a second
+ * one, numbers are decoded straight from the chars, and the caller may
+ * hand back the previous record to be filled in again.
+ *
+ * Cells are split exactly as opencsv's CSVParser splits them, quirks
+ * included, so the reader sees the same cells the schema was learned from.
+ *
+ * Rows that match the header, or can't be split, are skipped.  So are
+ * rows with the wrong number of cells, or with a cell that doesn't fit
+ * its column's type; those are counted rather than reported one by one.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ ***********************************************************************/
+public class CSVRecordReader {
+  final static char SEPARATOR = ',';
+  final static char QUOTE = '"';
+  final static char ESCAPE = '\\';
+
+  // Powers of ten that doubles represent exactly
+  final static double POWERS_OF_TEN[] = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10;
+    }
+  }
+
+  Reader in;
+  Schema schema;
+  Schema.Type fieldTypes[];
+  boolean hasHeader;
+  int headerHash;
+
+  // Input buffer, and the current line
+  char buf[] = new char[64 * 1024];
+  int bufPos = 0;
+  int bufLimit = 0;
+  boolean skipLF = false;
+  boolean eof = false;
+  char line[] = new char[1024];
+  int lineLen;
+
+  // The current line's cells, in cells[cellStarts[i]..cellEnds[i])
+  char cells[] = new char[1024];
+  int cellsLen;
+  int cellStarts[];
+  int cellEnds[];
+  int numCells;
+  // Like CSVParser's, this carries over from one line to the next
+  boolean inField = false;
+
+  long numLines = 0;
+  long numRecords = 0;
+  long numMalformedRows = 0;
+  long numMalformedCells = 0;
+
+  /**
+   * <code>headerHash</code> is the hashCode() of the header line, as a
+   * string, or "" if there is no header.
+   */
+  public CSVRecordReader(Reader in, Schema schema, String headerHash) {
+    this.in = in;
+    this.schema = schema;
+    List<Schema.Field> fields = schema.getFields();
+    this.fieldTypes = new Schema.Type[fields.size()];
+    for (int i = 0; i < fieldTypes.length; i++) {
+      fieldTypes[i] = fields.get(i).schema().getType();
+    }
+    this.cellStarts = new int[fieldTypes.length + 1];
+    this.cellEnds = new int[fieldTypes.length + 1];
+
+    this.hasHeader = false;
+    if (headerHash != null && headerHash.length() > 0) {
+      try {
+        this.headerHash = Integer.parseInt(headerHash);
+        this.hasHeader = true;
+      } catch (NumberFormatException nfe) {
+      }
+    }
+  }
+
+  /**
+   * Returns the next well-formed row, or null at the end of the input.
+   * If <code>reuse</code> is non-null, it is filled in and returned
+   * instead of a new record, and its string fields are Utf8s that are
+   * themselves reused from one row to the next.
+   */
+  public GenericData.Record next(GenericData.Record reuse) throws IOException {
+    while (readLine()) {
+      numLines++;
+      if (hasHeader && lineHash() == headerHash) {
+        continue;
+      }
+      if (! splitLine()) {
+        numMalformedRows++;
+        continue;
+      }
+      if (numCells != fieldTypes.length) {
+        numMalformedRows++;
+        continue;
+      }
+      GenericData.Record record = (reuse != null) ? reuse : new GenericData.Record(schema);
+      if (fillRecord(record, reuse != null)) {
+        numRecords++;
+        return record;
+      }
+      numMalformedRows++;
+    }
+    return null;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  public long getNumLines() {
+    return numLines;
+  }
+  public long getNumRecords() {
+    return numRecords;
+  }
+  public long getNumMalformedRows() {
+    return numMalformedRows;
+  }
+  public long getNumMalformedCells() {
+    return numMalformedCells;
+  }
+
+  ///////////////////////////////////////////////////
+  // Reading lines
+  ///////////////////////////////////////////////////
+  /**
+   * Read the next line into line[], breaking lines where
+   * BufferedReader.readLine() does.  Returns false at the end of the input.
+   */
+  boolean readLine() throws IOException {
+    lineLen = 0;
+    boolean sawChars = false;
+    while (true) {
+      if (bufPos >= bufLimit) {
+        if (eof || ! fill()) {
+          return sawChars;
+        }
+      }
+      if (skipLF) {
+        skipLF = false;
+        if (buf[bufPos] == '\n') {
+          bufPos++;
+          continue;
+        }
+      }
+      int start = bufPos;
+      while (bufPos < bufLimit && buf[bufPos] != '\n' && buf[bufPos] != '\r') {
+        bufPos++;
+      }
+      appendToLine(start, bufPos);
+      sawChars = true;
+      if (bufPos < bufLimit) {
+        skipLF = (buf[bufPos] == '\r');
+        bufPos++;
+        return true;
+      }
+    }
+  }
+
+  boolean fill() throws IOException {
+    int numRead = in.read(buf, 0, buf.length);
+    while (numRead == 0) {
+      numRead = in.read(buf, 0, buf.length);
+    }
+    if (numRead < 0) {
+      eof = true;
+      return false;
+    }
+    bufPos = 0;
+    bufLimit = numRead;
+    return true;
+  }
+
+  void appendToLine(int start, int end) {
+    int len = end - start;
+    if (lineLen + len > line.length) {
+      char newLine[] = new char[Math.max(line.length * 2, lineLen + len)];
+      System.arraycopy(line, 0, newLine, 0, lineLen);
+      line = newLine;
+    }
+    System.arraycopy(buf, start, line, lineLen, len);
+    lineLen += len;
+  }
+
+  /**
+   * The line's String.hashCode(), without making the String
+   */
+  int lineHash() {
+    int h = 0;
+    for (int i = 0; i < lineLen; i++) {
+      h = 31 * h + line[i];
+    }
+    return h;
+  }
+
+  ///////////////////////////////////////////////////
+  // Splitting lines into cells
+  ///////////////////////////////////////////////////
+  /**
+   * Split line[] into cells, the way CSVParser.parseLine() does with its
+   * default settings.  Returns false if a quoted cell isn't closed.
+   */
+  boolean splitLine() {
+    if (cells.length < lineLen) {
+      cells = new char[Math.max(cells.length * 2, lineLen)];
+    }
+    cellsLen = 0;
+    numCells = 0;
+    int cellStart = 0;
+    boolean inQuotes = false;
+    for (int i = 0; i < lineLen; i++) {
+      char c = line[i];
+      if (c == ESCAPE) {
+        if ((inQuotes || inField) && lineLen > i + 1 && (line[i+1] == QUOTE || line[i+1] == ESCAPE)) {
+          cells[cellsLen++] = line[i+1];
+          i++;
+        }
+      } else if (c == QUOTE) {
+        if ((inQuotes || inField) && lineLen > i + 1 && line[i+1] == QUOTE) {
+          cells[cellsLen++] = line[i+1];
+          i++;
+        } else {
+          // A quote in the middle of a cell is kept, unless all that
+          // comes before it is whitespace
+          if (i > 2 && line[i-1] != SEPARATOR && lineLen > i + 1 && line[i+1] != SEPARATOR) {
+            if (cellsLen > cellStart && isAllWhitespace(cellStart, cellsLen)) {
+              cellsLen = cellStart;
+            } else {
+              cells[cellsLen++] = c;
+            }
+          }
+          inQuotes = ! inQuotes;
+        }
+        inField = ! inField;
+      } else if (c == SEPARATOR && ! inQuotes) {
+        addCell(cellStart, cellsLen);
+        cellStart = cellsLen;
+        inField = false;
+      } else {
+        cells[cellsLen++] = c;
+        inField = true;
+      }
+    }
+    if (inQuotes) {
+      return false;
+    }
+    addCell(cellStart, cellsLen);
+    return true;
+  }
+
+  boolean isAllWhitespace(int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (! Character.isWhitespace(cells[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Record a cell, trimmed and unquoted as CSVRowParser does.  Cells past
+   * the number of columns are only counted.
+   */
+  void addCell(int start, int end) {
+    if (numCells < cellStarts.length) {
+      if (start < end && cells[start] == SEPARATOR) {
+        start++;
+      }
+      while (start < end && cells[start] <= ' ') {
+        start++;
+      }
+      while (end > start && cells[end-1] <= ' ') {
+        end--;
+      }
+      if (end - start >= 2 && cells[start] == QUOTE && cells[end-1] == QUOTE) {
+        start++;
+        end--;
+        while (start < end && cells[start] <= ' ') {
+          start++;
+        }
+        while (end > start && cells[end-1] <= ' ') {
+          end--;
+        }
+      }
+      cellStarts[numCells] = start;
+      cellEnds[numCells] = end;
+    }
+    numCells++;
+  }
+
+  ///////////////////////////////////////////////////
+  // Decoding cells
+  ///////////////////////////////////////////////////
+  /**
+   * Decode each cell into its field.  Returns false if any cell doesn't
+   * fit its field's type.
+   */
+  boolean fillRecord(GenericData.Record record, boolean reuse) {
+    boolean wellFormed = true;
+    for (int i = 0; i < fieldTypes.length; i++) {
+      Object value = decodeCell(cellStarts[i], cellEnds[i], fieldTypes[i], reuse ? record.get(i) : null, reuse);
+      if (value == null) {
+        numMalformedCells++;
+        wellFormed = false;
+      } else {
+        record.put(i, value);
+      }
+    }
+    return wellFormed;
+  }
+
+  /**
+   * The value of cells[start..end) as the given type, or null if it isn't
+   * one.  If <code>reuse</code> is set, strings are returned as Utf8s,
+   * written into <code>old</code> if it is one.
+   */
+  Object decodeCell(int start, int end, Schema.Type fieldType, Object old, boolean reuse) {
+    switch (fieldType) {
+    case INT:
+      return decodeWholeNumber(start, end, Integer.MIN_VALUE, Integer.MAX_VALUE) ? Integer.valueOf((int) wholeNumber) : null;
+    case LONG:
+      return decodeWholeNumber(start, end, Long.MIN_VALUE, Long.MAX_VALUE) ? Long.valueOf(wholeNumber) : null;
+    case DOUBLE:
+      return decodeDouble(start, end);
+    case BOOLEAN:
+      if (regionEquals(start, end, "true", true)) {
+        return Boolean.TRUE;
+      } else if (regionEquals(start, end, "false", true)) {
+        return Boolean.FALSE;
+      }
+      return null;
+    case STRING:
+      if (reuse) {
+        return encodeUtf8(start, end, (old instanceof Utf8) ? (Utf8) old : new Utf8());
+      }
+      return new String(cells, start, end - start);
+    default:
+      return null;
+    }
+  }
+
+  long wholeNumber;
+
+  /**
+   * Decode an optionally-signed run of ASCII digits into wholeNumber.
+   * Returns false if it isn't one, or doesn't lie in [min, max].
+   */
+  boolean decodeWholeNumber(int start, int end, long min, long max) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (cells[i] == '-' || cells[i] == '+')) {
+      negative = (cells[i] == '-');
+      i++;
+    }
+    if (i == end) {
+      return false;
+    }
+    // Accumulate negatively, so the most negative value fits
+    long limit = negative ? min : -max;
+    long multLimit = limit / 10;
+    long v = 0;
+    for (; i < end; i++) {
+      int digit = cells[i] - '0';
+      if (digit < 0 || digit > 9 || v < multLimit) {
+        return false;
+      }
+      v *= 10;
+      if (v < limit + digit) {
+        return false;
+      }
+      v -= digit;
+    }
+    wholeNumber = negative ? v : -v;
+    return true;
+  }
+
+  /**
+   * Decode a cell that Double.parseDouble() would accept.  Numbers with
+   * few enough digits are converted exactly with a single multiply or
+   * divide; the rest go through Double.parseDouble().  Returns null if
+   * the cell isn't a decimal number.
+   */
+  Double decodeDouble(int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (cells[i] == '-' || cells[i] == '+')) {
+      negative = (cells[i] == '-');
+      i++;
+    }
+    if (i == end) {
+      return null;
+    }
+    if (regionEquals(i, end, "NaN", false)) {
+      return Double.valueOf(Double.NaN);
+    }
+    if (regionEquals(i, end, "Infinity", false)) {
+      return Double.valueOf(negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY);
+    }
+
+    long mantissa = 0;
+    int numDigits = 0;
+    int sigDigits = 0;
+    int exp10 = 0;
+    boolean exact = true;
+    for (; i < end && isDigit(cells[i]); i++) {
+      numDigits++;
+      if (sigDigits > 0 || cells[i] != '0') {
+        if (sigDigits < 18) {
+          mantissa = mantissa * 10 + (cells[i] - '0');
+        } else {
+          exp10++;
+          exact = false;
+        }
+        sigDigits++;
+      }
+    }
+    if (i < end && cells[i] == '.') {
+      i++;
+      for (; i < end && isDigit(cells[i]); i++) {
+        numDigits++;
+        if (sigDigits > 0 || cells[i] != '0') {
+          if (sigDigits < 18) {
+            mantissa = mantissa * 10 + (cells[i] - '0');
+            exp10--;
+          } else {
+            exact = false;
+          }
+          sigDigits++;
+        } else {
+          exp10--;
+        }
+      }
+    }
+    if (numDigits == 0) {
+      return null;
+    }
+    if (i < end && (cells[i] == 'e' || cells[i] == 'E')) {
+      i++;
+      boolean negativeExp = false;
+      if (i < end && (cells[i] == '-' || cells[i] == '+')) {
+        negativeExp = (cells[i] == '-');
+        i++;
+      }
+      int expStart = i;
+      int exp = 0;
+      for (; i < end && isDigit(cells[i]); i++) {
+        if (exp < 100000) {
+          exp = exp * 10 + (cells[i] - '0');
+        }
+      }
+      if (i == expStart) {
+        return null;
+      }
+      exp10 += negativeExp ? -exp : exp;
+    }
+    if (i < end && "fFdD".indexOf(cells[i]) >= 0) {
+      i++;
+    }
+    if (i != end) {
+      return null;
+    }
+
+    double v;
+    if (mantissa == 0) {
+      v = 0;
+    } else if (exact && mantissa < (1L << 53) && exp10 >= -22 && exp10 <= 22) {
+      // Both operands are exact, so the one rounding step is correct
+      v = (exp10 < 0) ? mantissa / POWERS_OF_TEN[-exp10] : mantissa * POWERS_OF_TEN[exp10];
+    } else {
+      return Double.valueOf(new String(cells, start, end - start));
+    }
+    return Double.valueOf(negative ? -v : v);
+  }
+
+  boolean regionEquals(int start, int end, String s, boolean ignoreCase) {
+    if (end - start != s.length()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      char c = cells[start + i];
+      if (c != s.charAt(i) && ! (ignoreCase && Character.toLowerCase(c) == s.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * Write cells[start..end) into <code>out</code> as UTF-8, reusing its bytes.
+   */
+  Utf8 encodeUtf8(int start, int end, Utf8 out) {
+    int numBytes = 0;
+    for (int i = start; i < end; i++) {
+      char c = cells[i];
+      if (c < 0x80) {
+        numBytes++;
+      } else if (c < 0x800) {
+        numBytes += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(cells[i+1])) {
+        numBytes += 4;
+        i++;
+      } else if (isSurrogate(c)) {
+        numBytes++;
+      } else {
+        numBytes += 3;
+      }
+    }
+    out.setByteLength(numBytes);
+    byte bytes[] = out.getBytes();
+    int pos = 0;
+    for (int i = start; i < end; i++) {
+      char c = cells[i];
+      if (c < 0x80) {
+        bytes[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        bytes[pos++] = (byte) (0xc0 | (c >> 6));
+        bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(cells[i+1])) {
+        int cp = Character.toCodePoint(c, cells[i+1]);
+        bytes[pos++] = (byte) (0xf0 | (cp >> 18));
+        bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        bytes[pos++] = (byte) (0x80 | (cp & 0x3f));
+        i++;
+      } else if (isSurrogate(c)) {
+        // An unpaired surrogate, which String.getBytes() also writes as '?'
+        bytes[pos++] = (byte) '?';
+      } else {
+        bytes[pos++] = (byte) (0xe0 | (c >> 12));
+        bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return out;
+  }
+
+  static boolean isSurrogate(char c) {
+    return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+  }
+}
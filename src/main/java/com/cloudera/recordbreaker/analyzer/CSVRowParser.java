@@ -25,7 +25,9 @@ import au.com.bytecode.opencsv.CSVParser;
 /***********************************************************************
  * <code>CSVRowParser</code> converts a single row of a CSV file into an
  * avro object with a given schema.  If the input line is empty or is the header
- * row, the parser returns a null object.
+ * row, the parser returns a null object.  So does a malformed row (one with an
+ * unterminated quote, the wrong number of cells, or a cell that doesn't fit
+ * its field's type); those rows are counted.
  *
  * @author "Michael Cafarella"
  ***********************************************************************/
@@ -34,6 +36,7 @@ public class CSVRowParser {
   Schema schema;
   List<Schema.Field> curFields;
   String headerHash;
+  long numMalformedRows = 0;
   
   public CSVRowParser(Schema schema, String headerHash) {
     this.parser = new CSVParser();
@@ -42,6 +45,13 @@ public class CSVRowParser {
     this.headerHash = headerHash;
   }
 
+  /**
+   * How many rows parseRow() has rejected as malformed
+   */
+  public long getNumMalformedRows() {
+    return numMalformedRows;
+  }
+
   /**
    * <code>parseRow</code> returns a GenericData.Record that matches the
    * init'ed Schema and corresponds to the given row of text.
@@ -55,6 +65,10 @@ public class CSVRowParser {
     try {
       GenericData.Record cur = null;
       String parts[] = parser.parseLine(row);
+      if (parts.length != curFields.size()) {
+        numMalformedRows++;
+        return null;
+      }
       int fieldPos = 0;
 
       for (int i = 0; i < parts.length; i++) {
@@ -66,7 +80,7 @@ public class CSVRowParser {
           rawFieldValue = rawFieldValue.substring(1);
         }
         rawFieldValue = rawFieldValue.trim();
-        if (rawFieldValue.startsWith("\"") && rawFieldValue.endsWith("\"")) {
+        if (rawFieldValue.length() >= 2 && rawFieldValue.startsWith("\"") && rawFieldValue.endsWith("\"")) {
           rawFieldValue = rawFieldValue.substring(1, rawFieldValue.length()-1);
           rawFieldValue = rawFieldValue.trim();
         }
@@ -79,10 +93,11 @@ public class CSVRowParser {
       }
       return cur;
     } catch (IOException iex) {
-      iex.printStackTrace();
+      // An unterminated quote
+      numMalformedRows++;
       return null;
     } catch (NumberFormatException nfe) {
-      nfe.printStackTrace();
+      numMalformedRows++;
       return null;
     }
   }
@@ -93,14 +108,13 @@ public class CSVRowParser {
   Object parseField(String rawFieldValue, Schema.Type fieldType) throws IOException {
     Object fieldValue = null;
     if (fieldType == Schema.Type.INT) {
-      try {
-        fieldValue = Integer.parseInt(rawFieldValue);
-      } catch (NumberFormatException nfe) {
-        nfe.printStackTrace();
-        fieldValue = 0;
-      }
+      fieldValue = Integer.parseInt(rawFieldValue);
+    } else if (fieldType == Schema.Type.LONG) {
+      fieldValue = Long.parseLong(rawFieldValue);
     } else if (fieldType == Schema.Type.DOUBLE) {
       fieldValue = Double.parseDouble(rawFieldValue);
+    } else if (fieldType == Schema.Type.BOOLEAN) {
+      fieldValue = Boolean.valueOf(rawFieldValue);
     } else if (fieldType == Schema.Type.STRING) {
       fieldValue = rawFieldValue;
     } else {
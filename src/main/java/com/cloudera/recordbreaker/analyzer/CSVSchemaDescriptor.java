@@ -24,8 +24,6 @@ import java.util.ArrayList;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 
-import au.com.bytecode.opencsv.CSVParser;
-
 /***************************************************************
  * <code>CSVSchemaDescriptor</code> captures the schema that we extract from a CSV file.
  *
@@ -52,138 +50,58 @@ public class CSVSchemaDescriptor extends GenericSchemaDescriptor {
     return headerHash.getBytes();
   }
 
-  /**
-   * <code>identifyType</code> returns one of a handful of type identifiers
-   * for the given string value.  Possibilities include int, float, date, string,
-   * etc.
-   *
-   * @param val a <code>String</code> value
-   * @return a <code>String</code> value
-   */
-  private Schema.Type identifyType(String val) {
-    try {
-      Integer.parseInt(val);
-      return Schema.Type.INT;
-    } catch (NumberFormatException nfe) {
-    }
-    try {
-      Double.parseDouble(val);
-      return Schema.Type.DOUBLE;
-    } catch (NumberFormatException nfe) {
-    }
-    return Schema.Type.STRING;
-  }
-
-  /**
-   * <code>combineTypes()</code> finds the least-common-denominator type
-   * between the two input types.
-   */
-  private Schema.Type combineTypes(Schema.Type typeA, Schema.Type typeB) {
-    if (typeA == Schema.Type.NULL && typeB == Schema.Type.NULL) {
-      return Schema.Type.STRING;
-    }
-    if (typeA == Schema.Type.NULL) {
-      return typeB;
-    }
-    if (typeB == Schema.Type.NULL) {
-      return typeA;
-    }
-    if (typeA == typeB) {
-      return typeA;
-    }
-    if ((typeA == Schema.Type.INT || typeB == Schema.Type.INT) &&
-        (typeA == Schema.Type.DOUBLE || typeB == Schema.Type.DOUBLE)) {
-      return Schema.Type.DOUBLE;
-    }
-    return Schema.Type.STRING;
-  }
-
   /**
    * <code>computeSchema</code> examines the CSV file and tries to figure out the
    * columnar data types.  It also tests if there's a CSV header that it can extract.
    */
   void computeSchema() throws IOException {   
     //
-    // 1.  Go through all columns in the CSV and identify cell data types
+    // 1.  Go through all columns in the CSV and identify cell data types.
+    // The classifier also works out a type profile for each of the CSV
+    // columns.  If all the cells in a column have the same type, this is
+    // easy.  If not, it finds a type that characterizes the entire column.
+    //
+    // If CSV detection already classified the first rows, carry on
+    // after them.
     //
-    int numColumns = 0;
-    String firstLine = null;
-    List<String> firstRow = new ArrayList<String>();
-    List<List<Schema.Type>> allEltTypes = new ArrayList<List<Schema.Type>>();
-    CSVParser parser = new CSVParser();    
+    CSVCellClassifier classifier = null;
+    if (dd instanceof CSVDataDescriptor) {
+      classifier = ((CSVDataDescriptor) dd).sample;
+    }
+    if (classifier == null) {
+      classifier = new CSVCellClassifier();
+    }
     BufferedReader in = new BufferedReader(new InputStreamReader(dd.getRawBytes()));
     try {
-      int lineno = 0;
+      int numSkipped = 0;
       String s = null;
-      while ((s = in.readLine()) != null) {
-        List<Schema.Type> schemaTypes = new ArrayList<Schema.Type>();
-        String parts[] = parser.parseLine(s);
-
-        for (int i = 0; i < parts.length; i++) {
-          String elt = parts[i];
-          if (elt.startsWith(",")) {
-            elt = elt.substring(1);
-          }
-          elt = elt.trim();
-          if (elt.startsWith("\"") && elt.endsWith("\"")) {
-            elt = elt.substring(1, elt.length()-1);
-            elt = elt.trim();
-          }
-
-          if (lineno == 0) {
-            firstRow.add(elt);
-          } else {
-            schemaTypes.add(identifyType(elt));
-          }
-        }
-
-        if (lineno == 0) {
-          numColumns = firstRow.size();
-          firstLine = s;
-        } else {
-          allEltTypes.add(schemaTypes);
-        }
-        lineno++;
-        if (lineno >= MAX_LINES) {
-          break;
+      while (classifier.getNumRows() < MAX_LINES && (s = in.readLine()) != null) {
+        if (numSkipped < classifier.getNumRows()) {
+          numSkipped++;
+          continue;
         }
+        classifier.addRow(s);
       }
     } finally {
       in.close();
     }
+    String firstLine = classifier.getFirstLine();
+    List<String> firstRow = classifier.getFirstRow();
+    int numColumns = firstRow.size();
 
     //
-    // 2.  Compute a type profile for each of the CSV columns.
-    // If all the cells in a column have the same type, this is easy.
-    // If not, figure out a type that characterizes the entire column.
-    //
-    List<Schema.Type> columnTypes = new ArrayList<Schema.Type>();
-    for (int curCol = 0; curCol < numColumns; curCol++) {
-      Schema.Type columnType = Schema.Type.NULL;
-      for (List<Schema.Type> rowTypes: allEltTypes) {
-        if (curCol < rowTypes.size()) {
-          Schema.Type cellType = rowTypes.get(curCol);
-          columnType = combineTypes(columnType, cellType);
-        }
-      }
-      columnTypes.add(columnType);
-    }
-
-    //
-    // 3.  Figure out whether there's a header row.  We believe there's
+    // 2.  Figure out whether there's a header row.  We believe there's
     // a header if all of the first row are strings, and if there's a type
     // clash with the remainder of the column.
     //
     boolean headerAllStrings = true;
     boolean typeClash = false;
     for (int i = 0; i < numColumns; i++) {
-      String headerValue = firstRow.get(i);
-      Schema.Type headerType = identifyType(headerValue);
-      if (headerType != Schema.Type.STRING) {
+      int headerType = classifier.getFirstRowType(i);
+      if (headerType != CSVCellClassifier.STRING) {
         headerAllStrings = false;
       }
-      Schema.Type columnType = columnTypes.get(i);
-      if (headerType != columnType) {
+      if (headerType != classifier.getColumnType(i)) {
         typeClash = true;
       }
     }
@@ -198,8 +116,8 @@ public class CSVSchemaDescriptor extends GenericSchemaDescriptor {
     } else if (headerAllStrings && ! typeClash) {
       // Still may be a header row, but harder to say
       boolean allStringCols = true;
-      for (Schema.Type columnType: columnTypes) {
-        if (columnType != Schema.Type.STRING) {
+      for (int i = 0; i < numColumns; i++) {
+        if (classifier.getColumnType(i) != CSVCellClassifier.STRING) {
           allStringCols = false;
         }
       }
@@ -210,13 +128,13 @@ public class CSVSchemaDescriptor extends GenericSchemaDescriptor {
     }
 
     //
-    // 4.  Turn the extracted type and header info into a Schema.
+    // 3.  Turn the extracted type and header info into a Schema.
     //
     List<Schema.Field> schemaFields = new ArrayList<Schema.Field>();
     for (int i = 0; i < numColumns; i++) {
       String fieldName = "anon_" + i;
       String fieldDoc = "csv-noheader-" + fieldName;
-      Schema.Type fieldType = columnTypes.get(i);
+      Schema.Type fieldType = CSVCellClassifier.getAvroType(classifier.getColumnType(i));
       if (hasHeaderRow) {
         fieldName = firstRow.get(i);
         fieldName = fieldName.replaceAll(" ","_");
@@ -231,27 +149,29 @@ public class CSVSchemaDescriptor extends GenericSchemaDescriptor {
   /**
    * Return an object to iterate through all the schema-conformant rows
    * of the CSV.  The Iterator returns instances of Avro's GenericRecord.
+   * Malformed rows are skipped.  If the file can't be read, hasNext()
+   * throws a RuntimeException once the rows before the failure are used up.
    */
   public Iterator getIterator() {
     return new Iterator() {
-      CSVRowParser rowParser;
-      int rowNum;
+      CSVRecordReader reader;
       Object nextElt = null;
-      BufferedReader in = null;
+      IOException readError = null;
       {
-        rowNum = 0;
         try {
-          rowParser = new CSVRowParser(getSchema(), headerHash);
-          in = new BufferedReader(new InputStreamReader(dd.getRawBytes()));
-          nextElt = lookahead();          
+          reader = new CSVRecordReader(new InputStreamReader(dd.getRawBytes()), getSchema(), headerHash);
+          nextElt = lookahead();
         } catch (IOException iex) {
           this.nextElt = null;
+          this.readError = iex;
         }
       }
       public boolean hasNext() {
+        checkReadError();
         return nextElt != null;
       }
       public synchronized Object next() {
+        checkReadError();
         Object toReturn = nextElt;
         nextElt = lookahead();
         return toReturn;
@@ -259,95 +179,33 @@ public class CSVSchemaDescriptor extends GenericSchemaDescriptor {
       public void remove() {
         throw new UnsupportedOperationException();
       }
-      Object lookahead() {
-        String s = null;
-        try {
-          while ((s = in.readLine()) != null) {
-            rowNum++;
-            if (rowNum == 1 && hasHeaderRow) {
-              continue;
-            }
-            GenericData.Record cur = rowParser.parseRow(s);
-            if (cur != null) {
-              return cur;
-            }
-          }
-          if (s == null) {
-            in.close();
-          }
-        } catch (IOException iex) {
-          iex.printStackTrace();
+      void checkReadError() {
+        if (nextElt == null && readError != null) {
+          throw new RuntimeException("Could not read CSV data: " + readError.getMessage(), readError);
         }
-        return null;
       }
-      
-      /**
       Object lookahead() {
-        String s = null;
+        if (reader == null) {
+          return null;
+        }
         try {
-          List<Schema.Field> curFields = schema.getFields();
-          while ((s = in.readLine()) != null) {
-            rowNum++;
-            if (rowNum == 1 && hasHeaderRow) {
-              continue;
-            }
-            // Parse each line in the file
-            GenericData.Record cur = null;            
-            String parts[] = parser.parseLine(s);
-            int fieldPos = 0;
-
-            for (int i = 0; i < parts.length; i++) {
-              if (cur == null) {
-                cur = new GenericData.Record(schema);
-              }
-              String rawFieldValue = parts[i];
-              if (rawFieldValue.startsWith(",")) {
-                rawFieldValue = rawFieldValue.substring(1);
-              }
-              rawFieldValue = rawFieldValue.trim();
-              if (rawFieldValue.startsWith("\"") && rawFieldValue.endsWith("\"")) {
-                rawFieldValue = rawFieldValue.substring(1, rawFieldValue.length()-1);
-                rawFieldValue = rawFieldValue.trim();
-              }
-
-              Schema.Field curField = curFields.get(fieldPos);
-              String fieldName = curField.name();
-              Schema fieldType = curField.schema();
-              cur.put(fieldName, parseField(rawFieldValue, fieldType.getType()));
-              fieldPos++;
-            }
-            if (cur != null) {
-              return cur;
-            }
-          }
-          if (s == null) {
-            in.close();
+          // Records are handed out one ahead, so they can't be reused
+          GenericData.Record cur = reader.next(null);
+          if (cur == null) {
+            reader.close();
+            reader = null;
           }
+          return cur;
         } catch (IOException iex) {
-          iex.printStackTrace();
-        }
-        return null;
-      }
-
-      Object parseField(String rawFieldValue, Schema.Type fieldType) throws IOException {
-        Object fieldValue = null;
-        if (fieldType == Schema.Type.INT) {
+          readError = iex;
           try {
-            fieldValue = Integer.parseInt(rawFieldValue);
-          } catch (NumberFormatException nfe) {
-            nfe.printStackTrace();
-            fieldValue = 0;
+            reader.close();
+          } catch (IOException iex2) {
           }
-        } else if (fieldType == Schema.Type.DOUBLE) {
-          fieldValue = Double.parseDouble(rawFieldValue);
-        } else if (fieldType == Schema.Type.STRING) {
-          fieldValue = rawFieldValue;
-        } else {
-          throw new IOException("Unexpected field-level schema type: " + fieldType);
+          reader = null;
         }
-        return fieldValue;
+        return null;
       }
-      **/
     };
   }
 
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.LocatedFileStatus;
+
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/***********************************************************
+ * <code>CrawlPipeline</code> executes a single crawl as three stages
+ * connected by bounded queues:
+ *
+ * 1) A listing stage walks the directory tree and enqueues every
+ *    file and directory it finds.  Directory contents are streamed
+ *    through <code>listLocatedStatus()</code>, so analysis starts as soon
+ *    as the first file is found, and we never hold the whole namespace
+ *    in memory.
+ * 2) A pool of analysis workers runs format detection and structure
+ *    inference on each enqueued file.  This is where almost all of
+ *    the crawl time goes, so it is the stage we parallelize.
+ * 3) A single writer drains analyzed files in batches and stores them
+ *    via the FSAnalyzer.  The store is a single SQLite file, so there
+ *    is no point in having more than one writer.  Each batch is one
+ *    transaction; a batch is committed once it holds
+ *    <code>writeBatchSize</code> files, or once <code>groupCommitMillis</code>
+ *    have passed since its first file arrived, whichever comes first.
+ *
+ * If there is an earlier, completed crawl of the same filesystem, files
+ * whose size and modification time (and optionally checksum) are unchanged
+ * since then skip analysis entirely; the writer just carries their earlier
+ * type and schema guesses forward.  Text files that have only grown since
+ * then, such as logs, keep their earlier learned parser, widened to cover
+ * just the appended data.
+ *
+ * Because the queues are bounded, a slow stage applies backpressure
+ * to the stages ahead of it instead of letting work pile up in memory.
+ * If the writer fails, nothing drains the queues any more, so the other
+ * stages are stopped before the failure is passed on to the caller.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ ***********************************************************/
+class CrawlPipeline {
+  private static final Log LOG = LogFactory.getLog(CrawlPipeline.class);
+  final static int DEFAULT_WRITE_BATCH_SIZE = 500;
+  final static long DEFAULT_GROUP_COMMIT_MILLIS = 1000;
+
+  // Sentinels that mark the end of each stage's output
+  final static FileStatus END_OF_LISTING = new FileStatus();
+  final static FSAnalyzer.FileAnalysis END_OF_ANALYSIS = new FSAnalyzer.FileAnalysis(null);
+
+  FSAnalyzer analyzer;
+  FileSystem fs;
+  long crawlid;
+  CrawlRuntimeStatus cstatus;
+  boolean isResumedCrawl;
+  int numWorkers;
+  int liveWorkers;
+  int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+  long groupCommitMillis = DEFAULT_GROUP_COMMIT_MILLIS;
+  long prevCrawlId = -1L;
+  boolean useChecksums = false;
+  LineSampler sampler = LineSampler.getSampler(LineSampler.HEAD, LineSampler.UNLIMITED_BYTES);
+  BlockingQueue<FileStatus> listingQueue;
+  BlockingQueue<FSAnalyzer.FileAnalysis> writeQueue;
+  // Set when the writer fails, to stop the other stages
+  volatile boolean aborted = false;
+
+  CrawlPipeline(FSAnalyzer analyzer, FileSystem fs, long crawlid, CrawlRuntimeStatus cstatus, int numWorkers, int queueCapacity) {
+    this.analyzer = analyzer;
+    this.fs = fs;
+    this.crawlid = crawlid;
+    this.cstatus = cstatus;
+    this.numWorkers = Math.max(1, numWorkers);
+    this.listingQueue = new ArrayBlockingQueue<FileStatus>(Math.max(1, queueCapacity));
+    this.writeQueue = new ArrayBlockingQueue<FSAnalyzer.FileAnalysis>(Math.max(1, queueCapacity));
+  }
+
+  void setWriteBatchSize(int writeBatchSize) {
+    this.writeBatchSize = Math.max(1, writeBatchSize);
+  }
+  void setGroupCommitMillis(long groupCommitMillis) {
+    this.groupCommitMillis = groupCommitMillis;
+  }
+  void setSampler(LineSampler sampler) {
+    this.sampler = sampler;
+  }
+  void setPreviousCrawl(long prevCrawlId, boolean useChecksums) {
+    this.prevCrawlId = prevCrawlId;
+    this.useChecksums = useChecksums;
+  }
+
+  /**
+   * Crawl everything under <code>startDir</code>, skipping paths that an
+   * earlier attempt at this crawl has already stored.  Blocks until every
+   * stage has finished.  The calling thread acts as the writer stage.
+   */
+  void run(final Path startDir, final int subdirDepth) throws IOException, InterruptedException {
+    final FileStatus startStatus = fs.getFileStatus(startDir);
+    // Only a crawl that was interrupted earlier can contain already-stored paths
+    this.isResumedCrawl = hasStoredFiles();
+    Thread lister = new Thread() {
+        public void run() {
+          try {
+            try {
+              listRecursive(startStatus, subdirDepth);
+            } finally {
+              listingQueue.put(END_OF_LISTING);
+            }
+          } catch (InterruptedException iex) {
+            LOG.info("Crawl listing interrupted: " + iex.toString());
+          }
+        }
+      };
+
+    List<Thread> workers = new ArrayList<Thread>();
+    liveWorkers = numWorkers;
+    for (int i = 0; i < numWorkers; i++) {
+      workers.add(new AnalysisWorker());
+    }
+    lister.start();
+    for (Thread t: workers) {
+      t.start();
+    }
+
+    boolean writerFinished = false;
+    try {
+      drainAndWrite();
+      writerFinished = true;
+      LOG.info("Parser cache so far: " + UnknownTextSchemaDescriptor.getParserCacheHits() + " hits, " +
+               UnknownTextSchemaDescriptor.getParserCacheMisses() + " misses, " +
+               UnknownTextSchemaDescriptor.getParserCacheRejections() + " rejected");
+    } finally {
+      if (! writerFinished) {
+        abort(lister, workers);
+      }
+      lister.join();
+      for (Thread t: workers) {
+        t.join();
+      }
+    }
+  }
+
+  /**
+   * Stop the listing and analysis stages after the writer has failed.  They
+   * may be blocked on a full queue, or about to be, so keep emptying the
+   * write queue and interrupting each thread until it exits.
+   */
+  void abort(Thread lister, List<Thread> workers) throws InterruptedException {
+    aborted = true;
+    List<Thread> threads = new ArrayList<Thread>(workers);
+    threads.add(lister);
+    for (Thread t: threads) {
+      while (t.isAlive()) {
+        t.interrupt();
+        writeQueue.clear();
+        t.join(100);
+      }
+    }
+  }
+
+  boolean hasStoredFiles() {
+    return analyzer.hasFilesForCrawl(crawlid);
+  }
+
+  /**
+   * The listing stage.  Enqueues the given file (or directory) and, if
+   * depth permits, everything beneath it.
+   */
+  void listRecursive(FileStatus fstatus, int subdirDepth) throws InterruptedException {
+    if (cstatus.shouldFinish() || aborted) {
+      return;
+    }
+    if (! fstatus.isDir()) {
+      if (! isObserved(fstatus)) {
+        cstatus.addNumToProcess(1);
+        listingQueue.put(fstatus);
+      }
+    } else if (subdirDepth > 0 || subdirDepth < 0) {
+      if (! isObserved(fstatus)) {
+        listingQueue.put(fstatus);
+      }
+      try {
+        RemoteIterator<LocatedFileStatus> it = fs.listLocatedStatus(fstatus.getPath());
+        while (it.hasNext() && ! cstatus.shouldFinish() && ! aborted) {
+          listRecursive(it.next(), subdirDepth-1);
+        }
+      } catch (IOException iex) {
+        iex.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Has an earlier attempt at this crawl already stored the given file or dir?
+   */
+  boolean isObserved(FileStatus fstatus) {
+    if (! isResumedCrawl) {
+      return false;
+    }
+    return analyzer.isObservedInCrawl(crawlid, fstatus.getPath(), fstatus.isDir());
+  }
+
+  /**
+   * The analysis stage.  Each worker pulls files off the listing queue until
+   * it sees the end-of-listing marker, and hands its results to the writer.
+   */
+  class AnalysisWorker extends Thread {
+    public void run() {
+      try {
+        while (! aborted) {
+          FileStatus fstatus = listingQueue.take();
+          if (fstatus == END_OF_LISTING) {
+            // Put the marker back so the other workers see it, too
+            listingQueue.put(END_OF_LISTING);
+            break;
+          }
+          if (cstatus.shouldFinish()) {
+            continue;
+          }
+          if (! fstatus.isDir()) {
+            cstatus.setMessage("Processing file " + fstatus.getPath().toString());
+          }
+          writeQueue.put(analyzeFile(fstatus));
+        }
+      } catch (InterruptedException iex) {
+        LOG.info("Crawl analysis worker interrupted: " + iex.toString());
+      } finally {
+        workerFinished();
+      }
+    }
+  }
+
+  /**
+   * Analyze one file, reusing an earlier crawl's work if the file hasn't
+   * changed, or has only been appended to.
+   */
+  FSAnalyzer.FileAnalysis analyzeFile(FileStatus fstatus) {
+    String checksum = getChecksum(fstatus);
+    String fingerprint = getFingerprint(fstatus);
+    FSAnalyzer.FileAnalysis analysis = null;
+    long unchangedFid = analyzer.findUnchangedFile(prevCrawlId, fstatus, checksum);
+    if (unchangedFid >= 0) {
+      analysis = new FSAnalyzer.FileAnalysis(fstatus);
+      analysis.unchangedFid = unchangedFid;
+    } else {
+      try {
+        analysis = analyzeAppendedFile(fstatus);
+        if (analysis == null) {
+          analysis = analyzer.analyzeSingleFile(fs, fstatus, sampler);
+        }
+      } catch (Exception ex) {
+        ex.printStackTrace();
+        // Record the file's metadata even if we can't figure out its contents
+        analysis = new FSAnalyzer.FileAnalysis(fstatus);
+      }
+    }
+    analysis.checksum = checksum;
+    analysis.fingerprint = fingerprint;
+    return analysis;
+  }
+
+  /**
+   * If the file has been appended to since the earlier crawl, try to widen that
+   * crawl's parser with just the new data.  Returns null if that doesn't work out.
+   */
+  FSAnalyzer.FileAnalysis analyzeAppendedFile(FileStatus fstatus) {
+    try {
+      long prev[] = analyzer.findAppendedFile(prevCrawlId, fs, fstatus);
+      if (prev == null) {
+        return null;
+      }
+      return analyzer.analyzeAppendedFile(fs, fstatus, prev[0], prev[1]);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * A fingerprint of the file's contents, so a later crawl can tell whether the
+   * file has only been appended to.  Null for directories, or if it can't be read.
+   */
+  String getFingerprint(FileStatus fstatus) {
+    if (fstatus.isDir()) {
+      return null;
+    }
+    try {
+      return FSAnalyzer.getContentFingerprint(fs, fstatus.getPath(), fstatus.getLen());
+    } catch (IOException iex) {
+      iex.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * The filesystem's checksum for the file, if the crawl wants checksums and the
+   * filesystem provides them.  Otherwise null.
+   */
+  String getChecksum(FileStatus fstatus) {
+    if (! useChecksums || fstatus.isDir()) {
+      return null;
+    }
+    try {
+      FileChecksum checksum = fs.getFileChecksum(fstatus.getPath());
+      return (checksum == null) ? null : checksum.toString();
+    } catch (IOException iex) {
+      iex.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * The last worker to finish tells the writer that there's nothing more to come.
+   */
+  void workerFinished() {
+    boolean isLast = false;
+    synchronized (this) {
+      liveWorkers--;
+      isLast = (liveWorkers == 0);
+    }
+    if (isLast) {
+      try {
+        writeQueue.put(END_OF_ANALYSIS);
+      } catch (InterruptedException iex) {
+        LOG.info("Crawl analysis worker interrupted: " + iex.toString());
+      }
+    }
+  }
+
+  /**
+   * The writer stage.  Takes analyzed files off the queue in batches and
+   * stores them, until every worker has finished.
+   */
+  void drainAndWrite() throws InterruptedException {
+    List<FSAnalyzer.FileAnalysis> batch = new ArrayList<FSAnalyzer.FileAnalysis>();
+    boolean done = false;
+    while (! done) {
+      batch.clear();
+      batch.add(writeQueue.take());
+      long commitDeadline = System.currentTimeMillis() + groupCommitMillis;
+      while (batch.size() < writeBatchSize && batch.get(batch.size()-1) != END_OF_ANALYSIS) {
+        writeQueue.drainTo(batch, writeBatchSize - batch.size());
+        if (batch.size() >= writeBatchSize || batch.get(batch.size()-1) == END_OF_ANALYSIS) {
+          break;
+        }
+        long timeLeft = commitDeadline - System.currentTimeMillis();
+        if (timeLeft <= 0) {
+          break;
+        }
+        FSAnalyzer.FileAnalysis analysis = writeQueue.poll(timeLeft, TimeUnit.MILLISECONDS);
+        if (analysis == null) {
+          break;
+        }
+        batch.add(analysis);
+      }
+      if (batch.get(batch.size()-1) == END_OF_ANALYSIS) {
+        batch.remove(batch.size()-1);
+        done = true;
+      }
+      if (! cstatus.shouldFinish()) {
+        writeBatch(batch);
+      }
+    }
+  }
+
+  /**
+   * Store a batch of analyzed files and update the crawl's progress.
+   */
+  void writeBatch(List<FSAnalyzer.FileAnalysis> batch) {
+    try {
+      analyzer.writeFileAnalyses(batch, crawlid);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    int numFilesDone = 0;
+    for (FSAnalyzer.FileAnalysis analysis: batch) {
+      if (! analysis.getFileStatus().isDir()) {
+        numFilesDone++;
+      }
+    }
+    cstatus.addNumDone(numFilesDone);
+  }
+}
@@ -23,7 +23,7 @@ public class CrawlRuntimeStatus {
   public String msg;
   public int numDone;
   public int numToProcess;
-  boolean shouldFinish;
+  volatile boolean shouldFinish;
   
   public CrawlRuntimeStatus(String msg) {
     this.msg = msg;
@@ -37,10 +37,10 @@ public class CrawlRuntimeStatus {
   public String getMessage() {
     return this.msg;
   }
-  public int getNumToProcess() {
+  public synchronized int getNumToProcess() {
     return numToProcess;
   }
-  public int getNumDone() {
+  public synchronized int getNumDone() {
     return numDone;
   }
   public boolean shouldFinish() {
@@ -49,11 +49,17 @@ public class CrawlRuntimeStatus {
   public void setShouldFinish(boolean shouldFinish) {
     this.shouldFinish = shouldFinish;
   }
-  public void setNumToProcess(int numToProcess) {
+  public synchronized void setNumToProcess(int numToProcess) {
     this.numToProcess = numToProcess;
   }
-  public void setNumDone(int numDone) {
+  public synchronized void setNumDone(int numDone) {
     this.numDone = numDone;
   }
+  public synchronized void addNumToProcess(int n) {
+    this.numToProcess += n;
+  }
+  public synchronized void addNumDone(int n) {
+    this.numDone += n;
+  }
   
 }
\ No newline at end of file
@@ -19,6 +19,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Map;
 import java.util.TreeMap;
@@ -33,12 +36,15 @@ import org.apache.hadoop.hive.cli.*;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.conf.Configuration;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
 import com.almworks.sqlite4java.SQLite;
 import com.almworks.sqlite4java.SQLiteJob;
 import com.almworks.sqlite4java.SQLiteQueue;
@@ -97,6 +103,152 @@ public class FSAnalyzer {
       }).complete();
   }
 
+  //
+  // 2. Upgrade the store.  The tables above are the original (version 0) layout.
+  // Each migration below moves the store forward one version, and the store's current
+  // version is kept in SQLite's user_version field.  New stores and old ones go through
+  // the same steps, so they always end up with identical layouts.
+  //
+  static int STORE_VERSION = 6;
+  static String[] MIGRATE_TO_V1 = {
+    // Indexes for the file, type, and schema lookups
+    "CREATE INDEX IF NOT EXISTS FilesCrawlPathIdx ON Files(crawlid, path, fname);",
+    "CREATE INDEX IF NOT EXISTS FilesPathIdx ON Files(path, isDir);",
+    "CREATE INDEX IF NOT EXISTS TypeGuessesFidIdx ON TypeGuesses(fid);",
+    "CREATE INDEX IF NOT EXISTS TypeGuessesTypeIdx ON TypeGuesses(typeid);",
+    "CREATE INDEX IF NOT EXISTS SchemaGuessesFidIdx ON SchemaGuesses(fid);",
+    "CREATE INDEX IF NOT EXISTS SchemaGuessesSchemaIdx ON SchemaGuesses(schemaid);",
+    "CREATE INDEX IF NOT EXISTS TypesLabelIdx ON Types(typelabel);"
+  };
+  static String[] MIGRATE_TO_V2 = {
+    // Normalized full pathname, so lookups by name don't compute path||fname for every row
+    "ALTER TABLE Files ADD COLUMN fullpath text;",
+    "UPDATE Files SET fullpath = path||fname;",
+    "CREATE INDEX IF NOT EXISTS FilesFullPathIdx ON Files(fullpath);"
+  };
+  static String[] MIGRATE_TO_V3 = {
+    // Hash of the schema's text, so looking up a schema doesn't compare long strings
+    "ALTER TABLE Schemas ADD COLUMN schemahash integer;",
+    "CREATE INDEX IF NOT EXISTS SchemasHashIdx ON Schemas(schemahash);"
+  };
+  static String[] MIGRATE_TO_V4 = {
+    // Filesystem checksum, if the crawl asked for one; lets a recrawl detect modified files
+    "ALTER TABLE Files ADD COLUMN checksum text;"
+  };
+  static String[] MIGRATE_TO_V5 = {
+    // Modification time in milliseconds; the 'modified' date only has one-second granularity
+    "ALTER TABLE Files ADD COLUMN modifiedms integer;"
+  };
+  static String[] MIGRATE_TO_V6 = {
+    // Digest of the file's first and last bytes; lets a recrawl tell an append from a rewrite
+    "ALTER TABLE Files ADD COLUMN fingerprint text;"
+  };
+
+  void upgradeStore() throws SQLiteException {
+    dbQueue.execute(new SQLiteJob<Object>() {
+        protected Object job(SQLiteConnection db) throws SQLiteException {
+          int version = getStoreVersion(db);
+          while (version < STORE_VERSION) {
+            LOG.info("Upgrading metadata store from version " + version + " to " + (version+1));
+            boolean committed = false;
+            db.exec("BEGIN TRANSACTION");
+            try {
+              migrate(db, version+1);
+              db.exec("PRAGMA user_version = " + (version+1));
+              db.exec("COMMIT");
+              committed = true;
+            } finally {
+              if (! committed) {
+                db.exec("ROLLBACK");
+              }
+            }
+            version++;
+          }
+          return null;
+        }
+      }).complete();
+  }
+
+  int getStoreVersion(SQLiteConnection db) throws SQLiteException {
+    SQLiteStatement stmt = db.prepare("PRAGMA user_version");
+    try {
+      if (stmt.step()) {
+        return stmt.columnInt(0);
+      }
+      return 0;
+    } finally {
+      stmt.dispose();
+    }
+  }
+
+  void migrate(SQLiteConnection db, int targetVersion) throws SQLiteException {
+    String[] stmts = null;
+    switch (targetVersion) {
+    case 1:
+      stmts = MIGRATE_TO_V1;
+      break;
+    case 2:
+      stmts = MIGRATE_TO_V2;
+      break;
+    case 3:
+      stmts = MIGRATE_TO_V3;
+      break;
+    case 4:
+      stmts = MIGRATE_TO_V4;
+      break;
+    case 5:
+      stmts = MIGRATE_TO_V5;
+      break;
+    case 6:
+      stmts = MIGRATE_TO_V6;
+      break;
+    default:
+      throw new SQLiteException(-1, "Unknown metadata store version " + targetVersion);
+    }
+    for (String stmt: stmts) {
+      db.exec(stmt);
+    }
+    if (targetVersion == 3) {
+      // Fill in hashes for schemas that are already in the store
+      List<Long> schemaids = new ArrayList<Long>();
+      List<String> schemareprs = new ArrayList<String>();
+      SQLiteStatement stmt = db.prepare("SELECT schemaid, schemarepr FROM Schemas");
+      try {
+        while (stmt.step()) {
+          schemaids.add(stmt.columnLong(0));
+          schemareprs.add(stmt.columnString(1));
+        }
+      } finally {
+        stmt.dispose();
+      }
+      stmt = db.prepare("UPDATE Schemas SET schemahash = ? WHERE schemaid = ?");
+      try {
+        for (int i = 0; i < schemaids.size(); i++) {
+          stmt.bind(1, getSchemaHash(schemareprs.get(i))).bind(2, schemaids.get(i));
+          stmt.step();
+          stmt.reset();
+        }
+      } finally {
+        stmt.dispose();
+      }
+    }
+  }
+
+  /**
+   * 64-bit FNV-1a hash of a schema's text.  Only used to narrow down lookups;
+   * we still compare the full text of any candidates.
+   */
+  static long getSchemaHash(String schemaRepr) {
+    long h = 0xcbf29ce484222325L;
+    if (schemaRepr != null) {
+      for (int i = 0; i < schemaRepr.length(); i++) {
+        h ^= schemaRepr.charAt(i);
+        h *= 0x100000001b3L;
+      }
+    }
+    return h;
+  }
+
   ///////////////////////////////////////////////
   // Manage Hive Support
   ///////////////////////////////////////////////
@@ -290,40 +442,53 @@ public class FSAnalyzer {
    * The row is created, if necessary.
    */
   long getCreateType(final String typeLabel) throws SQLiteException {
-    long typeid = dbQueue.execute(new SQLiteJob<Long>() {
+    long typeid = typeIdCache.get(typeLabel);
+    if (typeid >= 0) {
+      return typeid;
+    }
+    return dbQueue.execute(new SQLiteJob<Long>() {
         protected Long job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("SELECT typeid FROM Types WHERE typelabel = ?");
-          try {
-            stmt.bind(1, typeLabel);
-            if (stmt.step()) {
-              long resultId = stmt.columnLong(0);
-              return resultId;
-            } else {
-              return -1L;
-            }
-          } finally {
-            stmt.dispose();
-          }
+          return lookupCreateType(db, typeLabel);
         }
       }).complete();
+  }
 
+  /**
+   * A version of <code>getCreateType</code> for callers that are already running on the db queue
+   */
+  long getCreateType(SQLiteConnection db, String typeLabel) throws SQLiteException {
+    long typeid = typeIdCache.get(typeLabel);
     if (typeid >= 0) {
       return typeid;
     }
-    
+    return lookupCreateType(db, typeLabel);
+  }
+
+  private long lookupCreateType(SQLiteConnection db, String typeLabel) throws SQLiteException {
+    long typeid = -1L;
+    SQLiteStatement stmt = db.prepare("SELECT typeid FROM Types WHERE typelabel = ?", true);
+    try {
+      stmt.bind(1, typeLabel);
+      if (stmt.step()) {
+        typeid = stmt.columnLong(0);
+      }
+    } finally {
+      stmt.dispose();
+    }
+
     // Time to insert
-    return dbQueue.execute(new SQLiteJob<Long>() {
-        protected Long job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("INSERT into Types VALUES(null, ?)");
-          try {
-            stmt.bind(1, typeLabel);
-            stmt.step();
-            return db.getLastInsertId();
-          } finally {
-            stmt.dispose();
-          }
-        }
-      }).complete();
+    if (typeid < 0) {
+      stmt = db.prepare("INSERT into Types VALUES(null, ?)", true);
+      try {
+        stmt.bind(1, typeLabel);
+        stmt.step();
+        typeid = db.getLastInsertId();
+      } finally {
+        stmt.dispose();
+      }
+    }
+    typeIdCache.put(typeLabel, typeid);
+    return typeid;
   }
 
   /**
@@ -334,123 +499,472 @@ public class FSAnalyzer {
     final String schemaIdentifier = (sd == null) ? "" : sd.getSchemaIdentifier();
     final String schemaDesc = (sd == null) ? "no schema" : sd.getSchemaSourceDescription();
     final byte[] payload = (sd == null) ? new byte[0] : sd.getPayload();
-    long schemaid = dbQueue.execute(new SQLiteJob<Long>() {
-        protected Long job(SQLiteConnection db) throws SQLiteException {
-          final SQLiteStatement stmt = db.prepare("SELECT schemaid FROM Schemas WHERE schemarepr = ? AND schemasrcdescription = ?");
-          try {
-            stmt.bind(1, schemaIdentifier).bind(2, schemaDesc);
-            if (stmt.step()) {
-              long resultId = stmt.columnLong(0);
-              return resultId;
-            } else {
-              return -1L;
-            }
-          } finally {
-            stmt.dispose();
-          }
-        }
-      }).complete();
+    return getCreateSchema(schemaIdentifier, schemaDesc, payload);
+  }
 
+  long getCreateSchema(final String schemaIdentifier, final String schemaDesc, final byte[] payload) throws SQLiteException {
+    long schemaid = schemaIdCache.get(getSchemaFingerprint(schemaIdentifier, schemaDesc));
     if (schemaid >= 0) {
       return schemaid;
     }
-    
-    // Time to insert
     return dbQueue.execute(new SQLiteJob<Long>() {
         protected Long job(SQLiteConnection db) throws SQLiteException {
-          final SQLiteStatement stmt = db.prepare("INSERT into Schemas VALUES(null, ?, ?, ?)");
-          try {
-            stmt.bind(1, schemaIdentifier).bind(2, schemaDesc).bind(3, payload);
-            stmt.step();
-            return db.getLastInsertId();      
-          } finally {
-            stmt.dispose();
-          }
+          return lookupCreateSchema(db, schemaIdentifier, schemaDesc, payload);
         }
       }).complete();
   }
 
+  /**
+   * A version of <code>getCreateSchema</code> for callers that are already running on the db queue
+   */
+  long getCreateSchema(SQLiteConnection db, String schemaIdentifier, String schemaDesc, byte[] payload) throws SQLiteException {
+    long schemaid = schemaIdCache.get(getSchemaFingerprint(schemaIdentifier, schemaDesc));
+    if (schemaid >= 0) {
+      return schemaid;
+    }
+    return lookupCreateSchema(db, schemaIdentifier, schemaDesc, payload);
+  }
+
+  private long lookupCreateSchema(SQLiteConnection db, String schemaIdentifier, String schemaDesc, byte[] payload) throws SQLiteException {
+    long schemaid = -1L;
+    long schemaHash = getSchemaHash(schemaIdentifier);
+    SQLiteStatement stmt = db.prepare("SELECT schemaid FROM Schemas WHERE schemahash = ? AND schemarepr = ? AND schemasrcdescription = ?", true);
+    try {
+      stmt.bind(1, schemaHash).bind(2, schemaIdentifier).bind(3, schemaDesc);
+      if (stmt.step()) {
+        schemaid = stmt.columnLong(0);
+      }
+    } finally {
+      stmt.dispose();
+    }
+
+    // Time to insert
+    if (schemaid < 0) {
+      stmt = db.prepare("INSERT into Schemas VALUES(null, ?, ?, ?, ?)", true);
+      try {
+        stmt.bind(1, schemaIdentifier).bind(2, schemaDesc).bind(3, payload).bind(4, schemaHash);
+        stmt.step();
+        schemaid = db.getLastInsertId();
+      } finally {
+        stmt.dispose();
+      }
+    }
+    schemaIdCache.put(getSchemaFingerprint(schemaIdentifier, schemaDesc), schemaid);
+    return schemaid;
+  }
+
+  ///////////////////////////////////////////////
+  // Caches for type and schema ids
+  ///////////////////////////////////////////////
+  static int TYPE_CACHE_SIZE = 1024;
+  static int SCHEMA_CACHE_SIZE = 10000;
+  IdCache<String> typeIdCache = new IdCache<String>(TYPE_CACHE_SIZE);
+  IdCache<String> schemaIdCache = new IdCache<String>(SCHEMA_CACHE_SIZE);
+
+  /**
+   * A schema's cache key.  The schema text can run to many KB, so we key on an
+   * MD5 digest of it instead of holding onto the text itself.
+   */
+  static String getSchemaFingerprint(String schemaIdentifier, String schemaDesc) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] digest = md.digest(schemaIdentifier.getBytes("UTF-8"));
+      StringBuffer buf = new StringBuffer(schemaDesc);
+      buf.append(":");
+      for (int i = 0; i < digest.length; i++) {
+        buf.append(Integer.toHexString((digest[i] >> 4) & 0xf));
+        buf.append(Integer.toHexString(digest[i] & 0xf));
+      }
+      return buf.toString();
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new RuntimeException(nsae);
+    } catch (UnsupportedEncodingException uee) {
+      throw new RuntimeException(uee);
+    }
+  }
+
+  /**
+   * Drop all cached ids.  Needed whenever a transaction that may have created
+   * Types or Schemas rows is rolled back.
+   */
+  void invalidateIdCaches() {
+    typeIdCache.clear();
+    schemaIdCache.clear();
+  }
+
+  public long getTypeCacheHits() {
+    return typeIdCache.getHits();
+  }
+  public long getTypeCacheMisses() {
+    return typeIdCache.getMisses();
+  }
+  public long getSchemaCacheHits() {
+    return schemaIdCache.getHits();
+  }
+  public long getSchemaCacheMisses() {
+    return schemaIdCache.getMisses();
+  }
+
+  /**
+   * <code>FileAnalysis</code> holds everything we learned about a single file
+   * before any of it is written to the store.  Computing it is the expensive part
+   * of a crawl (format detection and structure inference), and it does not touch
+   * the database, so many of these can be computed in parallel.
+   */
+  static class FileAnalysis {
+    FileStatus fstatus;
+    String checksum;
+    String fingerprint;
+    long unchangedFid = -1L;
+    String typeLabel;
+    List<String> schemaReprs = new ArrayList<String>();
+    List<String> schemaDescs = new ArrayList<String>();
+    List<byte[]> schemaPayloads = new ArrayList<byte[]>();
+
+    FileAnalysis(FileStatus fstatus) {
+      this.fstatus = fstatus;
+    }
+    FileStatus getFileStatus() {
+      return fstatus;
+    }
+    boolean hasTypeGuesses() {
+      return typeLabel != null;
+    }
+    /**
+     * The file is unchanged since an earlier crawl, so we reuse that crawl's
+     * type and schema guesses instead of analyzing it again.
+     */
+    boolean isUnchanged() {
+      return unchangedFid >= 0;
+    }
+    void addSchema(String schemaRepr, String schemaDesc, byte[] payload) {
+      schemaReprs.add(schemaRepr);
+      schemaDescs.add(schemaDesc);
+      schemaPayloads.add(payload);
+    }
+  }
+
   /**
    * Add a single brand-new file to the system.  Parse it, obtain structure, etc, if needed.
    */
   void addSingleFile(FileSystem fs, Path insertFile, long crawlId) throws IOException {
     FileStatus fstatus = fs.getFileStatus(insertFile);
-    addFileMetadata(fstatus, crawlId);
-    final boolean isDir = fstatus.isDir();
+    FileAnalysis analysis = null;
+    try {
+      analysis = analyzeSingleFile(fs, fstatus);
+    } catch (IOException iex) {
+      addFileMetadata(fstatus, crawlId);
+      throw iex;
+    }
+    writeFileAnalysis(analysis, crawlId);
+  }
 
-    if (! isDir) {
-      final List<Long> typeGuesses = new ArrayList<Long>();
-      DataDescriptor descriptor = formatAnalyzer.describeData(fs, insertFile);
-      List<SchemaDescriptor> schemas = null;
-      try {
-        schemas = descriptor.getSchemaDescriptor();
-
-        if (schemas == null || schemas.size() == 0) {
-          typeGuesses.add(getCreateType(descriptor.getFileTypeIdentifier()));
-          typeGuesses.add(getSingleFileSummary(descriptor.getFilename().toString()).getFid());
-          typeGuesses.add(getCreateSchema(null));
-        } else {
-          for (SchemaDescriptor sd: schemas) {
-            typeGuesses.add(getCreateType(descriptor.getFileTypeIdentifier()));
-            typeGuesses.add(getSingleFileSummary(descriptor.getFilename().toString()).getFid());
-            typeGuesses.add(getCreateSchema(sd));
-          }
+  /**
+   * <code>analyzeSingleFile</code> runs format detection and schema inference for
+   * the given file.  It does not write anything to the store, and it is safe to call
+   * from several threads at once.
+   */
+  FileAnalysis analyzeSingleFile(FileSystem fs, FileStatus fstatus) throws IOException {
+    return analyzeSingleFile(fs, fstatus, LineSampler.getSampler(LineSampler.HEAD, LineSampler.UNLIMITED_BYTES));
+  }
+
+  FileAnalysis analyzeSingleFile(FileSystem fs, FileStatus fstatus, LineSampler sampler) throws IOException {
+    FileAnalysis analysis = new FileAnalysis(fstatus);
+    if (fstatus.isDir()) {
+      return analysis;
+    }
+    DataDescriptor descriptor = formatAnalyzer.describeData(fs, fstatus.getPath(), sampler);
+    try {
+      List<SchemaDescriptor> schemas = descriptor.getSchemaDescriptor();
+      if (schemas == null || schemas.size() == 0) {
+        analysis.addSchema("", "no schema", new byte[0]);
+      } else {
+        for (SchemaDescriptor sd: schemas) {
+          analysis.addSchema(sd.getSchemaIdentifier(), sd.getSchemaSourceDescription(), sd.getPayload());
         }
-      } catch (Exception ex) {
-        ex.printStackTrace();
       }
+      analysis.typeLabel = descriptor.getFileTypeIdentifier();
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    return analysis;
+  }
 
-      dbQueue.execute(new SQLiteJob<Object>() {
-          protected Long job(SQLiteConnection db) throws SQLiteException {
-            for (int i = 0; i < typeGuesses.size(); i+=3) {
-              long typeId = typeGuesses.get(i);
-              long fileId = typeGuesses.get(i+1);              
-              long schemaId = typeGuesses.get(i+2);            
+  /**
+   * <code>writeFileAnalysis</code> stores the results of <code>analyzeSingleFile</code>.
+   */
+  void writeFileAnalysis(FileAnalysis analysis, long crawlId) {
+    List<FileAnalysis> batch = new ArrayList<FileAnalysis>();
+    batch.add(analysis);
+    writeFileAnalyses(batch, crawlId);
+  }
 
-              SQLiteStatement stmt = db.prepare("INSERT into TypeGuesses VALUES(?, ?)");
-              try {
-                stmt.bind(1, fileId).bind(2, typeId);
-                stmt.step();
-              } finally {
-                stmt.dispose();
+  /**
+   * <code>writeFileAnalyses</code> stores a batch of <code>analyzeSingleFile</code> results.
+   * The whole batch goes into the store as a single transaction, with one set of prepared
+   * statements, so a crawl pays for one commit per batch instead of several per file.
+   *
+   * If the batch fails, it is rolled back and each file is retried in its own transaction,
+   * so a single bad file doesn't lose the rest of the batch.  A job that fails without
+   * finishing has no result at all, and counts as a failure too.
+   */
+  void writeFileAnalyses(final List<FileAnalysis> batch, final long crawlId) {
+    if (batch.size() == 0) {
+      return;
+    }
+    Boolean success = dbQueue.execute(new SQLiteJob<Boolean>() {
+        protected Boolean job(SQLiteConnection db) throws SQLiteException {
+          return writeFileAnalysesTransaction(db, batch, crawlId);
+        }
+      }).complete();
+
+    if ((success == null || ! success.booleanValue()) && batch.size() > 1) {
+      for (final FileAnalysis analysis: batch) {
+        final List<FileAnalysis> singleton = new ArrayList<FileAnalysis>();
+        singleton.add(analysis);
+        dbQueue.execute(new SQLiteJob<Boolean>() {
+            protected Boolean job(SQLiteConnection db) throws SQLiteException {
+              return writeFileAnalysesTransaction(db, singleton, crawlId);
+            }
+          }).complete();
+      }
+    }
+  }
+
+  static String insertFileQuery = "INSERT into Files VALUES(null, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  static String insertTypeGuessQuery = "INSERT into TypeGuesses VALUES(?, ?)";
+  static String insertSchemaGuessQuery = "INSERT into SchemaGuesses VALUES(?, ?)";
+  static String copyTypeGuessQuery = "INSERT into TypeGuesses SELECT ?, typeid FROM TypeGuesses WHERE fid = ?";
+  static String copySchemaGuessQuery = "INSERT into SchemaGuesses SELECT ?, schemaid FROM SchemaGuesses WHERE fid = ?";
+  private boolean writeFileAnalysesTransaction(SQLiteConnection db, List<FileAnalysis> batch, long crawlId) throws SQLiteException {
+    SQLiteStatement fileStmt = null;
+    SQLiteStatement typeGuessStmt = null;
+    SQLiteStatement schemaGuessStmt = null;
+    boolean committed = false;
+    db.exec("BEGIN TRANSACTION");
+    try {
+      fileStmt = db.prepare(insertFileQuery, true);
+      typeGuessStmt = db.prepare(insertTypeGuessQuery, true);
+      schemaGuessStmt = db.prepare(insertSchemaGuessQuery, true);
+      for (FileAnalysis analysis: batch) {
+        FileStatus fstatus = analysis.getFileStatus();
+        bindFileMetadata(fileStmt, fstatus, crawlId, analysis.checksum, analysis.fingerprint);
+        fileStmt.step();
+        fileStmt.reset();
+        long fileId = db.getLastInsertId();
+
+        if (analysis.isUnchanged()) {
+          copyGuesses(db, analysis.unchangedFid, fileId);
+          continue;
+        }
+        if (fstatus.isDir() || ! analysis.hasTypeGuesses()) {
+          continue;
+        }
+        for (int i = 0; i < analysis.schemaReprs.size(); i++) {
+          long typeId = getCreateType(db, analysis.typeLabel);
+          long schemaId = getCreateSchema(db, analysis.schemaReprs.get(i), analysis.schemaDescs.get(i), analysis.schemaPayloads.get(i));
+
+          typeGuessStmt.bind(1, fileId).bind(2, typeId);
+          typeGuessStmt.step();
+          typeGuessStmt.reset();
+
+          schemaGuessStmt.bind(1, fileId).bind(2, schemaId);
+          schemaGuessStmt.step();
+          schemaGuessStmt.reset();
+        }
+      }
+      db.exec("COMMIT");
+      committed = true;
+    } catch (SQLiteException sle) {
+      sle.printStackTrace();
+    } catch (RuntimeException rex) {
+      // E.g., a file whose analysis is missing a schema identifier
+      LOG.error("Could not store file analyses: " + rex.toString(), rex);
+    } finally {
+      if (fileStmt != null) {
+        fileStmt.dispose();
+      }
+      if (typeGuessStmt != null) {
+        typeGuessStmt.dispose();
+      }
+      if (schemaGuessStmt != null) {
+        schemaGuessStmt.dispose();
+      }
+      if (! committed) {
+        db.exec("ROLLBACK");
+        invalidateIdCaches();
+      }
+    }
+    return committed;
+  }
+
+  /**
+   * Carry an earlier crawl's type and schema guesses for a file over to its new row
+   */
+  private void copyGuesses(SQLiteConnection db, long oldFid, long newFid) throws SQLiteException {
+    SQLiteStatement stmt = db.prepare(copyTypeGuessQuery, true);
+    try {
+      stmt.bind(1, newFid).bind(2, oldFid);
+      stmt.step();
+    } finally {
+      stmt.dispose();
+    }
+    stmt = db.prepare(copySchemaGuessQuery, true);
+    try {
+      stmt.bind(1, newFid).bind(2, oldFid);
+      stmt.step();
+    } finally {
+      stmt.dispose();
+    }
+  }
+
+  /**
+   * <code>findUnchangedFile</code> looks for the given file in an earlier crawl.  If it's
+   * there, and its size and modification time (and checksum, if we have one for both
+   * versions) haven't changed, this returns the earlier row's fid.  Otherwise it returns -1.
+   * Rows stored before the millisecond modification time was kept never match.
+   */
+  static String previousFileQuery = "SELECT fid, size, modifiedms, checksum, fingerprint FROM Files WHERE crawlid = ? AND path = ? AND fname = ? AND isDir = 'False'";
+  long findUnchangedFile(final long prevCrawlId, final FileStatus fstatus, final String checksum) {
+    if (prevCrawlId < 0 || fstatus.isDir()) {
+      return -1L;
+    }
+    final String storedName[] = getStoredPathAndName(fstatus.getPath(), false);
+    return dbQueue.execute(new SQLiteJob<Long>() {
+        protected Long job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare(previousFileQuery, true);
+          try {
+            stmt.bind(1, prevCrawlId).bind(2, storedName[0]).bind(3, storedName[1]);
+            if (stmt.step()) {
+              long fid = stmt.columnLong(0);
+              long size = stmt.columnLong(1);
+              String prevChecksum = stmt.columnString(3);
+              if (size == fstatus.getLen() &&
+                  ! stmt.columnNull(2) && stmt.columnLong(2) == fstatus.getModificationTime() &&
+                  (checksum == null || prevChecksum == null || checksum.equals(prevChecksum))) {
+                return fid;
               }
             }
-            return null;
+            return -1L;
+          } finally {
+            stmt.dispose();
           }
-        }).complete();
-
-      dbQueue.execute(new SQLiteJob<Object>() {
-          protected Long job(SQLiteConnection db) throws SQLiteException {
-            for (int i = 0; i < typeGuesses.size(); i+=3) {
-              long typeId = typeGuesses.get(i);
-              long fileId = typeGuesses.get(i+1);              
-              long schemaId = typeGuesses.get(i+2);            
+        }
+      }).complete();
+  }
 
-              SQLiteStatement stmt = db.prepare("INSERT into SchemaGuesses VALUES(?, ?)");
-              try {
-                stmt.bind(1, fileId).bind(2, schemaId);
-                stmt.step();
-              } finally {
-                stmt.dispose();
+  /**
+   * <code>findAppendedFile</code> looks for the given file in an earlier crawl.  If it's
+   * there and has grown since, as a log that's being appended to does, and the bytes
+   * the earlier crawl saw are still in place, this returns the earlier row's fid and
+   * size.  Otherwise it returns null.  A file that was rewritten with more data is not
+   * an append, and needs a full analysis.
+   */
+  long[] findAppendedFile(final long prevCrawlId, FileSystem fs, final FileStatus fstatus) throws IOException {
+    if (prevCrawlId < 0 || fstatus.isDir()) {
+      return null;
+    }
+    final String storedName[] = getStoredPathAndName(fstatus.getPath(), false);
+    final String prevFingerprint[] = new String[1];
+    long prev[] = dbQueue.execute(new SQLiteJob<long[]>() {
+        protected long[] job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare(previousFileQuery, true);
+          try {
+            stmt.bind(1, prevCrawlId).bind(2, storedName[0]).bind(3, storedName[1]);
+            if (stmt.step()) {
+              long fid = stmt.columnLong(0);
+              long size = stmt.columnLong(1);
+              if (size < fstatus.getLen()) {
+                prevFingerprint[0] = stmt.columnString(4);
+                return new long[] {fid, size};
               }
             }
             return null;
+          } finally {
+            stmt.dispose();
           }
-        }).complete();
+        }
+      }).complete();
+    if (prev == null || ! hasPrefix(fs, fstatus.getPath(), prev[1], prevFingerprint[0])) {
+      return null;
     }
+    return prev;
   }
 
   /**
-   * <code>addFileMetadata</code> stores the pathname, size, owner, etc.
+   * <code>getContentFingerprint</code> digests the first and last FINGERPRINT_BYTES of
+   * the file's first <code>len</code> bytes.  Appending to a file leaves the digest of
+   * its old length unchanged; rewriting it almost always changes one end or the other.
    */
-  void addFileMetadata(final FileStatus fstatus, final long crawlId) {
-    // Compute strings to represent file metadata
-    Path insertFile = fstatus.getPath(); 
-    final boolean isDir = fstatus.isDir();
-    FsPermission fsp = fstatus.getPermission();
-    final String permissions = (isDir ? "d" : "-") + fsp.getUserAction().SYMBOL + fsp.getGroupAction().SYMBOL + fsp.getOtherAction().SYMBOL;
+  static int FINGERPRINT_BYTES = 4096;
+  static String getContentFingerprint(FileSystem fs, Path p, long len) throws IOException {
+    int headLen = (int) Math.min(len, FINGERPRINT_BYTES);
+    int tailLen = (int) Math.min(len - headLen, FINGERPRINT_BYTES);
+    byte head[] = new byte[headLen];
+    byte tail[] = new byte[tailLen];
+    FSDataInputStream in = fs.open(p);
+    try {
+      in.readFully(0, head);
+      in.readFully(len - tailLen, tail);
+    } finally {
+      in.close();
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      md.update(head);
+      md.update(tail);
+      byte[] digest = md.digest();
+      StringBuffer buf = new StringBuffer(Long.toString(len));
+      buf.append(":");
+      for (int i = 0; i < digest.length; i++) {
+        buf.append(Integer.toHexString((digest[i] >> 4) & 0xf));
+        buf.append(Integer.toHexString(digest[i] & 0xf));
+      }
+      return buf.toString();
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new RuntimeException(nsae);
+    }
+  }
 
-    // Compute formal pathname representation
+  /**
+   * Whether the file's first <code>prevLen</code> bytes still have the fingerprint an
+   * earlier crawl stored.  Files stored without a fingerprint never match.
+   */
+  static boolean hasPrefix(FileSystem fs, Path p, long prevLen, String prevFingerprint) throws IOException {
+    return prevFingerprint != null && prevFingerprint.equals(getContentFingerprint(fs, p, prevLen));
+  }
+
+  /**
+   * <code>analyzeAppendedFile</code> handles a text file that has grown since an earlier
+   * crawl stored it as <code>prevFid</code>.  Instead of learning its structure from
+   * scratch, it widens the earlier parser to cover the appended bytes, so the cost is
+   * proportional to the new data rather than the whole file.  Returns null if the
+   * earlier analysis wasn't a learned text parser, or the widened parser can't handle
+   * the new data; the caller should fall back to <code>analyzeSingleFile</code>.
+   */
+  FileAnalysis analyzeAppendedFile(FileSystem fs, FileStatus fstatus, long prevFid, long prevSize) throws IOException {
+    DataDescriptor descriptor = getDataDescriptor(prevFid);
+    if (! (descriptor instanceof UnknownTextDataDescriptor)) {
+      return null;
+    }
+    List<SchemaDescriptor> schemas = descriptor.getSchemaDescriptor();
+    if (schemas.size() != 1 || ! (schemas.get(0) instanceof UnknownTextSchemaDescriptor)) {
+      return null;
+    }
+    UnknownTextSchemaDescriptor tsd = (UnknownTextSchemaDescriptor) schemas.get(0);
+    if (! tsd.extendWithAppendedData(fs, fstatus.getPath(), prevSize)) {
+      return null;
+    }
+    FileAnalysis analysis = new FileAnalysis(fstatus);
+    analysis.addSchema(tsd.getSchemaIdentifier(), tsd.getSchemaSourceDescription(), tsd.getPayload());
+    analysis.typeLabel = descriptor.getFileTypeIdentifier();
+    return analysis;
+  }
+
+  /**
+   * Returns the (path, fname) pair under which a file is stored in the Files table.
+   */
+  static String[] getStoredPathAndName(Path insertFile, boolean isDir) {
     String fnameString = null;
     String parentPathString = null;
     if (isDir && insertFile.getParent() == null) {
@@ -467,13 +981,18 @@ public class FSAnalyzer {
         parentPathString = parentPathString + "/";
       }
     }
-    final String parentPath = parentPathString;
-    final String fName = fnameString;
+    return new String[] {parentPathString, fnameString};
+  }
+
+  /**
+   * <code>addFileMetadata</code> stores the pathname, size, owner, etc.
+   */
+  void addFileMetadata(final FileStatus fstatus, final long crawlId) {
     final long fileId = dbQueue.execute(new SQLiteJob<Long>() {
         protected Long job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("INSERT into Files VALUES(null, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+          SQLiteStatement stmt = db.prepare(insertFileQuery);
           try {
-            stmt.bind(1, isDir ? "True" : "False").bind(2, crawlId).bind(3, fName).bind(4, fstatus.getOwner()).bind(5, fstatus.getGroup()).bind(6, permissions).bind(7, fstatus.getLen()).bind(8, fileDateFormat.format(new Date(fstatus.getModificationTime()))).bind(9, parentPath);
+            bindFileMetadata(stmt, fstatus, crawlId, null, null);
             stmt.step();
             return db.getLastInsertId();
           } finally {
@@ -483,6 +1002,24 @@ public class FSAnalyzer {
       }).complete();
   }
 
+  /**
+   * Bind a file's metadata to an <code>insertFileQuery</code> statement.
+   */
+  static void bindFileMetadata(SQLiteStatement stmt, FileStatus fstatus, long crawlId, String checksum, String fingerprint) throws SQLiteException {
+    // Compute strings to represent file metadata
+    Path insertFile = fstatus.getPath(); 
+    boolean isDir = fstatus.isDir();
+    FsPermission fsp = fstatus.getPermission();
+    String permissions = (isDir ? "d" : "-") + fsp.getUserAction().SYMBOL + fsp.getGroupAction().SYMBOL + fsp.getOtherAction().SYMBOL;
+
+    // Compute formal pathname representation
+    String storedName[] = getStoredPathAndName(insertFile, isDir);
+    String parentPath = storedName[0];
+    String fName = storedName[1];
+    String modified = fileDateFormat.format(new Date(fstatus.getModificationTime()));
+    stmt.bind(1, isDir ? "True" : "False").bind(2, crawlId).bind(3, fName).bind(4, fstatus.getOwner()).bind(5, fstatus.getGroup()).bind(6, permissions).bind(7, fstatus.getLen()).bind(8, modified).bind(9, parentPath).bind(10, parentPath + fName).bind(11, checksum).bind(12, fstatus.getModificationTime()).bind(13, fingerprint);
+  }
+
   ///////////////////////////////////////////////////
   // ACCESSORS FOR SCHEMAS
   ///////////////////////////////////////////////////
@@ -729,7 +1266,7 @@ public class FSAnalyzer {
         }}).complete();
   }
 
-  static String singletonFileInfoQuery = "SELECT fid FROM Files WHERE path||fname = ?";  
+  static String singletonFileInfoQuery = "SELECT fid FROM Files WHERE fullpath = ?";  
   public FileSummary getSingleFileSummary(final String fullName) {
     return dbQueue.execute(new SQLiteJob<FileSummary>() {
         protected FileSummary job(SQLiteConnection db) throws SQLiteException {
@@ -758,6 +1295,43 @@ public class FSAnalyzer {
   public List<Path> getDirsForCrawl(final long crawlid) {
     return getFileEntriesForCrawl(crawlid, "True");    
   }
+  /**
+   * <code>hasFilesForCrawl()</code> tells whether anything at all has been stored for
+   * the crawl yet; i.e., whether we are resuming a crawl that was interrupted.
+   */
+  static String anyFileForCrawlQuery = "SELECT fid FROM Files WHERE crawlid = ? LIMIT 1";
+  public boolean hasFilesForCrawl(final long crawlid) {
+    return dbQueue.execute(new SQLiteJob<Boolean>() {
+        protected Boolean job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare(anyFileForCrawlQuery);
+          try {
+            stmt.bind(1, crawlid);
+            return stmt.step();
+          } finally {
+            stmt.dispose();
+          }
+        }}).complete();
+  }
+
+  /**
+   * <code>isObservedInCrawl()</code> tells whether the given file or dir has already
+   * been stored for the crawl.  Answered from the (crawlid, path, fname) index.
+   */
+  static String observedInCrawlQuery = "SELECT fid FROM Files WHERE crawlid = ? AND path = ? AND fname = ? AND isDir = ? LIMIT 1";
+  public boolean isObservedInCrawl(final long crawlid, Path p, final boolean isDir) {
+    final String storedName[] = getStoredPathAndName(p, isDir);
+    return dbQueue.execute(new SQLiteJob<Boolean>() {
+        protected Boolean job(SQLiteConnection db) throws SQLiteException {
+          SQLiteStatement stmt = db.prepare(observedInCrawlQuery, true);
+          try {
+            stmt.bind(1, crawlid).bind(2, storedName[0]).bind(3, storedName[1]).bind(4, isDir ? "True" : "False");
+            return stmt.step();
+          } finally {
+            stmt.dispose();
+          }
+        }}).complete();
+  }
+
   static String filenameForCrawlQuery = "SELECT path, fname FROM Files WHERE crawlid=? AND isDir = ?";        
   private List<Path> getFileEntriesForCrawl(final long crawlid, final String isDir) {
     return dbQueue.execute(new SQLiteJob<List<Path>>() {
@@ -906,7 +1480,7 @@ public class FSAnalyzer {
   public Path getTopDir(final long crawlid)  {
     return dbQueue.execute(new SQLiteJob<Path>() {
         protected Path job(SQLiteConnection db) throws SQLiteException {
-          SQLiteStatement stmt = db.prepare("SELECT path, fname FROM Files WHERE crawlid = ? AND isDir = 'True' ORDER BY length(path||fname) ASC LIMIT 1");
+          SQLiteStatement stmt = db.prepare("SELECT path, fname FROM Files WHERE crawlid = ? AND isDir = 'True' ORDER BY length(fullpath) ASC LIMIT 1");
           try {
             stmt.bind(1, crawlid);
             if (stmt.step()) {
@@ -928,7 +1502,7 @@ public class FSAnalyzer {
     return dbQueue.execute(new SQLiteJob<List<FileSummary>>() {
         protected List<FileSummary> job(SQLiteConnection db) throws SQLiteException {
           List<FileSummary> output = new ArrayList<FileSummary>();
-          SQLiteStatement stmt = db.prepare("select fid, path, fname from Files WHERE crawlid = ? AND length(?) > length(path||fname) AND isDir = 'True' AND replace(?, path||fname, '') LIKE '/%'");
+          SQLiteStatement stmt = db.prepare("select fid, path, fname from Files WHERE crawlid = ? AND length(?) > length(fullpath) AND isDir = 'True' AND replace(?, fullpath, '') LIKE '/%'");
           try {
             Path targetDir = new Path(targetDirStr);
             if (targetDir.getParent() != null) {
@@ -1258,10 +1832,15 @@ public class FSAnalyzer {
     if (isNew) {
       createTables();
     }
+    upgradeStore();
     this.formatAnalyzer = new FormatAnalyzer(schemaDir);
     FSAnalyzer.fsaInstance = this;
   }
 
+  public FormatAnalyzer getFormatAnalyzer() {
+    return formatAnalyzer;
+  }
+
   public void close() throws IOException, SQLiteException, InterruptedException {
     this.dbQueue.stop(true).join();
   }
@@ -20,8 +20,6 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.Date;
 import java.util.List;
-import java.util.TreeSet;
-import java.util.Iterator;
 import java.util.Hashtable;
 import java.util.ArrayList;
 import java.text.SimpleDateFormat;
@@ -31,6 +29,8 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.conf.Configuration;
 
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -45,6 +45,7 @@ import com.almworks.sqlite4java.SQLiteException;
  ***********************************************************/
 public class FSCrawler {
   final static int INFINITE_CRAWL_DEPTH = -1;
+  final static int DEFAULT_CRAWL_QUEUE_CAPACITY = 1000;
   private static final Log LOG = LogFactory.getLog(FSCrawler.class);  
   
   static SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -53,6 +54,13 @@ public class FSCrawler {
   Hashtable<Long, CrawlRuntimeStatus> crawlStatusInfo = new Hashtable<Long, CrawlRuntimeStatus>();
   FSAnalyzer analyzer;
   FileSystem fs;
+  int numAnalysisThreads = Runtime.getRuntime().availableProcessors();
+  int crawlQueueCapacity = DEFAULT_CRAWL_QUEUE_CAPACITY;
+  int writeBatchSize = CrawlPipeline.DEFAULT_WRITE_BATCH_SIZE;
+  long groupCommitMillis = CrawlPipeline.DEFAULT_GROUP_COMMIT_MILLIS;
+  boolean incrementalCrawl = true;
+  boolean useChecksums = false;
+  LineSampler sampler = LineSampler.getSampler(LineSampler.HEAD, LineSampler.UNLIMITED_BYTES);
 
   /**
    * Needs an analyzer to work
@@ -63,31 +71,46 @@ public class FSCrawler {
   }
 
   /**
-   * Traverse an entire region of the filesystem, analyzing files.
-   * This code should:
-   * a) Navigate the directory hierarchy
-   * b) Run analysis code to figure out the file details
-   * c) Invoke addSingleFile() appropriately.
+   * How many files a crawl should analyze at once.  Defaults to the number of processors.
    */
-  protected void recursiveCrawlBuildList(FileSystem fs, Path p, int subdirDepth, long crawlId, List<Path> todoFileList, List<Path> todoDirList) throws IOException {
-    FileStatus fstatus = fs.getFileStatus(p);
-    if (! fstatus.isDir()) {
-      todoFileList.add(p);
-    } else {
-      if (subdirDepth > 0 || subdirDepth < 0) {
-        todoDirList.add(p);
-        Path paths[] = new Path[1];
-        paths[0] = p;
-        for (FileStatus subfilestatus: fs.listStatus(p)) {
-          Path subfile = subfilestatus.getPath();
-          try {
-            recursiveCrawlBuildList(fs, subfile, subdirDepth-1, crawlId, todoFileList, todoDirList);
-          } catch (IOException iex) {
-            iex.printStackTrace();
-          }
-        }
-      }
-    }
+  public void setNumAnalysisThreads(int numAnalysisThreads) {
+    this.numAnalysisThreads = numAnalysisThreads;
+  }
+
+  /**
+   * How many listed-but-unanalyzed (or analyzed-but-unstored) files a crawl may hold in memory
+   */
+  public void setCrawlQueueCapacity(int crawlQueueCapacity) {
+    this.crawlQueueCapacity = crawlQueueCapacity;
+  }
+
+  /**
+   * Analyzed files are written to the store in transactions of up to <code>writeBatchSize</code>
+   * files.  A partial batch is committed once <code>groupCommitMillis</code> have passed.
+   */
+  public void setWriteBatching(int writeBatchSize, long groupCommitMillis) {
+    this.writeBatchSize = writeBatchSize;
+    this.groupCommitMillis = groupCommitMillis;
+  }
+
+  /**
+   * If <code>incrementalCrawl</code> is set (the default), files that haven't changed
+   * since the last completed crawl keep their earlier type and schema guesses instead
+   * of being analyzed again.  "Unchanged" means the same size and modification time, and,
+   * if <code>useChecksums</code> is set, the same filesystem checksum.
+   */
+  public void setIncrementalCrawl(boolean incrementalCrawl, boolean useChecksums) {
+    this.incrementalCrawl = incrementalCrawl;
+    this.useChecksums = useChecksums;
+  }
+
+  /**
+   * Choose how text files are sampled for structure inference: "head", "reservoir",
+   * or "block" (see LineSampler).  Inference reads at most <code>byteBudget</code>
+   * bytes of each file.  The default reads the file's head, with no byte limit.
+   */
+  public void setSampler(String samplerName, long byteBudget) {
+    this.sampler = LineSampler.getSampler(samplerName, byteBudget);
   }
 
   /**
@@ -107,6 +130,7 @@ public class FSCrawler {
       final FileSystem fs = FileSystem.get(fsURI, new Configuration());
       final Path startDir = fs.makeQualified(new Path(fsURI.getPath()));
 
+      final long prevCrawlId = incrementalCrawl ? analyzer.getLatestCompleteCrawl(fsId) : -1L;
       final long crawlid = analyzer.getCreatePendingCrawl(fsId, true);
       Thread pendingThread = pendingCrawls.get(crawlid);
       if (pendingThread == null) {
@@ -119,69 +143,23 @@ public class FSCrawler {
                 synchronized (crawlStatusInfo) {
                   crawlStatusInfo.put(crawlid, new CrawlRuntimeStatus("Initializing crawl"));
                 }
-                // Build the file and dir-level todo lists
-                List<Path> todoFileList = new ArrayList<Path>();
-                List<Path> todoDirList = new ArrayList<Path>();
-                recursiveCrawlBuildList(fs, startDir, subdirDepth, crawlid, todoFileList, todoDirList);
-
-                // Get the files to process
-                TreeSet<String> observedFilenames = new TreeSet<String>();
-                for (Path p: analyzer.getFilesForCrawl(crawlid)) {
-                  observedFilenames.add(p.toString());
-                }
-                for (Iterator<Path> it = todoFileList.iterator(); it.hasNext(); ) {
-                  Path p = it.next();
-                  if (observedFilenames.contains(p.toString())) {
-                    it.remove();
-                  }
-                }
-
-                // Get the dirs to process
-                TreeSet<String> observedDirnames = new TreeSet<String>();
-                for (Path p: analyzer.getDirsForCrawl(crawlid)) {
-                  observedDirnames.add(p.toString());
-                }
-                for (Iterator<Path> it = todoDirList.iterator(); it.hasNext(); ) {
-                  Path p = it.next();
-                  if (observedDirnames.contains(p.toString())) {
-                    it.remove();
-                  }
-                }
-                  
+                CrawlRuntimeStatus cstatus = null;
                 synchronized (crawlStatusInfo) {
-                  CrawlRuntimeStatus cstatus = crawlStatusInfo.get(crawlid);
+                  cstatus = crawlStatusInfo.get(crawlid);
                   cstatus.setMessage("Processing files");
-                  cstatus.setNumToProcess(todoFileList.size());
+                  cstatus.setNumToProcess(0);
                   cstatus.setNumDone(0);
                 }
 
-                int numDone = 0;
-                for (Path p: todoDirList) {
-                  try {
-                    analyzer.addSingleFile(fs, p, crawlid);
-                  } catch (IOException iex) {
-                    iex.printStackTrace();
-                  }
-                }
-                for (Path p: todoFileList) {
-                  synchronized (crawlStatusInfo) {
-                    CrawlRuntimeStatus cstatus = crawlStatusInfo.get(crawlid);
-                    cstatus.setMessage("Processing file " + p.toString());
-                  }
-                  try {
-                    analyzer.addSingleFile(fs, p, crawlid);
-                  } catch (Exception iex) {
-                    iex.printStackTrace();
-                  }
-                  numDone++;
-                  synchronized (crawlStatusInfo) {
-                    CrawlRuntimeStatus cstatus = crawlStatusInfo.get(crawlid);
-                    cstatus.setNumDone(numDone);
-                    if (cstatus.shouldFinish()) {
-                      break;
-                    }
-                  }
-                }
+                // List, analyze, and store files concurrently
+                CrawlPipeline pipeline = new CrawlPipeline(analyzer, fs, crawlid, cstatus, numAnalysisThreads, crawlQueueCapacity);
+                pipeline.setWriteBatchSize(writeBatchSize);
+                pipeline.setGroupCommitMillis(groupCommitMillis);
+                pipeline.setPreviousCrawl(prevCrawlId, useChecksums);
+                pipeline.setSampler(sampler);
+                pipeline.run(startDir, subdirDepth);
+              } catch (InterruptedException iex) {
+                iex.printStackTrace();
               } catch (IOException iex) {
                 iex.printStackTrace();
               } finally {
@@ -190,6 +168,7 @@ public class FSCrawler {
                     pendingCrawls.remove(crawlid);
                     analyzer.completeCrawl(crawlid);
                   }
+                  analyzer.getFormatAnalyzer().logDetectorStats();
                 } catch (SQLiteException sle) {
                 }
               }
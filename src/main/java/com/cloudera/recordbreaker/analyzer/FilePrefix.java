@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+
+/*****************************************************
+ * <code>FilePrefix</code> holds the first few KB of a file.
+ * Format detection reads the file once, into one of these,
+ * and every detector works from the shared copy rather than
+ * opening the file again.
+ *
+ * Detectors that want more lines than the prefix holds
+ * (e.g., a file with very long lines) fall back to reading
+ * the file itself, so results never depend on the prefix size.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ *****************************************************/
+public class FilePrefix {
+  final static int MAX_PREFIX_BYTES = 64 * 1024;
+
+  FileSystem fs;
+  Path p;
+  byte buf[];
+  int len;
+  boolean isComplete;
+  List<String> lines;
+  Map<String, Object> detectorState = new HashMap<String, Object>();
+  
+  /**
+   * Read the prefix of the given file.
+   */
+  public FilePrefix(FileSystem fs, Path p) throws IOException {
+    this.fs = fs;
+    this.p = p;
+    this.buf = new byte[MAX_PREFIX_BYTES];
+    this.len = 0;
+    InputStream in = fs.open(p);
+    try {
+      int numRead = 0;
+      while (len < buf.length && (numRead = in.read(buf, len, buf.length - len)) >= 0) {
+        len += numRead;
+      }
+      this.isComplete = (len < buf.length) || (in.read() < 0);
+    } finally {
+      in.close();
+    }
+  }
+
+  public FileSystem getFS() {
+    return fs;
+  }
+  public Path getPath() {
+    return p;
+  }
+
+  /**
+   * Keep whatever a detector learned from the prefix in <code>isFormat()</code>,
+   * under the detector's file type, so its <code>describeData()</code> can pick
+   * up from there instead of working it out again.
+   */
+  public synchronized void setDetectorState(String fileType, Object state) {
+    detectorState.put(fileType, state);
+  }
+  public synchronized Object getDetectorState(String fileType) {
+    return detectorState.get(fileType);
+  }
+
+  /**
+   * The prefix bytes.  Only the first <code>getLength()</code> are valid.
+   */
+  public byte[] getBytes() {
+    return buf;
+  }
+  public int getLength() {
+    return len;
+  }
+  /**
+   * True if the prefix holds the entire file.
+   */
+  public boolean isComplete() {
+    return isComplete;
+  }
+
+  /**
+   * Does the file start with the given bytes?
+   */
+  public boolean startsWith(byte magic[]) {
+    if (len < magic.length) {
+      return false;
+    }
+    for (int i = 0; i < magic.length; i++) {
+      if (buf[i] != magic[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return (up to) the first <code>maxLines</code> lines of the file, just as
+   * BufferedReader.readLine() would return them.
+   */
+  public synchronized List<String> getLines(int maxLines) throws IOException {
+    if (lines == null) {
+      lines = new ArrayList<String>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, len)));
+      String line = null;
+      while ((line = in.readLine()) != null) {
+        lines.add(line);
+      }
+      // The last line may have been cut off by the end of the prefix
+      if (! isComplete && lines.size() > 0) {
+        lines.remove(lines.size()-1);
+      }
+    }
+    if (lines.size() >= maxLines || isComplete) {
+      return Collections.unmodifiableList(lines.subList(0, Math.min(maxLines, lines.size())));
+    }
+
+    // Not enough in the prefix; go to the file
+    List<String> fileLines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
+    try {
+      String line = null;
+      while (fileLines.size() < maxLines && ((line = in.readLine()) != null)) {
+        fileLines.add(line);
+      }
+    } finally {
+      in.close();
+    }
+    return fileLines;
+  }
+}
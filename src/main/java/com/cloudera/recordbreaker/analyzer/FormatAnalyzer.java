@@ -16,12 +16,20 @@ package com.cloudera.recordbreaker.analyzer;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.ServiceLoader;
+import java.util.ServiceConfigurationError;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -29,6 +37,8 @@ import org.apache.avro.Schema;
 import org.apache.avro.Schema.Field;
 import org.apache.avro.generic.GenericData;
 
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
 /*********************************************************************************
  * <code>FormatAnalyzer</code> takes an arbitrary input file and generates a
  * file-appropriate data descriptor.  Depending on the filetype, that descriptor
@@ -44,77 +54,170 @@ public class FormatAnalyzer {
   final static int MAX_ANALYSIS_LINES = 400;
   File schemaDbDir;
   
+  List<FormatDetector> detectors;
+  Map<String, FormatDetector> detectorsByType;
+  Map<FormatDetector, DetectorStats> detectorStats;
+
+  /**
+   * Running totals of how much time each detector takes.
+   */
+  public static class DetectorStats {
+    long numProbes = 0;
+    long numAccepted = 0;
+    long totalNanos = 0;
+
+    synchronized void addProbe(long nanos, boolean accepted) {
+      numProbes++;
+      totalNanos += nanos;
+      if (accepted) {
+        numAccepted++;
+      }
+    }
+    public synchronized long getNumProbes() {
+      return numProbes;
+    }
+    public synchronized long getNumAccepted() {
+      return numAccepted;
+    }
+    public synchronized long getTotalMillis() {
+      return totalNanos / 1000000;
+    }
+  }
+
   /**
    * Creates a new <code>FormatAnalyzer</code> instance.
    */
   public FormatAnalyzer(File schemaDbDir) {
     this.schemaDbDir = schemaDbDir;
+
+    // The built-in detectors, plus any others on the classpath
+    List<FormatDetector> allDetectors = BuiltinFormatDetectors.getDetectors();
+    try {
+      for (FormatDetector detector: ServiceLoader.load(FormatDetector.class)) {
+        allDetectors.add(detector);
+      }
+    } catch (ServiceConfigurationError sce) {
+      LOG.error("Could not load format detectors: " + sce.toString());
+    }
+
+    this.detectors = new ArrayList<FormatDetector>();
+    this.detectorsByType = new HashMap<String, FormatDetector>();
+    this.detectorStats = new LinkedHashMap<FormatDetector, DetectorStats>();
+    for (FormatDetector detector: allDetectors) {
+      if (detectorsByType.get(detector.getFileTypeIdentifier()) != null) {
+        LOG.info("Ignoring duplicate format detector for " + detector.getFileTypeIdentifier() + ": " + detector.getClass().getName());
+        continue;
+      }
+      detectors.add(detector);
+      detectorsByType.put(detector.getFileTypeIdentifier(), detector);
+      detectorStats.put(detector, new DetectorStats());
+    }
+
+    // Cheapest first.  Among equal costs, most confident first.
+    Collections.sort(detectors, new Comparator<FormatDetector>() {
+        public int compare(FormatDetector d1, FormatDetector d2) {
+          if (d1.getCost() != d2.getCost()) {
+            return d1.getCost() < d2.getCost() ? -1 : 1;
+          }
+          return Double.compare(d2.getConfidence(), d1.getConfidence());
+        }
+      });
   }
 
   /**
    * Create a file-appropriate DataDescriptor instance.
    *
-   * Right now we just use the file ending to figure out what to do,
-   * but this will become unsatisfactory pretty quickly.
+   * We probe the detectors cheapest-first.  A detector that accepts the file is
+   * only a candidate, because a costlier, more-confident one might accept it too.
+   * We stop as soon as the best candidate so far is at least as confident as
+   * every detector we haven't tried yet.
    *
    * @param f a <code>File</code> value
    * @return a <code>DataDescriptor</code> value
    */
   public DataDescriptor describeData(FileSystem fs, Path p) throws IOException {
-    FileStatus fstatus = fs.getFileStatus(p);
-    String fname = p.getName();
-
-    // Test to see if the file is one of a handful of known structured formats.
-    if (CSVDataDescriptor.isCSV(fs, p)) {
-      return new CSVDataDescriptor(p, fs);
-    } else if (fname.endsWith(".xml")) {
-      return new XMLDataDescriptor(p, fs);
-    } else if (fname.endsWith(".avro")) {
-      return new AvroDataDescriptor(p, fs);
-    } else if (AvroSequenceFileDataDescriptor.isAvroSequenceFile(fs, p)) {
-      return new AvroSequenceFileDataDescriptor(p, fs);
-    } else if (SequenceFileDataDescriptor.isSequenceFile(fs, p)) {
-      return new SequenceFileDataDescriptor(p, fs);
-    } else if (ApacheDataDescriptor.isApacheLogFile(fs, p)) {
-      return new ApacheDataDescriptor(p, fs);
-    } else if (SyslogDataDescriptor.isSyslogFile(fs, p)) {
-      return new SyslogDataDescriptor(p, fs);      
-    } else {
-      // It's not one of the known formats, so apply LearnStructure 
-      // to obtain the structure.
-      if (UnknownTextDataDescriptor.isTextData(fs, p)) {
-        try {
-          return new UnknownTextDataDescriptor(fs, p, schemaDbDir);
-        } catch (Exception iex) {
-          //iex.printStackTrace();
+    return describeData(fs, p, LineSampler.getSampler(LineSampler.HEAD, LineSampler.UNLIMITED_BYTES));
+  }
+
+  /**
+   * A version of <code>describeData</code> where the caller picks the lines
+   * that structure inference learns from.
+   */
+  public DataDescriptor describeData(FileSystem fs, Path p, LineSampler sampler) throws IOException {
+    // Read the head of the file once; all the detectors share it.
+    FilePrefix prefix = new FilePrefix(fs, p);
+
+    FormatDetector best = null;
+    for (int i = 0; i < detectors.size(); i++) {
+      FormatDetector detector = detectors.get(i);
+      if (best != null && best.getConfidence() >= detector.getConfidence()) {
+        continue;
+      }
+      long startTime = System.nanoTime();
+      boolean accepted = false;
+      try {
+        accepted = detector.isFormat(prefix);
+      } finally {
+        detectorStats.get(detector).addProbe(System.nanoTime() - startTime, accepted);
+      }
+      if (accepted) {
+        best = detector;
+        if (best.getConfidence() >= getMaxConfidence(i+1)) {
+          break;
         }
       }
-      // If that doesn't work, then give up and call it unstructured.  You
+    }
+
+    DataDescriptor descriptor = null;
+    if (best != null) {
+      descriptor = best.describeData(prefix, schemaDbDir, sampler);
+    }
+    if (descriptor == null) {
+      // Not one of the known formats, so call it unstructured.  You
       // can't run queries on data in this format.
-      return new UnstructuredFileDescriptor(fs, p);
+      descriptor = new UnstructuredFileDescriptor(fs, p);
+    }
+    return descriptor;
+  }
+
+  /**
+   * The highest confidence among detectors <code>startIdx</code> onward.
+   */
+  double getMaxConfidence(int startIdx) {
+    double maxConfidence = -1;
+    for (int i = startIdx; i < detectors.size(); i++) {
+      maxConfidence = Math.max(maxConfidence, detectors.get(i).getConfidence());
     }
+    return maxConfidence;
   }
 
   public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, String identifier, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
-    if (AvroDataDescriptor.AVRO_TYPE.equals(identifier)) {
-      return new AvroDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (CSVDataDescriptor.CSV_TYPE.equals(identifier)) {
-      return new CSVDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (SequenceFileDataDescriptor.SEQFILE_TYPE.equals(identifier)) {
-      return new SequenceFileDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);      
-    } else if (XMLDataDescriptor.XML_TYPE.equals(identifier)) {
-      return new XMLDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (AvroSequenceFileDataDescriptor.AVROSEQFILE_TYPE.equals(identifier)) {
-      return new AvroSequenceFileDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (ApacheDataDescriptor.APACHE_TYPE.equals(identifier)) {
-      return new ApacheDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (SyslogDataDescriptor.SYSLOG_TYPE.equals(identifier)) {
-      return new SyslogDataDescriptor(p, fs, schemaReprs, schemaDescs, schemaBlobs);
-    } else if (UnknownTextDataDescriptor.TEXTDATA_TYPE.equals(identifier)) {
-      return new UnknownTextDataDescriptor(fs, p, schemaReprs, schemaDescs, schemaBlobs);
-    } else {
+    FormatDetector detector = detectorsByType.get(identifier);
+    if (detector == null) {
       return new UnstructuredFileDescriptor(fs, p);
     }
+    return detector.loadDataDescriptor(fs, p, schemaReprs, schemaDescs, schemaBlobs);
+  }
+
+  /**
+   * Per-detector timings, keyed by file type identifier.
+   */
+  public Map<String, DetectorStats> getDetectorStats() {
+    Map<String, DetectorStats> result = new TreeMap<String, DetectorStats>();
+    for (Map.Entry<FormatDetector, DetectorStats> entry: detectorStats.entrySet()) {
+      result.put(entry.getKey().getFileTypeIdentifier(), entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Log how much time each detector has taken
+   */
+  public void logDetectorStats() {
+    for (Map.Entry<String, DetectorStats> entry: getDetectorStats().entrySet()) {
+      DetectorStats stats = entry.getValue();
+      LOG.info("Format detector " + entry.getKey() + ": " + stats.getNumProbes() + " probes, " + stats.getNumAccepted() + " accepted, " + stats.getTotalMillis() + " ms");
+    }
   }
 
   /**
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
+/***************************************************************************************
+ * A <code>FormatDetector</code> recognizes one file format and builds the
+ * DataDescriptor for files in that format.
+ *
+ * FormatAnalyzer finds detectors with java.util.ServiceLoader, in addition to the
+ * built-in ones.  To add a format, implement this interface (with a public no-arg
+ * constructor) and list the class in
+ * <code>META-INF/services/com.cloudera.recordbreaker.analyzer.FormatDetector</code>.
+ *
+ * Detectors are probed in order of increasing cost.  When more than one detector
+ * accepts a file, the one with the highest confidence wins.
+ *
+ * @author "Michael Cafarella"
+ *****************************************************************************************/
+public interface FormatDetector {
+  /**
+   * The file type identifier (as in DataDescriptor.getFileTypeIdentifier()) that this
+   * detector produces.  Used to find the right detector when reloading a stored file.
+   */
+  public String getFileTypeIdentifier();
+
+  /**
+   * Relative cost of <code>isFormat()</code>.  Checks of the filename or magic number
+   * should be near 0; checks that parse many lines should be higher.
+   */
+  public int getCost();
+
+  /**
+   * How far to trust a positive result from <code>isFormat()</code>, from 0 to 1.
+   */
+  public double getConfidence();
+
+  /**
+   * Does the file look like it's in this detector's format?
+   */
+  public boolean isFormat(FilePrefix prefix) throws IOException;
+
+  /**
+   * Analyze a newly-detected file.  May return null if the file turns out
+   * not to be usable after all.  Detectors that infer structure from the
+   * file's contents should learn from the lines that <code>sampler</code> chooses.
+   * <code>prefix</code> is the one <code>isFormat()</code> was given, so anything
+   * kept with it (see FilePrefix.setDetectorState()) can be reused here.
+   */
+  public DataDescriptor describeData(FilePrefix prefix, File schemaDbDir, LineSampler sampler) throws IOException;
+
+  /**
+   * Rebuild the descriptor for a file that was analyzed earlier.
+   */
+  public DataDescriptor loadDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException;
+}
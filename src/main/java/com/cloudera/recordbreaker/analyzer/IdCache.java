@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+/***********************************************************
+ * <code>IdCache</code> is a bounded, thread-safe map from some
+ * key to a row id in the metadata store.  When full, it evicts
+ * the least-recently-used entry.  It counts hits and misses so
+ * we can tell whether it's sized correctly.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ ***********************************************************/
+class IdCache<K> {
+  final int maxEntries;
+  LinkedHashMap<K, Long> entries;
+  long hits = 0;
+  long misses = 0;
+
+  IdCache(final int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<K, Long>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<K, Long> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached id, or -1 if the key isn't in the cache.
+   */
+  synchronized long get(K key) {
+    Long id = entries.get(key);
+    if (id == null) {
+      misses++;
+      return -1L;
+    }
+    hits++;
+    return id;
+  }
+
+  synchronized void put(K key, long id) {
+    entries.put(key, id);
+  }
+
+  synchronized void clear() {
+    entries.clear();
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import com.cloudera.recordbreaker.learnstructure.ChunkStore;
+
+/***********************************************************
+ * <code>ParserCache</code> remembers the parsers that structure
+ * inference learned for earlier text files, keyed by the shape
+ * of the files' lines.  Directories often hold many files written
+ * by the same program, and a parser learned from one of them
+ * will usually parse the rest.
+ *
+ * A line's shape is its sequence of token types, e.g.
+ * "ipaddr ws char- ws string".  A file's signature is the most
+ * common shape among its first sampled lines.  Entries are the
+ * serialized parsers, so each user deserializes its own copy.
+ * Like IdCache, it is bounded, thread-safe and evicts the
+ * least-recently-used entry.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ ***********************************************************/
+class ParserCache {
+  static int SIGNATURE_LINES = 100;
+
+  final int maxEntries;
+  LinkedHashMap<String, byte[]> entries;
+  long hits = 0;
+  long misses = 0;
+  long rejections = 0;
+
+  ParserCache(final int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * The signature of a file with the given sample lines, or null if
+   * none of them can be tokenized.
+   */
+  static String computeSignature(List<String> sampleLines) throws IOException {
+    ChunkStore store = new ChunkStore();
+    int numLines = 0;
+    for (String line: sampleLines) {
+      if (numLines++ >= SIGNATURE_LINES) {
+        break;
+      }
+      store.addLine(line);
+    }
+
+    // Find the most common shape; of those tied, the first to reach the top count wins
+    Map<String, Integer> shapeCounts = new HashMap<String, Integer>();
+    String bestShape = null;
+    int bestCount = 0;
+    ChunkStore.ChunkList chunks = store.getChunks();
+    for (int i = 0; i < chunks.size(); i++) {
+      StringBuffer shape = new StringBuffer();
+      for (int t = chunks.getStart(i); t < chunks.getEnd(i); t++) {
+        if (t > chunks.getStart(i)) {
+          shape.append(" ");
+        }
+        shape.append(store.getId(t));
+      }
+      String shapeStr = shape.toString();
+      Integer count = shapeCounts.get(shapeStr);
+      int newCount = (count == null) ? 1 : count.intValue() + 1;
+      shapeCounts.put(shapeStr, newCount);
+      if (newCount > bestCount) {
+        bestShape = shapeStr;
+        bestCount = newCount;
+      }
+    }
+    return bestShape;
+  }
+
+  /**
+   * Returns the serialized parser cached for the signature, or null.
+   */
+  synchronized byte[] get(String signature) {
+    byte[] payload = entries.get(signature);
+    if (payload == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return payload;
+  }
+
+  synchronized void put(String signature, byte[] payload) {
+    entries.put(signature, payload);
+  }
+
+  /**
+   * Note that a cached parser was found, but couldn't parse enough of
+   * the new file to be used.
+   */
+  synchronized void reject() {
+    rejections++;
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  synchronized long getRejections() {
+    return rejections;
+  }
+}
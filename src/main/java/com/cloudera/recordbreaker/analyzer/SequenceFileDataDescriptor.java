@@ -38,6 +38,20 @@ public class SequenceFileDataDescriptor extends GenericDataDescriptor {
   /**
    * Test whether this is a SequenceFile or not.
    */
+  final static byte[] SEQFILE_MAGIC = {(byte) 'S', (byte) 'E', (byte) 'Q'};
+
+  /**
+   * Test for a SequenceFile, using an already-read prefix of the file.
+   * Files without the SequenceFile magic number are rejected without
+   * opening them again.
+   */
+  public static boolean isSequenceFile(FilePrefix prefix) {
+    if (! prefix.startsWith(SEQFILE_MAGIC)) {
+      return false;
+    }
+    return isSequenceFile(prefix.getFS(), prefix.getPath());
+  }
+
   public static boolean isSequenceFile(FileSystem fs, Path p) {
     try {
       SequenceFile.Reader in = new SequenceFile.Reader(fs, p, new Configuration());
@@ -47,6 +47,9 @@ public class SyslogDataDescriptor extends TextRegexpDataDescriptor {
   public static boolean isSyslogFile(FileSystem fs, Path p) throws IOException {
     return TextRegexpDataDescriptor.isTextRegexpFile(fs, p, syslogRegexps);
   }
+  public static boolean isSyslogFile(FilePrefix prefix) throws IOException {
+    return TextRegexpDataDescriptor.isTextRegexpFile(prefix, syslogRegexps);
+  }
   
   public SyslogDataDescriptor(Path p, FileSystem fs) throws IOException {
     super(p, fs, SYSLOG_TYPE, syslogRegexps, syslogSchemas);
@@ -51,27 +51,22 @@ import org.apache.avro.generic.GenericData;
 public abstract class TextRegexpDataDescriptor extends GenericDataDescriptor {
   final static int MAX_LINES = 200;
   public static boolean isTextRegexpFile(FileSystem fs, Path p, List<Pattern> regexps) throws IOException {
+    return isTextRegexpFile(new FilePrefix(fs, p), regexps);
+  }
+
+  public static boolean isTextRegexpFile(FilePrefix prefix, List<Pattern> regexps) throws IOException {
     int totalCounts = 0;
     int matchCounts[] = new int[regexps.size()];
-    
-    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-    try {
-      String cur = null;
-      while ((cur = in.readLine()) != null) {
-        for (int i = 0; i < regexps.size(); i++) {
-          Pattern patt = regexps.get(i);
-          Matcher m = patt.matcher(cur);
-          if (m.find()) {
-            matchCounts[i]++;
-          }
-        }
-        totalCounts++;
-        if (MAX_LINES >= 0 && totalCounts >= MAX_LINES) {
-          break;
+
+    for (String cur: prefix.getLines(MAX_LINES >= 0 ? MAX_LINES : Integer.MAX_VALUE)) {
+      for (int i = 0; i < regexps.size(); i++) {
+        Pattern patt = regexps.get(i);
+        Matcher m = patt.matcher(cur);
+        if (m.find()) {
+          matchCounts[i]++;
         }
       }
-    } finally {
-      in.close();
+      totalCounts++;
     }
 
     for (int i = 0; i < matchCounts.length; i++) {
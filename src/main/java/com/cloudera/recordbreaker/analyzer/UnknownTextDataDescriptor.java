@@ -15,6 +15,7 @@
 package com.cloudera.recordbreaker.analyzer;
 
 import java.io.File;
+import java.io.Reader;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.BufferedReader;
@@ -24,18 +25,17 @@ import java.io.InputStreamReader;
 import java.io.BufferedInputStream;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Iterator;
 
 import org.apache.avro.Schema;
 import org.apache.avro.Schema;
-import org.apache.avro.io.DatumWriter;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.generic.GenericDatumWriter;
-import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
 
 import com.cloudera.recordbreaker.schemadict.SchemaSuggest;
 import com.cloudera.recordbreaker.schemadict.DictionaryMapping;
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
 import com.cloudera.recordbreaker.learnstructure.LearnStructure;
 
 import org.apache.hadoop.fs.Path;
@@ -43,6 +43,8 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /*****************************************************
  * <code>UnknownTextDataDescriptor</code> encapsulates log files with which we are unfamiliar.
@@ -52,6 +54,7 @@ import org.apache.commons.codec.binary.Base64;
  * @author "Michael Cafarella" 
  ******************************************************/
 public class UnknownTextDataDescriptor extends GenericDataDescriptor {
+  private static final Log LOG = LogFactory.getLog(UnknownTextDataDescriptor.class);
   public static String TEXTDATA_TYPE = "structured-text";
   
   /**
@@ -62,29 +65,29 @@ public class UnknownTextDataDescriptor extends GenericDataDescriptor {
   final static double asciiThreshold = 0.9;
   public static boolean isTextData(FileSystem fs, Path p) {
     try {
-      BufferedInputStream in = new BufferedInputStream(fs.open(p));
-      try {
-        byte buf[] = new byte[1024];
-        int numBytes = in.read(buf);
-        if (numBytes < 0) {
-          return false;
-        }
-        int numASCIIChars = 0;
-        for (int i = 0; i < numBytes; i++) {
-          if (buf[i] >= 32 && buf[i] < 128) {
-            numASCIIChars++;
-          }
-        }
-        return ((numASCIIChars / (1.0 * numBytes)) > asciiThreshold);
-      } finally {
-        in.close();
-      }
+      return isTextData(new FilePrefix(fs, p));
     } catch (IOException iex) {
       return false;
     }
   }
+
+  public static boolean isTextData(FilePrefix prefix) {
+    byte buf[] = prefix.getBytes();
+    int numBytes = Math.min(1024, prefix.getLength());
+    if (numBytes <= 0) {
+      return false;
+    }
+    int numASCIIChars = 0;
+    for (int i = 0; i < numBytes; i++) {
+      if (buf[i] >= 32 && buf[i] < 128) {
+        numASCIIChars++;
+      }
+    }
+    return ((numASCIIChars / (1.0 * numBytes)) > asciiThreshold);
+  }
   
   File schemaDictDir;
+  LineSampler sampler;
   List<SchemaDescriptor> schemaDescriptors = new ArrayList<SchemaDescriptor>();
   
   /**
@@ -92,30 +95,29 @@ public class UnknownTextDataDescriptor extends GenericDataDescriptor {
    */
   final static double TUPLE_PCT = 0.75;
   public UnknownTextDataDescriptor(FileSystem fs, Path p, File schemaDictDir) throws IOException {
+    this(fs, p, schemaDictDir, LineSampler.getSampler(LineSampler.HEAD, LineSampler.UNLIMITED_BYTES));
+  }
+
+  /**
+   * Creates a new <code>UnknownTextDataDescriptor</code>, learning structure
+   * from the lines chosen by <code>sampler</code>.
+   */
+  public UnknownTextDataDescriptor(FileSystem fs, Path p, File schemaDictDir, LineSampler sampler) throws IOException {
     super(p, fs, TEXTDATA_TYPE);
     
     this.schemaDictDir = schemaDictDir;
+    this.sampler = sampler;
     UnknownTextSchemaDescriptor tsd = new UnknownTextSchemaDescriptor(this);
 
-    // Test if this schema descriptor can parse the file
-    boolean hasLatentStructure = false;
-    int numTuples = 0;
-    for (Iterator it = tsd.getIterator(); it.hasNext(); ) {
-      numTuples++;
-      it.next();
-    }
-    int numLines = 0;
-    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-    while (in.readLine() != null) {
-      numLines++;
-    }
-
-    numTuples = Math.min(numTuples, UnknownTextSchemaDescriptor.MAX_LINES);
-    numLines = Math.min(numLines, UnknownTextSchemaDescriptor.MAX_LINES);
-    if ((numTuples / (1.0 * numLines)) < TUPLE_PCT) {
+    // Test if this schema descriptor can parse the lines it was inferred from
+    if (tsd.getSampleParseRate() < TUPLE_PCT) {
       throw new IOException("Cannot parse structured text data");
     }
-    this.schemas.add(new UnknownTextSchemaDescriptor(this));
+    this.schemas.add(tsd);
+  }
+
+  LineSampler getSampler() {
+    return sampler;
   }
 
   public UnknownTextDataDescriptor(FileSystem fs, Path p, List<String> schemaReprs, List<String> schemaDescs, List<byte[]> schemaBlobs) throws IOException {
@@ -129,27 +131,43 @@ public class UnknownTextDataDescriptor extends GenericDataDescriptor {
   // GenericDataDescriptor
   //////////////////////////////////
   public void prepareAvroFile(FileSystem srcFs, FileSystem dstFs, Path dst, Configuration conf) throws IOException {
-    SchemaDescriptor sd = this.getSchemaDescriptor().get(0);
+    final UnknownTextSchemaDescriptor sd = (UnknownTextSchemaDescriptor) this.getSchemaDescriptor().get(0);
     List<Schema> unionFreeSchemas = SchemaUtils.getUnionFreeSchemasByFrequency(sd, 100, true);
-    Schema schema = unionFreeSchemas.get(0);
+    final Schema schema = unionFreeSchemas.get(0);
 
-    // Open stream to write out Avro contents
-    DatumWriter<GenericRecord> writer = new GenericDatumWriter<GenericRecord>(schema);
-    DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<GenericRecord>(writer);
-    dataFileWriter.create(schema, dstFs.create(dst, true));
-    int numRecords = 0;
-    int MAX_RECORDS = 1000;
-    try {
-      for (Iterator it = sd.getIterator(); it.hasNext() && numRecords < MAX_RECORDS; ) {
-        GenericData.Record rowRecord = (GenericData.Record) it.next();
-        if (rowRecord.getSchema().toString().hashCode() != schema.toString().hashCode()) {
-          continue;
+    AvroConverter converter = new AvroConverter(schema, conf) {
+        SplitParser createSplitParser() {
+          return new SplitParser() {
+            // Each record is written out before the next parse, so it can be reused
+            CompiledParser parser = new CompiledParser(sd.typeTree, true);
+            // Only rows of the most common record type are kept.  Records of
+            // one type share a Schema object, so matches are remembered by identity.
+            Schema lastMatch = null;
+
+            void parse(Reader split, DataFileWriter<GenericRecord> out) throws IOException {
+              BufferedReader in = new BufferedReader(split);
+              String str = null;
+              while ((str = in.readLine()) != null) {
+                GenericContainer record = parser.parse(str);
+                if (record == null) {
+                  numRejected++;
+                  continue;
+                }
+                if (record.getSchema() != lastMatch) {
+                  if (! record.getSchema().equals(schema)) {
+                    numRejected++;
+                    continue;
+                  }
+                  lastMatch = record.getSchema();
+                }
+                out.append((GenericRecord) record);
+                numConverted++;
+              }
+            }
+          };
         }
-        dataFileWriter.append(rowRecord);
-        numRecords++;
-      }
-    } finally {
-      dataFileWriter.close();
-    }
+      };
+    converter.convert(new InputStreamReader(srcFs.open(getFilename())), dstFs.create(dst, true));
+    LOG.info("Converted " + converter.getNumConverted() + " rows of " + getFilename() + " to Avro; skipped " + converter.getNumRejected() + " rows that didn't fit the schema");
   }
 }
\ No newline at end of file
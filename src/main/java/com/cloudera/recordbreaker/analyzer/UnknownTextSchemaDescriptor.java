@@ -36,10 +36,14 @@ import org.apache.avro.generic.GenericContainer;
 import org.apache.avro.generic.GenericDatumReader;
 
 import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
 import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.IncrementalInference;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.conf.Configuration;
 
 import org.apache.commons.logging.Log;
@@ -58,6 +62,12 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
   private static final Log LOG = LogFactory.getLog(UnknownTextSchemaDescriptor.class);    
   public static String SCHEMA_ID = "recordbreaker-recovered";
   public static int MAX_LINES = 1000;
+  static int PARSER_CACHE_SIZE = 100;
+
+  // Parsers learned earlier in the crawl, by line-shape signature
+  static boolean useParserCache = true;
+  static ParserCache parserCache = new ParserCache(PARSER_CACHE_SIZE);
+
   InferredType typeTree;
 
   public UnknownTextSchemaDescriptor(DataDescriptor dd) throws IOException {
@@ -70,15 +80,25 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
     this.randId = new Random().nextInt();
     
     // Deserialize the payload string into the parser
-    DataInputStream in = new DataInputStream(new ByteArrayInputStream(miscPayload));
-    try {
-      this.typeTree = InferredType.readType(in);
-    } finally {
-      in.close();
-    }
+    this.typeTree = readTypeTree(miscPayload);
+  }
+
+  public static void setUseParserCache(boolean useParserCache) {
+    UnknownTextSchemaDescriptor.useParserCache = useParserCache;
+  }
+
+  public static long getParserCacheHits() {
+    return parserCache.getHits();
+  }
+  public static long getParserCacheMisses() {
+    return parserCache.getMisses();
+  }
+  public static long getParserCacheRejections() {
+    return parserCache.getRejections();
   }
 
   int randId;
+  double sampleParseRate;
   void computeSchema() throws IOException {
     this.randId = new Random().nextInt();    
     LearnStructure ls = new LearnStructure();
@@ -86,10 +106,35 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
     FileSystem localFS = FileSystem.getLocal(new Configuration());
     Path inputPath = dd.getFilename();
 
+    LineSampler sampler = null;
+    if (dd instanceof UnknownTextDataDescriptor) {
+      sampler = ((UnknownTextDataDescriptor) dd).getSampler();
+    }
+    if (sampler == null) {
+      sampler = LineSampler.getSampler(LineSampler.HEAD, LineSampler.UNLIMITED_BYTES);
+    }
+    List<String> sampleLines = sampler.sample(fs, inputPath, MAX_LINES);
+
+    //
+    // If a file that looked like this one was already processed, try its
+    // parser before going to the trouble of inferring a new one.
+    //
+    String signature = null;
+    if (useParserCache) {
+      signature = ParserCache.computeSignature(sampleLines);
+      double cachedParseRate[] = new double[1];
+      InferredType cachedTree = getCachedParser(parserCache, signature, sampleLines, cachedParseRate);
+      if (cachedTree != null) {
+        this.typeTree = cachedTree;
+        this.schema = cachedTree.getAvroSchema();
+        this.sampleParseRate = cachedParseRate[0];
+        return;
+      }
+    }
+
     File workingParserFile = File.createTempFile("textdesc", "typetree", null);
     File workingSchemaFile = File.createTempFile("textdesc", "schema", null);
-    
-    ls.inferRecordFormat(fs, inputPath, localFS, new Path(workingSchemaFile.getCanonicalPath()), new Path(workingParserFile.getCanonicalPath()), null, null, false, MAX_LINES);
+    ls.inferRecordFormat(fs, inputPath, sampleLines, localFS, new Path(workingSchemaFile.getCanonicalPath()), new Path(workingParserFile.getCanonicalPath()), null, null, false);
 
     this.schema = Schema.parse(workingSchemaFile);
     DataInputStream in = new DataInputStream(localFS.open(new Path(workingParserFile.getCanonicalPath())));
@@ -102,6 +147,42 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
       in.close();
     }
     //System.err.println("Recovered unknowntext schema: " + schema);
+
+    this.sampleParseRate = computeParseRate(typeTree, sampleLines);
+    if (signature != null && sampleParseRate >= UnknownTextDataDescriptor.TUPLE_PCT) {
+      byte[] payload = getPayload();
+      if (payload.length > 0) {
+        parserCache.put(signature, payload);
+      }
+    }
+  }
+
+  /**
+   * The parser cached for the signature, if there is one and it parses at least
+   * TUPLE_PCT of the sample lines; its parse rate goes in <code>parseRate[0]</code>.
+   * Otherwise null.  A cached parser that parses too little counts as a rejection.
+   */
+  static InferredType getCachedParser(ParserCache cache, String signature, List<String> sampleLines, double parseRate[]) throws IOException {
+    byte[] cachedPayload = (signature == null) ? null : cache.get(signature);
+    if (cachedPayload == null) {
+      return null;
+    }
+    InferredType cachedTree = readTypeTree(cachedPayload);
+    parseRate[0] = computeParseRate(cachedTree, sampleLines);
+    if (parseRate[0] >= UnknownTextDataDescriptor.TUPLE_PCT) {
+      return cachedTree;
+    }
+    cache.reject();
+    return null;
+  }
+
+  static InferredType readTypeTree(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    try {
+      return InferredType.readType(in);
+    } finally {
+      in.close();
+    }
   }
 
   public byte[] getPayload() {
@@ -118,6 +199,90 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
     return baos.toByteArray();
   }
 
+  /**
+   * What fraction of the sampled lines that inference learned from does the
+   * inferred parser accept?
+   */
+  double getSampleParseRate() {
+    return sampleParseRate;
+  }
+
+  /**
+   * The fraction of the lines that the parser accepts, or 0 if there are no lines
+   */
+  static double computeParseRate(InferredType typeTree, List<String> lines) {
+    if (lines.size() == 0) {
+      return 0;
+    }
+    return countParsed(typeTree, lines) / (1.0 * lines.size());
+  }
+
+  static int countParsed(InferredType typeTree, List<String> lines) {
+    int numTuples = 0;
+    CompiledParser parser = new CompiledParser(typeTree, true);
+    for (String str: lines) {
+      if (parser.parse(str) != null) {
+        numTuples++;
+      }
+    }
+    return numTuples;
+  }
+
+  /**
+   * Widen the parser to cover whatever was appended to the file since it was
+   * <code>prevSize</code> bytes long.  Only the new bytes are read, MAX_LINES
+   * lines at a time.  The line that was being written when the file was
+   * <code>prevSize</code> bytes long is skipped.
+   *
+   * Returns false, and leaves the parser alone, if even the widened parser
+   * can't handle enough of the new lines; the caller should then learn the
+   * structure from scratch.
+   */
+  boolean extendWithAppendedData(FileSystem fs, Path p, long prevSize) throws IOException {
+    InferredType newTree = typeTree;
+    long numLines = 0;
+    long numParsed = 0;
+    FSDataInputStream rawIn = fs.open(p);
+    BufferedReader in = null;
+    try {
+      if (prevSize > 0) {
+        // Skip the rest of the line that straddles the old end of file
+        rawIn.seek(prevSize - 1);
+      }
+      in = new BufferedReader(new InputStreamReader(rawIn));
+      if (prevSize > 0) {
+        in.readLine();
+      }
+      List<String> batch = new ArrayList<String>();
+      String str = in.readLine();
+      while (str != null) {
+        batch.add(str);
+        str = in.readLine();
+        if (batch.size() >= MAX_LINES || str == null) {
+          newTree = IncrementalInference.extend(newTree, batch);
+          numLines += batch.size();
+          numParsed += countParsed(newTree, batch);
+          batch.clear();
+        }
+      }
+    } finally {
+      if (in != null) {
+        in.close();
+      } else {
+        rawIn.close();
+      }
+    }
+
+    if (numParsed < numLines * UnknownTextDataDescriptor.TUPLE_PCT) {
+      return false;
+    }
+    if (newTree != typeTree) {
+      this.typeTree = newTree;
+      this.schema = newTree.getAvroSchema();
+    }
+    return true;
+  }
+
   /**
    * Iterate through Avro-encoded rows of the file
    */
@@ -126,6 +291,8 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
       int lineno = 0;
       BufferedReader in = null;
       Object nextElt = null;
+      // Records are handed out one ahead, so they can't be reused
+      CompiledParser parser = new CompiledParser(typeTree, false);
       {
         try {
           in = new BufferedReader(new InputStreamReader(dd.getRawBytes()));
@@ -150,7 +317,7 @@ public class UnknownTextSchemaDescriptor extends GenericSchemaDescriptor {
         try {
           String str = null;
           while ((str = in.readLine()) != null) {
-            GenericContainer resultObj = typeTree.parse(str);
+            GenericContainer resultObj = parser.parse(str);
             lineno++;
             if (resultObj != null) {
               return resultObj;
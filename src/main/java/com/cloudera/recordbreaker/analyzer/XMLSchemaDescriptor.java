@@ -15,6 +15,7 @@
 package com.cloudera.recordbreaker.analyzer;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.Set;
@@ -40,6 +41,10 @@ import org.xml.sax.helpers.DefaultHandler;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -48,6 +53,15 @@ import org.json.JSONException;
 /*****************************************************************
  * <code>XMLSchemaDescriptor</code> builds an Avro-style schema out of the XML info.
  *
+ * Small documents are parsed whole into a tree of tags.  Documents with
+ * more than PREFIX_ELEMENTS elements are streamed instead: the record
+ * element and schema are learned from the first PREFIX_ELEMENTS
+ * elements, and the iterator reads one record at a time with a StAX
+ * cursor, so memory use doesn't grow with the document.  Later records
+ * may lack a field, or have values the prefix didn't prepare us for, so
+ * a streamed schema's fields are nullable and can widen (see
+ * getStreamingSchema()).
+ *
  * @author "Michael Cafarella"
  * @version 1.0
  * @since 1.0
@@ -55,7 +69,10 @@ import org.json.JSONException;
  ******************************************************************/
 public class XMLSchemaDescriptor extends GenericSchemaDescriptor {
   public static String SCHEMA_ID = "xml";
+  static int PREFIX_ELEMENTS = 50000;
   TagEnvironment rootTag;
+  // When streaming, the paths of the record elements, e.g. "CATALOG/CD"
+  Set<String> recordPaths;
   
   /**
    * Creates a new <code>XMLSchemaDescriptor</code> instance.
@@ -69,10 +86,19 @@ public class XMLSchemaDescriptor extends GenericSchemaDescriptor {
   public XMLSchemaDescriptor(DataDescriptor dd, String schemaRepr, byte[] miscPayload) throws IOException {
     super(dd, schemaRepr);
 
-    // Deserialize the root tag from the payload info
+    // Deserialize the root tag (or the record paths) from the payload info
     try {
-      this.rootTag = new TagEnvironment(new JSONObject(new String(miscPayload)));
-      this.rootTag.setParent(null);
+      JSONObject jobj = new JSONObject(new String(miscPayload));
+      if (jobj.has("recordPaths")) {
+        JSONArray jsonPaths = jobj.getJSONArray("recordPaths");
+        this.recordPaths = new TreeSet<String>();
+        for (int i = 0; i < jsonPaths.length(); i++) {
+          recordPaths.add(jsonPaths.getString(i));
+        }
+      } else {
+        this.rootTag = new TagEnvironment(jobj);
+        this.rootTag.setParent(null);
+      }
     } catch (JSONException jne) {
       jne.printStackTrace();
       throw new IOException("JSONException: " + jne.toString());
@@ -80,12 +106,25 @@ public class XMLSchemaDescriptor extends GenericSchemaDescriptor {
   }
 
   public byte[] getPayload() {
-    JSONObject rootJobj = rootTag.serialize();
+    JSONObject rootJobj;
+    if (recordPaths != null) {
+      rootJobj = new JSONObject();
+      try {
+        rootJobj.put("recordPaths", new JSONArray(recordPaths));
+      } catch (JSONException jne) {
+        jne.printStackTrace();
+      }
+    } else {
+      rootJobj = rootTag.serialize();
+    }
     byte results[] = rootJobj.toString().getBytes();
     return results;
   }
 
   void computeSchema() throws IOException {
+    if (inferFromPrefix()) {
+      return;
+    }
     SAXParserFactory factory = SAXParserFactory.newInstance();
     SAXParser parser = null;
     // Unfortunately, validation is often not possible
@@ -114,6 +153,114 @@ public class XMLSchemaDescriptor extends GenericSchemaDescriptor {
     }
   }
 
+  /**
+   * Learn the record element and schema from the document's first
+   * PREFIX_ELEMENTS elements, so the records can be streamed.  Returns
+   * false, having learned nothing, if the document isn't any longer
+   * than that; it is then small enough to parse whole.
+   */
+  boolean inferFromPrefix() throws IOException {
+    XMLProcessor xp = new XMLProcessor();
+    InputStream rawIn = dd.getRawBytes();
+    try {
+      XMLStreamReader in = XMLInputFactory.newInstance().createXMLStreamReader(rawIn);
+      try {
+        int numElements = 0;
+        while (numElements < PREFIX_ELEMENTS) {
+          switch (in.next()) {
+          case XMLStreamConstants.START_ELEMENT:
+            xp.startElement(null, null, getQName(in), null);
+            numElements++;
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+            if (xp.tagData.size() > 0) {
+              xp.characters(in.getTextCharacters(), in.getTextStart(), in.getTextLength());
+            }
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            xp.endElement(null, null, getQName(in));
+            break;
+          case XMLStreamConstants.END_DOCUMENT:
+            return false;
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (XMLStreamException xse) {
+      throw new IOException(xse.toString());
+    } finally {
+      rawIn.close();
+    }
+
+    // The elements still open were cut off; give them the text seen so far
+    TagEnvironment prefixRoot = xp.getRoot();
+    List<TagEnvironment> openTags = xp.environments.subList(1, xp.environments.size());
+    for (int i = 0; i < openTags.size(); i++) {
+      openTags.get(i).setData(xp.tagData.get(i).toString());
+    }
+
+    // Find the records as completeTree() does, but leave out the one that
+    // was cut off, and any fields outside the records
+    prefixRoot.completeTree(false);
+    Set<String> paths = new TreeSet<String>();
+    prefixRoot.findRecordPaths(paths);
+    for (TagEnvironment tag: openTags) {
+      if (tag.parent.repetitionNode) {
+        tag.parent.children.remove(tag);
+      }
+    }
+    prefixRoot.hoistRecords();
+    Schema prefixSchema = prefixRoot.getUnifiedSchema(true);
+    if (paths.size() == 0 || prefixSchema == null) {
+      throw new IOException("No repeated records in the first " + PREFIX_ELEMENTS + " XML elements");
+    }
+    this.schema = getStreamingSchema(prefixSchema);
+    this.recordPaths = paths;
+    return true;
+  }
+
+  /**
+   * The schema for streamed records, given the one learned from the prefix.
+   * Each field becomes a union of null, its type, and the wider types a
+   * later value may need (int, then long, then double, then string), so
+   * records that lack the field or don't fit its type are still kept.
+   */
+  static Schema getStreamingSchema(Schema prefixSchema) {
+    Schema.Type widths[] = {Schema.Type.INT, Schema.Type.LONG, Schema.Type.DOUBLE, Schema.Type.STRING};
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    for (Schema.Field field: prefixSchema.getFields()) {
+      List<Schema> branches = new ArrayList<Schema>();
+      branches.add(Schema.create(Schema.Type.NULL));
+      boolean wideEnough = false;
+      for (Schema.Type width: widths) {
+        wideEnough |= (width == field.schema().getType());
+        if (wideEnough) {
+          branches.add(Schema.create(width));
+        }
+      }
+      if (! wideEnough) {
+        branches.add(field.schema());
+      }
+      fields.add(new Schema.Field(field.name(), Schema.createUnion(branches), field.doc(), null));
+    }
+    Schema s = Schema.createRecord(prefixSchema.getName(), prefixSchema.getDoc(), prefixSchema.getNamespace(), false);
+    s.setFields(fields);
+    return s;
+  }
+
+  /**
+   * The element's name as SAX gives it, with any namespace prefix
+   */
+  static String getQName(XMLStreamReader in) {
+    String prefix = in.getPrefix();
+    if (prefix == null || prefix.length() == 0) {
+      return in.getLocalName();
+    }
+    return prefix + ":" + in.getLocalName();
+  }
+
   ////////////////////////////////////////////////////////////////////
   // XMLProcessor creates a tree of TagEnvironment objects out of
   // an input XML file.
@@ -396,6 +543,18 @@ public class XMLSchemaDescriptor extends GenericSchemaDescriptor {
         }
       }
     }
+    /**
+     * Like hoistData(), but only for the leaves inside records
+     */
+    void hoistRecords() {
+      for (TagEnvironment child: children) {
+        if (this.repetitionNode) {
+          child.hoistData();
+        } else {
+          child.hoistRecords();
+        }
+      }
+    }
     void addField(Object val, Schema.Field sfield) {
       this.typedFields.add(val);
       this.fieldSchemas.add(sfield);
@@ -489,6 +648,27 @@ public class XMLSchemaDescriptor extends GenericSchemaDescriptor {
         }
       }
     }
+    /**
+     * Used when streaming, to collect the paths of the record elements
+     */
+    public void findRecordPaths(Set<String> paths) {
+      for (TagEnvironment child: children) {
+        if (this.repetitionNode) {
+          paths.add(child.getPath());
+        } else {
+          child.findRecordPaths(paths);
+        }
+      }
+    }
+    /**
+     * The labels from the document element down to this one, separated by '/'
+     */
+    String getPath() {
+      if (parent == null || parent.parent == null) {
+        return label;
+      }
+      return parent.getPath() + "/" + label;
+    }
     /**
      * Helper function for accumulateObjects()
      */
@@ -581,11 +761,14 @@ public class XMLSchemaDescriptor extends GenericSchemaDescriptor {
    * set of Records, then it's one big tuple.
    */
   public Iterator getIterator() {
+    if (recordPaths != null) {
+      return new StreamingIterator();
+    }
     return new Iterator() {
-      // NOTE: We should eventually modify this so we don't have to
-      // materialize the entire tree.  This is pretty inefficient right now.
+      // Small documents only; large ones are streamed
       Object nextElt = null;
       List<Object> lookaheadList = new ArrayList<Object>();
+      int lookaheadPos = 0;
       {
         rootTag.accumulateObjects(lookaheadList);
         nextElt = lookahead();
@@ -602,8 +785,9 @@ public class XMLSchemaDescriptor extends GenericSchemaDescriptor {
         throw new UnsupportedOperationException();
       }
       Object lookahead() {
-        if (lookaheadList.size() > 0) {
-          return lookaheadList.remove(0);
+        if (lookaheadPos < lookaheadList.size()) {
+          // Let go of each record as it's handed out
+          return lookaheadList.set(lookaheadPos++, null);
         } else {
           return null;
         }
@@ -611,6 +795,198 @@ public class XMLSchemaDescriptor extends GenericSchemaDescriptor {
     };
   }
 
+  ////////////////////////////////////////////////////////////////////
+  // StreamingIterator reads one record at a time with a StAX cursor.
+  //
+  // A record is an element at one of the recordPaths.  Its fields come
+  // out as completeTree() and hoistData() would make them: only the
+  // first of a repeated child element is kept, and each leaf element
+  // becomes a field named for its path below the record.  Fields the
+  // schema doesn't have are left out, and fields the record lacks are
+  // null.  Each value takes the narrowest type in its field's union that
+  // it parses as.
+  //
+  // If the document can't be read, hasNext() throws a RuntimeException
+  // once the records before the failure are used up.
+  ////////////////////////////////////////////////////////////////////
+  class StreamingIterator implements Iterator {
+    InputStream rawIn = null;
+    XMLStreamReader in = null;
+    Object nextElt = null;
+    Exception readError = null;
+
+    // Paths of the open elements, while outside a record
+    List<String> outerPaths = new ArrayList<String>();
+    // The open elements of the current record, starting with the record itself
+    List<OpenTag> openTags = new ArrayList<OpenTag>();
+    GenericData.Record curRecord = null;
+    // Depth within an element being skipped, if any
+    int skipDepth = 0;
+
+    StreamingIterator() {
+      try {
+        rawIn = dd.getRawBytes();
+        in = XMLInputFactory.newInstance().createXMLStreamReader(rawIn);
+        nextElt = lookahead();
+      } catch (XMLStreamException xse) {
+        readError = xse;
+        close();
+      } catch (IOException iex) {
+        readError = iex;
+        close();
+      }
+    }
+    public boolean hasNext() {
+      checkReadError();
+      return nextElt != null;
+    }
+    public synchronized Object next() {
+      checkReadError();
+      Object toReturn = nextElt;
+      nextElt = lookahead();
+      return toReturn;
+    }
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+    void checkReadError() {
+      if (nextElt == null && readError != null) {
+        throw new RuntimeException("Could not read XML data: " + readError.getMessage(), readError);
+      }
+    }
+
+    Object lookahead() {
+      try {
+        while (in != null && in.hasNext()) {
+          int event = in.next();
+          if (skipDepth > 0) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+              skipDepth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+              skipDepth--;
+            }
+            continue;
+          }
+          switch (event) {
+          case XMLStreamConstants.START_ELEMENT:
+            startElement(getQName(in).replace("-", "_"));
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+            if (openTags.size() > 0) {
+              openTags.get(openTags.size()-1).data.append(in.getTextCharacters(), in.getTextStart(), in.getTextLength());
+            }
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            if (endElement()) {
+              GenericData.Record result = curRecord;
+              curRecord = null;
+              return result;
+            }
+            break;
+          }
+        }
+      } catch (XMLStreamException xse) {
+        readError = xse;
+      }
+      close();
+      return null;
+    }
+
+    void startElement(String label) {
+      if (openTags.size() == 0) {
+        String path = (outerPaths.size() == 0) ? label : outerPaths.get(outerPaths.size()-1) + "/" + label;
+        if (recordPaths.contains(path)) {
+          curRecord = new GenericData.Record(schema);
+          openTags.add(new OpenTag(label, ""));
+        } else {
+          outerPaths.add(path);
+        }
+      } else {
+        OpenTag parent = openTags.get(openTags.size()-1);
+        if (! parent.childLabels.add(label)) {
+          // A repeat of an earlier child
+          skipDepth = 1;
+        } else {
+          openTags.add(new OpenTag(label, (parent.fieldLabel.length() == 0) ? label : parent.fieldLabel + "_" + label));
+        }
+      }
+    }
+
+    /**
+     * Returns true if the element ends a record
+     */
+    boolean endElement() {
+      if (openTags.size() == 0) {
+        outerPaths.remove(outerPaths.size()-1);
+        return false;
+      }
+      OpenTag tag = openTags.remove(openTags.size()-1);
+      if (tag.childLabels.size() == 0) {
+        String fieldLabel = (tag.fieldLabel.length() == 0) ? tag.label : tag.fieldLabel;
+        Schema.Field field = schema.getField(fieldLabel);
+        if (field != null) {
+          curRecord.put(field.pos(), parseValue(tag.data.toString(), field.schema()));
+        }
+      }
+      return openTags.size() == 0;
+    }
+
+    /**
+     * The value as the first of the union's types that it parses as
+     */
+    Object parseValue(String data, Schema fieldSchema) {
+      for (Schema branch: fieldSchema.getTypes()) {
+        try {
+          switch (branch.getType()) {
+          case INT:
+            return Integer.parseInt(data);
+          case LONG:
+            return Long.parseLong(data);
+          case DOUBLE:
+            return Double.parseDouble(data);
+          case STRING:
+            return data;
+          }
+        } catch (NumberFormatException nfe) {
+        }
+      }
+      return null;
+    }
+
+    void close() {
+      try {
+        if (in != null) {
+          in.close();
+        }
+      } catch (XMLStreamException xse) {
+      }
+      try {
+        if (rawIn != null) {
+          rawIn.close();
+        }
+      } catch (IOException iex) {
+      }
+      in = null;
+      rawIn = null;
+    }
+  }
+
+  /**
+   * An element of the record being streamed
+   */
+  static class OpenTag {
+    String label;
+    // Name of the field it becomes, if it's a leaf; "" for the record itself
+    String fieldLabel;
+    StringBuffer data = new StringBuffer();
+    Set<String> childLabels = new HashSet<String>();
+    OpenTag(String label, String fieldLabel) {
+      this.label = label;
+      this.fieldLabel = fieldLabel;
+    }
+  }
+
   /**
    * It's an XML file
    */
@@ -0,0 +1,471 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+
+/*********************************************************
+ * ChunkStore holds tokenized lines for TypeInference in a few primitive
+ * arrays, rather than as a List of Token objects per line.  A token is just
+ * an index into these columns:
+ *
+ *   typeIds   the interned token type (see Token.internTypeId())
+ *   starts    where the token's text begins within its line
+ *   aux       for IPADDR, PERMISSIONS, FLOAT and STRING, where the token's
+ *             text ends; for INT, the value; for DATE and TIME, the index of
+ *             the token's three fields in fieldVals; for META, the index just
+ *             past the META's closing token.  Other tokens need no more than
+ *             their type.
+ *
+ * A META token is immediately followed by its opening CharToken, its
+ * contents, and its closing CharToken, so that every chunk inference deals
+ * with (a line, a struct field, a META's contents, an array element...) is
+ * a contiguous span of token indices.  A ChunkList is a list of such spans.
+ *
+ * The token text stays in the original line strings.  Token objects are only
+ * created when inference asks for one, e.g. for a BaseType's sample data.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ *********************************************************/
+public class ChunkStore {
+  static int META_TYPEID = Token.internTypeId(Token.META_TOKENCLASSID, null);
+  static int classTypeIds[] = new int[Token.NOOP_TOKENCLASSID + 1];
+  static {
+    for (int i = 0; i < classTypeIds.length; i++) {
+      classTypeIds[i] = Token.internTypeId(i, null);
+    }
+  }
+
+  /**
+   * A list of chunks, each a span [start, end) of token indices in a ChunkStore.
+   */
+  public static class ChunkList {
+    ChunkStore store;
+    int starts[];
+    int ends[];
+    int size = 0;
+
+    public ChunkList(ChunkStore store) {
+      this(store, 4);
+    }
+    public ChunkList(ChunkStore store, int capacity) {
+      this.store = store;
+      this.starts = new int[Math.max(capacity, 1)];
+      this.ends = new int[Math.max(capacity, 1)];
+    }
+    public ChunkStore getStore() {
+      return store;
+    }
+    public int size() {
+      return size;
+    }
+    public int getStart(int i) {
+      return starts[i];
+    }
+    public int getEnd(int i) {
+      return ends[i];
+    }
+    public void add(int start, int end) {
+      if (size == starts.length) {
+        starts = grow(starts, 2 * size);
+        ends = grow(ends, 2 * size);
+      }
+      starts[size] = start;
+      ends[size] = end;
+      size++;
+    }
+    /**
+     * Drop the chunks that have no tokens, keeping the others in order.
+     */
+    public void removeEmptyChunks() {
+      int j = 0;
+      for (int i = 0; i < size; i++) {
+        if (starts[i] < ends[i]) {
+          starts[j] = starts[i];
+          ends[j] = ends[i];
+          j++;
+        }
+      }
+      size = j;
+    }
+  }
+
+  /**
+   * Runs the TokenScanner over one line, recording tokens in the store
+   * instead of creating Token objects.
+   */
+  class Scanner extends TokenScanner {
+    public Scanner(CharSequence s) {
+      super(s);
+    }
+    void emitMeta(char startChar, char closeChar, int start, int end) {
+      int metaIdx = addToken(META_TYPEID, start - 1, 0);
+      addToken(getCharTypeId(startChar), start - 1, 0);
+      scan(start, end);
+      addToken(getCharTypeId(closeChar), end, 0);
+      aux[metaIdx] = numTokens;
+    }
+    void emitToken(int tokenClassId, int start, int end) {
+      switch (tokenClassId) {
+      case Token.DATE_TOKENCLASSID:
+        addToken(classTypeIds[tokenClassId], start, addFields(dayVal, monthVal, yearVal));
+        break;
+      case Token.TIME_TOKENCLASSID:
+        addToken(classTypeIds[tokenClassId], start, addFields(hrVal, minVal, secVal));
+        break;
+      case Token.INT_TOKENCLASSID: {
+        long val = parseIntValue(start, end);
+        int i;
+        if (val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) {
+          i = ((Integer) createIntToken(start, end).get()).intValue();
+        } else {
+          i = (int) val;
+        }
+        addToken(classTypeIds[tokenClassId], start, i);
+        break;
+      }
+      case Token.CHAR_TOKENCLASSID:
+        addToken(getCharTypeId(s.charAt(start)), start, 0);
+        break;
+      default:
+        // The text tokens keep their end offset; the rest don't need it
+        addToken(classTypeIds[tokenClassId], start, end);
+      }
+    }
+  }
+
+  ///////////////////////////////////////////////////
+  // Members
+  ///////////////////////////////////////////////////
+  // Per-line: the text, and the index of the line's first token
+  CharSequence lineTexts[] = new CharSequence[16];
+  int lineFirstTokens[] = new int[16];
+  int numLines = 0;
+
+  // Per-token columns
+  int typeIds[] = new int[256];
+  int starts[] = new int[256];
+  int aux[] = new int[256];
+  int numTokens = 0;
+
+  // Three values apiece for DATE and TIME tokens
+  int fieldVals[] = new int[48];
+  int numFieldVals = 0;
+
+  // One chunk per line
+  ChunkList chunks = new ChunkList(this, 16);
+
+  public ChunkStore() {
+  }
+
+  /**
+   * Build a store holding the given already-tokenized chunks.
+   */
+  public ChunkStore(List<List<Token.AbstractToken>> chunkToks) {
+    for (List<Token.AbstractToken> chunk: chunkToks) {
+      addChunk(chunk);
+    }
+  }
+
+  /**
+   * The chunks added so far, one per line, in order.
+   */
+  public ChunkList getChunks() {
+    return chunks;
+  }
+
+  /**
+   * Tokenize a line and add it as a chunk.  Returns false (and adds nothing)
+   * if the line cannot be tokenized.
+   */
+  public boolean addLine(String s) throws IOException {
+    if (Tokenizer.useRegexTokenizer) {
+      List<Token.AbstractToken> chunkToks = Tokenizer.tokenize(s);
+      if (chunkToks == null) {
+        return false;
+      }
+      addChunk(chunkToks);
+    } else {
+      int firstToken = numTokens;
+      addLineText(s, firstToken);
+      new Scanner(s).scan(0, s.length());
+      chunks.add(firstToken, numTokens);
+    }
+    return true;
+  }
+
+  /**
+   * Add a chunk of Token objects.  The line text recorded for it holds just
+   * enough of each token to recreate it.
+   */
+  public void addChunk(List<Token.AbstractToken> chunkToks) {
+    int firstToken = numTokens;
+    StringBuffer text = new StringBuffer();
+    for (Token.AbstractToken tok: chunkToks) {
+      addTokenObject(tok, text);
+    }
+    addLineText(text.toString(), firstToken);
+    chunks.add(firstToken, numTokens);
+  }
+
+  void addTokenObject(Token.AbstractToken tok, StringBuffer text) {
+    int start = text.length();
+    switch (tok.getClassId()) {
+    case Token.META_TOKENCLASSID: {
+      Token.MetaToken mtok = (Token.MetaToken) tok;
+      int metaIdx = addToken(tok.getTypeId(), start, 0);
+      addTokenObject(mtok.getStartToken(), text);
+      for (Token.AbstractToken subtok: mtok.getMiddleChunk()) {
+        addTokenObject(subtok, text);
+      }
+      addTokenObject(mtok.getEndToken(), text);
+      aux[metaIdx] = numTokens;
+      break;
+    }
+    case Token.DATE_TOKENCLASSID: {
+      Token.DateToken dtok = (Token.DateToken) tok;
+      addToken(tok.getTypeId(), start, addFields(dtok.day, dtok.month, dtok.year));
+      break;
+    }
+    case Token.TIME_TOKENCLASSID: {
+      Token.TimeToken ttok = (Token.TimeToken) tok;
+      addToken(tok.getTypeId(), start, addFields(ttok.hr, ttok.min, ttok.sec));
+      break;
+    }
+    case Token.INT_TOKENCLASSID:
+      addToken(tok.getTypeId(), start, ((Token.IntToken) tok).i);
+      break;
+    case Token.CHAR_TOKENCLASSID:
+    case Token.IPADDR_TOKENCLASSID:
+    case Token.PERMISSIONS_TOKENCLASSID:
+    case Token.FLOAT_TOKENCLASSID:
+    case Token.STRING_TOKENCLASSID:
+      // The sample string of each of these parses back to the same token
+      text.append(tok.getSampleString());
+      addToken(tok.getTypeId(), start, text.length());
+      break;
+    default:
+      addToken(tok.getTypeId(), start, 0);
+    }
+  }
+
+  /**
+   * Append all of another store's chunks after this one's, e.g. a batch of
+   * lines that was tokenized on another thread.  The other store is unchanged.
+   */
+  public void addStore(ChunkStore other) {
+    int tokOffset = numTokens;
+    int fieldOffset = numFieldVals;
+    for (int i = 0; i < other.numLines; i++) {
+      addLineText(other.lineTexts[i], other.lineFirstTokens[i] + tokOffset);
+    }
+
+    if (numTokens + other.numTokens > typeIds.length) {
+      int newSize = Math.max(2 * typeIds.length, numTokens + other.numTokens);
+      typeIds = grow(typeIds, newSize);
+      starts = grow(starts, newSize);
+      aux = grow(aux, newSize);
+    }
+    System.arraycopy(other.typeIds, 0, typeIds, numTokens, other.numTokens);
+    System.arraycopy(other.starts, 0, starts, numTokens, other.numTokens);
+    for (int t = 0; t < other.numTokens; t++) {
+      // META and DATE/TIME aux values are indices, so they move with the columns
+      int auxVal = other.aux[t];
+      switch (Token.getTypeIdClass(other.typeIds[t])) {
+      case Token.META_TOKENCLASSID:
+        auxVal += tokOffset;
+        break;
+      case Token.DATE_TOKENCLASSID:
+      case Token.TIME_TOKENCLASSID:
+        auxVal += fieldOffset;
+        break;
+      }
+      aux[numTokens + t] = auxVal;
+    }
+    numTokens += other.numTokens;
+
+    if (numFieldVals + other.numFieldVals > fieldVals.length) {
+      fieldVals = grow(fieldVals, Math.max(2 * fieldVals.length, numFieldVals + other.numFieldVals));
+    }
+    System.arraycopy(other.fieldVals, 0, fieldVals, numFieldVals, other.numFieldVals);
+    numFieldVals += other.numFieldVals;
+
+    for (int i = 0; i < other.chunks.size(); i++) {
+      chunks.add(other.chunks.getStart(i) + tokOffset, other.chunks.getEnd(i) + tokOffset);
+    }
+  }
+
+  /**
+   * Release the spare capacity in the columns, e.g. once all lines are added.
+   * More can still be added afterwards.
+   */
+  public void trimToSize() {
+    typeIds = resize(typeIds, Math.max(numTokens, 1));
+    starts = resize(starts, Math.max(numTokens, 1));
+    aux = resize(aux, Math.max(numTokens, 1));
+    fieldVals = resize(fieldVals, Math.max(numFieldVals, 3));
+    lineFirstTokens = resize(lineFirstTokens, Math.max(numLines, 1));
+    CharSequence newTexts[] = new CharSequence[Math.max(numLines, 1)];
+    System.arraycopy(lineTexts, 0, newTexts, 0, numLines);
+    lineTexts = newTexts;
+  }
+
+  ///////////////////////////////////////////////////
+  // Token accessors
+  ///////////////////////////////////////////////////
+  public int getTypeId(int tokIdx) {
+    return typeIds[tokIdx];
+  }
+  public String getId(int tokIdx) {
+    return Token.getTypeIdStr(typeIds[tokIdx]);
+  }
+  public boolean isMeta(int tokIdx) {
+    return typeIds[tokIdx] == META_TYPEID;
+  }
+  /**
+   * The index of the next token at the same nesting level.
+   */
+  public int next(int tokIdx) {
+    return (typeIds[tokIdx] == META_TYPEID) ? aux[tokIdx] : tokIdx + 1;
+  }
+  /**
+   * The number of tokens at the top nesting level of [start, end).
+   */
+  public int countTokens(int start, int end) {
+    int count = 0;
+    for (int t = start; t < end; t = next(t)) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Create the Token object for the given token.
+   */
+  public Token.AbstractToken getToken(int tokIdx) {
+    int typeId = typeIds[tokIdx];
+    switch (Token.getTypeIdClass(typeId)) {
+    case Token.META_TOKENCLASSID: {
+      List<Token.AbstractToken> contents = new ArrayList<Token.AbstractToken>();
+      int closeIdx = aux[tokIdx] - 1;
+      for (int t = tokIdx + 2; t < closeIdx; t = next(t)) {
+        contents.add(getToken(t));
+      }
+      return new Token.MetaToken((Token.CharToken) getToken(tokIdx + 1), (Token.CharToken) getToken(closeIdx), contents);
+    }
+    case Token.CHAR_TOKENCLASSID:
+      return Token.CharToken.valueOf(Token.getTypeIdParameter(typeId).charAt(0));
+    case Token.IPADDR_TOKENCLASSID:
+      return new Token.IPAddrToken(getText(tokIdx));
+    case Token.PERMISSIONS_TOKENCLASSID:
+      return new Token.PermissionBits(getText(tokIdx));
+    case Token.DATE_TOKENCLASSID: {
+      int f = aux[tokIdx];
+      return new Token.DateToken(fieldVals[f], fieldVals[f+1], fieldVals[f+2]);
+    }
+    case Token.TIME_TOKENCLASSID: {
+      int f = aux[tokIdx];
+      return new Token.TimeToken(fieldVals[f], fieldVals[f+1], fieldVals[f+2]);
+    }
+    case Token.INT_TOKENCLASSID:
+      return new Token.IntToken(aux[tokIdx]);
+    case Token.FLOAT_TOKENCLASSID:
+      return new Token.FloatToken(getText(tokIdx));
+    case Token.STRING_TOKENCLASSID:
+      return new Token.StringToken(getText(tokIdx));
+    case Token.EOL_TOKENCLASSID:
+      return new Token.EOLToken();
+    case Token.WHITESPACE_TOKENCLASSID:
+      return TokenScanner.WHITESPACE_TOKEN;
+    default:
+      return new Token.NoopToken();
+    }
+  }
+
+  /**
+   * The token's text, from the line it came from.
+   */
+  String getText(int tokIdx) {
+    // Find the last line that starts at or before tokIdx
+    int lo = 0;
+    int hi = numLines - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (lineFirstTokens[mid] <= tokIdx) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lineTexts[lo].subSequence(starts[tokIdx], aux[tokIdx]).toString();
+  }
+
+  ///////////////////////////////////////////////////
+  // Appending to the columns
+  ///////////////////////////////////////////////////
+  void addLineText(CharSequence text, int firstToken) {
+    if (numLines == lineTexts.length) {
+      CharSequence newTexts[] = new CharSequence[2 * numLines];
+      System.arraycopy(lineTexts, 0, newTexts, 0, numLines);
+      lineTexts = newTexts;
+      lineFirstTokens = grow(lineFirstTokens, 2 * numLines);
+    }
+    lineTexts[numLines] = text;
+    lineFirstTokens[numLines] = firstToken;
+    numLines++;
+  }
+
+  int addToken(int typeId, int start, int auxVal) {
+    if (numTokens == typeIds.length) {
+      typeIds = grow(typeIds, 2 * numTokens);
+      starts = grow(starts, 2 * numTokens);
+      aux = grow(aux, 2 * numTokens);
+    }
+    typeIds[numTokens] = typeId;
+    starts[numTokens] = start;
+    aux[numTokens] = auxVal;
+    return numTokens++;
+  }
+
+  int addFields(int v1, int v2, int v3) {
+    if (numFieldVals + 3 > fieldVals.length) {
+      fieldVals = grow(fieldVals, 2 * fieldVals.length);
+    }
+    fieldVals[numFieldVals] = v1;
+    fieldVals[numFieldVals+1] = v2;
+    fieldVals[numFieldVals+2] = v3;
+    numFieldVals += 3;
+    return numFieldVals - 3;
+  }
+
+  static int getCharTypeId(char c) {
+    if (c < 128) {
+      return Token.CharToken.valueOf(c).getTypeId();
+    }
+    return Token.internTypeId(Token.CHAR_TOKENCLASSID, "" + c);
+  }
+
+  static int[] grow(int src[], int newSize) {
+    return resize(src, newSize);
+  }
+
+  static int[] resize(int src[], int newSize) {
+    int dst[] = new int[newSize];
+    System.arraycopy(src, 0, dst, 0, Math.min(src.length, newSize));
+    return dst;
+  }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.ArrayList;
+
+import org.apache.avro.Schema;
+import org.apache.avro.util.Utf8;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+
+/*********************************************************
+ * CompiledParser is a compiled form of an InferredType's parser.
+ *
+ * InferredType.parse() walks the type tree, handing the unconsumed rest of
+ * the line down as a new String, allocating a ParseResult at every node and
+ * re-running the tokenizer regexes for every base value.  It also recomputes
+ * the candidate union decisions for every line that fails the naive parse.
+ *
+ * CompiledParser flattens the tree once into index-based arrays (the
+ * "program").  Parsing a line then only passes offsets around, scans base
+ * tokens in place with TokenScanner, and writes values straight into the
+ * output records.  If record reuse is on, each record and array in the
+ * program is allocated once and overwritten by every parse.
+ *
+ * When the naive parse fails, the union decisions are not enumerated up
+ * front.  resolveUnions() assigns them one union at a time, in the order
+ * InferredType.parseExhaustively() enumerates them, and abandons a partial
+ * assignment as soon as a relaxed, memoized recognizer shows that no
+ * completion of it can consume the line.  The first assignment that parses is
+ * therefore the same one exhaustive enumeration would find.  A per-line work
+ * budget bounds the search on pathological lines.
+ *
+ * A CompiledParser keeps per-parse state, so each thread needs its own.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ *********************************************************/
+public class CompiledParser {
+  static final int OP_BASE = 0;
+  static final int OP_STRUCT = 1;
+  static final int OP_ARRAY = 2;
+  static final int OP_UNION = 3;
+
+  public static final long DEFAULT_WORK_BUDGET = 1000000;
+  public static final long UNLIMITED_WORK = Long.MAX_VALUE;
+
+  static Schema dateSchema = createValueSchema("date", "month", "day", "year");
+  static Schema timeSchema = createValueSchema("timestamp", "hrs", "mins", "secs");
+
+  //
+  // The program: one entry per node of the type tree, in preorder.
+  // A node's children occupy childList[firstChild[n]] .. childList[firstChild[n] + numChildren[n] - 1]
+  //
+  int root;
+  int op[];
+  int tokenClass[];
+  String tokenParameter[];
+  boolean baseHasData[];
+  int firstChild[];
+  int numChildren[];
+  int childList[];
+  Schema schema[];
+  String fieldName[];
+  int fieldPos[];
+  int unionSlot[];
+  boolean inArray[];
+
+  // Union decisions, indexed by union slot; -1 means "try every branch".
+  // slotChoices holds each slot's candidate branches, in enumeration order.
+  int noDecisions[];
+  int slotChoices[][];
+  // Whether a node's subtree contains a slotted union, so its relaxed
+  // matches depend on the decisions made so far
+  boolean dependsOnDecisions[];
+
+  //
+  // Per-parse state
+  //
+  boolean reuseRecords;
+  long workBudget = DEFAULT_WORK_BUDGET;
+  long workDone;
+  TokenScanner scanner = new TokenScanner("");
+  int len;
+  int curDecisions[];
+  Object value[];
+  boolean hasData[];
+  GenericData.Record records[];
+  GenericData.Array arrays[];
+  Map<Long, BitSet> fixedEnds = new HashMap<Long, BitSet>();
+  Map<Long, BitSet> decisionEnds = new HashMap<Long, BitSet>();
+
+  public CompiledParser(InferredType typeTree) {
+    this(typeTree, false);
+  }
+
+  /**
+   * @param reuseRecords If true, every call to parse() overwrites the records
+   * returned by the previous call.  Only safe if the caller is done with each
+   * result before asking for the next one.
+   */
+  public CompiledParser(InferredType typeTree, boolean reuseRecords) {
+    this.reuseRecords = reuseRecords;
+    compile(typeTree);
+  }
+
+  /**
+   * Cap the work spent resolving unions for a single line; a line that
+   * exceeds it is reported as unparseable.  One unit is roughly one node
+   * visited at one offset.
+   */
+  public void setWorkBudget(long workBudget) {
+    this.workBudget = workBudget;
+  }
+
+  /**
+   * How much work the last parse() took
+   */
+  public long getWorkDone() {
+    return workDone;
+  }
+
+  ///////////////////////////////////////////////////
+  // Compilation
+  ///////////////////////////////////////////////////
+  List<InferredType> nodeTypes = new ArrayList<InferredType>();
+  List<Boolean> nodeInArray = new ArrayList<Boolean>();
+  List<int[]> nodeChildren = new ArrayList<int[]>();
+
+  void compile(InferredType typeTree) {
+    root = addNode(typeTree, false);
+
+    int numNodes = nodeTypes.size();
+    op = new int[numNodes];
+    tokenClass = new int[numNodes];
+    tokenParameter = new String[numNodes];
+    baseHasData = new boolean[numNodes];
+    firstChild = new int[numNodes];
+    numChildren = new int[numNodes];
+    schema = new Schema[numNodes];
+    fieldName = new String[numNodes];
+    fieldPos = new int[numNodes];
+    unionSlot = new int[numNodes];
+    inArray = new boolean[numNodes];
+    value = new Object[numNodes];
+    hasData = new boolean[numNodes];
+    records = new GenericData.Record[numNodes];
+    arrays = new GenericData.Array[numNodes];
+
+    int numChildEntries = 0;
+    for (int[] children: nodeChildren) {
+      numChildEntries += children.length;
+    }
+    childList = new int[numChildEntries];
+
+    //
+    // Assign a slot to every union that may need an explicit decision, in
+    // the same order InferredType.parseExhaustively() enumerates them.
+    //
+    Map<String, Set<Integer>> candidateUnionDecisions = typeTree.findCandidateUnionDecisions();
+    Map<String, Integer> slotsByName = new HashMap<String, Integer>();
+    for (String unionName: candidateUnionDecisions.keySet()) {
+      slotsByName.put(unionName, slotsByName.size());
+    }
+
+    for (int n = 0; n < numNodes; n++) {
+      fieldPos[n] = -1;
+      unionSlot[n] = -1;
+    }
+    int childPos = 0;
+    for (int n = 0; n < numNodes; n++) {
+      InferredType it = nodeTypes.get(n);
+      int children[] = nodeChildren.get(n);
+      firstChild[n] = childPos;
+      numChildren[n] = children.length;
+      for (int i = 0; i < children.length; i++) {
+        childList[childPos++] = children[i];
+      }
+      schema[n] = it.getAvroSchema();
+      fieldName[n] = it.getName();
+      inArray[n] = nodeInArray.get(n);
+
+      if (it instanceof BaseType) {
+        BaseType bt = (BaseType) it;
+        op[n] = OP_BASE;
+        tokenClass[n] = bt.tokenClassIdentifier;
+        tokenParameter[n] = bt.tokenParameter;
+        baseHasData[n] = Token.AbstractToken.hasData(bt.tokenClassIdentifier);
+      } else if (it instanceof StructType) {
+        op[n] = OP_STRUCT;
+        for (int i = 0; i < children.length; i++) {
+          Schema.Field field = schema[n].getField(nodeTypes.get(children[i]).getName());
+          if (field != null) {
+            fieldPos[children[i]] = field.pos();
+          }
+        }
+      } else if (it instanceof ArrayType) {
+        op[n] = OP_ARRAY;
+      } else {
+        op[n] = OP_UNION;
+        Integer slot = slotsByName.get(it.getName());
+        if (slot != null) {
+          unionSlot[n] = slot.intValue();
+        }
+      }
+    }
+
+    //
+    // Record each slot's candidate branches, in the order InferredType.parseExhaustively() tries them
+    //
+    noDecisions = new int[slotsByName.size()];
+    slotChoices = new int[slotsByName.size()][];
+    for (Map.Entry<String, Set<Integer>> pair: candidateUnionDecisions.entrySet()) {
+      int slot = slotsByName.get(pair.getKey()).intValue();
+      noDecisions[slot] = -1;
+      slotChoices[slot] = new int[pair.getValue().size()];
+      int i = 0;
+      for (Integer index: pair.getValue()) {
+        slotChoices[slot][i++] = index.intValue();
+      }
+    }
+
+    // Children always follow their parent in preorder
+    dependsOnDecisions = new boolean[numNodes];
+    for (int n = numNodes - 1; n >= 0; n--) {
+      dependsOnDecisions[n] = (unionSlot[n] >= 0);
+      for (int i = firstChild[n]; i < firstChild[n] + numChildren[n]; i++) {
+        dependsOnDecisions[n] |= dependsOnDecisions[childList[i]];
+      }
+    }
+
+    nodeTypes = null;
+    nodeInArray = null;
+    nodeChildren = null;
+  }
+
+  /**
+   * Number the given subtree in preorder.  Returns the index of its root.
+   */
+  int addNode(InferredType it, boolean underArray) {
+    int n = nodeTypes.size();
+    nodeTypes.add(it);
+    nodeInArray.add(underArray);
+    nodeChildren.add(null);
+
+    List<InferredType> children = new ArrayList<InferredType>();
+    if (it instanceof StructType) {
+      children.addAll(((StructType) it).structTypes);
+    } else if (it instanceof ArrayType) {
+      children.add(((ArrayType) it).bodyType);
+    } else if (it instanceof UnionType) {
+      children.addAll(((UnionType) it).unionTypes);
+    }
+    boolean childUnderArray = underArray || (it instanceof ArrayType);
+    int childIds[] = new int[children.size()];
+    for (int i = 0; i < childIds.length; i++) {
+      childIds[i] = addNode(children.get(i), childUnderArray);
+    }
+    nodeChildren.set(n, childIds);
+    return n;
+  }
+
+  ///////////////////////////////////////////////////
+  // Execution
+  ///////////////////////////////////////////////////
+
+  /**
+   * Parse the given line, returning null if it cannot be parsed.
+   */
+  public GenericContainer parse(String str) {
+    scanner.s = str;
+    len = str.length();
+    workDone = 0;
+
+    //
+    // Try the naive parse
+    //
+    curDecisions = noDecisions;
+    if (match(root, 0, true) >= 0 && hasData[root]) {
+      return (GenericContainer) value[root];
+    }
+
+    //
+    // Otherwise, we need to consider other union-options.
+    //
+    if (noDecisions.length == 0) {
+      return null;
+    }
+    curDecisions = (int[]) noDecisions.clone();
+    fixedEnds.clear();
+    try {
+      if (resolveUnions(0)) {
+        return (GenericContainer) value[root];
+      }
+      return null;
+    } finally {
+      fixedEnds.clear();
+      decisionEnds.clear();
+    }
+  }
+
+  /**
+   * Start matching pieces of the given line with matchChild()
+   */
+  void startLine(String str) {
+    scanner.s = str;
+    len = str.length();
+    workDone = 0;
+    curDecisions = noDecisions;
+  }
+
+  /**
+   * Match the root's i'th child at offset pos, as the naive parse would (each
+   * union takes the first branch that matches).  Returns the offset just past
+   * the match, or -1.  As within a struct, nothing matches at the end of the line.
+   */
+  int matchChild(int i, int pos) {
+    if (pos == len) {
+      return -1;
+    }
+    return match(childList[firstChild[root] + i], pos, false);
+  }
+
+  /**
+   * Depth-first search over the decisions for slots 'slot' and up, with the
+   * earlier slots fixed.  On success, the parse result is in value[root].
+   */
+  boolean resolveUnions(int slot) {
+    for (int i = 0; i < slotChoices[slot].length; i++) {
+      if (workDone > workBudget) {
+        return false;
+      }
+      curDecisions[slot] = slotChoices[slot][i];
+      if (slot + 1 < slotChoices.length) {
+        if (canConsumeLine() && resolveUnions(slot + 1)) {
+          return true;
+        }
+      } else {
+        if (match(root, 0, true) >= 0 && hasData[root]) {
+          return true;
+        }
+      }
+    }
+    curDecisions[slot] = -1;
+    return false;
+  }
+
+  /**
+   * Could any completion of the current partial decisions parse the whole line?
+   * A false answer is definite; a true one may not be.
+   */
+  boolean canConsumeLine() {
+    decisionEnds.clear();
+    BitSet ends = relaxedEnds(root, 0);
+    for (int e = ends.nextSetBit(0); e >= 0; e = ends.nextSetBit(e + 1)) {
+      if (isBlank(e)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Every offset at which node n, started at pos, could end under some
+   * completion of the current decisions.  This over-approximates match():
+   * each union occurrence without a decision may take any branch, and an
+   * array may stop after any number of elements.  Results are memoized by
+   * (node, offset).
+   */
+  BitSet relaxedEnds(int n, int pos) {
+    Map<Long, BitSet> memo = dependsOnDecisions[n] ? decisionEnds : fixedEnds;
+    Long key = ((long) n << 32) | pos;
+    BitSet ends = memo.get(key);
+    if (ends != null) {
+      return ends;
+    }
+    workDone++;
+    ends = new BitSet();
+    switch (op[n]) {
+    case OP_BASE: {
+      int tokEnd = scanner.scanToken(tokenClass[n], tokenParameter[n], pos, len);
+      if (tokEnd >= 0) {
+        ends.set(tokEnd);
+      }
+      break;
+    }
+    case OP_STRUCT: {
+      ends.set(pos);
+      for (int i = firstChild[n]; i < firstChild[n] + numChildren[n] && ! ends.isEmpty(); i++) {
+        BitSet nextEnds = new BitSet();
+        for (int p = ends.nextSetBit(0); p >= 0 && p < len; p = ends.nextSetBit(p + 1)) {
+          nextEnds.or(relaxedEnds(childList[i], p));
+        }
+        ends = nextEnds;
+      }
+      break;
+    }
+    case OP_ARRAY: {
+      int body = childList[firstChild[n]];
+      ends.set(pos);
+      BitSet frontier = new BitSet();
+      frontier.set(pos);
+      while (! frontier.isEmpty()) {
+        BitSet nextFrontier = new BitSet();
+        for (int p = frontier.nextSetBit(0); p >= 0; p = frontier.nextSetBit(p + 1)) {
+          nextFrontier.or(relaxedEnds(body, p));
+        }
+        nextFrontier.andNot(ends);
+        ends.or(nextFrontier);
+        frontier = nextFrontier;
+      }
+      break;
+    }
+    case OP_UNION: {
+      int decision = (unionSlot[n] >= 0) ? curDecisions[unionSlot[n]] : -1;
+      for (int i = 0; i < numChildren[n]; i++) {
+        if (decision < 0 || decision == i) {
+          ends.or(relaxedEnds(childList[firstChild[n] + i], pos));
+        }
+      }
+      break;
+    }
+    }
+    memo.put(key, ends);
+    return ends;
+  }
+
+  /**
+   * Match node n starting at offset pos.  Returns the offset just past the
+   * match, or -1.  On success, value[n] and hasData[n] hold the node's result.
+   */
+  int match(int n, int pos, boolean mustConsumeStr) {
+    workDone++;
+    switch (op[n]) {
+    case OP_BASE: {
+      int tokEnd = scanner.scanToken(tokenClass[n], tokenParameter[n], pos, len);
+      if (tokEnd < 0 || (mustConsumeStr && ! isBlank(tokEnd))) {
+        return -1;
+      }
+      value[n] = createBaseValue(n, pos, tokEnd);
+      hasData[n] = baseHasData[n];
+      return tokEnd;
+    }
+    case OP_STRUCT: {
+      GenericData.Record gdr = getRecord(n);
+      boolean anyData = false;
+      int cur = pos;
+      for (int i = firstChild[n]; i < firstChild[n] + numChildren[n]; i++) {
+        int child = childList[i];
+        if (cur == len) {
+          return -1;
+        }
+        cur = match(child, cur, false);
+        if (cur < 0) {
+          return -1;
+        }
+        if (hasData[child]) {
+          anyData = true;
+          if (fieldPos[child] >= 0) {
+            gdr.put(fieldPos[child], value[child]);
+          } else {
+            gdr.put(fieldName[child], value[child]);
+          }
+        }
+      }
+      if (mustConsumeStr && ! isBlank(cur)) {
+        return -1;
+      }
+      value[n] = gdr;
+      hasData[n] = anyData;
+      return cur;
+    }
+    case OP_ARRAY: {
+      GenericData.Array gda = getArray(n);
+      int body = childList[firstChild[n]];
+      int cur = pos;
+      while (true) {
+        int next = match(body, cur, false);
+        if (next < 0) {
+          break;
+        }
+        gda.add(value[body]);
+        if (next == cur) {
+          // A body that consumes nothing would match forever
+          break;
+        }
+        cur = next;
+      }
+      if (mustConsumeStr && ! isBlank(cur)) {
+        return -1;
+      }
+      value[n] = gda;
+      hasData[n] = true;
+      return cur;
+    }
+    case OP_UNION: {
+      int decision = (unionSlot[n] >= 0) ? curDecisions[unionSlot[n]] : -1;
+      int lo = (decision >= 0) ? decision : 0;
+      int hi = (decision >= 0) ? decision + 1 : numChildren[n];
+      for (int i = lo; i < hi; i++) {
+        int child = childList[firstChild[n] + i];
+        int next = match(child, pos, false);
+        if (next >= 0 && (! mustConsumeStr || isBlank(next))) {
+          value[n] = value[child];
+          hasData[n] = hasData[child];
+          return next;
+        }
+      }
+      return -1;
+    }
+    default:
+      return -1;
+    }
+  }
+
+  /**
+   * Equivalent to str.substring(pos).trim().length() == 0
+   */
+  boolean isBlank(int pos) {
+    String s = (String) scanner.s;
+    for (int i = pos; i < len; i++) {
+      if (s.charAt(i) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  GenericData.Record getRecord(int n) {
+    if (! reuseRecords || inArray[n]) {
+      return new GenericData.Record(schema[n]);
+    }
+    GenericData.Record gdr = records[n];
+    if (gdr == null) {
+      gdr = new GenericData.Record(schema[n]);
+      records[n] = gdr;
+    } else {
+      for (int i = 0; i < schema[n].getFields().size(); i++) {
+        gdr.put(i, null);
+      }
+    }
+    return gdr;
+  }
+
+  GenericData.Array getArray(int n) {
+    if (! reuseRecords || inArray[n]) {
+      return new GenericData.Array(5, schema[n]);
+    }
+    GenericData.Array gda = arrays[n];
+    if (gda == null) {
+      gda = new GenericData.Array(5, schema[n]);
+      arrays[n] = gda;
+    } else {
+      gda.clear();
+    }
+    return gda;
+  }
+
+  /**
+   * The same value Token.AbstractToken.get() would return for the token in [start, end)
+   */
+  Object createBaseValue(int n, int start, int end) {
+    switch (tokenClass[n]) {
+    case Token.CHAR_TOKENCLASSID:
+      return new Utf8(String.valueOf(scanner.s.charAt(start)));
+    case Token.IPADDR_TOKENCLASSID:
+    case Token.PERMISSIONS_TOKENCLASSID:
+    case Token.STRING_TOKENCLASSID:
+      return new Utf8(scanner.substring(start, end));
+    case Token.DATE_TOKENCLASSID: {
+      GenericData.Record gdr = new GenericData.Record(dateSchema);
+      gdr.put(0, scanner.monthVal);
+      gdr.put(1, scanner.dayVal);
+      gdr.put(2, scanner.yearVal);
+      return gdr;
+    }
+    case Token.TIME_TOKENCLASSID: {
+      GenericData.Record gdr = new GenericData.Record(timeSchema);
+      gdr.put(0, scanner.hrVal);
+      gdr.put(1, scanner.minVal);
+      gdr.put(2, scanner.secVal);
+      return gdr;
+    }
+    case Token.INT_TOKENCLASSID:
+      return scanner.createIntToken(start, end).get();
+    case Token.FLOAT_TOKENCLASSID:
+      return new Token.FloatToken(scanner.substring(start, end)).get();
+    default:
+      return null;
+    }
+  }
+
+  static Schema createValueSchema(String name, String f1, String f2, String f3) {
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    fields.add(new Schema.Field(f1, Schema.create(Schema.Type.INT), "", null));
+    fields.add(new Schema.Field(f2, Schema.create(Schema.Type.INT), "", null));
+    fields.add(new Schema.Field(f3, Schema.create(Schema.Type.INT), "", null));
+    Schema s = Schema.createRecord(name, "", "", false);
+    s.setFields(fields);
+    return s;
+  }
+}
@@ -69,94 +69,115 @@ public class Histogram {
    * than the number of potential token types.  However, it can take awhile to compute
    * if the input data size is huge.  
    *
-   * REMIND mjc - This fn may be a good candidate for runtime-perf optimization
+   * Counting is done over interned token type ids with plain int arrays, so the
+   * per-token work allocates nothing.  Histograms come back sorted by token id string.
    */
   public static List<Histogram> computeNormalizedHistograms(List<List<Token.AbstractToken>> chunks) {
-    Map<String, Map<Integer, Integer>> allHistograms = new TreeMap<String, Map<Integer, Integer>>();
-    List<Histogram> normalizedHistograms = new ArrayList<Histogram>();
+    return computeNormalizedHistograms(new ChunkStore(chunks).getChunks());
+  }
+
+  /**
+   * Same as above, for chunks held in a ChunkStore.
+   */
+  public static List<Histogram> computeNormalizedHistograms(ChunkStore.ChunkList chunks) {
+    ChunkStore store = chunks.getStore();
+    // localFreq[typeId] is the count within the current chunk; touched lists the typeIds it's nonzero for.
+    // freqCounts[typeId][f] is the number of chunks in which typeId appears exactly f times (f > 0).
+    int numTypeIds = Token.numTypeIds();
+    int localFreq[] = new int[numTypeIds];
+    int touched[] = new int[16];
+    int freqCounts[][] = new int[numTypeIds][];
 
     //
     // 1.  Compute some per-chunk statistics
     //
-    for (List<Token.AbstractToken> chunk: chunks) {
+    for (int c = 0; c < chunks.size(); c++) {
       // Compute frequencies of token-type within this chunk
-      HashMap<String, Integer> localFreq = new HashMap<String, Integer>();
-      for (Token.AbstractToken tok: chunk) {
-        Integer count = (Integer) localFreq.get(tok.getId());
-        if (count == null) {
-          localFreq.put(tok.getId(), 1);
-        } else {
-          localFreq.put(tok.getId(), count.intValue() + 1);
+      int numTouched = 0;
+      int chunkEnd = chunks.getEnd(c);
+      for (int t = chunks.getStart(c); t < chunkEnd; t = store.next(t)) {
+        int typeId = store.getTypeId(t);
+        if (typeId >= localFreq.length) {
+          int newSize = Math.max(typeId + 1, 2 * localFreq.length);
+          localFreq = grow(localFreq, newSize);
+          int newFreqCounts[][] = new int[newSize][];
+          System.arraycopy(freqCounts, 0, newFreqCounts, 0, freqCounts.length);
+          freqCounts = newFreqCounts;
+        }
+        if (localFreq[typeId]++ == 0) {
+          if (numTouched == touched.length) {
+            touched = grow(touched, 2 * touched.length);
+          }
+          touched[numTouched++] = typeId;
         }
       }
 
       // Now adjust the "histogram of frequencies" associated with each token type
-      for (String tokenId: localFreq.keySet()) {
-        Map<Integer, Integer> perTokenTypeHistogram = allHistograms.get(tokenId);
-        if (perTokenTypeHistogram == null) {
-          perTokenTypeHistogram = new HashMap<Integer, Integer>();
-          allHistograms.put(tokenId, perTokenTypeHistogram);
-        }
-        Integer currentTokenTypeCount = localFreq.get(tokenId);
-        Integer countSoFar = perTokenTypeHistogram.get(currentTokenTypeCount);
-        if (countSoFar == null) {
-          perTokenTypeHistogram.put(currentTokenTypeCount, 1);
-        } else {
-          perTokenTypeHistogram.put(currentTokenTypeCount, countSoFar.intValue() + 1);
+      for (int i = 0; i < numTouched; i++) {
+        int typeId = touched[i];
+        int freq = localFreq[typeId];
+        localFreq[typeId] = 0;
+        int counts[] = freqCounts[typeId];
+        if (counts == null) {
+          counts = freqCounts[typeId] = new int[Math.max(freq + 1, 4)];
+        } else if (freq >= counts.length) {
+          counts = freqCounts[typeId] = grow(counts, Math.max(freq + 1, 2 * counts.length));
         }
+        counts[freq]++;
       }
     }
 
     //
-    // 2.  Now for each per-token-type histogram, compute how many times the
-    //     token was observed in *no chunk at all*.
+    // 2.  Order the observed token types by their id strings
     //
-    for (String tokenId: allHistograms.keySet()) {
-      Map<Integer, Integer> perTokenTypeHistogram = allHistograms.get(tokenId);
-      int numberOfChunksForObservedTokenTypeCount = 0;
-      for (Integer currentTokenTypeCount: perTokenTypeHistogram.keySet()) {
-        numberOfChunksForObservedTokenTypeCount += perTokenTypeHistogram.get(currentTokenTypeCount);
+    SortedMap<String, Integer> observedTypes = new TreeMap<String, Integer>();
+    for (int typeId = 0; typeId < freqCounts.length; typeId++) {
+      if (freqCounts[typeId] != null) {
+        observedTypes.put(Token.getTypeIdStr(typeId), typeId);
       }
-      perTokenTypeHistogram.put(0, chunks.size() - numberOfChunksForObservedTokenTypeCount);
     }
 
     //
     // 3.  Normalize the per-token-type histograms
     //
-    for (Map.Entry<String, Map<Integer, Integer>> e1: allHistograms.entrySet()) {
+    List<Histogram> normalizedHistograms = new ArrayList<Histogram>();
+    for (Map.Entry<String, Integer> e1: observedTypes.entrySet()) {
       String tokenId = e1.getKey();
-      Map<Integer, Integer> perTokenTypeHistogram = e1.getValue();
+      int typeId = e1.getValue();
+      int counts[] = freqCounts[typeId];
       double coverage = 0;
-      double totalMass = 0;
+      double totalMass = chunks.size();
 
       // 3.1.  Compute the histogram's normal form: all the counts in descending order of prevalence in the chunk set.
+      //       The first entry counts the chunks in which the token type was *not observed at all*.
       //       Also, compute some metainfo stats along the way
-      SortedSet<FrequencyPair> sorter = new TreeSet<FrequencyPair>();
-      for (Map.Entry<Integer, Integer> e2: perTokenTypeHistogram.entrySet()) {
-        Integer perChunkFrequency = e2.getKey();
-        Integer overallChunkCount = e2.getValue();
-        if (perChunkFrequency.intValue() != 0) {
-          coverage += overallChunkCount.intValue();
-          sorter.add(new FrequencyPair(perChunkFrequency, overallChunkCount));
-        }
-        totalMass += overallChunkCount.intValue();
-      }
       List<FrequencyPair> normalForm = new ArrayList<FrequencyPair>();
-      for (FrequencyPair p: sorter) {
-        normalForm.add(p);
+      for (int perChunkFrequency = 1; perChunkFrequency < counts.length; perChunkFrequency++) {
+        int overallChunkCount = counts[perChunkFrequency];
+        if (overallChunkCount != 0) {
+          coverage += overallChunkCount;
+          normalForm.add(new FrequencyPair(perChunkFrequency, overallChunkCount));
+        }
       }
-      normalForm.add(0, new FrequencyPair(0, perTokenTypeHistogram.get(0)));
+      Collections.sort(normalForm);
+      normalForm.add(0, new FrequencyPair(0, chunks.size() - (int) coverage));
 
       // 3.2.  Compute metainfo
-      double width = perTokenTypeHistogram.size()-1;
+      double width = normalForm.size()-1;
       double residualMass = (totalMass - normalForm.get(1).getCount()) / totalMass;
 
       // 3.3   Done with the histogram!
-      normalizedHistograms.add(new Histogram(tokenId, normalForm, width, residualMass, coverage));
+      normalizedHistograms.add(new Histogram(tokenId, typeId, normalForm, width, residualMass, coverage));
     }
     return normalizedHistograms;
   }
 
+  static int[] grow(int src[], int newSize) {
+    int dst[] = new int[newSize];
+    System.arraycopy(src, 0, dst, 0, src.length);
+    return dst;
+  }
+
   /**
    * Cluster together histograms that appear to be related.
    *
@@ -166,6 +187,10 @@ public class Histogram {
    * c) The distance between two clusters is determined by the *minimum distance between any two members of the cluster*.
    *    This is sometimes called "single link" clustering.  The resulting cluster quality is not as good as computing 
    *    distance based on the average of the members of a cluster, but it is more efficient.
+   *
+   * Clusters are kept in a union-find structure, merging in increasing order of distance.
+   * Each one is labelled with the index of the histogram whose cluster absorbed the others;
+   * clusters come back sorted by that label, and members by index.
    */
   public static List<List<Histogram>> clusterHistograms(List<Histogram> inputHistograms) {
     // 1.  Handle degenerate case of size(input) == 1
@@ -175,94 +200,128 @@ public class Histogram {
       return clusters;
     }
 
-    // 2.  Otherwise, compute pairwise symmetric relative entropy among histograms
-    class Score implements Comparable {
-      double s;
-      int i;
-      int j;
-      public Score(double s, int i, int j) {
-        this.s = s;
-        this.i = i;
-        this.j = j;
-      }
-      public int getIndex1() {
-        return i;
-      }
-      public int getIndex2() {
-        return j;
-      }
-      public int compareTo(Object o) {
-        Score other = (Score) o;
-        if (this.s < other.s) {
-          return -1;
-        } else if (this.s > other.s) {
-          return 1;
-        } else {
-          int cmp = this.i - other.i;
-          if (cmp == 0) {
-            cmp = this.j - other.j;
+    // 2.  Otherwise, compute symmetric relative entropy among histograms that could possibly
+    //     be closer than CLUSTER_TOLERANCE.  Every component past the shorter normal form adds
+    //     at least log(2)/2 to the score, so only histograms of equal width are compared.  Within
+    //     a width, Pinsker's inequality bounds the score below by (c1-c2)^2 / (4 * (c1+c2)) for
+    //     coverages c1 and c2, so we can stop scanning once coverages are far enough apart.
+    int n = inputHistograms.size();
+    Histogram histograms[] = inputHistograms.toArray(new Histogram[n]);
+    Integer byWidthAndCoverage[] = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      byWidthAndCoverage[i] = i;
+    }
+    final Histogram sortHistograms[] = histograms;
+    Arrays.sort(byWidthAndCoverage, new Comparator<Integer>() {
+        public int compare(Integer i1, Integer i2) {
+          Histogram h1 = sortHistograms[i1];
+          Histogram h2 = sortHistograms[i2];
+          if (h1.normalForm.size() != h2.normalForm.size()) {
+            return h1.normalForm.size() - h2.normalForm.size();
           }
-          return cmp;
+          return Double.compare(h1.coverage, h2.coverage);
         }
-      }
-    }
-    SortedSet<Score> scores = new TreeSet<Score>();
-    for (int i = 0; i < inputHistograms.size(); i++) {
-      for (int j = i+1; j < inputHistograms.size(); j++) {
-        Histogram h1 = inputHistograms.get(i);
-        Histogram h2 = inputHistograms.get(j);
-        double sre = h1.computeSymmetricRelativeEntropy(h2);
+      });
+
+    int numPairs = 0;
+    double pairScores[] = new double[16];
+    int pairIndex1[] = new int[16];
+    int pairIndex2[] = new int[16];
+    for (int a = 0; a < n; a++) {
+      Histogram ha = histograms[byWidthAndCoverage[a]];
+      for (int b = a+1; b < n; b++) {
+        Histogram hb = histograms[byWidthAndCoverage[b]];
+        if (hb.normalForm.size() != ha.normalForm.size()) {
+          break;
+        }
+        double coverageGap = hb.coverage - ha.coverage;
+        if (coverageGap * coverageGap / (4 * (ha.coverage + hb.coverage)) > 2 * CLUSTER_TOLERANCE) {
+          break;
+        }
+        int i = Math.min(byWidthAndCoverage[a], byWidthAndCoverage[b]);
+        int j = Math.max(byWidthAndCoverage[a], byWidthAndCoverage[b]);
+        double sre = histograms[i].computeSymmetricRelativeEntropy(histograms[j]);
         if (sre < CLUSTER_TOLERANCE) {
-          scores.add(new Score(sre, i, j));
+          if (numPairs == pairScores.length) {
+            double newScores[] = new double[2 * numPairs];
+            System.arraycopy(pairScores, 0, newScores, 0, numPairs);
+            pairScores = newScores;
+            pairIndex1 = grow(pairIndex1, 2 * numPairs);
+            pairIndex2 = grow(pairIndex2, 2 * numPairs);
+          }
+          pairScores[numPairs] = sre;
+          pairIndex1[numPairs] = i;
+          pairIndex2[numPairs] = j;
+          numPairs++;
         }
       }
     }
 
-    // Initialize clusters
-    Map<Integer, Integer> histogramToCluster = new TreeMap<Integer, Integer>();
-    Map<Integer, Set<Integer>> clusterToHistograms = new TreeMap<Integer, Set<Integer>>();
-    for (int i = 0; i < inputHistograms.size(); i++) {
-      histogramToCluster.put(i, i);
-      Set<Integer> containedHistograms = new HashSet<Integer>();
-      containedHistograms.add(i);
-      clusterToHistograms.put(i, containedHistograms);
-    } 
-    // Start merging clusters
-    for (Score s: scores) {
-      int idx1 = s.getIndex1();
-      int idx2 = s.getIndex2();
-      int cluster1 = histogramToCluster.get(idx1);
-      int cluster2 = histogramToCluster.get(idx2);
+    // 3.  Merge clusters in order of increasing (score, index1, index2)
+    final double scores[] = pairScores;
+    final int index1[] = pairIndex1;
+    final int index2[] = pairIndex2;
+    Integer mergeOrder[] = new Integer[numPairs];
+    for (int k = 0; k < numPairs; k++) {
+      mergeOrder[k] = k;
+    }
+    Arrays.sort(mergeOrder, new Comparator<Integer>() {
+        public int compare(Integer k1, Integer k2) {
+          if (scores[k1] != scores[k2]) {
+            return (scores[k1] < scores[k2]) ? -1 : 1;
+          } else if (index1[k1] != index1[k2]) {
+            return index1[k1] - index1[k2];
+          } else {
+            return index2[k1] - index2[k2];
+          }
+        }
+      });
 
-      if (cluster1 == cluster2) {
+    int parent[] = new int[n];
+    for (int i = 0; i < n; i++) {
+      parent[i] = i;
+    }
+    for (int k = 0; k < numPairs; k++) {
+      int root1 = findRoot(parent, index1[mergeOrder[k]]);
+      int root2 = findRoot(parent, index2[mergeOrder[k]]);
+      if (root1 == root2) {
         continue;
       }
-      for (Integer histogramId: clusterToHistograms.get(cluster2)) {
-        histogramToCluster.put(histogramId, cluster1);
-      }
-      clusterToHistograms.get(cluster1).addAll(clusterToHistograms.get(cluster2));
-      clusterToHistograms.remove(cluster2);
+      // index1's cluster absorbs index2's, so a root is always its cluster's label
+      parent[root2] = root1;
     }
 
-    // Build the clustered histogram list.
+    // 4.  Build the clustered histogram list.
+    List<Histogram> clusterByLabel[] = new List[n];
+    for (int i = 0; i < n; i++) {
+      int l = findRoot(parent, i);
+      if (clusterByLabel[l] == null) {
+        clusterByLabel[l] = new ArrayList<Histogram>();
+      }
+      clusterByLabel[l].add(histograms[i]);
+    }
     List<List<Histogram>> clusters = new ArrayList<List<Histogram>>();
-    for (Map.Entry<Integer, Set<Integer>> entry: clusterToHistograms.entrySet()) {
-      Integer clusterId = entry.getKey();
-      Set<Integer> histograms = entry.getValue();
-
-      List<Histogram> curCluster = new ArrayList<Histogram>();
-      for (Integer histogramIndex: histograms) {
-        curCluster.add(inputHistograms.get(histogramIndex));
+    for (int l = 0; l < n; l++) {
+      if (clusterByLabel[l] != null) {
+        clusters.add(clusterByLabel[l]);
       }
-      clusters.add(curCluster);
     }
     return clusters;
   }
 
+  static int findRoot(int parent[], int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
   //////////////////////////////////////////////////////////////
   // Members
   //////////////////////////////////////////////////////////////
   String histogramType;
+  int histogramTypeId;
   List<FrequencyPair> normalForm;
   double width;
   double residualMass;
@@ -271,8 +330,9 @@ public class Histogram {
   //////////////////////////////////////////////////////////////
   // Methods
   //////////////////////////////////////////////////////////////
-  public Histogram(String histogramType, List<FrequencyPair> normalForm, double width, double residualMass, double coverage) {
+  public Histogram(String histogramType, int histogramTypeId, List<FrequencyPair> normalForm, double width, double residualMass, double coverage) {
     this.histogramType = histogramType;
+    this.histogramTypeId = histogramTypeId;
     this.normalForm = normalForm;
     this.width = width;
     this.residualMass = residualMass;
@@ -288,6 +348,12 @@ public class Histogram {
   public String getHistogramType() {
     return histogramType;
   }
+  /**
+   * The interned token type id, as in Token.AbstractToken.getTypeId()
+   */
+  public int getHistogramTypeId() {
+    return histogramTypeId;
+  }
   public double getWidth() {
     return width;
   }
@@ -311,35 +377,33 @@ public class Histogram {
   /**
    * The relative entropy score is used for clustering.  However, we can't compute
    * it directly, as histograms do not always contain the same components.  Instead,
-   * we preprocess the data with computeSymmetricRelativeEntropy(), then pass the resulting
-   * averaged values into this pretty generic method.
-   */
-  double computeRelativeEntropy(List<Double> avgCounts) {
-    double total = 0;
-    for (int i = 1; i < normalForm.size(); i++) {
-      double selfOverallChunkCount = normalForm.get(i).getCount();
-      double otherOverallChunkCount = avgCounts.get(i);
-      total += selfOverallChunkCount * Math.log(selfOverallChunkCount / otherOverallChunkCount);
-    }
-    return total;
-  }
-
-  /**
-   * The point of this method is to preprocess the data from two input Histograms,
-   * getting it ready for the relative entropy computation.  Without this preprocessing,
-   * the rel-entropy computation would be sensitive to varying numbers of components in each histogram.
+   * we average the two histograms' counts component-by-component, and sum each one's
+   * relative entropy against that average.  Without this averaging, the rel-entropy
+   * computation would be sensitive to varying numbers of components in each histogram.
    */
   double computeSymmetricRelativeEntropy(Histogram other) {
-    List<Double> avgCounts = new ArrayList<Double>();
-    for (int i = 0; i < Math.max(normalForm.size(), other.normalForm.size()); i++) {
-      if ((i < normalForm.size()) && (i < other.normalForm.size())) {
-        avgCounts.add((normalForm.get(i).getCount() + other.normalForm.get(i).getCount()) / 2.0);
-      } else if (i < normalForm.size()) {
-        avgCounts.add(normalForm.get(i).getCount() * 0.5);
+    double selfTotal = 0;
+    double otherTotal = 0;
+    int selfSize = normalForm.size();
+    int otherSize = other.normalForm.size();
+    for (int i = 1; i < Math.max(selfSize, otherSize); i++) {
+      double avgCount;
+      if ((i < selfSize) && (i < otherSize)) {
+        avgCount = (normalForm.get(i).getCount() + other.normalForm.get(i).getCount()) / 2.0;
+      } else if (i < selfSize) {
+        avgCount = normalForm.get(i).getCount() * 0.5;
       } else {
-        avgCounts.add(other.normalForm.get(i).getCount() * 0.5);
+        avgCount = other.normalForm.get(i).getCount() * 0.5;
+      }
+      if (i < selfSize) {
+        double selfOverallChunkCount = normalForm.get(i).getCount();
+        selfTotal += selfOverallChunkCount * Math.log(selfOverallChunkCount / avgCount);
+      }
+      if (i < otherSize) {
+        double otherOverallChunkCount = other.normalForm.get(i).getCount();
+        otherTotal += otherOverallChunkCount * Math.log(otherOverallChunkCount / avgCount);
       }
     }
-    return 0.5 * this.computeRelativeEntropy(avgCounts) + 0.5 * other.computeRelativeEntropy(avgCounts);
+    return 0.5 * selfTotal + 0.5 * otherTotal;
   }
 }
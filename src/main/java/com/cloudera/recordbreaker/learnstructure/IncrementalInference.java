@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import org.apache.avro.AvroRuntimeException;
+
+/*********************************************************
+ * IncrementalInference updates an existing type tree to cover new lines,
+ * e.g. the lines appended to a log since the tree was learned, without
+ * re-running TypeInference over the whole file.
+ *
+ * Lines the tree already parses cost one parse apiece.  For each line it
+ * rejects, we look for the smallest part of the tree to blame.  Within a
+ * struct, the fields are parsed from the left until one fails; the
+ * failing field's text is whatever lies between there and the earliest
+ * point from which the remaining fields parse the rest of the line.  If
+ * that field is itself a struct (or a union of structs), we descend into
+ * it with just that text.  The text blamed on each node, over all the
+ * rejected lines, goes to TypeInference, and the node is widened to a
+ * union of its old self and the newly inferred type.  Lines that can't be
+ * pinned down that way are inferred as a whole and added as a new branch
+ * at the top.
+ *
+ * Widened nodes and their ancestors are rebuilt under their old names, so
+ * the existing fields keep their names.  New branches go after the old
+ * ones, so lines that parsed before yield the same values, though a
+ * widened node that had no value of its own (e.g. whitespace) now shows
+ * up as a null field.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ *********************************************************/
+public class IncrementalInference {
+  // At most this many rejected lines are used to widen the tree
+  static int MAX_REJECTED_LINES = 1000;
+
+  /**
+   * The node that a rejected line is blamed on, and the line's text for it
+   */
+  static class Site {
+    InferredType node;
+    String segment;
+    Site(InferredType node, String segment) {
+      this.node = node;
+      this.segment = segment;
+    }
+  }
+
+  /**
+   * All the text blamed on one node
+   */
+  static class SiteGroup {
+    InferredType node;
+    List<String> segments = new ArrayList<String>();
+    List<String> lines = new ArrayList<String>();
+    SiteGroup(InferredType node) {
+      this.node = node;
+    }
+  }
+
+  /**
+   * Return a type tree that parses what <code>typeTree</code> does, plus as
+   * many of <code>newLines</code> as we can manage.  If the tree already
+   * parses all of them, it is returned as is.  The input tree is never
+   * modified.
+   */
+  public static InferredType extend(InferredType typeTree, List<String> newLines) throws IOException {
+    List<String> rejected = findRejectedLines(typeTree, newLines);
+    if (rejected.size() == 0) {
+      return typeTree;
+    }
+    // The tree may have been named in another JVM; keep the new types'
+    // names clear of its names
+    typeTree.reserveNames();
+
+    //
+    // Blame each rejected line on a node, grouping the text by node in
+    // order of first appearance
+    //
+    List<SiteGroup> groups = new ArrayList<SiteGroup>();
+    Map<InferredType, SiteGroup> groupsByNode = new IdentityHashMap<InferredType, SiteGroup>();
+    List<String> unplaced = new ArrayList<String>();
+    List<String> placed = new ArrayList<String>();
+    Map<InferredType, CompiledParser> parsers = new IdentityHashMap<InferredType, CompiledParser>();
+    for (String line: rejected) {
+      Site site = locate(typeTree, line, parsers);
+      if (site.node == typeTree || site.segment.trim().length() == 0) {
+        // Not localized, or nothing for a local type to parse
+        unplaced.add(line);
+        continue;
+      }
+      SiteGroup group = groupsByNode.get(site.node);
+      if (group == null) {
+        group = new SiteGroup(site.node);
+        groups.add(group);
+        groupsByNode.put(site.node, group);
+      }
+      group.segments.add(site.segment);
+      group.lines.add(line);
+      placed.add(line);
+    }
+
+    //
+    // Widen each blamed node with a type learned from its text
+    //
+    Map<InferredType, InferredType> replacements = new IdentityHashMap<InferredType, InferredType>();
+    for (SiteGroup group: groups) {
+      InferredType widened = widen(group.node, inferFromStrings(group.segments));
+      if (widened == null) {
+        unplaced.addAll(group.lines);
+        placed.removeAll(group.lines);
+      } else {
+        replacements.put(group.node, widened);
+      }
+    }
+    InferredType newTree = typeTree;
+    if (replacements.size() > 0) {
+      try {
+        newTree = rebuild(typeTree, replacements);
+        // Whatever the local changes didn't fix gets handled at the top
+        unplaced.addAll(findRejectedLines(newTree, placed));
+      } catch (AvroRuntimeException are) {
+        // The widened nodes don't fit together in an Avro schema
+        newTree = typeTree;
+        unplaced.addAll(placed);
+      }
+    }
+
+    //
+    // Add a top-level branch for the rest
+    //
+    if (unplaced.size() > 0) {
+      InferredType topWidened = widen(newTree, inferFromStrings(unplaced));
+      if (topWidened != null) {
+        newTree = topWidened;
+      }
+    }
+    return newTree;
+  }
+
+  /**
+   * The lines (up to MAX_REJECTED_LINES of them) that the tree can't parse
+   */
+  static List<String> findRejectedLines(InferredType typeTree, List<String> lines) {
+    List<String> rejected = new ArrayList<String>();
+    CompiledParser parser = new CompiledParser(typeTree, true);
+    for (String line: lines) {
+      if (rejected.size() >= MAX_REJECTED_LINES) {
+        break;
+      }
+      if (parser.parse(line) == null) {
+        rejected.add(line);
+      }
+    }
+    return rejected;
+  }
+
+  /**
+   * Find the node to blame for <code>t</code> not parsing <code>s</code>.
+   * Returns a site for <code>t</code> itself if it can't be narrowed down.
+   * <code>parsers</code> caches a CompiledParser for each struct, across lines.
+   */
+  static Site locate(InferredType t, String s, Map<InferredType, CompiledParser> parsers) {
+    if (t instanceof StructType) {
+      return locateInStruct((StructType) t, s, parsers);
+    } else if (t instanceof UnionType) {
+      // Use the branch that blames the least text
+      Site best = null;
+      for (InferredType branch: ((UnionType) t).unionTypes) {
+        if (branch instanceof StructType) {
+          Site site = locateInStruct((StructType) branch, s, parsers);
+          if (site.node != branch && (best == null || site.segment.length() < best.segment.length())) {
+            best = site;
+          }
+        }
+      }
+      if (best != null) {
+        return best;
+      }
+    }
+    return new Site(t, s);
+  }
+
+  static Site locateInStruct(StructType t, String s, Map<InferredType, CompiledParser> parsers) {
+    List<InferredType> fields = t.structTypes;
+    if (fields.size() == 0) {
+      return new Site(t, s);
+    }
+    CompiledParser parser = parsers.get(t);
+    if (parser == null) {
+      parser = new CompiledParser(t, true);
+      parsers.put(t, parser);
+    }
+    parser.startLine(s);
+
+    // Parse from the left until a field fails
+    int failedField = -1;
+    int failedStart = 0;
+    int cur = 0;
+    for (int i = 0; i < fields.size(); i++) {
+      failedStart = cur;
+      int next = parser.matchChild(i, cur);
+      if (next < 0) {
+        failedField = i;
+        break;
+      }
+      cur = next;
+    }
+    if (failedField < 0) {
+      if (parser.isBlank(cur)) {
+        // Parses after all, at least without union search
+        return new Site(t, s);
+      }
+      // Trailing text; blame the last field, which starts at failedStart
+      failedField = fields.size() - 1;
+    }
+
+    // The failed field's text ends at the earliest point from which the
+    // fields after it parse the rest of the line.  The answers for each
+    // (field, offset) pair are shared between the candidate ends, so each
+    // field is matched at most once per offset.
+    Map<Long, Boolean> parsesRest = new HashMap<Long, Boolean>();
+    for (int end = failedStart + 1; end <= s.length(); end++) {
+      if (end < s.length() && ! isBoundary(s, end)) {
+        continue;
+      }
+      if (parsesFields(parser, fields.size(), failedField + 1, end, parsesRest)) {
+        InferredType field = fields.get(failedField);
+        String segment = s.substring(failedStart, end);
+        if (field instanceof StructType || field instanceof UnionType) {
+          Site inner = locate(field, segment, parsers);
+          if (inner.node != field) {
+            return inner;
+          }
+        }
+        return new Site(field, segment);
+      }
+    }
+    return new Site(t, s);
+  }
+
+  /**
+   * Could a token start at this offset?  Only those offsets are tried as
+   * the end of a field's text.
+   */
+  static boolean isBoundary(String s, int i) {
+    char prev = s.charAt(i - 1);
+    char cur = s.charAt(i);
+    if (! Character.isLetterOrDigit(prev) || ! Character.isLetterOrDigit(cur)) {
+      return true;
+    }
+    return Character.isDigit(prev) != Character.isDigit(cur);
+  }
+
+  /**
+   * Do the parser's fields[from..] parse exactly the rest of the line from
+   * <code>pos</code>?  Answers are memoized in <code>known</code>, keyed by
+   * field and offset.
+   */
+  static boolean parsesFields(CompiledParser parser, int numFields, int from, int pos, Map<Long, Boolean> known) {
+    if (from == numFields) {
+      return parser.isBlank(pos);
+    }
+    Long key = ((long) from << 32) | pos;
+    Boolean parses = known.get(key);
+    if (parses == null) {
+      int next = parser.matchChild(from, pos);
+      parses = (next >= 0 && parsesFields(parser, numFields, from + 1, next, known));
+      known.put(key, parses);
+    }
+    return parses.booleanValue();
+  }
+
+  /**
+   * Infer a type for the given strings, or null if none of them has any tokens
+   */
+  static InferredType inferFromStrings(List<String> strs) throws IOException {
+    ChunkStore store = new ChunkStore();
+    boolean hasTokens = false;
+    for (String str: strs) {
+      if (store.addLine(str)) {
+        ChunkStore.ChunkList chunks = store.getChunks();
+        hasTokens |= chunks.getEnd(chunks.size() - 1) > chunks.getStart(chunks.size() - 1);
+      }
+    }
+    return hasTokens ? TypeInference.infer(store) : null;
+  }
+
+  /**
+   * A union of <code>t</code>'s alternatives followed by <code>newType</code>'s.
+   * The union takes <code>t</code>'s name, so the field that held <code>t</code>
+   * keeps its name in the parent record.  Returns null if
+   * there is no new type, or Avro can't represent the union (e.g. it would
+   * hold two different arrays).
+   */
+  static InferredType widen(InferredType t, InferredType newType) {
+    if (newType == null) {
+      return null;
+    }
+    List<InferredType> branches = new ArrayList<InferredType>();
+    if (t instanceof UnionType) {
+      branches.addAll(((UnionType) t).unionTypes);
+    } else {
+      branches.add(t);
+    }
+    if (newType instanceof UnionType) {
+      branches.addAll(((UnionType) newType).unionTypes);
+    } else {
+      branches.add(newType);
+    }
+    try {
+      return new UnionType(t.getName(), branches);
+    } catch (AvroRuntimeException are) {
+      return null;
+    }
+  }
+
+  /**
+   * Copy the tree with the given nodes replaced.  Untouched subtrees are
+   * shared; the ancestors of replaced nodes are rebuilt under their old names.
+   */
+  static InferredType rebuild(InferredType t, Map<InferredType, InferredType> replacements) {
+    InferredType replacement = replacements.get(t);
+    if (replacement != null) {
+      return replacement;
+    }
+    if (t instanceof StructType) {
+      List<InferredType> newElts = new ArrayList<InferredType>();
+      boolean changed = false;
+      for (InferredType elt: ((StructType) t).structTypes) {
+        InferredType newElt = rebuild(elt, replacements);
+        changed |= (newElt != elt);
+        newElts.add(newElt);
+      }
+      return changed ? new StructType(t.getName(), newElts) : t;
+    } else if (t instanceof UnionType) {
+      List<InferredType> newBranches = new ArrayList<InferredType>();
+      boolean changed = false;
+      for (InferredType branch: ((UnionType) t).unionTypes) {
+        InferredType newBranch = rebuild(branch, replacements);
+        changed |= (newBranch != branch);
+        if (newBranch instanceof UnionType) {
+          // Avro unions can't nest
+          newBranches.addAll(((UnionType) newBranch).unionTypes);
+        } else {
+          newBranches.add(newBranch);
+        }
+      }
+      return changed ? new UnionType(t.getName(), newBranches) : t;
+    } else if (t instanceof ArrayType) {
+      InferredType body = ((ArrayType) t).bodyType;
+      InferredType newBody = rebuild(body, replacements);
+      return (newBody != body) ? new ArrayType(t.getName(), newBody) : t;
+    }
+    return t;
+  }
+}
@@ -38,6 +38,7 @@ public abstract class InferredType implements Writable {
   static int BASE_NOOP = 1;
 
   String name;
+  CompiledParser compiledParser = null;
 
   /**
    * Super constructor
@@ -50,6 +51,28 @@ public abstract class InferredType implements Writable {
   }
   abstract String createName();
 
+  /**
+   * Advance the name counters past every name in this tree.  A tree read
+   * back from disk was named by another JVM's counters, so types created
+   * here for it (e.g. by IncrementalInference) could otherwise reuse its names.
+   */
+  abstract void reserveNames();
+
+  /**
+   * The number after <code>prefix</code> in <code>name</code>, or -1 if
+   * the name wasn't generated with that prefix.
+   */
+  static int nameSuffix(String name, String prefix) {
+    if (name == null || ! name.startsWith(prefix)) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(name.substring(prefix.length()));
+    } catch (NumberFormatException nfe) {
+      return -1;
+    }
+  }
+
   /**
    * Deserialize an unknown InferredType from the given input stream
    */
@@ -97,7 +120,26 @@ public abstract class InferredType implements Writable {
       return hasData;
     }
   }
+  /**
+   * Parse the given string with this type tree, returning null if it cannot be parsed.
+   * This runs the tree's CompiledParser, which resolves ambiguous unions lazily and
+   * gives up on a line after CompiledParser.DEFAULT_WORK_BUDGET.
+   */
   public GenericContainer parse(String str) {
+    synchronized (this) {
+      if (compiledParser == null) {
+        compiledParser = new CompiledParser(this);
+      }
+      return compiledParser.parse(str);
+    }
+  }
+
+  /**
+   * The original tree-walking parse.  If the naive parse fails, it tries every
+   * combination of candidate union decisions, which is exponential in the number
+   * of ambiguous unions.  Kept as the reference for CompiledParser.
+   */
+  public GenericContainer parseExhaustively(String str) {
     //
     // Try the naive parse
     //
@@ -263,7 +305,14 @@ class BaseType extends InferredType {
     return CARD_COST;
   }
   String createName() {
-    return "base_" + fieldCounter++;
+    synchronized (BaseType.class) {
+      return "base_" + fieldCounter++;
+    }
+  }
+  void reserveNames() {
+    synchronized (BaseType.class) {
+      fieldCounter = Math.max(fieldCounter, nameSuffix(name, "base_") + 1);
+    }
   }
   public void readFields(DataInput in) throws IOException {
     // instance-specific
@@ -315,6 +364,11 @@ class StructType extends InferredType {
     this.structTypes = structTypes;
     this.schema = computeAvroSchema();
   }
+  StructType(String name, List<InferredType> structTypes) {
+    super(name);
+    this.structTypes = structTypes;
+    this.schema = computeAvroSchema();
+  }
   void addElt(InferredType structElt) {
     this.structTypes.add(structElt);
   }
@@ -397,7 +451,17 @@ class StructType extends InferredType {
     return dc;
   }
   String createName() {
-    return "record_" + recordCounter++;
+    synchronized (StructType.class) {
+      return "record_" + recordCounter++;
+    }
+  }
+  void reserveNames() {
+    synchronized (StructType.class) {
+      recordCounter = Math.max(recordCounter, nameSuffix(name, "record_") + 1);
+    }
+    for (InferredType it: structTypes) {
+      it.reserveNames();
+    }
   }
   public void readFields(DataInput in) throws IOException {
     int numStructTypes = in.readInt();
@@ -473,6 +537,11 @@ class ArrayType extends InferredType {
     this.bodyType = bodyType;
     this.schema = computeAvroSchema();
   }
+  ArrayType(String name, InferredType bodyType) {
+    super(name);
+    this.bodyType = bodyType;
+    this.schema = computeAvroSchema();
+  }
   public InferredType hoistUnions() {
     return new ArrayType(bodyType.hoistUnions());
   }
@@ -499,7 +568,15 @@ class ArrayType extends InferredType {
     return CARD_COST + bodyType.getDescriptionCost();
   }
   String createName() {
-    return "array_" + arrayCounter++;
+    synchronized (ArrayType.class) {
+      return "array_" + arrayCounter++;
+    }
+  }
+  void reserveNames() {
+    synchronized (ArrayType.class) {
+      arrayCounter = Math.max(arrayCounter, nameSuffix(name, "array_") + 1);
+    }
+    bodyType.reserveNames();
   }
   /**
    * Parse the given string, return resulting data if appropriate.
@@ -558,6 +635,11 @@ class UnionType extends InferredType {
     this.unionTypes = unionTypes;
     this.schema = computeAvroSchema();
   }
+  UnionType(String name, List<InferredType> unionTypes) {
+    super(name);
+    this.unionTypes = unionTypes;
+    this.schema = computeAvroSchema();
+  }
   public InferredType hoistUnions() {
     List<InferredType> newUnionTypes = new ArrayList<InferredType>();
     for (InferredType it: unionTypes) {
@@ -695,7 +777,17 @@ class UnionType extends InferredType {
     return dc;
   }
   String createName() {
-    return "union_" + unionCounter++;
+    synchronized (UnionType.class) {
+      return "union_" + unionCounter++;
+    }
+  }
+  void reserveNames() {
+    synchronized (UnionType.class) {
+      unionCounter = Math.max(unionCounter, nameSuffix(name, "union_") + 1);
+    }
+    for (InferredType it: unionTypes) {
+      it.reserveNames();
+    }
   }
   public void readFields(DataInput in) throws IOException {
     int numUnionElts = in.readInt();
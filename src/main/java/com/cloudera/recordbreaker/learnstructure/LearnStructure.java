@@ -16,12 +16,14 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Future;
 import org.apache.avro.Schema;
-import org.apache.avro.io.JsonEncoder;
-import org.apache.avro.io.EncoderFactory;
-import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericContainer;
-import org.apache.avro.generic.GenericDatumWriter;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
@@ -41,45 +43,250 @@ public class LearnStructure {
   public static String JSONDATA_FILENAME = "data.avro.json";
   public static String DATA_FILENAME = "data.avro";
   public static String PARSER_FILENAME = "parser.dat";
+  public static String BRANCHDATA_PREFIX = "data.branch";
+  public static String REJECTED_FILENAME = "rejected.txt";
+
+  // Tokenize sample lines on a thread pool, in batches of this many lines
+  static boolean useParallelTokenizing = false;
+  static int TOKENIZE_BATCH_SIZE = 1000;
+  // Parse the whole file for the outputs on a thread pool
+  static boolean useParallelEmission = false;
+
+  // Optional outputs beyond the JSON and Avro data files
+  Path branchDataDir = null;
+  Path rejectedLinesFile = null;
 
-  public LearnStructure() {
-  }
-  
   /**
+   * The result of tokenizing a run of lines: the chunks, plus the line numbers
+   * that could and could not be tokenized.
    */
-  public void inferRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose, int maxLines) throws IOException {
-    // Store parse errors and results
+  static class TokenizedLines {
+    ChunkStore chunks = new ChunkStore();
+    List<Integer> parseableLineNos = new ArrayList<Integer>();
     List<Integer> unparseableLineNos = new ArrayList<Integer>();
     List<String> unparseableStrs = new ArrayList<String>();
-    List<Integer> parseableLineNos = new ArrayList<Integer>();
-    List<List<Token.AbstractToken>> allChunks = new ArrayList<List<Token.AbstractToken>>();
 
-    //
-    // Transform the text into a list of "chunks".  A single chunk corresponds to a line of text.  A chunk is a list of Tokens.
-    //
-    long startRead = System.currentTimeMillis();
-    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
-    try {
-      String s = in.readLine();
-      int lineno = 0;
-      while (s != null) {
-        if (maxLines >= 0 && lineno >= maxLines) {
-          break;
-        }
-        List<Token.AbstractToken> chunkToks = Tokenizer.tokenize(s);
-        if (chunkToks != null) {
-          allChunks.add(chunkToks);
+    void addLines(List<String> lines, int firstLineno) throws IOException {
+      int lineno = firstLineno;
+      for (String s: lines) {
+        if (chunks.addLine(s)) {
           parseableLineNos.add(lineno);
         } else {
           unparseableStrs.add(s);
           unparseableLineNos.add(lineno);
         }
-        s = in.readLine();
         lineno++;
       }
+    }
+    void addAll(TokenizedLines other) {
+      chunks.addStore(other.chunks);
+      parseableLineNos.addAll(other.parseableLineNos);
+      unparseableLineNos.addAll(other.unparseableLineNos);
+      unparseableStrs.addAll(other.unparseableStrs);
+    }
+  }
+
+  public LearnStructure() {
+  }
+
+  public static void setParallelTokenizing(boolean useParallelTokenizing) {
+    LearnStructure.useParallelTokenizing = useParallelTokenizing;
+  }
+
+  public static void setParallelEmission(boolean useParallelEmission) {
+    LearnStructure.useParallelEmission = useParallelEmission;
+  }
+
+  /**
+   * Also write the parsed records to one Avro file per branch of the top-level
+   * union, in the given directory.  See RecordEmitter.UnionBranchSink.
+   */
+  public void setBranchDataDir(Path branchDataDir) {
+    this.branchDataDir = branchDataDir;
+  }
+
+  /**
+   * Also write the lines the parser rejects to the given file.
+   */
+  public void setRejectedLinesFile(Path rejectedLinesFile) {
+    this.rejectedLinesFile = rejectedLinesFile;
+  }
+
+  /**
+   * Hands out the lines to tokenize, a batch at a time
+   */
+  static abstract class LineBatches {
+    /**
+     * The next batch of at most TOKENIZE_BATCH_SIZE lines, or an empty list at the end
+     */
+    abstract List<String> next() throws IOException;
+  }
+
+  static ExecutorService tokenizePool = null;
+
+  /**
+   * The pool that tokenizes batches in parallel mode.  It is created on first
+   * use and shared by every call.  Its threads are daemons, so an idle pool
+   * doesn't keep the JVM alive.
+   */
+  static synchronized ExecutorService getTokenizePool() {
+    if (tokenizePool == null) {
+      tokenizePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "LearnStructure-tokenizer");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+    return tokenizePool;
+  }
+
+  /**
+   * Tokenize the given lines
+   */
+  static TokenizedLines tokenizeLines(final List<String> lines) throws IOException {
+    if (! useParallelTokenizing || lines.size() <= TOKENIZE_BATCH_SIZE) {
+      TokenizedLines result = new TokenizedLines();
+      result.addLines(lines, 0);
+      return result;
+    }
+    return tokenizeLines(new LineBatches() {
+        int batchStart = 0;
+        List<String> next() {
+          List<String> batch = lines.subList(batchStart, Math.min(lines.size(), batchStart + TOKENIZE_BATCH_SIZE));
+          batchStart += batch.size();
+          return batch;
+        }
+      });
+  }
+
+  /**
+   * Read and tokenize the first <code>maxLines</code> lines of the input (all
+   * of them if <code>maxLines</code> is negative).  In parallel mode, batches are
+   * tokenized while the next ones are read.
+   */
+  static TokenizedLines tokenizeLines(final BufferedReader in, final int maxLines) throws IOException {
+    return tokenizeLines(new LineBatches() {
+        int numRead = 0;
+        List<String> next() throws IOException {
+          List<String> batch = new ArrayList<String>();
+          String s = null;
+          while (batch.size() < TOKENIZE_BATCH_SIZE && (maxLines < 0 || numRead < maxLines) && (s = in.readLine()) != null) {
+            batch.add(s);
+            numRead++;
+          }
+          return batch;
+        }
+      });
+  }
+
+  /**
+   * Tokenize the batches in order.  In parallel mode, the calling thread
+   * fetches each batch and hands it to the tokenizing pool, and the results
+   * are appended in their original order.  At most a few batches per thread
+   * are in flight at once, so neither fetched lines nor finished-but-unconsumed
+   * batches pile up behind a slow one.
+   */
+  static TokenizedLines tokenizeLines(LineBatches batches) throws IOException {
+    TokenizedLines result = new TokenizedLines();
+    int firstLineno = 0;
+    if (! useParallelTokenizing) {
+      for (List<String> batch = batches.next(); batch.size() > 0; batch = batches.next()) {
+        result.addLines(batch, firstLineno);
+        firstLineno += batch.size();
+      }
+      return result;
+    }
+
+    int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = getTokenizePool();
+    LinkedList<Future<TokenizedLines>> inFlight = new LinkedList<Future<TokenizedLines>>();
+    try {
+      for (List<String> batch = batches.next(); batch.size() > 0; batch = batches.next()) {
+        if (inFlight.size() >= maxInFlight) {
+          result.addAll(awaitBatch(inFlight.removeFirst()));
+        }
+        final List<String> curBatch = batch;
+        final int curFirstLineno = firstLineno;
+        inFlight.add(pool.submit(new Callable<TokenizedLines>() {
+            public TokenizedLines call() throws IOException {
+              TokenizedLines batchResult = new TokenizedLines();
+              batchResult.addLines(curBatch, curFirstLineno);
+              return batchResult;
+            }
+          }));
+        firstLineno += batch.size();
+      }
+      while (inFlight.size() > 0) {
+        result.addAll(awaitBatch(inFlight.removeFirst()));
+      }
+    } finally {
+      // Only non-empty if we failed partway
+      for (Future<TokenizedLines> f: inFlight) {
+        f.cancel(true);
+      }
+    }
+    return result;
+  }
+
+  static TokenizedLines awaitBatch(Future<TokenizedLines> f) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException ie) {
+      throw new IOException("Interrupted while tokenizing: " + ie.getMessage());
+    } catch (ExecutionException ee) {
+      Throwable t = ee.getCause();
+      if (t instanceof IOException) {
+        throw (IOException) t;
+      } else if (t instanceof RuntimeException) {
+        throw (RuntimeException) t;
+      } else if (t instanceof Error) {
+        throw (Error) t;
+      }
+      throw new IOException("Tokenizing failed: " + t);
+    }
+  }
+  
+  /**
+   * Infer structure from the first <code>maxLines</code> lines of the file.
+   * In parallel mode, reading the lines overlaps with tokenizing them.
+   */
+  public void inferRecordFormat(FileSystem fs, Path p, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose, int maxLines) throws IOException {
+    long startRead = System.currentTimeMillis();
+    TokenizedLines tokenized = null;
+    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
+    try {
+      tokenized = tokenizeLines(in, maxLines);
     } finally {
       in.close();
     }
+    inferRecordFormat(fs, p, tokenized, startRead, fs2, schemaFile, parseTreeFile, jsonDataFile, avroDataFile, verbose);
+  }
+
+  /**
+   * Infer structure from the given sample of the file's lines (e.g., as chosen by a LineSampler).
+   * The JSON and Avro outputs, if requested, cover the entire file.  All the
+   * outputs are written in a single pass that parses each line once.
+   */
+  public void inferRecordFormat(FileSystem fs, Path p, List<String> sampleLines, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose) throws IOException {
+    long startRead = System.currentTimeMillis();
+    inferRecordFormat(fs, p, tokenizeLines(sampleLines), startRead, fs2, schemaFile, parseTreeFile, jsonDataFile, avroDataFile, verbose);
+  }
+
+  /**
+   * Infer structure from lines that have been tokenized.  The reported load
+   * time runs from <code>startRead</code>, when we started reading (if we read
+   * the lines ourselves) and tokenizing them.
+   */
+  void inferRecordFormat(FileSystem fs, Path p, TokenizedLines tokenized, long startRead, FileSystem fs2, Path schemaFile, Path parseTreeFile, Path jsonDataFile, Path avroDataFile, boolean verbose) throws IOException {
+    //
+    // The text has been transformed into a list of "chunks".  A single chunk corresponds to a line of text.  A chunk is a list of Tokens,
+    // kept in compact form by the ChunkStore.  We also store parse errors and results.
+    //
+    ChunkStore allChunks = tokenized.chunks;
+    BufferedReader in = null;
+    allChunks.trimToSize();
 
     //
     // Infer type structure from the tokenized chunks
@@ -91,7 +298,7 @@ public class LearnStructure {
     double inferTime = (end - start) / 1000.0;
     double totalTime = (end - startRead) / 1000.0;
     if (verbose) {
-      System.err.println("Number of chunks: " + allChunks.size());    
+      System.err.println("Number of chunks: " + allChunks.getChunks().size());    
       System.err.println("Elapsed load time: " + loadTime);
       System.err.println("Elapsed inference time: " + inferTime);
       System.err.println("Total execution time: " + totalTime);
@@ -131,71 +338,55 @@ public class LearnStructure {
     }
 
     //
-    // Apply the typetree's parser.
+    // Apply the typetree's parser, once per line, for every requested output.
     //
-    if (jsonDataFile != null) {
-      Schema schema = typeTree.getAvroSchema();
-      GenericDatumWriter jsonGDWriter = new GenericDatumWriter(schema);      
-      BufferedOutputStream outJson = new BufferedOutputStream(fs2.create(jsonDataFile));
-      JsonEncoder encoder = EncoderFactory.get().jsonEncoder(schema, outJson);
-      try {
-        in = new BufferedReader(new InputStreamReader(fs.open(p)));
-        try {
-          String str = in.readLine();
-          while (str != null) {
-            GenericContainer gct = typeTree.parse(str);
-
-            if (gct != null) {
-              jsonGDWriter.write(gct, encoder);
-            }
-            str = in.readLine();
-          }      
-        } finally {
-          in.close();
-        }
-      } finally {
-        encoder.flush();
-        outJson.close();
+    RecordEmitter emitter = new RecordEmitter(typeTree);
+    emitter.setParallel(useParallelEmission);
+    int numSinks = 0;
+    try {
+      if (jsonDataFile != null) {
+        emitter.addSink(new RecordEmitter.JsonSink(s, new BufferedOutputStream(fs2.create(jsonDataFile))));
+        numSinks++;
       }
-    }
-
-    if (avroDataFile != null) {
-      int numGoodParses = 0;
-      int lineno = 0;
-      Schema schema = typeTree.getAvroSchema();
-
-      GenericDatumWriter gdWriter = new GenericDatumWriter(schema);
-      DataFileWriter outData = new DataFileWriter(gdWriter);
-      outData = outData.create(schema, fs2.create(avroDataFile));
-
-      try {
+      if (avroDataFile != null) {
+        emitter.addSink(new RecordEmitter.AvroSink(s, fs2.create(avroDataFile)));
+        numSinks++;
+      }
+      if (branchDataDir != null) {
+        emitter.addSink(new RecordEmitter.UnionBranchSink(s, fs2, branchDataDir, BRANCHDATA_PREFIX));
+        numSinks++;
+      }
+      if (rejectedLinesFile != null) {
+        emitter.addSink(new RecordEmitter.RejectedLineSink(fs2.create(rejectedLinesFile)));
+        numSinks++;
+      }
+      if (numSinks > 0) {
+        // As before, the verbose report goes with the Avro output
+        if (verbose && avroDataFile != null) {
+          emitter.addSink(new RecordSink() {
+              public void accept(long lineno, String line, GenericContainer record) {
+                if (record == null) {
+                  System.err.println("unparsed line: '" + line + "'");
+                }
+              }
+              public void close() {
+              }
+            });
+        }
         in = new BufferedReader(new InputStreamReader(fs.open(p)));
         try {
-          String str = in.readLine();
-          while (str != null) {
-            GenericContainer gct = typeTree.parse(str);
-            if (gct != null) {
-              numGoodParses++;
-              outData.append(gct);
-            } else {
-              if (verbose) {
-                System.err.println("unparsed line: '" + str + "'");
-              }
-            }
-            str = in.readLine();
-            lineno++;
-          }      
+          emitter.emit(in);
         } finally {
           in.close();
         }
-      } finally {
-        outData.close();
-      }
-      if (verbose) {
-        System.err.println();
-        System.err.println("Total # input lines: " + lineno);
-        System.err.println("Total # lines parsed correctly: " + numGoodParses);
       }
+    } finally {
+      emitter.close();
+    }
+    if (verbose && avroDataFile != null) {
+      System.err.println();
+      System.err.println("Total # input lines: " + emitter.getNumLines());
+      System.err.println("Total # lines parsed correctly: " + emitter.getNumParsed());
     }
   }
 
@@ -204,11 +395,13 @@ public class LearnStructure {
   //////////////////////////////////////////
   public static void main(String argv[]) throws IOException {
     if (argv.length < 2) {
-      System.err.println("Usage: LearnStructure <input-datafile> <outdir> (-emitAvro (true)|false)");
+      System.err.println("Usage: LearnStructure <input-datafile> <outdir> (-emitAvro (true)|false) (-emitBranches) (-emitRejected) (-parallel)");
       return;
     }
     FileSystem localFS = FileSystem.getLocal(new Configuration());
     boolean emitAvro = true;
+    boolean emitBranches = false;
+    boolean emitRejected = false;
     int i = 0;
     Path f = new Path(new File(argv[i++]).getCanonicalPath());
     File outdir = new File(argv[i++]).getCanonicalFile();
@@ -216,6 +409,14 @@ public class LearnStructure {
       if ("-emitAvro".equals(argv[i])) {
         i++;
         emitAvro = "true".equals(argv[i]);
+      } else if ("-emitBranches".equals(argv[i])) {
+        emitBranches = true;
+      } else if ("-emitRejected".equals(argv[i])) {
+        emitRejected = true;
+      } else if ("-parallel".equals(argv[i])) {
+        setParallelTokenizing(true);
+        TypeInference.setParallelInference(true);
+        setParallelEmission(true);
       }
     }
 
@@ -235,6 +436,12 @@ public class LearnStructure {
     }
 
     LearnStructure ls = new LearnStructure();
+    if (emitBranches) {
+      ls.setBranchDataDir(new Path(outdir.getCanonicalPath()));
+    }
+    if (emitRejected) {
+      ls.setRejectedLinesFile(new Path(outdir.getCanonicalPath(), REJECTED_FILENAME));
+    }
     ls.inferRecordFormat(localFS, f, localFS, schemaFile, parseTreeFile, jsonDataFile, avroDataFile, true, -1);
   }
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+/*********************************************************
+ * LineSampler chooses the lines of a text file that structure inference
+ * will learn from.  Each sampler reads at most a fixed number of bytes
+ * (its "byte budget"), no matter how large the file is.  Sizes are the
+ * bytes the lines take up in the file, line terminators included.
+ *
+ * There are three strategies:
+ * 1) "head" takes the first lines of the file.  Cheapest, but biased
+ *    toward whatever the file starts with.
+ * 2) "reservoir" takes a random sample of the lines of the whole file.
+ *    If the file fits in the byte budget, the sample is uniform.  If not,
+ *    it reads the line after each of many random offsets in the file, until
+ *    the budget is spent; lines that follow long lines are then somewhat
+ *    more likely to be chosen.
+ * 3) "block" seeks to evenly-spaced offsets throughout the file and reads
+ *    a few lines at each, so that it sees the middle and end of the file
+ *    as well as the start.
+ *
+ * All samplers return lines in file order, and are deterministic for a given file.
+ *********************************************************/
+public abstract class LineSampler {
+  public static String HEAD = "head";
+  public static String RESERVOIR = "reservoir";
+  public static String BLOCK = "block";
+  public static long UNLIMITED_BYTES = -1;
+  public static long DEFAULT_BYTE_BUDGET = 4 * 1024 * 1024;
+
+  /**
+   * Get a sampler by name: "head", "reservoir", or "block".
+   */
+  public static LineSampler getSampler(String name, long byteBudget) {
+    if (HEAD.equals(name)) {
+      return new HeadSampler(byteBudget);
+    } else if (RESERVOIR.equals(name)) {
+      return new ReservoirSampler(byteBudget);
+    } else if (BLOCK.equals(name)) {
+      return new BlockSampler(byteBudget);
+    } else {
+      throw new IllegalArgumentException("Unknown sampler: " + name);
+    }
+  }
+
+  long byteBudget;
+  LineSampler(long byteBudget) {
+    this.byteBudget = byteBudget;
+  }
+
+  public long getByteBudget() {
+    return byteBudget;
+  }
+
+  boolean withinBudget(long numBytes) {
+    return byteBudget < 0 || numBytes < byteBudget;
+  }
+
+  abstract public String getName();
+
+  /**
+   * Return at most <code>maxLines</code> lines from the file.  A negative
+   * <code>maxLines</code> means no line limit.
+   */
+  abstract public List<String> sample(FileSystem fs, Path p, int maxLines) throws IOException;
+
+  /**
+   * Reads lines as BufferedReader.readLine() does, and counts the bytes
+   * they take up in the file.
+   */
+  static class CountingLineReader {
+    LineReader in;
+    Text line = new Text();
+    long numBytes = 0;
+
+    CountingLineReader(InputStream in) {
+      this.in = new LineReader(in);
+    }
+    CountingLineReader(InputStream in, int bufferSize) {
+      this.in = new LineReader(in, bufferSize);
+    }
+
+    /**
+     * The next line, decoded as InputStreamReader would, or null at the end of the file
+     */
+    String readLine() throws IOException {
+      int lineBytes = in.readLine(line);
+      if (lineBytes == 0) {
+        return null;
+      }
+      numBytes += lineBytes;
+      return new String(line.getBytes(), 0, line.getLength());
+    }
+    long getNumBytes() {
+      return numBytes;
+    }
+    void close() throws IOException {
+      in.close();
+    }
+  }
+
+  ////////////////////////////////////////////////
+  // The sampling strategies
+  ////////////////////////////////////////////////
+  /**
+   * The first lines of the file
+   */
+  static class HeadSampler extends LineSampler {
+    HeadSampler(long byteBudget) {
+      super(byteBudget);
+    }
+    public String getName() {
+      return HEAD;
+    }
+    public List<String> sample(FileSystem fs, Path p, int maxLines) throws IOException {
+      List<String> lines = new ArrayList<String>();
+      CountingLineReader in = new CountingLineReader(fs.open(p));
+      try {
+        String s = null;
+        while ((maxLines < 0 || lines.size() < maxLines) && withinBudget(in.getNumBytes()) && (s = in.readLine()) != null) {
+          lines.add(s);
+        }
+      } finally {
+        in.close();
+      }
+      return lines;
+    }
+  }
+
+  /**
+   * A random sample of the lines of the whole file
+   */
+  static class ReservoirSampler extends LineSampler {
+    static int OFFSET_BUFFER_SIZE = 4096;
+    ReservoirSampler(long byteBudget) {
+      super(byteBudget);
+    }
+    public String getName() {
+      return RESERVOIR;
+    }
+    public List<String> sample(FileSystem fs, Path p, int maxLines) throws IOException {
+      if (maxLines < 0) {
+        return new HeadSampler(byteBudget).sample(fs, p, maxLines);
+      }
+      long fileLen = fs.getFileStatus(p).getLen();
+      if (byteBudget >= 0 && fileLen > byteBudget) {
+        return sampleOffsets(fs, p, fileLen, maxLines);
+      }
+
+      // The whole file fits in the budget, so read it all
+      Random r = new Random(p.getName().hashCode());
+      int reservoirIdx[] = new int[maxLines];
+      String reservoir[] = new String[maxLines];
+      int numSeen = 0;
+      BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(p)));
+      try {
+        String s = null;
+        while ((s = in.readLine()) != null) {
+          if (numSeen < maxLines) {
+            reservoirIdx[numSeen] = numSeen;
+            reservoir[numSeen] = s;
+          } else {
+            int j = r.nextInt(numSeen + 1);
+            if (j < maxLines) {
+              reservoirIdx[j] = numSeen;
+              reservoir[j] = s;
+            }
+          }
+          numSeen++;
+        }
+      } finally {
+        in.close();
+      }
+
+      // Put the sample back into file order
+      int sampleSize = Math.min(numSeen, maxLines);
+      Integer order[] = new Integer[sampleSize];
+      for (int i = 0; i < sampleSize; i++) {
+        order[i] = i;
+      }
+      final int idx[] = reservoirIdx;
+      Arrays.sort(order, new Comparator<Integer>() {
+          public int compare(Integer a, Integer b) {
+            return idx[a] - idx[b];
+          }
+        });
+      List<String> lines = new ArrayList<String>();
+      for (int i = 0; i < sampleSize; i++) {
+        lines.add(reservoir[order[i]]);
+      }
+      return lines;
+    }
+
+    /**
+     * Take the line that follows each of a series of random offsets, until
+     * <code>maxLines</code> different lines are chosen or the byte budget is
+     * spent.  The offsets are spread over the whole file.
+     */
+    List<String> sampleOffsets(FileSystem fs, Path p, long fileLen, int maxLines) throws IOException {
+      Random r = new Random(p.getName().hashCode());
+      // Chosen lines by their offset in the file, so they come out in file order
+      SortedMap<Long, String> chosen = new TreeMap<Long, String>();
+      long numBytes = 0;
+      FSDataInputStream fin = fs.open(p);
+      try {
+        while (chosen.size() < maxLines && withinBudget(numBytes)) {
+          long offset = (long) (r.nextDouble() * fileLen);
+          fin.seek(offset);
+          CountingLineReader in = new CountingLineReader(fin, OFFSET_BUFFER_SIZE);
+          if (offset > 0) {
+            // We probably landed mid-line, so skip to the start of the next one
+            in.readLine();
+          }
+          long lineStart = offset + in.getNumBytes();
+          String s = in.readLine();
+          numBytes += in.getNumBytes();
+          if (s != null && ! chosen.containsKey(lineStart)) {
+            chosen.put(lineStart, s);
+          }
+        }
+      } finally {
+        fin.close();
+      }
+      return new ArrayList<String>(chosen.values());
+    }
+  }
+
+  /**
+   * A few lines from each of several evenly-spaced blocks of the file
+   */
+  static class BlockSampler extends LineSampler {
+    static int NUM_BLOCKS = 16;
+    BlockSampler(long byteBudget) {
+      super(byteBudget);
+    }
+    public String getName() {
+      return BLOCK;
+    }
+    public List<String> sample(FileSystem fs, Path p, int maxLines) throws IOException {
+      long fileLen = fs.getFileStatus(p).getLen();
+      if (byteBudget < 0 || fileLen <= byteBudget) {
+        // The budget covers the whole file, so there's nothing to skip
+        return new HeadSampler(byteBudget).sample(fs, p, maxLines);
+      }
+
+      long blockBudget = byteBudget / NUM_BLOCKS;
+      int blockLines = (maxLines < 0) ? -1 : Math.max(1, maxLines / NUM_BLOCKS);
+      List<String> lines = new ArrayList<String>();
+      FSDataInputStream fin = fs.open(p);
+      try {
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+          long blockStart = (fileLen / NUM_BLOCKS) * i;
+          long nextBlockStart = (i == NUM_BLOCKS-1) ? fileLen : (fileLen / NUM_BLOCKS) * (i+1);
+          fin.seek(blockStart);
+          CountingLineReader in = new CountingLineReader(fin);
+          if (blockStart > 0) {
+            // We probably landed mid-line, so skip to the start of the next one
+            String partial = in.readLine();
+            if (partial == null) {
+              continue;
+            }
+          }
+          int numBlockLines = 0;
+          String s = null;
+          while ((blockLines < 0 || numBlockLines < blockLines) &&
+                 in.getNumBytes() < blockBudget &&
+                 blockStart + in.getNumBytes() < nextBlockStart &&
+                 (maxLines < 0 || lines.size() < maxLines) &&
+                 (s = in.readLine()) != null) {
+            lines.add(s);
+            numBlockLines++;
+          }
+        }
+      } finally {
+        fin.close();
+      }
+      return lines;
+    }
+  }
+}
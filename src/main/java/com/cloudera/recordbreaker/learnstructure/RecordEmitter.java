@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.Writer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.JsonEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumWriter;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+
+/*********************************************************
+ * RecordEmitter parses each line of an input once with an InferredType's
+ * parser, and hands the line and its record to every registered RecordSink.
+ *
+ * In parallel mode, the reading thread cuts the input into batches, which
+ * are parsed on a thread pool, each thread with its own CompiledParser.  The
+ * reading thread then feeds the results to the sinks in input order.  At most
+ * a few batches per thread are in flight at once.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ *********************************************************/
+public class RecordEmitter {
+  static int BATCH_SIZE = 1000;
+
+  InferredType typeTree;
+  List<RecordSink> sinks = new ArrayList<RecordSink>();
+  boolean parallel = false;
+  long numLines = 0;
+  long numParsed = 0;
+
+  public RecordEmitter(InferredType typeTree) {
+    this.typeTree = typeTree;
+  }
+
+  public void addSink(RecordSink sink) {
+    sinks.add(sink);
+  }
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+  public long getNumLines() {
+    return numLines;
+  }
+  public long getNumParsed() {
+    return numParsed;
+  }
+
+  /**
+   * Parse every line from the reader and send the results to the sinks.
+   * The reader is not closed.
+   */
+  public void emit(BufferedReader in) throws IOException {
+    if (parallel) {
+      emitParallel(in);
+    } else {
+      // Each record is consumed before the next parse, so it can be reused
+      CompiledParser parser = new CompiledParser(typeTree, true);
+      String str = in.readLine();
+      while (str != null) {
+        send(str, parser.parse(str));
+        str = in.readLine();
+      }
+    }
+  }
+
+  void send(String line, GenericContainer record) throws IOException {
+    for (RecordSink sink: sinks) {
+      sink.accept(numLines, line, record);
+    }
+    numLines++;
+    if (record != null) {
+      numParsed++;
+    }
+  }
+
+  /**
+   * A batch of lines and, once parsed, their records.
+   */
+  static class Batch {
+    List<String> lines = new ArrayList<String>();
+    GenericContainer records[];
+  }
+
+  void emitParallel(BufferedReader in) throws IOException {
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    int maxInFlight = 2 * numThreads;
+
+    // Parsers keep per-parse state, so there is one per thread.  Records
+    // wait in a batch until the sinks get them, so they can't be reused.
+    final BlockingQueue<CompiledParser> parsers = new ArrayBlockingQueue<CompiledParser>(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      parsers.add(new CompiledParser(typeTree, false));
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      LinkedList<Future<Batch>> inFlight = new LinkedList<Future<Batch>>();
+      String str = in.readLine();
+      while (str != null) {
+        final Batch batch = new Batch();
+        while (str != null && batch.lines.size() < BATCH_SIZE) {
+          batch.lines.add(str);
+          str = in.readLine();
+        }
+        if (inFlight.size() >= maxInFlight) {
+          sendBatch(awaitBatch(inFlight.removeFirst()));
+        }
+        inFlight.add(pool.submit(new Callable<Batch>() {
+            public Batch call() throws InterruptedException {
+              CompiledParser parser = parsers.take();
+              try {
+                batch.records = new GenericContainer[batch.lines.size()];
+                for (int i = 0; i < batch.records.length; i++) {
+                  batch.records[i] = parser.parse(batch.lines.get(i));
+                }
+              } finally {
+                parsers.put(parser);
+              }
+              return batch;
+            }
+          }));
+      }
+      while (inFlight.size() > 0) {
+        sendBatch(awaitBatch(inFlight.removeFirst()));
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  void sendBatch(Batch batch) throws IOException {
+    for (int i = 0; i < batch.records.length; i++) {
+      send(batch.lines.get(i), batch.records[i]);
+    }
+  }
+
+  static Batch awaitBatch(Future<Batch> f) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException ie) {
+      throw new IOException("Interrupted while parsing: " + ie.getMessage());
+    } catch (ExecutionException ee) {
+      Throwable t = ee.getCause();
+      if (t instanceof RuntimeException) {
+        throw (RuntimeException) t;
+      } else if (t instanceof Error) {
+        throw (Error) t;
+      }
+      throw new IOException("Parsing failed: " + t);
+    }
+  }
+
+  /**
+   * Close all the sinks, even if some fail.  The first failure is rethrown.
+   */
+  public void close() throws IOException {
+    IOException firstFailure = null;
+    for (RecordSink sink: sinks) {
+      try {
+        sink.close();
+      } catch (IOException iex) {
+        if (firstFailure == null) {
+          firstFailure = iex;
+        }
+      }
+    }
+    if (firstFailure != null) {
+      throw firstFailure;
+    }
+  }
+
+  ///////////////////////////////////////////////////
+  // Sinks
+  ///////////////////////////////////////////////////
+  /**
+   * Writes the parsed records to an Avro data file.
+   */
+  public static class AvroSink implements RecordSink {
+    DataFileWriter<GenericContainer> out;
+
+    public AvroSink(Schema schema, OutputStream outStream) throws IOException {
+      this.out = new DataFileWriter<GenericContainer>(new GenericDatumWriter<GenericContainer>(schema));
+      this.out.create(schema, outStream);
+    }
+    public void accept(long lineno, String line, GenericContainer record) throws IOException {
+      if (record != null) {
+        out.append(record);
+      }
+    }
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the parsed records as JSON.
+   */
+  public static class JsonSink implements RecordSink {
+    GenericDatumWriter<GenericContainer> writer;
+    JsonEncoder encoder;
+    OutputStream outStream;
+
+    public JsonSink(Schema schema, OutputStream outStream) throws IOException {
+      this.writer = new GenericDatumWriter<GenericContainer>(schema);
+      this.encoder = EncoderFactory.get().jsonEncoder(schema, outStream);
+      this.outStream = outStream;
+    }
+    public void accept(long lineno, String line, GenericContainer record) throws IOException {
+      if (record != null) {
+        writer.write(record, encoder);
+      }
+    }
+    public void close() throws IOException {
+      try {
+        encoder.flush();
+      } finally {
+        outStream.close();
+      }
+    }
+  }
+
+  /**
+   * Writes one Avro data file per branch of the top-level union, so each file
+   * holds a single record type.  If the top-level type isn't a union, all
+   * records go to the branch-0 file.  A file is only created once a record
+   * for its branch arrives.
+   */
+  public static class UnionBranchSink implements RecordSink {
+    Schema schema;
+    FileSystem fs;
+    Path dir;
+    String prefix;
+    DataFileWriter<GenericContainer> branchOuts[];
+
+    public UnionBranchSink(Schema schema, FileSystem fs, Path dir, String prefix) {
+      this.schema = schema;
+      this.fs = fs;
+      this.dir = dir;
+      this.prefix = prefix;
+      int numBranches = (schema.getType() == Schema.Type.UNION) ? schema.getTypes().size() : 1;
+      this.branchOuts = new DataFileWriter[numBranches];
+    }
+
+    /**
+     * The file that holds the given branch's records.
+     */
+    public Path getBranchPath(int branch) {
+      return new Path(dir, prefix + branch + ".avro");
+    }
+
+    public void accept(long lineno, String line, GenericContainer record) throws IOException {
+      if (record == null) {
+        return;
+      }
+      int branch = 0;
+      Schema branchSchema = schema;
+      if (schema.getType() == Schema.Type.UNION) {
+        branch = GenericData.get().resolveUnion(schema, record);
+        branchSchema = schema.getTypes().get(branch);
+      }
+      if (branchOuts[branch] == null) {
+        branchOuts[branch] = new DataFileWriter<GenericContainer>(new GenericDatumWriter<GenericContainer>(branchSchema));
+        branchOuts[branch].create(branchSchema, fs.create(getBranchPath(branch)));
+      }
+      branchOuts[branch].append(record);
+    }
+
+    public void close() throws IOException {
+      IOException firstFailure = null;
+      for (int i = 0; i < branchOuts.length; i++) {
+        if (branchOuts[i] != null) {
+          try {
+            branchOuts[i].close();
+          } catch (IOException iex) {
+            if (firstFailure == null) {
+              firstFailure = iex;
+            }
+          }
+        }
+      }
+      if (firstFailure != null) {
+        throw firstFailure;
+      }
+    }
+  }
+
+  /**
+   * Writes the lines that could not be parsed, one per line.
+   */
+  public static class RejectedLineSink implements RecordSink {
+    Writer out;
+
+    public RejectedLineSink(OutputStream outStream) {
+      this.out = new BufferedWriter(new OutputStreamWriter(outStream));
+    }
+    public void accept(long lineno, String line, GenericContainer record) throws IOException {
+      if (record == null) {
+        out.write(line);
+        out.write("\n");
+      }
+    }
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.io.IOException;
+
+import org.apache.avro.generic.GenericContainer;
+
+/*********************************************************
+ * A <code>RecordSink</code> receives the output of a RecordEmitter: every
+ * input line, in order, along with the record it parsed to.
+ *
+ * Sinks are only ever called from the thread that runs the emitter.  A record
+ * may be overwritten as soon as <code>accept()</code> returns, so a sink that
+ * wants to hold onto one must copy it.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ *********************************************************/
+public interface RecordSink {
+  /**
+   * Handle one input line.  <code>record</code> is null if the line could not
+   * be parsed.
+   */
+  public void accept(long lineno, String line, GenericContainer record) throws IOException;
+
+  /**
+   * Flush and release any output.
+   */
+  public void close() throws IOException;
+}
@@ -41,7 +41,73 @@ public class Token {
   final static int EOL_TOKENCLASSID = 9;
   final static int WHITESPACE_TOKENCLASSID = 10;
   final static int NOOP_TOKENCLASSID = 11;
-  
+
+  //
+  // Token type ids (the getId() strings) are interned to small dense ints, so
+  // inference can count and compare token types without building strings.
+  // Ids are handed out in order of first use and are never reclaimed.  The
+  // arrays are replaced wholesale, so unsynchronized readers see a consistent
+  // prefix; an id they got by way of some racy write may be past the end of
+  // it, in which case they take the lock.
+  //
+  static Map<String, Integer> typeIdMap = new HashMap<String, Integer>();
+  static volatile int typeIdClasses[] = new int[0];
+  static volatile String typeIdParams[] = new String[0];
+  static volatile String typeIdStrs[] = new String[0];
+
+  static synchronized int internTypeId(int classId, String tokenParameter) {
+    String id = AbstractToken.getStrDesc(classId, tokenParameter);
+    Integer typeId = typeIdMap.get(id);
+    if (typeId == null) {
+      int n = typeIdStrs.length;
+      int newClasses[] = new int[n + 1];
+      String newParams[] = new String[n + 1];
+      String newStrs[] = new String[n + 1];
+      System.arraycopy(typeIdClasses, 0, newClasses, 0, n);
+      System.arraycopy(typeIdParams, 0, newParams, 0, n);
+      System.arraycopy(typeIdStrs, 0, newStrs, 0, n);
+      newClasses[n] = classId;
+      newParams[n] = tokenParameter;
+      newStrs[n] = id;
+      typeIdClasses = newClasses;
+      typeIdParams = newParams;
+      typeIdStrs = newStrs;
+      typeId = n;
+      typeIdMap.put(id, typeId);
+    }
+    return typeId;
+  }
+  static String getTypeIdStr(int typeId) {
+    String strs[] = typeIdStrs;
+    if (typeId >= strs.length) {
+      synchronized (Token.class) {
+        strs = typeIdStrs;
+      }
+    }
+    return strs[typeId];
+  }
+  static int getTypeIdClass(int typeId) {
+    int classes[] = typeIdClasses;
+    if (typeId >= classes.length) {
+      synchronized (Token.class) {
+        classes = typeIdClasses;
+      }
+    }
+    return classes[typeId];
+  }
+  static String getTypeIdParameter(int typeId) {
+    String params[] = typeIdParams;
+    if (typeId >= params.length) {
+      synchronized (Token.class) {
+        params = typeIdParams;
+      }
+    }
+    return params[typeId];
+  }
+  static int numTypeIds() {
+    return typeIdStrs.length;
+  }
+
   static abstract class AbstractToken {
     public static boolean hasData(int tokenClassIdentifier) {
     switch (tokenClassIdentifier) {
@@ -157,6 +223,7 @@ public class Token {
 
     int classId;
     String tokenParameter;
+    int typeId = -1;
     public AbstractToken(int classId, String tokenParameter) {
       this.classId = classId;
       this.tokenParameter = tokenParameter;
@@ -168,7 +235,17 @@ public class Token {
       return tokenParameter;
     }
     public String getId() {
-      return getStrDesc(classId, tokenParameter);
+      return getTypeIdStr(getTypeId());
+    }
+    /**
+     * The interned form of getId().  Tokens may be shared between threads; a
+     * race here just means the same id is looked up twice.
+     */
+    public int getTypeId() {
+      if (typeId < 0) {
+        typeId = internTypeId(classId, tokenParameter);
+      }
+      return typeId;
     }
     public abstract Object get();
     public abstract String getSampleString();
@@ -221,6 +298,17 @@ public class Token {
   }
 
   static class CharToken extends AbstractToken {
+    // CharTokens are immutable, so the ASCII ones are shared
+    static CharToken asciiTokens[] = new CharToken[128];
+    static {
+      for (int i = 0; i < asciiTokens.length; i++) {
+        asciiTokens[i] = new CharToken((char) i);
+      }
+    }
+    static CharToken valueOf(char c) {
+      return (c < asciiTokens.length) ? asciiTokens[c] : new CharToken(c);
+    }
+
     char c;
     public CharToken(char c) {
       super(CHAR_TOKENCLASSID, "" + c);
@@ -291,6 +379,15 @@ public class Token {
       this.month = convertMonthStr(monthStr);
       this.year = -1;
     }
+    /**
+     * Build a DateToken from already-decoded and already-validated fields.
+     */
+    DateToken(int day, int month, int year) {
+      super(DATE_TOKENCLASSID, null);
+      this.day = day;
+      this.month = month;
+      this.year = year;
+    }
     public DateToken(String dayStr, String monthStr, String yrStr) throws IOException {
       super(DATE_TOKENCLASSID, null);
       try {
@@ -390,6 +487,12 @@ public class Token {
         nfe.printStackTrace();
       }
     }
+    TimeToken(int hr, int min, int sec) {
+      super(TIME_TOKENCLASSID, null);
+      this.hr = hr;
+      this.min = min;
+      this.sec = sec;
+    }
     public String toString() {
       return "TIME(" + hr + ":" + min + ":" + sec + ")";
     }
@@ -422,6 +525,10 @@ public class Token {
         nfe.printStackTrace();
       }
     }
+    IntToken(int i) {
+      super(INT_TOKENCLASSID, null);
+      this.i = i;
+    }
     public String toString() {
       return "INT(" + i + ")";
     }
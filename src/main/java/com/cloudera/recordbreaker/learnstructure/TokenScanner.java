@@ -0,0 +1,767 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure;
+
+import java.util.List;
+import java.util.ArrayList;
+
+/*********************************************************
+ * TokenScanner is a single-pass, offset-based replacement for the
+ * regex-driven Tokenizer.tokenizeRegex().  It walks the input once,
+ * classifying each token with hand-written tests instead of running
+ * a fresh Matcher per candidate pattern over a freshly-cut substring.
+ *
+ * Every scanXXX() method below mirrors one of the patterns in Tokenizer,
+ * including the backtracking behavior of the regex engine, so the two
+ * produce identical token streams.  Tokenizer.main() -compare checks this
+ * on a real file.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ *********************************************************/
+class TokenScanner {
+  static final Token.WhitespaceToken WHITESPACE_TOKEN = new Token.WhitespaceToken();
+
+  // The month names, in the order they appear in Tokenizer.monthPatternStrs
+  static String monthNames[] = {"January", "February", "March", "April", "May", "June", "July", "August", "September", "October", "November", "December"};
+
+  // Date separators, in the order they appear in Tokenizer.dateSeparatorPatternStrs
+  static final int SEP_WS = 0;
+  static final int SEP_DOT = 1;
+  static final int SEP_SLASH = 2;
+  static final int NUM_SEPS = 3;
+
+  CharSequence s;
+
+  // The token list that the default emitters are filling in
+  List<Token.AbstractToken> toksSoFar;
+
+  // Scratch fields filled in by the date and time scanners
+  int monthVal;
+  int dayVal;
+  int yearVal;
+  int hrVal;
+  int minVal;
+  int secVal;
+
+  TokenScanner(CharSequence s) {
+    this.s = s;
+  }
+
+  /**
+   * Accepts a single line of input, returns all the tokens for that line.
+   * If the line cannot be parsed, we return null.
+   */
+  static List<Token.AbstractToken> tokenize(CharSequence s) {
+    return new TokenScanner(s).tokenize(0, s.length());
+  }
+
+  /**
+   * Tokenize the characters in [start, end).  The region is treated exactly
+   * as if it were the entire string.
+   */
+  List<Token.AbstractToken> tokenize(int start, int end) {
+    List<Token.AbstractToken> outerToks = toksSoFar;
+    toksSoFar = new ArrayList<Token.AbstractToken>();
+    scan(start, end);
+    List<Token.AbstractToken> result = toksSoFar;
+    toksSoFar = outerToks;
+    return result;
+  }
+
+  /**
+   * Walk the characters in [start, end), reporting each token to emitMeta() or
+   * emitToken() in order.  The default emitters build Token objects; ChunkStore
+   * overrides them to record tokens without creating objects.
+   */
+  void scan(int start, int end) {
+    int pos = start;
+    while (pos < end) {
+      char startChar = s.charAt(pos);
+
+      // META
+      char closeChar = getComplement(startChar);
+      if (closeChar != 0) {
+        int closeIndex = indexOf(closeChar, pos + 1, end);
+        if (closeIndex >= 0) {
+          emitMeta(startChar, closeChar, pos + 1, closeIndex);
+          pos = closeIndex + 1;
+          continue;
+        }
+      }
+
+      // IP ADDR
+      int tokEnd = scanIPAddr(pos, end);
+      if (tokEnd >= 0) {
+        emitToken(Token.IPADDR_TOKENCLASSID, pos, tokEnd);
+        pos = tokEnd;
+        continue;
+      }
+
+      // PERMISSION BITS
+      tokEnd = scanPermissionBits(pos, end);
+      if (tokEnd >= 0) {
+        emitToken(Token.PERMISSIONS_TOKENCLASSID, pos, tokEnd);
+        pos = tokEnd;
+        continue;
+      }
+
+      // DATE
+      tokEnd = scanDate(pos, end);
+      if (tokEnd >= 0) {
+        emitToken(Token.DATE_TOKENCLASSID, pos, tokEnd);
+        pos = tokEnd;
+        continue;
+      }
+
+      // TIME
+      tokEnd = scanTime(pos, end);
+      if (tokEnd >= 0) {
+        emitToken(Token.TIME_TOKENCLASSID, pos, tokEnd);
+        pos = tokEnd;
+        continue;
+      }
+
+      // FLOAT RANGE
+      int firstEnd = scanUnsignedFloat(pos, end);
+      if (firstEnd >= 0 && firstEnd < end && s.charAt(firstEnd) == '-') {
+        tokEnd = scanUnsignedFloat(firstEnd + 1, end);
+        if (tokEnd >= 0) {
+          emitToken(Token.FLOAT_TOKENCLASSID, pos, firstEnd);
+          emitToken(Token.CHAR_TOKENCLASSID, firstEnd, firstEnd + 1);
+          emitToken(Token.FLOAT_TOKENCLASSID, firstEnd + 1, tokEnd);
+          pos = tokEnd;
+          continue;
+        }
+      }
+
+      // INTEGER RANGE
+      firstEnd = skipDigits(pos, end);
+      if (firstEnd > pos && firstEnd < end && s.charAt(firstEnd) == '-') {
+        tokEnd = skipDigits(firstEnd + 1, end);
+        if (tokEnd > firstEnd + 1) {
+          emitToken(Token.INT_TOKENCLASSID, pos, firstEnd);
+          emitToken(Token.CHAR_TOKENCLASSID, firstEnd, firstEnd + 1);
+          emitToken(Token.INT_TOKENCLASSID, firstEnd + 1, tokEnd);
+          pos = tokEnd;
+          continue;
+        }
+      }
+
+      // FLOAT
+      tokEnd = scanFloat(pos, end);
+      if (tokEnd >= 0) {
+        emitToken(Token.FLOAT_TOKENCLASSID, pos, tokEnd);
+        pos = tokEnd;
+        continue;
+      }
+
+      // INTEGER
+      tokEnd = scanInt(pos, end);
+      if (tokEnd >= 0) {
+        emitToken(Token.INT_TOKENCLASSID, pos, tokEnd);
+        pos = tokEnd;
+        continue;
+      }
+
+      // STRING
+      // (The regex tokenizer also checks that no int or float starts here,
+      // but both were just ruled out above.)
+      tokEnd = scanString(pos, end);
+      if (tokEnd >= 0) {
+        emitToken(Token.STRING_TOKENCLASSID, pos, tokEnd);
+        pos = tokEnd;
+        continue;
+      }
+
+      // CHAR
+      if (! isWhitespace(startChar)) {
+        tokEnd = pos + codePointLength(pos, end);
+        emitToken(Token.CHAR_TOKENCLASSID, pos, tokEnd);
+        pos = tokEnd;
+        continue;
+      }
+
+      // EOL-Token
+      if (startChar == '\n') {
+        emitToken(Token.EOL_TOKENCLASSID, pos, pos + 1);
+        pos++;
+        continue;
+      }
+
+      // Whitespace
+      tokEnd = pos;
+      while (tokEnd < end && isWhitespace(s.charAt(tokEnd))) {
+        tokEnd++;
+      }
+      emitToken(Token.WHITESPACE_TOKENCLASSID, pos, tokEnd);
+      pos = tokEnd;
+    }
+  }
+
+  /**
+   * A META token delimited by startChar and closeChar, whose contents are [start, end).
+   */
+  void emitMeta(char startChar, char closeChar, int start, int end) {
+    toksSoFar.add(new Token.MetaToken(Token.CharToken.valueOf(startChar), Token.CharToken.valueOf(closeChar), tokenize(start, end)));
+  }
+
+  /**
+   * A token of the given class in [start, end).  DATE and TIME tokens are
+   * emitted right after scanning, so their fields are still in the scratch vals.
+   */
+  void emitToken(int tokenClassId, int start, int end) {
+    toksSoFar.add(createToken(tokenClassId, start, end));
+  }
+
+  Token.AbstractToken createToken(int tokenClassId, int start, int end) {
+    switch (tokenClassId) {
+    case Token.IPADDR_TOKENCLASSID:
+      return new Token.IPAddrToken(substring(start, end));
+    case Token.PERMISSIONS_TOKENCLASSID:
+      return new Token.PermissionBits(substring(start, end));
+    case Token.DATE_TOKENCLASSID:
+      return new Token.DateToken(dayVal, monthVal, yearVal);
+    case Token.TIME_TOKENCLASSID:
+      return new Token.TimeToken(hrVal, minVal, secVal);
+    case Token.FLOAT_TOKENCLASSID:
+      return new Token.FloatToken(substring(start, end));
+    case Token.INT_TOKENCLASSID:
+      return createIntToken(start, end);
+    case Token.STRING_TOKENCLASSID:
+      return new Token.StringToken(substring(start, end));
+    case Token.CHAR_TOKENCLASSID:
+      return Token.CharToken.valueOf(s.charAt(start));
+    case Token.EOL_TOKENCLASSID:
+      return new Token.EOLToken();
+    default:
+      return WHITESPACE_TOKEN;
+    }
+  }
+
+  ///////////////////////////////////////////////////
+  // Single-token scanners.  Each returns the offset just past the
+  // token, or -1 if the token does not start at 'pos'.
+  ///////////////////////////////////////////////////
+
+  /**
+   * Scan a single token of the given class, as Tokenizer.attemptParse() does
+   * for guided parsing.  Unlike tokenize(), there is no precedence among token
+   * classes here, except that a STRING may not start with an int or float.
+   */
+  int scanToken(int tokenClassId, String tokenParameter, int pos, int end) {
+    if (pos >= end) {
+      return -1;
+    }
+    switch (tokenClassId) {
+    case Token.IPADDR_TOKENCLASSID:
+      return scanIPAddr(pos, end);
+    case Token.PERMISSIONS_TOKENCLASSID:
+      return scanPermissionBits(pos, end);
+    case Token.DATE_TOKENCLASSID:
+      return scanDate(pos, end);
+    case Token.TIME_TOKENCLASSID:
+      return scanTime(pos, end);
+    case Token.CHAR_TOKENCLASSID: {
+      char c = s.charAt(pos);
+      if (isWhitespace(c)) {
+        return -1;
+      }
+      if (tokenParameter != null && (tokenParameter.length() != 1 || tokenParameter.charAt(0) != c)) {
+        return -1;
+      }
+      return pos + codePointLength(pos, end);
+    }
+    case Token.FLOAT_TOKENCLASSID:
+      return scanFloat(pos, end);
+    case Token.INT_TOKENCLASSID:
+      return scanInt(pos, end);
+    case Token.STRING_TOKENCLASSID: {
+      if (scanInt(pos, end) >= 0 || scanFloat(pos, end) >= 0) {
+        return -1;
+      }
+      return scanString(pos, end);
+    }
+    case Token.EOL_TOKENCLASSID:
+      return (s.charAt(pos) == '\n') ? pos + 1 : -1;
+    case Token.WHITESPACE_TOKENCLASSID: {
+      int cur = pos;
+      while (cur < end && isWhitespace(s.charAt(cur))) {
+        cur++;
+      }
+      return (cur > pos) ? cur : -1;
+    }
+    default:
+      return -1;
+    }
+  }
+
+  /**
+   * ((?:(?:\d+\.){3,}\d+)|(?:\*\.(?:(?:\d+|\*)\.)*(?:\d+|\*)))
+   */
+  int scanIPAddr(int pos, int end) {
+    // Dotted numbers, at least four of them
+    int cur = pos;
+    int reps = 0;
+    while (true) {
+      int digitEnd = skipDigits(cur, end);
+      if (digitEnd > cur && digitEnd < end && s.charAt(digitEnd) == '.') {
+        reps++;
+        cur = digitEnd + 1;
+      } else {
+        break;
+      }
+    }
+    if (reps >= 3) {
+      int digitEnd = skipDigits(cur, end);
+      if (digitEnd > cur) {
+        return digitEnd;
+      }
+      if (reps >= 4) {
+        // Give back the trailing dot
+        return cur - 1;
+      }
+    }
+
+    // Wildcard-prefixed addresses
+    if (pos + 1 < end && s.charAt(pos) == '*' && s.charAt(pos + 1) == '.') {
+      cur = pos + 2;
+      reps = 0;
+      while (true) {
+        int unitEnd = scanIPUnit(cur, end);
+        if (unitEnd > cur && unitEnd < end && s.charAt(unitEnd) == '.') {
+          reps++;
+          cur = unitEnd + 1;
+        } else {
+          break;
+        }
+      }
+      int unitEnd = scanIPUnit(cur, end);
+      if (unitEnd > cur) {
+        return unitEnd;
+      }
+      if (reps >= 1) {
+        return cur - 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * (?:\d+|\*)
+   */
+  int scanIPUnit(int pos, int end) {
+    if (pos < end && s.charAt(pos) == '*') {
+      return pos + 1;
+    }
+    return skipDigits(pos, end);
+  }
+
+  /**
+   * ([drwx-]{9,})
+   */
+  int scanPermissionBits(int pos, int end) {
+    int cur = pos;
+    while (cur < end) {
+      char c = s.charAt(cur);
+      if (c == 'd' || c == 'r' || c == 'w' || c == 'x' || c == '-') {
+        cur++;
+      } else {
+        break;
+      }
+    }
+    return (cur - pos >= 9) ? cur : -1;
+  }
+
+  /**
+   * Try the date patterns in the same order as Tokenizer.  As there, a match
+   * whose day or year is out of range moves on to the next pattern.
+   * On success dayVal, monthVal and yearVal (-1 if absent) hold the date.
+   */
+  int scanDate(int pos, int end) {
+    // Month first
+    for (int sep = 0; sep < NUM_SEPS; sep++) {
+      for (int namedMonth = 1; namedMonth >= 0; namedMonth--) {
+        int cur = scanMonth(namedMonth == 1, pos, end);
+        cur = scanSeparator(sep, cur, end);
+        cur = scanDay(cur, end);
+        cur = scanSeparator(sep, cur, end);
+        cur = scanYear(cur, end);
+        if (cur >= 0 && isValidDate(true)) {
+          return cur;
+        }
+      }
+    }
+    for (int sep = 0; sep < NUM_SEPS; sep++) {
+      int cur = scanMonth(true, pos, end);
+      cur = scanSeparator(sep, cur, end);
+      cur = scanDay(cur, end);
+      if (cur >= 0 && isValidDate(false)) {
+        yearVal = -1;
+        return cur;
+      }
+    }
+
+    // Year first
+    for (int sep = 0; sep < NUM_SEPS; sep++) {
+      for (int namedMonth = 1; namedMonth >= 0; namedMonth--) {
+        int cur = scanYear(pos, end);
+        cur = scanSeparator(sep, cur, end);
+        cur = scanMonth(namedMonth == 1, cur, end);
+        cur = scanSeparator(sep, cur, end);
+        cur = scanDay(cur, end);
+        if (cur >= 0 && isValidDate(true)) {
+          return cur;
+        }
+      }
+    }
+
+    // Day first
+    for (int sep = 0; sep < NUM_SEPS; sep++) {
+      for (int namedMonth = 1; namedMonth >= 0; namedMonth--) {
+        int cur = scanDay(pos, end);
+        cur = scanSeparator(sep, cur, end);
+        cur = scanMonth(namedMonth == 1, cur, end);
+        cur = scanSeparator(sep, cur, end);
+        cur = scanYear(cur, end);
+        if (cur >= 0 && isValidDate(true)) {
+          return cur;
+        }
+      }
+    }
+    for (int sep = 0; sep < NUM_SEPS; sep++) {
+      int cur = scanDay(pos, end);
+      cur = scanSeparator(sep, cur, end);
+      cur = scanMonth(true, cur, end);
+      if (cur >= 0 && isValidDate(false)) {
+        yearVal = -1;
+        return cur;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The same checks the DateToken(String...) constructors make.
+   */
+  boolean isValidDate(boolean hasYear) {
+    if (dayVal < 1 || dayVal > 31) {
+      return false;
+    }
+    return (! hasYear) || yearVal >= Token.EPOCH_START_YEAR;
+  }
+
+  /**
+   * Either the month-name alternation or ([01]*\d).  Sets monthVal the way
+   * DateToken.convertMonthStr() would.
+   *
+   * Every date pattern follows a month with a separator or nothing at all, so
+   * regex backtracking into a shorter alternative can never succeed; the
+   * longest match is the only one that matters.
+   */
+  int scanMonth(boolean named, int pos, int end) {
+    if (pos < 0) {
+      return -1;
+    }
+    if (named) {
+      for (int i = 0; i < monthNames.length; i++) {
+        String name = monthNames[i];
+        if (regionMatches(pos, end, name, 0, name.length())) {
+          // convertMonthStr() only recognizes the 3-letter forms
+          monthVal = (name.length() == 3) ? i + 1 : -1;
+          return pos + name.length();
+        }
+        if (regionMatches(pos, end, name, 0, 3)) {
+          monthVal = i + 1;
+          return pos + 3;
+        }
+        if (Character.toLowerCase(name.charAt(0)) == charAt(pos, end) && regionMatches(pos + 1, end, name, 1, 2)) {
+          monthVal = i + 1;
+          return pos + 3;
+        }
+      }
+      return -1;
+    } else {
+      int cur = pos;
+      while (cur < end && (s.charAt(cur) == '0' || s.charAt(cur) == '1')) {
+        cur++;
+      }
+      if (cur < end && isDigit(s.charAt(cur))) {
+        cur++;
+      } else if (cur == pos) {
+        return -1;
+      }
+      long val = parseDigits(pos, cur);
+      monthVal = (val <= Integer.MAX_VALUE) ? (int) val : -1;
+      return cur;
+    }
+  }
+
+  /**
+   * ([0123]?\d)
+   */
+  int scanDay(int pos, int end) {
+    if (pos < 0 || pos >= end || ! isDigit(s.charAt(pos))) {
+      return -1;
+    }
+    int dayEnd = pos + 1;
+    if (s.charAt(pos) <= '3' && dayEnd < end && isDigit(s.charAt(dayEnd))) {
+      dayEnd++;
+    }
+    dayVal = (int) parseDigits(pos, dayEnd);
+    return dayEnd;
+  }
+
+  /**
+   * ([12]\d{3})
+   */
+  int scanYear(int pos, int end) {
+    if (pos < 0 || pos + 4 > end) {
+      return -1;
+    }
+    char c = s.charAt(pos);
+    if ((c != '1' && c != '2') || skipDigits(pos + 1, pos + 4) != pos + 4) {
+      return -1;
+    }
+    yearVal = (int) parseDigits(pos, pos + 4);
+    return pos + 4;
+  }
+
+  /**
+   * (?:\s+), (?:\.), or (?:\/)
+   */
+  int scanSeparator(int sep, int pos, int end) {
+    if (pos < 0 || pos >= end) {
+      return -1;
+    }
+    char c = s.charAt(pos);
+    switch (sep) {
+    case SEP_WS: {
+      int cur = pos;
+      while (cur < end && isWhitespace(s.charAt(cur))) {
+        cur++;
+      }
+      return (cur > pos) ? cur : -1;
+    }
+    case SEP_DOT:
+      return (c == '.') ? pos + 1 : -1;
+    case SEP_SLASH:
+      return (c == '/') ? pos + 1 : -1;
+    default:
+      return -1;
+    }
+  }
+
+  /**
+   * (\d\d):(\d\d):(\d\d), then (\d\d):(\d\d).  On success hrVal,
+   * minVal and secVal hold the time.
+   */
+  int scanTime(int pos, int end) {
+    if (! isDigitPair(pos, end) || ! isDigitPair(pos + 3, end) || s.charAt(pos + 2) != ':') {
+      return -1;
+    }
+    hrVal = (int) parseDigits(pos, pos + 2);
+    minVal = (int) parseDigits(pos + 3, pos + 5);
+    if (pos + 5 < end && s.charAt(pos + 5) == ':' && isDigitPair(pos + 6, end)) {
+      secVal = (int) parseDigits(pos + 6, pos + 8);
+      return pos + 8;
+    }
+    secVal = 0;
+    return pos + 5;
+  }
+
+  /**
+   * (\d*\.\d+)
+   */
+  int scanUnsignedFloat(int pos, int end) {
+    int dot = skipDigits(pos, end);
+    if (dot >= end || s.charAt(dot) != '.') {
+      return -1;
+    }
+    int fracEnd = skipDigits(dot + 1, end);
+    return (fracEnd > dot + 1) ? fracEnd : -1;
+  }
+
+  /**
+   * ([+-]?\d*\.\d+)
+   */
+  int scanFloat(int pos, int end) {
+    return scanUnsignedFloat(skipSign(pos, end), end);
+  }
+
+  /**
+   * ([-+]?\d+)
+   */
+  int scanInt(int pos, int end) {
+    int digitStart = skipSign(pos, end);
+    int digitEnd = skipDigits(digitStart, end);
+    return (digitEnd > digitStart) ? digitEnd : -1;
+  }
+
+  /**
+   * ((?:[\S&&[^\"\,\;\|\[\]\{\}\<\>\(\)\']]){2,}), counted in code points
+   * just as the regex engine counts them.
+   */
+  int scanString(int pos, int end) {
+    int cur = pos;
+    int numChars = 0;
+    while (cur < end && isStringChar(s.charAt(cur))) {
+      cur += codePointLength(cur, end);
+      numChars++;
+    }
+    return (numChars >= 2) ? cur : -1;
+  }
+
+  ///////////////////////////////////////////////////
+  // Character classes and helpers
+  ///////////////////////////////////////////////////
+
+  /**
+   * Java regex \s: [ \t\n\x0B\f\r]
+   */
+  static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Java regex \d, without UNICODE_CHARACTER_CLASS: [0-9]
+   */
+  static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  static boolean isStringChar(char c) {
+    switch (c) {
+    case '"': case ',': case ';': case '|': case '[': case ']': case '{': case '}': case '<': case '>': case '(': case ')': case '\'':
+      return false;
+    default:
+      return ! isWhitespace(c);
+    }
+  }
+
+  /**
+   * Mirrors Tokenizer.complements.  Returns 0 if the char opens nothing.
+   */
+  static char getComplement(char c) {
+    switch (c) {
+    case '[':
+      return ']';
+    case '{':
+      return '}';
+    case '"':
+      return '"';
+    case '\'':
+      return '\'';
+    case '<':
+      return '>';
+    case '(':
+      return ')';
+    default:
+      return 0;
+    }
+  }
+
+  int indexOf(char c, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  int skipDigits(int pos, int end) {
+    while (pos < end && isDigit(s.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  int skipSign(int pos, int end) {
+    if (pos < end && (s.charAt(pos) == '-' || s.charAt(pos) == '+')) {
+      return pos + 1;
+    }
+    return pos;
+  }
+
+  boolean isDigitPair(int pos, int end) {
+    return pos + 2 <= end && isDigit(s.charAt(pos)) && isDigit(s.charAt(pos + 1));
+  }
+
+  char charAt(int pos, int end) {
+    return (pos < end) ? s.charAt(pos) : 0;
+  }
+
+  boolean regionMatches(int pos, int end, String str, int strStart, int len) {
+    if (pos + len > end) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (s.charAt(pos + i) != str.charAt(strStart + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The regex engine treats a surrogate pair as a single character.
+   */
+  int codePointLength(int pos, int end) {
+    if (Character.isHighSurrogate(s.charAt(pos)) && pos + 1 < end && Character.isLowSurrogate(s.charAt(pos + 1))) {
+      return 2;
+    }
+    return 1;
+  }
+
+  /**
+   * Decode the digits in [start, end), saturating rather than overflowing.
+   */
+  long parseDigits(int start, int end) {
+    long val = 0;
+    for (int i = start; i < end; i++) {
+      val = val * 10 + (s.charAt(i) - '0');
+      if (val > Integer.MAX_VALUE + 1L) {
+        return Long.MAX_VALUE;
+      }
+    }
+    return val;
+  }
+
+  /**
+   * An IntToken for the optionally-signed digits in [start, end), decoded in place.
+   */
+  Token.AbstractToken createIntToken(int start, int end) {
+    long val = parseIntValue(start, end);
+    if (val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) {
+      // Out of range; let IntToken report it exactly as the regex path does
+      return new Token.IntToken(substring(start, end));
+    }
+    return new Token.IntToken((int) val);
+  }
+
+  /**
+   * The value of the signed integer in [start, end), saturating far outside
+   * the int range.
+   */
+  long parseIntValue(int start, int end) {
+    boolean negative = s.charAt(start) == '-';
+    long val = parseDigits(skipSign(start, end), end);
+    return negative ? -val : val;
+  }
+
+  String substring(int start, int end) {
+    return s.subSequence(start, end).toString();
+  }
+}
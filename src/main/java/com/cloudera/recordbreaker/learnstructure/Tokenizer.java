@@ -59,7 +59,7 @@ public class Tokenizer {
    * 2) Guided parsing, after a learned structure-parser has been constructed.
    *
    * For case #1, we expect that a loop will call attemptParse repeatedly, until it find a token-type
-   * that can be correctly parsed.  This is what happens inside tokenize() below.
+   * that can be correctly parsed.  This is what happens inside tokenizeRegex() below.
    *
    * For case #2, we expect that the parse-tree will contain a specific token-type that *must* be
    * parsed, or else that branch of the parse-tree is invalid.  This is what happens inside
@@ -268,11 +268,31 @@ public class Tokenizer {
   }
 
 
+  // Whether tokenize() uses the original regex tokenizer instead of TokenScanner.
+  // The two produce the same tokens; the regex path is kept for A/B checks.
+  static boolean useRegexTokenizer = false;
+
+  public static void setUseRegexTokenizer(boolean useRegexTokenizer) {
+    Tokenizer.useRegexTokenizer = useRegexTokenizer;
+  }
+
   /**
    * Accepts a single line of input, returns all the tokens for that line.
    * If the line cannot be parsed, we return null.
    */
   static public List<Token.AbstractToken> tokenize(String s) throws IOException {
+    if (useRegexTokenizer) {
+      return tokenizeRegex(s);
+    } else {
+      return TokenScanner.tokenize(s);
+    }
+  }
+
+  /**
+   * The original regex-driven tokenizer.  Each candidate token class gets a fresh
+   * Matcher over the remaining substring.
+   */
+  static List<Token.AbstractToken> tokenizeRegex(String s) throws IOException {
     String curS = s;
     List<Token.AbstractToken> toksSoFar = new ArrayList<Token.AbstractToken>();
 
@@ -286,7 +306,7 @@ public class Tokenizer {
         String closeChar = complements.get("" + startChar);
         int closeIndex = curS.indexOf(closeChar, 1);
         if (closeIndex >= 0) {
-          toksSoFar.add(new Token.MetaToken(new Token.CharToken(curS.charAt(0)), new Token.CharToken(closeChar.charAt(0)), tokenize(curS.substring(1, closeIndex))));
+          toksSoFar.add(new Token.MetaToken(new Token.CharToken(curS.charAt(0)), new Token.CharToken(closeChar.charAt(0)), tokenizeRegex(curS.substring(1, closeIndex))));
           curS = curS.substring(closeIndex+1);
           continue;
         }
@@ -396,19 +416,53 @@ public class Tokenizer {
     return toksSoFar;
   }
 
+  /**
+   * Whether two token lists are the same, token for token.
+   */
+  static boolean sameTokens(List<Token.AbstractToken> toks1, List<Token.AbstractToken> toks2) {
+    if (toks1 == null || toks2 == null) {
+      return toks1 == toks2;
+    }
+    if (toks1.size() != toks2.size()) {
+      return false;
+    }
+    for (int i = 0; i < toks1.size(); i++) {
+      Token.AbstractToken t1 = toks1.get(i);
+      Token.AbstractToken t2 = toks2.get(i);
+      if (t1.getClassId() != t2.getClassId() || ! t1.getId().equals(t2.getId())) {
+        return false;
+      }
+      if (t1 instanceof Token.MetaToken) {
+        Token.MetaToken m1 = (Token.MetaToken) t1;
+        Token.MetaToken m2 = (Token.MetaToken) t2;
+        if (m1.getEndToken().getChar() != m2.getEndToken().getChar() || ! sameTokens(m1.getMiddleChunk(), m2.getMiddleChunk())) {
+          return false;
+        }
+      } else if (! t1.toString().equals(t2.toString())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   ///////////////////////////////////////////////////
   // main() tests the Tokenizer.
   ////////////////////////////////////////////////////
   public static void main(String argv[]) throws IOException {
     if (argv.length < 1) {
-      System.err.println("Usage: Tokenizer <datafile> (-verbose)");
+      System.err.println("Usage: Tokenizer <datafile> (-verbose) (-regex) (-compare)");
       return;
     }
     File f = new File(argv[0]).getCanonicalFile();
     boolean verbose = false;
+    boolean compare = false;
     for (int i = 1; i < argv.length; i++) {
       if ("-verbose".equals(argv[i])) {
         verbose = true;
+      } else if ("-regex".equals(argv[i])) {
+        setUseRegexTokenizer(true);
+      } else if ("-compare".equals(argv[i])) {
+        compare = true;
       }
     }
     System.err.println("Input file: " + f.getCanonicalPath());
@@ -424,12 +478,23 @@ public class Tokenizer {
     int totalCount = 0;
     int parsedCount = 0;
     int errorCount = 0;
+    int mismatchCount = 0;
+    long tokenizeTime = 0;
     BufferedReader in = new BufferedReader(new FileReader(f));
     try {
       String s = in.readLine();
       int lineno = 0;
       while (s != null) {
+        long startTok = System.nanoTime();
         List<Token.AbstractToken> chunkToks = Tokenizer.tokenize(s);
+        tokenizeTime += System.nanoTime() - startTok;
+        if (compare) {
+          List<Token.AbstractToken> otherToks = useRegexTokenizer ? TokenScanner.tokenize(s) : tokenizeRegex(s);
+          if (! sameTokens(chunkToks, otherToks)) {
+            System.err.println("Tokenizer mismatch at line " + lineno + ": " + s);
+            mismatchCount++;
+          }
+        }
         if (chunkToks != null) {
           allChunks.add(chunkToks);
           parseableLineNos.add(lineno);
@@ -451,6 +516,10 @@ public class Tokenizer {
     System.err.println("Total lines: " + totalCount);
     System.err.println("Parsed lines: " + parsedCount + " (" + (1.0*parsedCount / totalCount) + ")");
     System.err.println("Error lines: " + errorCount + " (" + (1.0*errorCount / totalCount) + ")");
+    System.err.println("Tokenize time (" + (useRegexTokenizer ? "regex" : "scanner") + "): " + (tokenizeTime / 1000000) + " ms");
+    if (compare) {
+      System.err.println("Lines where the regex and scanner tokenizers disagree: " + mismatchCount);
+    }
 
     //
     // Print out parsed tokens
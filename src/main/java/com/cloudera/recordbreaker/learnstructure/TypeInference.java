@@ -16,6 +16,8 @@ package com.cloudera.recordbreaker.learnstructure;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
 
 /**********************************************************
  * TypeInference takes a set of parsed tokens and transforms them
@@ -25,6 +27,12 @@ import java.util.*;
 public class TypeInference {
   static int MAX_SAMPLES = 5;
 
+  // Whether infer() runs discover()'s independent sub-problems on a thread pool.
+  // Both modes produce the same InferredType, down to the generated type names.
+  static boolean useParallelInference = false;
+  // Sub-problems with fewer chunks than this are expanded inline, not as tasks
+  static int PARALLEL_THRESHOLD = 1000;
+
   /////////////////////////////////////
   // Inner Classes
   /////////////////////////////////////
@@ -47,59 +55,210 @@ public class TypeInference {
   }
 
   static class StructProphecy extends TypeProphecy {
-    List<List<List<Token.AbstractToken>>> structElts;
-    public StructProphecy(List<List<List<Token.AbstractToken>>> structElts) {
+    List<ChunkStore.ChunkList> structElts;
+    public StructProphecy(List<ChunkStore.ChunkList> structElts) {
       this.structElts = structElts;
     }
-    public List<List<List<Token.AbstractToken>>> getStructElts() {
+    public List<ChunkStore.ChunkList> getStructElts() {
       return structElts;
     }
   }
 
   static class ArrayProphecy extends TypeProphecy {
-    List<List<Token.AbstractToken>> first;
-    List<List<Token.AbstractToken>> body;
-    List<List<Token.AbstractToken>> last;
+    ChunkStore.ChunkList first;
+    ChunkStore.ChunkList body;
+    ChunkStore.ChunkList last;
 
-    public ArrayProphecy(List<List<Token.AbstractToken>> first, List<List<Token.AbstractToken>> body, List<List<Token.AbstractToken>> last) {
+    public ArrayProphecy(ChunkStore.ChunkList first, ChunkStore.ChunkList body, ChunkStore.ChunkList last) {
       this.first = first;
       this.body = body;
       this.last = last;
     }
-    public List<List<Token.AbstractToken>> getFirst() {
+    public ChunkStore.ChunkList getFirst() {
       return first;
     }
-    public List<List<Token.AbstractToken>> getBody() {
+    public ChunkStore.ChunkList getBody() {
       return body;
     }
-    public List<List<Token.AbstractToken>> getLast() {
+    public ChunkStore.ChunkList getLast() {
       return last;
     }
   }
 
   static class UnionProphecy extends TypeProphecy {
-    List<List<List<Token.AbstractToken>>> unionElts;
-    public UnionProphecy(List<List<List<Token.AbstractToken>>> unionElts) {
+    List<ChunkStore.ChunkList> unionElts;
+    public UnionProphecy(List<ChunkStore.ChunkList> unionElts) {
       this.unionElts = unionElts;
     }
-    public List<List<List<Token.AbstractToken>>> getUnionElements() {
+    public List<ChunkStore.ChunkList> getUnionElements() {
       return unionElts;
     }
   }
 
+  /**
+   * A Discovery is one node of the discover() recursion.  Its oracle() call
+   * can be made on any thread; once the whole tree has been expanded, build()
+   * turns it into InferredTypes on a single thread, in discover()'s order.
+   */
+  static class Discovery {
+    ChunkStore.ChunkList chunks;
+    TypeProphecy prophecy;
+    boolean hasFirst;
+    boolean hasLast;
+    List<Discovery> children = new ArrayList<Discovery>();
+
+    public Discovery(ChunkStore.ChunkList chunks) {
+      this.chunks = chunks;
+    }
+    public int size() {
+      return chunks.size();
+    }
+
+    /**
+     * Consult the oracle, and create an unexpanded child for each sub-chunklist
+     * in the order that discover() would recurse into them.  Afterwards the
+     * sub-chunklists are only reachable from the children.
+     */
+    void expand() {
+      chunks.removeEmptyChunks();
+      assert(chunks.size() > 0);
+      prophecy = oracle(chunks);
+      chunks = null;
+
+      if (prophecy instanceof StructProphecy) {
+        StructProphecy sp = (StructProphecy) prophecy;
+        for (ChunkStore.ChunkList structElt: sp.getStructElts()) {
+          children.add(new Discovery(structElt));
+        }
+        sp.structElts = null;
+      } else if (prophecy instanceof ArrayProphecy) {
+        ArrayProphecy ap = (ArrayProphecy) prophecy;
+        assert(ap.getBody().size() > 0);
+        hasFirst = ap.getFirst().size() > 0;
+        hasLast = ap.getLast().size() > 0;
+        if (hasFirst) {
+          children.add(new Discovery(ap.getFirst()));
+        }
+        children.add(new Discovery(ap.getBody()));
+        if (hasLast) {
+          children.add(new Discovery(ap.getLast()));
+        }
+        ap.first = ap.body = ap.last = null;
+      } else if (prophecy instanceof UnionProphecy) {
+        UnionProphecy up = (UnionProphecy) prophecy;
+        for (ChunkStore.ChunkList unionElt: up.getUnionElements()) {
+          children.add(new Discovery(unionElt));
+        }
+        up.unionElts = null;
+      }
+    }
+  }
+
+  /**
+   * Expands a Discovery tree on a thread pool.  Tasks never wait on each other:
+   * each one expands its node, hands large children back to the pool, and
+   * expands small ones inline.  The caller waits until no tasks remain.
+   */
+  static class ParallelDiscoverer {
+    ExecutorService pool;
+    int pendingTasks = 0;
+    volatile Throwable failure = null;
+
+    public ParallelDiscoverer(ExecutorService pool) {
+      this.pool = pool;
+    }
+
+    synchronized void submit(final Discovery d) {
+      pendingTasks++;
+      pool.execute(new Runnable() {
+          public void run() {
+            try {
+              expandAll(d);
+            } catch (Throwable t) {
+              failure = t;
+            } finally {
+              taskDone();
+            }
+          }
+        });
+    }
+
+    void expandAll(Discovery d) {
+      if (failure != null) {
+        return;
+      }
+      d.expand();
+      for (Discovery child: d.children) {
+        if (child.size() >= PARALLEL_THRESHOLD) {
+          submit(child);
+        } else {
+          expandAll(child);
+        }
+      }
+    }
+
+    synchronized void taskDone() {
+      pendingTasks--;
+      if (pendingTasks == 0) {
+        notifyAll();
+      }
+    }
+
+    /**
+     * Wait for every task to finish, then rethrow whatever a task threw.
+     */
+    synchronized void awaitCompletion() {
+      boolean interrupted = false;
+      while (pendingTasks > 0) {
+        try {
+          wait();
+        } catch (InterruptedException iex) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      } else if (failure != null) {
+        throw new RuntimeException(failure);
+      }
+    }
+  }
+
   /////////////////////////////////////
   // Public methods and support methods
   /////////////////////////////////////
   public TypeInference() {
   }
 
+  public static void setParallelInference(boolean useParallelInference) {
+    TypeInference.useParallelInference = useParallelInference;
+  }
+
   /**
    * Accepts a list of chunks, each of which is a list of Tokens.
    * It uses patterns of token appearance to discern the record structure.
    * This is the core of the LearnPADS algorithm.
    */
   public static InferredType infer(List<List<Token.AbstractToken>> chunks) {
-    InferredType typeTree = discover(chunks);
+    return infer(new ChunkStore(chunks));
+  }
+
+  /**
+   * Same as above, for the chunks held in a ChunkStore.
+   */
+  public static InferredType infer(ChunkStore store) {
+    ChunkStore.ChunkList chunks = store.getChunks();
+    InferredType typeTree;
+    if (useParallelInference && chunks.size() >= PARALLEL_THRESHOLD) {
+      typeTree = discoverParallel(chunks);
+    } else {
+      typeTree = discover(chunks);
+    }
     typeTree = typeTree.hoistUnions();
     //typeTree.ensureParsability();
     return typeTree;
@@ -108,20 +267,23 @@ public class TypeInference {
   /**
    * The oracle() function attempts to predict the best type for the data given by 'chunks'.
    */
-  private static TypeProphecy oracle(List<List<Token.AbstractToken>> chunks) {
+  private static TypeProphecy oracle(ChunkStore.ChunkList chunks) {
+    ChunkStore store = chunks.getStore();
+
     //////////////////////////////////////////////////////////////
     // Phase 1: Handling chunks that appear homogenous (at this meta-level, at least)
     //////////////////////////////////////////////////////////////
     // Start by gathering some stats on the chunks
-    HashSet<String> uniqTokTypes = new HashSet<String>();
+    BitSet uniqTokTypes = new BitSet();
     int noops = 0;
     int numToks = 0;
-    for (List<Token.AbstractToken> chunk: chunks) {
-      if (chunk.size() == 0) {
+    for (int c = 0; c < chunks.size(); c++) {
+      int chunkEnd = chunks.getEnd(c);
+      if (chunks.getStart(c) == chunkEnd) {
         noops++;
       }
-      for (Token.AbstractToken tok: chunk) {
-        uniqTokTypes.add(tok.getId());
+      for (int t = chunks.getStart(c); t < chunkEnd; t = store.next(t)) {
+        uniqTokTypes.set(store.getTypeId(t));
         numToks++;
       }
     }
@@ -139,21 +301,21 @@ public class TypeInference {
     //
     // CONDITION: Does the chunkset consist of a single column of one type of token?
     //
-    if (numToks == chunks.size() && uniqTokTypes.size() == 1) {
+    if (numToks == chunks.size() && uniqTokTypes.cardinality() == 1) {
       // If so, grab an example from the column
-      Token.AbstractToken prizeToken = chunks.get(0).get(0);
-      if (! (prizeToken instanceof Token.MetaToken)) {
+      int prizeToken = chunks.getStart(0);
+      if (! store.isMeta(prizeToken)) {
         // If it's not a MetaToken, then it's easy: we prophesy a data column consisting of a single basic type
         List<Token.AbstractToken> samples = new ArrayList<Token.AbstractToken>();
         int numSamples = 0;
-        for (List<Token.AbstractToken> curChunk: chunks) {
-          samples.add(curChunk.get(0));
+        for (int c = 0; c < chunks.size(); c++) {
+          samples.add(store.getToken(chunks.getStart(c)));
           numSamples++;
           if (numSamples >= MAX_SAMPLES) {
             break;
           }
         }
-        return new BaseProphecy(prizeToken, samples);
+        return new BaseProphecy(samples.get(0), samples);
       } else {
         //System.err.println("STRUCT-1");
         //
@@ -163,24 +325,21 @@ public class TypeInference {
         // Note: the getId() fn of MetaToken returns the char-delimiter, so if we've got just one elt in uniqTokTypes,
         // it implies that there's a single MetaToken type in the entire chunkset.
         //
-        Token.MetaToken mtok = (Token.MetaToken) prizeToken;
-
-        List<List<Token.AbstractToken>> startChunkList = new ArrayList<List<Token.AbstractToken>>();
-        List<Token.AbstractToken> startChunk = new ArrayList<Token.AbstractToken>();
-        startChunk.add(mtok.getStartToken());
-        startChunkList.add(startChunk);
+        // In the ChunkStore, a META is followed by its start token, its contents, and its end token.
+        //
+        ChunkStore.ChunkList startChunkList = new ChunkStore.ChunkList(store, 1);
+        startChunkList.add(prizeToken + 1, prizeToken + 2);
 
-        List<List<Token.AbstractToken>> middleChunkList = new ArrayList<List<Token.AbstractToken>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
-          middleChunkList.add(((Token.MetaToken) chunk.get(0)).getMiddleChunk());
+        ChunkStore.ChunkList middleChunkList = new ChunkStore.ChunkList(store, chunks.size());
+        for (int c = 0; c < chunks.size(); c++) {
+          int mtok = chunks.getStart(c);
+          middleChunkList.add(mtok + 2, store.next(mtok) - 1);
         }
 
-        List<List<Token.AbstractToken>> endChunkList = new ArrayList<List<Token.AbstractToken>>();
-        List<Token.AbstractToken> endChunk = new ArrayList<Token.AbstractToken>();
-        endChunk.add(mtok.getEndToken());
-        endChunkList.add(endChunk);
+        ChunkStore.ChunkList endChunkList = new ChunkStore.ChunkList(store, 1);
+        endChunkList.add(store.next(prizeToken) - 1, store.next(prizeToken));
 
-        List<List<List<Token.AbstractToken>>> structElts = new ArrayList<List<List<Token.AbstractToken>>>();
+        List<ChunkStore.ChunkList> structElts = new ArrayList<ChunkStore.ChunkList>();
         structElts.add(startChunkList);
         structElts.add(middleChunkList);
         structElts.add(endChunkList);
@@ -198,6 +357,8 @@ public class TypeInference {
     //
     // CONDITION: Does a Struct exist?
     //
+    // Ties are broken by cluster order, so the chosen cluster doesn't depend on identity hashcodes
+    final List<List<Histogram>> clusterOrder = clusteredHistograms;
     SortedSet<List<Histogram>> structHistogramClusters = new TreeSet<List<Histogram>>(new Comparator() {
       public int compare(Object o1, Object o2) {
         List<Histogram> cluster1 = (List<Histogram>) o1;
@@ -216,7 +377,7 @@ public class TypeInference {
         } else if (minResidualMass1 > minResidualMass2) {
           return 1;
         } else {
-          return o1.hashCode() - o2.hashCode();
+          return clusterOrder.indexOf(o1) - clusterOrder.indexOf(o2);
         }
       }
     });
@@ -246,9 +407,9 @@ public class TypeInference {
     //
     if (bestCluster != null) {
       // Find the types that are present in that cluster
-      Set<String> bestClusterTypes = new HashSet<String>();
+      BitSet bestClusterTypes = new BitSet();
       for (Histogram h: bestCluster) {
-        bestClusterTypes.add(h.getHistogramType());
+        bestClusterTypes.set(h.getHistogramTypeId());
       }
 
       //
@@ -264,21 +425,21 @@ public class TypeInference {
       // them all to be identical.
       //
       Set<String> allTypeProfiles = new HashSet<String>();
-      for (List<Token.AbstractToken> chunk: chunks) {
+      for (int c = 0; c < chunks.size(); c++) {
         StringBuffer curTypeProfile = new StringBuffer();
         StringBuffer curField = new StringBuffer();
         curField.append("(");
-        for (Token.AbstractToken tok: chunk) {
-          if (bestClusterTypes.contains(tok.getId())) {
+        for (int t = chunks.getStart(c); t < chunks.getEnd(c); t = store.next(t)) {
+          if (bestClusterTypes.get(store.getTypeId(t))) {
             curField.append(")");
             curTypeProfile.append(curField.toString());
             curTypeProfile.append("_");
-            curTypeProfile.append("(" + tok.getId() + ")");
+            curTypeProfile.append("(").append(store.getId(t)).append(")");
             curTypeProfile.append("_");
             curField = new StringBuffer();
             curField.append("(");
           } else {
-            curField.append(tok.getId() + ",");
+            curField.append(store.getId(t)).append(",");
           }
         }
         curField.append(")");
@@ -302,68 +463,63 @@ public class TypeInference {
         // The 4th field has the 2nd identified token.
         // ... and so on.  The final field has all the tokens AFTER the final token that appears in the target histogram-cluster
         //
-        Map<Integer, List<List<Token.AbstractToken>>> structChunks = new TreeMap<Integer, List<List<Token.AbstractToken>>>();
+        Map<Integer, ChunkStore.ChunkList> structChunks = new TreeMap<Integer, ChunkStore.ChunkList>();
         // For each chunk in the input...
-        for (List<Token.AbstractToken> chunk: chunks) {
+        for (int c = 0; c < chunks.size(); c++) {
           //
-          // Add to 'structChunks' as appropriate.
+          // Add to 'structChunks' as appropriate.  Token positions 'i' count tokens at this level;
+          // 'afterLastIdentified' is the index of the token following the last identified one.
           //
-          int lastIdentifiedIndex = -1;
-          for (int i = 0; i < chunk.size(); i++) {
-            Token.AbstractToken tok = chunk.get(i);
-            if (bestClusterTypes.contains(tok.getId())) {
-              List<List<Token.AbstractToken>> preludeChunkList = structChunks.get(2 * i);
+          int chunkEnd = chunks.getEnd(c);
+          int afterLastIdentified = chunks.getStart(c);
+          int i = 0;
+          for (int t = chunks.getStart(c); t < chunkEnd; t = store.next(t), i++) {
+            if (bestClusterTypes.get(store.getTypeId(t))) {
+              ChunkStore.ChunkList preludeChunkList = structChunks.get(2 * i);
               if (preludeChunkList == null) {
-                preludeChunkList = new ArrayList<List<Token.AbstractToken>>();
+                preludeChunkList = new ChunkStore.ChunkList(store);
                 structChunks.put(2*i, preludeChunkList);
               }
-              List<Token.AbstractToken> preludeChunk = new ArrayList<Token.AbstractToken>();
-              for (int j = lastIdentifiedIndex+1; j < i; j++) {
-                preludeChunk.add(chunk.get(j));
-              }
-              preludeChunkList.add(preludeChunk);
+              preludeChunkList.add(afterLastIdentified, t);
 
-              List<List<Token.AbstractToken>> identifiedChunkList = structChunks.get(2 * i + 1);
+              ChunkStore.ChunkList identifiedChunkList = structChunks.get(2 * i + 1);
               if (identifiedChunkList == null) {
-                identifiedChunkList = new ArrayList<List<Token.AbstractToken>>();
+                identifiedChunkList = new ChunkStore.ChunkList(store);
                 structChunks.put(2 * i + 1, identifiedChunkList);
               }
-              List<Token.AbstractToken> identifiedChunk = new ArrayList<Token.AbstractToken>();
-              identifiedChunk.add(chunk.get(i));
-              identifiedChunkList.add(identifiedChunk);
+              identifiedChunkList.add(t, store.next(t));
 
-              lastIdentifiedIndex = i;
+              afterLastIdentified = store.next(t);
             }
           }
-          List<List<Token.AbstractToken>> suffixChunkList = structChunks.get(2 * chunk.size() + 1);
+          ChunkStore.ChunkList suffixChunkList = structChunks.get(2 * i + 1);
           if (suffixChunkList == null) {
-            suffixChunkList = new ArrayList<List<Token.AbstractToken>>();
-            structChunks.put(2 * chunk.size() + 1, suffixChunkList);
-          }
-          List<Token.AbstractToken> suffixChunk = new ArrayList<Token.AbstractToken>();
-          for (int j = lastIdentifiedIndex+1; j < chunk.size(); j++) {
-            suffixChunk.add(chunk.get(j));
+            suffixChunkList = new ChunkStore.ChunkList(store);
+            structChunks.put(2 * i + 1, suffixChunkList);
           }
-          suffixChunkList.add(suffixChunk);
+          suffixChunkList.add(afterLastIdentified, chunkEnd);
         }
 
         // Make sure that for each chunkList in 'structChunks', there is at least one non-empty chunk.
         for (Iterator<Integer> it = structChunks.keySet().iterator(); it.hasNext(); ) {
           Integer chunkId = it.next();
-          List<List<Token.AbstractToken>> chunkList = structChunks.get(chunkId);
-          int numTokensInChunkList = 0;
-          for (List<Token.AbstractToken> chunk: chunkList) {
-            numTokensInChunkList += chunk.size();
+          ChunkStore.ChunkList chunkList = structChunks.get(chunkId);
+          boolean hasTokens = false;
+          for (int c = 0; c < chunkList.size(); c++) {
+            if (chunkList.getStart(c) < chunkList.getEnd(c)) {
+              hasTokens = true;
+              break;
+            }
           }
-          if (numTokensInChunkList == 0) {
+          if (! hasTokens) {
             it.remove();
           }
         }
 
         // Transform the map into a chunklist
-        List<List<List<Token.AbstractToken>>> structChunkList = new ArrayList<List<List<Token.AbstractToken>>>();
+        List<ChunkStore.ChunkList> structChunkList = new ArrayList<ChunkStore.ChunkList>();
         for (Integer chunkId: structChunks.keySet()) {
-          List<List<Token.AbstractToken>> chunkList = structChunks.get(chunkId);
+          ChunkStore.ChunkList chunkList = structChunks.get(chunkId);
           structChunkList.add(chunkList);
         }
         //System.err.println("STRUCT-2");
@@ -372,38 +528,38 @@ public class TypeInference {
         // It's a UNION.
         // A UnionProphecy requires a number of chunklists, one for each type profile
         //System.err.println("UNION-1");
-        Map<String, List<List<Token.AbstractToken>>> unionMap = new HashMap<String, List<List<Token.AbstractToken>>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
+        Map<String, ChunkStore.ChunkList> unionMap = new HashMap<String, ChunkStore.ChunkList>();
+        for (int c = 0; c < chunks.size(); c++) {
           StringBuffer curTypeProfile = new StringBuffer();
           StringBuffer curField = new StringBuffer();
           curField.append("(");
-          for (Token.AbstractToken tok: chunk) {
-            if (bestClusterTypes.contains(tok.getId())) {
-              curTypeProfile.append(tok.getId() + "_");
+          for (int t = chunks.getStart(c); t < chunks.getEnd(c); t = store.next(t)) {
+            if (bestClusterTypes.get(store.getTypeId(t))) {
+              curTypeProfile.append(store.getId(t)).append("_");
               curField.append(")");
               curTypeProfile.append(curField.toString());
               curTypeProfile.append("_");
-              curTypeProfile.append("(" + tok.getId() + ")");
+              curTypeProfile.append("(").append(store.getId(t)).append(")");
               curTypeProfile.append("_");
               curField = new StringBuffer();
               curField.append("(");
             } else {
-              curField.append(tok.getId() + ",");
+              curField.append(store.getId(t)).append(",");
             }
           }
           curField.append(")");
           curTypeProfile.append(curField.toString());
 
-          List<List<Token.AbstractToken>> unionChunks = unionMap.get(curTypeProfile.toString());
+          ChunkStore.ChunkList unionChunks = unionMap.get(curTypeProfile.toString());
           if (unionChunks == null) {
-            unionChunks = new ArrayList<List<Token.AbstractToken>>();
+            unionChunks = new ChunkStore.ChunkList(store);
             unionMap.put(curTypeProfile.toString(), unionChunks);
           }
-          unionChunks.add(chunk);
+          unionChunks.add(chunks.getStart(c), chunks.getEnd(c));
         }
 
-        List<List<List<Token.AbstractToken>>> unionChunklists = new ArrayList<List<List<Token.AbstractToken>>>();
-        for (List<List<Token.AbstractToken>> unionChunklist: unionMap.values()) {
+        List<ChunkStore.ChunkList> unionChunklists = new ArrayList<ChunkStore.ChunkList>();
+        for (ChunkStore.ChunkList unionChunklist: unionMap.values()) {
           unionChunklists.add(unionChunklist);
         }
         return new UnionProphecy(unionChunklists);
@@ -432,7 +588,7 @@ public class TypeInference {
           } else if (maxCoverage1 > maxCoverage2) {
             return -1;
           } else {
-            return o1.hashCode() - o2.hashCode();
+            return clusterOrder.indexOf(o1) - clusterOrder.indexOf(o2);
           }
         }
       });
@@ -450,62 +606,64 @@ public class TypeInference {
       if (arrayHistogramClusters.size() > 0) {
         // It's going to be an array!
         List<Histogram> bestArrayCluster = arrayHistogramClusters.first();
-        Set<String> bestClusterTypes = new HashSet<String>();
+        BitSet bestClusterTypes = new BitSet();
         for (Histogram h: bestArrayCluster) {
-          bestClusterTypes.add(h.getHistogramType());
+          bestClusterTypes.set(h.getHistogramTypeId());
         }
+        int numBestClusterTypes = bestClusterTypes.cardinality();
 
         //
         // Goal is to split the array into three chunklists: preamble, repeated-body, and post-amble.
         //
-        List<List<Token.AbstractToken>> preambles = new ArrayList<List<Token.AbstractToken>>();
-        List<List<Token.AbstractToken>> middles = new ArrayList<List<Token.AbstractToken>>();
-        List<List<Token.AbstractToken>> postambles = new ArrayList<List<Token.AbstractToken>>();
+        ChunkStore.ChunkList preambles = new ChunkStore.ChunkList(store, chunks.size());
+        ChunkStore.ChunkList middles = new ChunkStore.ChunkList(store, chunks.size());
+        ChunkStore.ChunkList postambles = new ChunkStore.ChunkList(store, chunks.size());
 
         //
         // For each chunk of input...
         // 
-        for (List<Token.AbstractToken> chunk: chunks) {
-          List<Token.AbstractToken> preamble = new ArrayList<Token.AbstractToken>();
-          List<List<Token.AbstractToken>> middleGroup = new ArrayList<List<Token.AbstractToken>>();
-          List<Token.AbstractToken> curMiddle = new ArrayList<Token.AbstractToken>();
-          List<Token.AbstractToken> postamble = new ArrayList<Token.AbstractToken>();
-          Set<String> observedClusterTypes = new HashSet<String>();
+        for (int c = 0; c < chunks.size(); c++) {
+          int chunkEnd = chunks.getEnd(c);
+          int preambleEnd = chunkEnd;
+          int curMiddleStart = -1;
+          int curMiddleSize = 0;
+          int postambleStart = chunkEnd;
+          BitSet observedClusterTypes = new BitSet();
+          int numObservedClusterTypes = 0;
           int mode = 0;
 
-          for (Token.AbstractToken tok: chunk) {
+          for (int t = chunks.getStart(c); t < chunkEnd; t = store.next(t)) {
+            int typeId = store.getTypeId(t);
             // Transit
-            if (mode == 0 && observedClusterTypes.size() == bestClusterTypes.size()) {
+            if (mode == 0 && numObservedClusterTypes == numBestClusterTypes) {
               mode = 1;
-            } else if (mode == 1 && ! bestClusterTypes.contains(tok.getId())) {
+              preambleEnd = t;
+            } else if (mode == 1 && ! bestClusterTypes.get(typeId)) {
               mode = 2;
+              // Any partial array element goes to the postamble
+              postambleStart = (curMiddleSize > 0) ? curMiddleStart : t;
             }
-            if (mode == 0 && bestClusterTypes.contains(tok.getId())) {
-              observedClusterTypes.add(tok.getId());
+            if (mode == 0 && bestClusterTypes.get(typeId) && ! observedClusterTypes.get(typeId)) {
+              observedClusterTypes.set(typeId);
+              numObservedClusterTypes++;
             }
 
             // Operate according to the modes
-            if (mode == 0) {
-              preamble.add(tok);
-            } else if (mode == 1) {
-              curMiddle.add(tok);
-              if (curMiddle.size() == bestClusterTypes.size()) {
-                middleGroup.add(curMiddle);
-                curMiddle = new ArrayList<Token.AbstractToken>();
+            if (mode == 1) {
+              if (curMiddleSize == 0) {
+                curMiddleStart = t;
               }
-            } else {
-              if (curMiddle != null) {
-                for (Token.AbstractToken t2: curMiddle) {
-                  postamble.add(t2);
-                }
-                curMiddle = null;
+              curMiddleSize++;
+              if (curMiddleSize == numBestClusterTypes) {
+                middles.add(curMiddleStart, store.next(t));
+                curMiddleSize = 0;
               }
-              postamble.add(tok);
+            } else if (mode == 2) {
+              break;
             }
           }
-          preambles.add(preamble);
-          middles.addAll(middleGroup);
-          postambles.add(postamble);
+          preambles.add(chunks.getStart(c), preambleEnd);
+          postambles.add(postambleStart, chunkEnd);
         }
         //System.err.println("ARRAY-1");
         return new ArrayProphecy(preambles, middles, postambles);
@@ -525,12 +683,14 @@ public class TypeInference {
         boolean foundDifference = false;
         while (! foundDifference) {
           String lastSeenProfile = null;
-          for (List<Token.AbstractToken> chunk: chunks) {
+          for (int c = 0; c < chunks.size(); c++) {
             // Build type profile
             StringBuffer curTypeProfile = new StringBuffer();
+            int t = chunks.getStart(c);
             for (int i = 0; i < neededTokens; i++) {
-              if (i < chunk.size()) {
-                curTypeProfile.append(chunk.get(i).getId() + "_");
+              if (t < chunks.getEnd(c)) {
+                curTypeProfile.append(store.getId(t)).append("_");
+                t = store.next(t);
               } else {
                 curTypeProfile.append("<none>" + "_");
               }
@@ -551,27 +711,28 @@ public class TypeInference {
         // Now that we have computed 'neededTokens', we can proceed to partition the input chunks using
         // the first 'neededTokens' from each chunk.
         //
-        Map<String, List<List<Token.AbstractToken>>> unionMap = new HashMap<String, List<List<Token.AbstractToken>>>();
-        for (List<Token.AbstractToken> chunk: chunks) {
+        Map<String, ChunkStore.ChunkList> unionMap = new HashMap<String, ChunkStore.ChunkList>();
+        for (int c = 0; c < chunks.size(); c++) {
           StringBuffer curTypeProfile = new StringBuffer();
+          int t = chunks.getStart(c);
           for (int i = 0; i < neededTokens; i++) {
-            if (i < chunk.size()) {
-              Token.AbstractToken tok = chunk.get(i);
-              curTypeProfile.append(tok.getId() + "_");
+            if (t < chunks.getEnd(c)) {
+              curTypeProfile.append(store.getId(t)).append("_");
+              t = store.next(t);
             } else {
               curTypeProfile.append("<none>" + "_");
             }
           }
-          List<List<Token.AbstractToken>> unionChunks = unionMap.get(curTypeProfile.toString());
+          ChunkStore.ChunkList unionChunks = unionMap.get(curTypeProfile.toString());
           if (unionChunks == null) {
-            unionChunks = new ArrayList<List<Token.AbstractToken>>();
+            unionChunks = new ChunkStore.ChunkList(store);
             unionMap.put(curTypeProfile.toString(), unionChunks);
           }
-          unionChunks.add(chunk);
+          unionChunks.add(chunks.getStart(c), chunks.getEnd(c));
         }
 
-        List<List<List<Token.AbstractToken>>> unionChunklists = new ArrayList<List<List<Token.AbstractToken>>>();
-        for (List<List<Token.AbstractToken>> unionChunklist: unionMap.values()) {
+        List<ChunkStore.ChunkList> unionChunklists = new ArrayList<ChunkStore.ChunkList>();
+        for (ChunkStore.ChunkList unionChunklist: unionMap.values()) {
           unionChunklists.add(unionChunklist);
         }
         return new UnionProphecy(unionChunklists);
@@ -579,16 +740,20 @@ public class TypeInference {
     }
   }
 
+  static BaseType createBaseType(BaseProphecy bp) {
+    List<String> sampleStrs = new ArrayList<String>();
+    for (Iterator<Token.AbstractToken> it = bp.getSamples().iterator(); it.hasNext(); ) {
+      Token.AbstractToken tok = it.next();
+      sampleStrs.add(tok.getSampleString());
+    }
+    return new BaseType(bp.getToken(), sampleStrs);
+  }
+
   /**
    */
-  private static InferredType discover(List<List<Token.AbstractToken>> chunks) {
+  private static InferredType discover(ChunkStore.ChunkList chunks) {
     // Remove chunks that are empty.  These should never get passed-in
-    for (Iterator<List<Token.AbstractToken>> it = chunks.iterator(); it.hasNext(); ) {
-      List<Token.AbstractToken> chunk = it.next();
-      if (chunk.size() == 0) {
-        it.remove();
-      }
-    }
+    chunks.removeEmptyChunks();
 
     // Error testing
     assert(chunks.size() > 0);
@@ -598,19 +763,13 @@ public class TypeInference {
     //
     TypeProphecy typePrediction = oracle(chunks);
     if (typePrediction instanceof BaseProphecy) {
-      BaseProphecy bp = (BaseProphecy) typePrediction;
-      List<String> sampleStrs = new ArrayList<String>();
-      for (Iterator<Token.AbstractToken> it = bp.getSamples().iterator(); it.hasNext(); ) {
-        Token.AbstractToken tok = it.next();
-        sampleStrs.add(tok.getSampleString());
-      }
-      return new BaseType(bp.getToken(), sampleStrs);
+      return createBaseType((BaseProphecy) typePrediction);
 
     } else if (typePrediction instanceof StructProphecy) {
       StructProphecy sp = (StructProphecy) typePrediction;
       List<InferredType> structDataTypes = new ArrayList<InferredType>();
       int i = 0;
-      for (List<List<Token.AbstractToken>> structElt: sp.getStructElts()) {
+      for (ChunkStore.ChunkList structElt: sp.getStructElts()) {
         structDataTypes.add(discover(structElt));
       }
       return new StructType(structDataTypes);
@@ -633,7 +792,7 @@ public class TypeInference {
       UnionProphecy up = (UnionProphecy) typePrediction;
       List<InferredType> unionDataTypes = new ArrayList<InferredType>();
       
-      for (List<List<Token.AbstractToken>> unionElt: up.getUnionElements()) {
+      for (ChunkStore.ChunkList unionElt: up.getUnionElements()) {
         unionDataTypes.add(discover(unionElt));
       }
       return new UnionType(unionDataTypes);
@@ -641,12 +800,67 @@ public class TypeInference {
     return null;
   }
 
+  /**
+   * Same result as discover(), but the oracle() calls for large sub-problems
+   * run in parallel.  InferredType names come from global counters, so the
+   * types themselves are only created afterwards, in discover()'s order.
+   */
+  private static InferredType discoverParallel(ChunkStore.ChunkList chunks) {
+    Discovery root = new Discovery(chunks);
+    ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      ParallelDiscoverer discoverer = new ParallelDiscoverer(pool);
+      discoverer.submit(root);
+      discoverer.awaitCompletion();
+    } finally {
+      pool.shutdown();
+    }
+    return build(root);
+  }
+
+  /**
+   * Create the InferredType for an expanded Discovery tree.
+   */
+  private static InferredType build(Discovery d) {
+    TypeProphecy typePrediction = d.prophecy;
+    if (typePrediction instanceof BaseProphecy) {
+      return createBaseType((BaseProphecy) typePrediction);
+
+    } else if (typePrediction instanceof StructProphecy) {
+      List<InferredType> structDataTypes = new ArrayList<InferredType>();
+      for (Discovery child: d.children) {
+        structDataTypes.add(build(child));
+      }
+      return new StructType(structDataTypes);
+
+    } else if (typePrediction instanceof ArrayProphecy) {
+      List<InferredType> structDataTypes = new ArrayList<InferredType>();
+      int i = 0;
+      if (d.hasFirst) {
+        structDataTypes.add(build(d.children.get(i++)));
+      }
+      structDataTypes.add(new ArrayType(build(d.children.get(i++))));
+      if (d.hasLast) {
+        structDataTypes.add(build(d.children.get(i++)));
+      }
+      return new StructType(structDataTypes);
+
+    } else if (typePrediction instanceof UnionProphecy) {
+      List<InferredType> unionDataTypes = new ArrayList<InferredType>();
+      for (Discovery child: d.children) {
+        unionDataTypes.add(build(child));
+      }
+      return new UnionType(unionDataTypes);
+    }
+    return null;
+  }
+
   /////////////////////////////////////////////////////
   // main() tests the TypeInference mechanism
   /////////////////////////////////////////////////////
   public static void main(String argv[]) throws IOException {
     if (argv.length < 1) {
-      System.err.println("Usage: TypeInference <datafile> (-verbose)");
+      System.err.println("Usage: TypeInference <datafile> (-verbose) (-parallel)");
       return;
     }
     File f = new File(argv[0]).getCanonicalFile();
@@ -654,6 +868,8 @@ public class TypeInference {
     for (int i = 1; i < argv.length; i++) {
       if ("-verbose".equals(argv[i])) {
         verbose = true;
+      } else if ("-parallel".equals(argv[i])) {
+        setParallelInference(true);
       }
     }
     System.err.println("Input file: " + f.getCanonicalPath());
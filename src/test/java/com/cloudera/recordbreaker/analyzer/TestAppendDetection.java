@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * TestAppendDetection checks that a recrawl only treats a grown file as
+ * appended-to when the bytes an earlier crawl saw are still in place, so a
+ * file rewritten with more data gets a full analysis.
+ *
+ * The fingerprint methods are package-private, so this test lives in their package.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestAppendDetection {
+  static int NUM_LINES = 2000;
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  static void writeLines(File f, String prefix, int start, int end, boolean append) throws IOException {
+    FileWriter out = new FileWriter(f, append);
+    try {
+      for (int i = start; i < end; i++) {
+        out.write(prefix + " " + i + "\n");
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testAppendAndRewrite() throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    File f = new File(tmpDir.getRoot(), "access.log");
+    Path p = new Path(f.getCanonicalPath());
+
+    // What the earlier crawl stored
+    writeLines(f, "GET /index.html", 0, NUM_LINES, false);
+    long prevLen = localFS.getFileStatus(p).getLen();
+    Assert.assertTrue(prevLen > 2 * FSAnalyzer.FINGERPRINT_BYTES);
+    String prevFingerprint = FSAnalyzer.getContentFingerprint(localFS, p, prevLen);
+    Assert.assertTrue(FSAnalyzer.hasPrefix(localFS, p, prevLen, prevFingerprint));
+
+    // A true append
+    writeLines(f, "GET /index.html", NUM_LINES, 2 * NUM_LINES, true);
+    Assert.assertTrue(localFS.getFileStatus(p).getLen() > prevLen);
+    Assert.assertTrue(FSAnalyzer.hasPrefix(localFS, p, prevLen, prevFingerprint));
+
+    // Rows stored without a fingerprint can't prove an append
+    Assert.assertFalse(FSAnalyzer.hasPrefix(localFS, p, prevLen, null));
+
+    // A rewrite that makes the file larger
+    writeLines(f, "POST /login", 0, 2 * NUM_LINES, false);
+    Assert.assertTrue(localFS.getFileStatus(p).getLen() > prevLen);
+    Assert.assertFalse(FSAnalyzer.hasPrefix(localFS, p, prevLen, prevFingerprint));
+
+    // A rewrite that keeps the old header but changes the data before the old end
+    writeLines(f, "GET /index.html", 0, NUM_LINES - 10, false);
+    writeLines(f, "GET /other.html", NUM_LINES - 10, 2 * NUM_LINES, true);
+    Assert.assertTrue(localFS.getFileStatus(p).getLen() > prevLen);
+    Assert.assertFalse(FSAnalyzer.hasPrefix(localFS, p, prevLen, prevFingerprint));
+  }
+
+  @Test(timeout=60000)
+  public void testShortFile() throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    File f = new File(tmpDir.getRoot(), "short.log");
+    Path p = new Path(f.getCanonicalPath());
+
+    writeLines(f, "line", 0, 3, false);
+    long prevLen = localFS.getFileStatus(p).getLen();
+    String prevFingerprint = FSAnalyzer.getContentFingerprint(localFS, p, prevLen);
+    Assert.assertEquals(prevFingerprint, FSAnalyzer.getContentFingerprint(localFS, p, prevLen));
+    Assert.assertFalse(prevFingerprint.equals(FSAnalyzer.getContentFingerprint(localFS, p, 0)));
+
+    writeLines(f, "line", 3, 6, true);
+    Assert.assertTrue(FSAnalyzer.hasPrefix(localFS, p, prevLen, prevFingerprint));
+    writeLines(f, "LINE", 0, 6, false);
+    Assert.assertFalse(FSAnalyzer.hasPrefix(localFS, p, prevLen, prevFingerprint));
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * TestCrawlPipeline checks that a crawl whose writer fails stops its
+ * listing and analysis threads and reports the failure, instead of
+ * waiting forever on threads that are blocked on full queues.
+ *
+ * CrawlPipeline is package-private, so this test lives in its package.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestCrawlPipeline {
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  /**
+   * A pipeline that needs no metadata store, and whose writer fails
+   */
+  static class FailingPipeline extends CrawlPipeline {
+    FailingPipeline(FileSystem fs) {
+      super(null, fs, 1, new CrawlRuntimeStatus("test"), 3, 1);
+      setWriteBatchSize(1);
+    }
+    boolean hasStoredFiles() {
+      return false;
+    }
+    FSAnalyzer.FileAnalysis analyzeFile(FileStatus fstatus) {
+      return new FSAnalyzer.FileAnalysis(fstatus);
+    }
+    void writeBatch(List<FSAnalyzer.FileAnalysis> batch) {
+      try {
+        // Let the queues fill up, so the other stages block
+        Thread.sleep(200);
+      } catch (InterruptedException iex) {
+      }
+      throw new RuntimeException("writer failed");
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testWriterFailure() throws IOException, InterruptedException {
+    for (int i = 0; i < 200; i++) {
+      new File(tmpDir.getRoot(), "file" + i + ".txt").createNewFile();
+    }
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    FailingPipeline pipeline = new FailingPipeline(localFS);
+    try {
+      pipeline.run(new Path(tmpDir.getRoot().getCanonicalPath()), -1);
+      Assert.fail("The writer's failure should reach the caller");
+    } catch (RuntimeException rex) {
+      Assert.assertEquals("writer failed", rex.getMessage());
+    }
+    Assert.assertTrue(pipeline.aborted);
+  }
+}
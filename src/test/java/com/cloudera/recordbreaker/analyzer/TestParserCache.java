@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.learnstructure.ChunkStore;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+
+/**
+ * TestParserCache checks the line-shape signatures that files are cached
+ * under, and that a cached parser is used only when it parses enough of
+ * a new file's sample.
+ *
+ * ParserCache is package-private, so this test lives in its package.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestParserCache {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+
+  static List<String> readLines(String fname) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(new File(sampleDir, fname)));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * A log file written by the same program each time; only the values vary
+   */
+  static List<String> jobLog(int seed) {
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < 200; i++) {
+      int n = seed * 1000 + i;
+      lines.add("worker " + (n % 17) + " finished job " + n + " in " + (n % 50) + "." + (n % 10) + " seconds");
+    }
+    return lines;
+  }
+
+  static byte[] learnParser(List<String> lines) throws IOException {
+    ChunkStore store = new ChunkStore();
+    for (String s: lines) {
+      store.addLine(s);
+    }
+    InferredType typeTree = TypeInference.infer(store);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    typeTree.write(out);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  @Test(timeout=60000)
+  public void testSignature() throws IOException {
+    // The shape depends on the tokens' types, not their values
+    String sig = ParserCache.computeSignature(Arrays.asList("alpha 12 3.5", "beta 7 0.25"));
+    Assert.assertNotNull(sig);
+    Assert.assertEquals(sig, ParserCache.computeSignature(Arrays.asList("gamma 99 1.75")));
+    String otherSig = ParserCache.computeSignature(Arrays.asList("alpha beta"));
+    Assert.assertFalse(sig.equals(otherSig));
+
+    // The most common shape wins, and of those tied, the first to reach the top count
+    Assert.assertEquals(sig, ParserCache.computeSignature(Arrays.asList("delta gamma", "alpha 12 3.5", "beta 7 0.25")));
+    Assert.assertEquals(sig, ParserCache.computeSignature(Arrays.asList("alpha 12 3.5", "alpha beta")));
+    Assert.assertEquals(otherSig, ParserCache.computeSignature(Arrays.asList("alpha beta", "alpha 12 3.5")));
+
+    // Only the first SIGNATURE_LINES lines count
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < ParserCache.SIGNATURE_LINES; i++) {
+      lines.add("alpha " + i + " 3.5");
+    }
+    for (int i = 0; i < 2 * ParserCache.SIGNATURE_LINES; i++) {
+      lines.add("alpha beta");
+    }
+    Assert.assertEquals(sig, ParserCache.computeSignature(lines));
+
+    // Nothing to tokenize
+    Assert.assertNull(ParserCache.computeSignature(new ArrayList<String>()));
+
+    // Files written by the same program share a signature
+    Assert.assertEquals(ParserCache.computeSignature(jobLog(1)), ParserCache.computeSignature(jobLog(2)));
+    Assert.assertFalse(ParserCache.computeSignature(jobLog(1)).equals(ParserCache.computeSignature(readLines("commonlog.txt"))));
+  }
+
+  @Test(timeout=60000)
+  public void testHitAndReject() throws IOException {
+    ParserCache cache = new ParserCache(2);
+    List<String> firstFile = jobLog(1);
+    List<String> secondFile = jobLog(2);
+    List<String> commonlog = readLines("commonlog.txt");
+    String jobSig = ParserCache.computeSignature(firstFile);
+    String commonlogSig = ParserCache.computeSignature(commonlog);
+    double parseRate[] = new double[1];
+
+    // Nothing cached yet
+    Assert.assertNull(UnknownTextSchemaDescriptor.getCachedParser(cache, jobSig, secondFile, parseRate));
+    Assert.assertNull(UnknownTextSchemaDescriptor.getCachedParser(cache, null, secondFile, parseRate));
+    Assert.assertEquals(0, cache.getHits());
+    Assert.assertEquals(1, cache.getMisses());
+
+    // A parser learned from one file is reused for another like it
+    byte[] jobParser = learnParser(firstFile);
+    cache.put(jobSig, jobParser);
+    InferredType typeTree = UnknownTextSchemaDescriptor.getCachedParser(cache, ParserCache.computeSignature(secondFile), secondFile, parseRate);
+    Assert.assertNotNull(typeTree);
+    Assert.assertTrue(parseRate[0] >= UnknownTextDataDescriptor.TUPLE_PCT);
+    Assert.assertEquals(UnknownTextSchemaDescriptor.computeParseRate(typeTree, secondFile), parseRate[0], 0);
+    Assert.assertEquals(1, cache.getHits());
+    Assert.assertEquals(0, cache.getRejections());
+
+    // A cached parser that can't handle the file is rejected
+    cache.put(commonlogSig, jobParser);
+    Assert.assertNull(UnknownTextSchemaDescriptor.getCachedParser(cache, commonlogSig, commonlog, parseRate));
+    Assert.assertTrue(parseRate[0] < UnknownTextDataDescriptor.TUPLE_PCT);
+    Assert.assertEquals(2, cache.getHits());
+    Assert.assertEquals(1, cache.getRejections());
+
+    // The least-recently-used entry is evicted
+    cache.get(jobSig);
+    cache.put("other", jobParser);
+    Assert.assertNotNull(cache.get(jobSig));
+    Assert.assertNull(cache.get(commonlogSig));
+    Assert.assertEquals(4, cache.getHits());
+    Assert.assertEquals(2, cache.getMisses());
+  }
+}
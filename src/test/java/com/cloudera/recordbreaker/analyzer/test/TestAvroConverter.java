@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.lang.reflect.Field;
+
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericDatumReader;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.analyzer.CSVDataDescriptor;
+
+/**
+ * TestAvroConverter converts a CSV file that is cut into many splits, and
+ * checks that every record comes out once, in input order, compressed with
+ * the configured codec.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestAvroConverter {
+  static int NUM_ROWS = 2000;
+  static int LONG_ROW = 777;
+  static int MALFORMED_ROW = 1234;
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  /**
+   * AvroConverter is package-private, so set its split size by reflection
+   */
+  static int setSplitChars(int splitChars) throws Exception {
+    Field f = Class.forName("com.cloudera.recordbreaker.analyzer.AvroConverter").getDeclaredField("SPLIT_CHARS");
+    f.setAccessible(true);
+    int oldSplitChars = f.getInt(null);
+    f.setInt(null, splitChars);
+    return oldSplitChars;
+  }
+
+  File writeInput() throws IOException {
+    File f = new File(tmpDir.getRoot(), "input.csv");
+    FileWriter out = new FileWriter(f);
+    try {
+      out.write("id,name,value\n");
+      for (int i = 0; i < NUM_ROWS; i++) {
+        String name = "name " + i;
+        if (i == LONG_ROW) {
+          // Longer than a split, so the split buffer has to grow
+          StringBuffer buf = new StringBuffer();
+          for (int j = 0; j < 50; j++) {
+            buf.append(name);
+          }
+          name = buf.toString();
+        }
+        out.write(i + ",\"" + name + "\"," + (i * 1.5) + "\n");
+        if (i == MALFORMED_ROW) {
+          // Too few cells, but with the right types
+          out.write(i + ",\"short row\"\n");
+        }
+      }
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  /**
+   * Convert the file with the given codec (or the default, if null), and
+   * return the records in the output file.
+   */
+  List<GenericRecord> convert(FileSystem fs, CSVDataDescriptor dd, String codec, String expectedCodec) throws IOException {
+    Configuration conf = new Configuration();
+    if (codec != null) {
+      conf.set("avro.output.codec", codec);
+    }
+    Path dst = new Path(tmpDir.getRoot().getCanonicalPath(), "output-" + codec + ".avro");
+    dd.prepareAvroFile(fs, fs, dst, conf);
+
+    List<GenericRecord> records = new ArrayList<GenericRecord>();
+    InputStream in = fs.open(dst);
+    DataFileStream<GenericRecord> avroIn = new DataFileStream<GenericRecord>(in, new GenericDatumReader<GenericRecord>());
+    try {
+      Assert.assertEquals(expectedCodec, avroIn.getMetaString("avro.codec"));
+      for (GenericRecord record: avroIn) {
+        records.add(record);
+      }
+    } finally {
+      avroIn.close();
+    }
+    return records;
+  }
+
+  @Test(timeout=60000)
+  public void testSplitConversion() throws Exception {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    CSVDataDescriptor dd = new CSVDataDescriptor(new Path(writeInput().getCanonicalPath()), localFS);
+    List<GenericRecord> wholeFile = convert(localFS, dd, null, "deflate");
+
+    int oldSplitChars = setSplitChars(64);
+    try {
+      String codecs[] = {null, "null", "deflate"};
+      String expectedCodecs[] = {"deflate", "null", "deflate"};
+      for (int i = 0; i < codecs.length; i++) {
+        List<GenericRecord> records = convert(localFS, dd, codecs[i], expectedCodecs[i]);
+        Assert.assertEquals(NUM_ROWS, records.size());
+        for (int j = 0; j < records.size(); j++) {
+          Assert.assertEquals(j, records.get(j).get("id"));
+        }
+        Assert.assertEquals(wholeFile, records);
+      }
+    } finally {
+      setSplitChars(oldSplitChars);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.avro.Schema;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.analyzer.DataDescriptor;
+import com.cloudera.recordbreaker.analyzer.FormatAnalyzer;
+import com.cloudera.recordbreaker.analyzer.SchemaDescriptor;
+import com.cloudera.recordbreaker.analyzer.CSVDataDescriptor;
+
+/**
+ * TestCSVCellClassifier checks the column types and header rows that CSV
+ * schema inference finds.  Numeric columns must get exactly the types that
+ * Integer.parseInt(), Long.parseLong() and Double.parseDouble() allow.  A
+ * file found by format detection, whose first rows were classified while
+ * detecting it, must get the same schema as one described directly.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestCSVCellClassifier {
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  File writeFile(String name, String text) throws IOException {
+    File f = new File(tmpDir.getRoot(), name);
+    FileWriter out = new FileWriter(f);
+    try {
+      out.write(text);
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  /**
+   * Describe the text as a CSV file, both directly and by way of format
+   * detection, and check that the two agree.
+   */
+  SchemaDescriptor describe(String text) throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    File direct = writeFile("direct" + text.hashCode() + ".csv", text);
+    SchemaDescriptor sd = new CSVDataDescriptor(new Path(direct.getCanonicalPath()), localFS).getSchemaDescriptor().get(0);
+
+    File detected = writeFile("detected" + text.hashCode() + ".txt", text);
+    DataDescriptor dd = new FormatAnalyzer(tmpDir.getRoot()).describeData(localFS, new Path(detected.getCanonicalPath()));
+    Assert.assertEquals(CSVDataDescriptor.CSV_TYPE, dd.getFileTypeIdentifier());
+    SchemaDescriptor detectedSd = dd.getSchemaDescriptor().get(0);
+    Assert.assertEquals(sd.getSchema(), detectedSd.getSchema());
+    Assert.assertEquals(new String(sd.getPayload()), new String(detectedSd.getPayload()));
+    return sd;
+  }
+
+  void checkFields(Schema schema, String names[], Schema.Type types[]) {
+    List<Schema.Field> fields = schema.getFields();
+    Assert.assertEquals(names.length, fields.size());
+    for (int i = 0; i < names.length; i++) {
+      Assert.assertEquals(names[i], fields.get(i).name());
+      Assert.assertEquals(names[i], types[i], fields.get(i).schema().getType());
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testColumnTypes() throws IOException {
+    String header = "id,big count,price,flag,name,born";
+    StringBuffer text = new StringBuffer(header + "\n");
+    for (int i = 0; i < 60; i++) {
+      // Past the rows that detection looks at, the price turns fractional
+      String price = (i < 40) ? ("" + (i * 3)) : (i + ".25");
+      text.append(i + "," + (5000000000L + i) + "," + price + "," + (i % 2 == 0) + ",\"item " + i + "\"," + "2013-01-" + (10 + i % 20) + "\n");
+    }
+    SchemaDescriptor sd = describe(text.toString());
+    checkFields(sd.getSchema(),
+                new String[] {"id", "big_count", "price", "flag", "name", "born"},
+                new Schema.Type[] {Schema.Type.INT, Schema.Type.LONG, Schema.Type.DOUBLE, Schema.Type.BOOLEAN, Schema.Type.STRING, Schema.Type.STRING});
+    Assert.assertEquals("" + header.hashCode(), new String(sd.getPayload()));
+
+    // Without a header, the first row is data and the fields are anonymous
+    text = new StringBuffer();
+    for (int i = 0; i < 30; i++) {
+      text.append(i + ",-" + i + "," + i + "e" + i + "\n");
+    }
+    sd = describe(text.toString());
+    checkFields(sd.getSchema(),
+                new String[] {"anon_0", "anon_1", "anon_2"},
+                new Schema.Type[] {Schema.Type.INT, Schema.Type.INT, Schema.Type.DOUBLE});
+    Assert.assertEquals("", new String(sd.getPayload()));
+  }
+
+  /**
+   * The type that Integer.parseInt(), Long.parseLong() and
+   * Double.parseDouble() allow for a cell.
+   */
+  static Schema.Type parsedType(String cell) {
+    if ("true".equals(cell) || "false".equals(cell)) {
+      return Schema.Type.BOOLEAN;
+    }
+    try {
+      Integer.parseInt(cell);
+      return Schema.Type.INT;
+    } catch (NumberFormatException nfe) {
+    }
+    try {
+      Long.parseLong(cell);
+      return Schema.Type.LONG;
+    } catch (NumberFormatException nfe) {
+    }
+    try {
+      Double.parseDouble(cell);
+      return Schema.Type.DOUBLE;
+    } catch (NumberFormatException nfe) {
+    }
+    return Schema.Type.STRING;
+  }
+
+  static Schema.Type combine(Schema.Type a, Schema.Type b) {
+    if (a == null || a == b) {
+      return b;
+    }
+    Schema.Type numeric[] = {Schema.Type.INT, Schema.Type.LONG, Schema.Type.DOUBLE};
+    int rankA = -1;
+    int rankB = -1;
+    for (int i = 0; i < numeric.length; i++) {
+      if (numeric[i] == a) {
+        rankA = i;
+      }
+      if (numeric[i] == b) {
+        rankB = i;
+      }
+    }
+    return (rankA >= 0 && rankB >= 0) ? numeric[Math.max(rankA, rankB)] : Schema.Type.STRING;
+  }
+
+  @Test(timeout=60000)
+  public void testRandomColumns() throws IOException {
+    Random r = new Random(1);
+    String pieces[] = {"0", "00", "1", "7", "12", "345", "-", "+", ".", ".", "e", "E", "d", "f", "NaN", "Infinity",
+                       "2147483647", "2147483648", "9223372036854775807", "9223372036854775808", "123456789012345678901",
+                       "true", "false"};
+    int numColumns = 4;
+    for (int trial = 0; trial < 50; trial++) {
+      // Few pieces per cell in most columns, so they aren't all strings
+      int maxPieces = 1 + r.nextInt(2);
+      Schema.Type expected[] = new Schema.Type[numColumns];
+      StringBuffer text = new StringBuffer("c0,c1,c2,c3\n");
+      for (int i = 0; i < 40; i++) {
+        for (int j = 0; j < numColumns; j++) {
+          StringBuffer cell = new StringBuffer();
+          int numPieces = 1 + r.nextInt(maxPieces);
+          for (int k = 0; k < numPieces; k++) {
+            cell.append(pieces[r.nextInt((j < 2) ? 8 : pieces.length)]);
+          }
+          expected[j] = combine(expected[j], parsedType(cell.toString()));
+          text.append((j > 0) ? "," : "").append(cell);
+        }
+        text.append("\n");
+      }
+
+      // The all-string header is only recognized if some column isn't strings
+      boolean hasHeader = false;
+      for (int j = 0; j < numColumns; j++) {
+        hasHeader |= (expected[j] != Schema.Type.STRING);
+      }
+      String names[] = new String[numColumns];
+      for (int j = 0; j < numColumns; j++) {
+        names[j] = (hasHeader ? "c" : "anon_") + j;
+      }
+      checkFields(describe(text.toString()).getSchema(), names, expected);
+    }
+  }
+}
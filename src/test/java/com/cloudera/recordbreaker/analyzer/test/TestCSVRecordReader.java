@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.BufferedReader;
+import java.util.List;
+import java.util.Random;
+import java.util.ArrayList;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.analyzer.CSVRowParser;
+import com.cloudera.recordbreaker.analyzer.CSVRecordReader;
+
+/**
+ * TestCSVRecordReader checks that CSVRecordReader splits rows exactly as
+ * opencsv does (by way of CSVRowParser), and decodes numbers exactly as
+ * Integer.parseInt(), Long.parseLong() and Double.parseDouble() do.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestCSVRecordReader {
+  static Schema createSchema(Schema.Type... fieldTypes) {
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+    for (int i = 0; i < fieldTypes.length; i++) {
+      fields.add(new Schema.Field("field" + i, Schema.create(fieldTypes[i]), "", null));
+    }
+    Schema schema = Schema.createRecord("csv", "CSV data format", "", false);
+    schema.setFields(fields);
+    return schema;
+  }
+
+  static Schema createStringSchema(int numFields) {
+    Schema.Type fieldTypes[] = new Schema.Type[numFields];
+    for (int i = 0; i < numFields; i++) {
+      fieldTypes[i] = Schema.Type.STRING;
+    }
+    return createSchema(fieldTypes);
+  }
+
+  /**
+   * Every record CSVRecordReader finds in the text.  Also checks that
+   * CSVRowParser finds the same ones, and rejects the same number of rows.
+   */
+  List<GenericData.Record> readAll(String text, Schema schema, String headerHash) throws IOException {
+    List<GenericData.Record> expected = new ArrayList<GenericData.Record>();
+    CSVRowParser rowParser = new CSVRowParser(schema, headerHash);
+    BufferedReader lines = new BufferedReader(new StringReader(text));
+    for (String s = lines.readLine(); s != null; s = lines.readLine()) {
+      GenericData.Record record = rowParser.parseRow(s);
+      if (record != null) {
+        expected.add(record);
+      }
+    }
+
+    List<GenericData.Record> records = new ArrayList<GenericData.Record>();
+    CSVRecordReader reader = new CSVRecordReader(new StringReader(text), schema, headerHash);
+    try {
+      for (GenericData.Record record = reader.next(null); record != null; record = reader.next(null)) {
+        records.add(record);
+      }
+    } finally {
+      reader.close();
+    }
+    Assert.assertEquals("Records differ for:\n" + text, expected, records);
+    Assert.assertEquals("Malformed rows differ for:\n" + text, rowParser.getNumMalformedRows(), reader.getNumMalformedRows());
+    return records;
+  }
+
+  void checkRow(GenericData.Record record, Object... values) {
+    for (int i = 0; i < values.length; i++) {
+      Assert.assertEquals(values[i], record.get(i));
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testSplitting() throws IOException {
+    Schema schema = createStringSchema(3);
+    String header = "name, address, note";
+    String text = header + "\n" +
+      "a,b,c\n" +
+      "\"a, with comma\",\"b\",c\n" +
+      "  spaced  ,\" quoted \",\"x\"\n" +
+      ",,\n" +
+      "\"\",\"\",\"\"\n" +
+      "\"say \"\"hi\"\"\",\\\"escaped\\\",back\\\\slash\n" +
+      "only,two\n" +
+      "one,two,three,four\n" +
+      "\n" +
+      "last,row,here";
+    List<GenericData.Record> records = readAll(text, schema, "" + header.hashCode());
+    Assert.assertEquals(6, records.size());
+    checkRow(records.get(0), "a", "b", "c");
+    checkRow(records.get(1), "a, with comma", "b", "c");
+    checkRow(records.get(2), "spaced", "quoted", "x");
+    checkRow(records.get(3), "", "", "");
+    checkRow(records.get(5), "last", "row", "here");
+
+    // Without the header's hash, the header is just another row
+    Assert.assertEquals(7, readAll(text, schema, "").size());
+
+    // A quote left open by one line carries on into the next
+    readAll("a,\"b\nc\",d\ne,f,g\n", schema, "");
+  }
+
+  @Test(timeout=60000)
+  public void testRandomRows() throws IOException {
+    Random r = new Random(1);
+    char alphabet[] = {'a', 'b', ',', ',', '"', '"', '\\', ' ', '\t'};
+    for (int numFields = 1; numFields <= 4; numFields++) {
+      Schema schema = createStringSchema(numFields);
+      for (int trial = 0; trial < 200; trial++) {
+        StringBuffer text = new StringBuffer();
+        for (int i = 0; i < 20; i++) {
+          int len = r.nextInt(12);
+          for (int j = 0; j < len; j++) {
+            text.append(alphabet[r.nextInt(alphabet.length)]);
+          }
+          text.append((r.nextInt(4) == 0) ? "\r\n" : "\n");
+        }
+        readAll(text.toString(), schema, "");
+      }
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testNumbers() throws IOException {
+    Random r = new Random(1);
+    String pieces[] = {"0", "00", "1", "7", "12", "345", "-", "+", ".", ".", "e", "E", "d", "f", "NaN", "Infinity",
+                       "2147483647", "2147483648", "9223372036854775807", "9223372036854775808", "123456789012345678901"};
+    List<String> cells = new ArrayList<String>();
+    StringBuffer text = new StringBuffer();
+    for (int i = 0; i < 20000; i++) {
+      StringBuffer cell = new StringBuffer();
+      int numPieces = 1 + r.nextInt(4);
+      for (int j = 0; j < numPieces; j++) {
+        cell.append(pieces[r.nextInt(pieces.length)]);
+      }
+      cells.add(cell.toString());
+      text.append(cell).append("\n");
+    }
+
+    Schema.Type fieldTypes[] = {Schema.Type.INT, Schema.Type.LONG, Schema.Type.DOUBLE};
+    for (Schema.Type fieldType: fieldTypes) {
+      List<Object> expected = new ArrayList<Object>();
+      for (String cell: cells) {
+        try {
+          if (fieldType == Schema.Type.INT) {
+            expected.add(Integer.parseInt(cell));
+          } else if (fieldType == Schema.Type.LONG) {
+            expected.add(Long.parseLong(cell));
+          } else {
+            expected.add(Double.parseDouble(cell));
+          }
+        } catch (NumberFormatException nfe) {
+        }
+      }
+      List<GenericData.Record> records = readAll(text.toString(), createSchema(fieldType), "");
+      Assert.assertEquals(fieldType + " cells accepted", expected.size(), records.size());
+      for (int i = 0; i < records.size(); i++) {
+        Assert.assertEquals(expected.get(i), records.get(i).get(0));
+      }
+    }
+  }
+}
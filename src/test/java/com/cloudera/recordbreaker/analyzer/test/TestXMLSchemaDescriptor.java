@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.analyzer.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.lang.reflect.Field;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.analyzer.SchemaDescriptor;
+import com.cloudera.recordbreaker.analyzer.XMLDataDescriptor;
+import com.cloudera.recordbreaker.analyzer.XMLSchemaDescriptor;
+
+/**
+ * TestXMLSchemaDescriptor checks that a document streamed with a StAX
+ * cursor gives the same fields and records as when it is parsed whole,
+ * and that streaming keeps records with missing or unexpected values,
+ * and reports read errors.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestXMLSchemaDescriptor {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "dbs/other");
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  /**
+   * PREFIX_ELEMENTS is package-private, so set it by reflection
+   */
+  static int setPrefixElements(int prefixElements) throws Exception {
+    Field f = XMLSchemaDescriptor.class.getDeclaredField("PREFIX_ELEMENTS");
+    f.setAccessible(true);
+    int oldPrefixElements = f.getInt(null);
+    f.setInt(null, prefixElements);
+    return oldPrefixElements;
+  }
+
+  static SchemaDescriptor describe(File f) throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    return new XMLDataDescriptor(new Path(f.getCanonicalPath()), localFS).getSchemaDescriptor().get(0);
+  }
+
+  static boolean isStreamed(SchemaDescriptor sd) {
+    return new String(sd.getPayload()).indexOf("recordPaths") >= 0;
+  }
+
+  static List<String> readAll(SchemaDescriptor sd) {
+    List<String> records = new ArrayList<String>();
+    for (Iterator it = sd.getIterator(); it.hasNext(); ) {
+      records.add(it.next().toString());
+    }
+    return records;
+  }
+
+  @Test(timeout=60000)
+  public void testStreamingMatchesWholeParse() throws Exception {
+    File input = new File(sampleDir, "cd_catalog.xml");
+    SchemaDescriptor whole = describe(input);
+    Assert.assertFalse(isStreamed(whole));
+
+    SchemaDescriptor streamed = null;
+    int oldPrefixElements = setPrefixElements(20);
+    try {
+      streamed = describe(input);
+    } finally {
+      setPrefixElements(oldPrefixElements);
+    }
+    Assert.assertTrue(isStreamed(streamed));
+
+    // The streamed fields are nullable, and can widen
+    List<Schema.Field> wholeFields = whole.getSchema().getFields();
+    List<Schema.Field> streamedFields = streamed.getSchema().getFields();
+    Assert.assertEquals(wholeFields.size(), streamedFields.size());
+    for (int i = 0; i < wholeFields.size(); i++) {
+      Assert.assertEquals(wholeFields.get(i).name(), streamedFields.get(i).name());
+      List<Schema> branches = streamedFields.get(i).schema().getTypes();
+      Assert.assertEquals(Schema.Type.NULL, branches.get(0).getType());
+      Assert.assertEquals(wholeFields.get(i).schema(), branches.get(1));
+      Assert.assertEquals(Schema.Type.STRING, branches.get(branches.size()-1).getType());
+    }
+
+    List<String> records = readAll(streamed);
+    Assert.assertEquals(26, records.size());
+    Assert.assertEquals(readAll(whole), records);
+  }
+
+  @Test(timeout=60000)
+  public void testStreamingErrors() throws Exception {
+    File input = new File(tmpDir.getRoot(), "catalog.xml");
+    FileWriter out = new FileWriter(input);
+    try {
+      out.write("<?xml version=\"1.0\"?>\n<CATALOG>\n");
+      for (int i = 0; i < 30; i++) {
+        out.write("<CD><TITLE>title " + i + "</TITLE>");
+        if (i == 2) {
+          // An optional element, seen in the prefix
+          out.write("<NOTE>reissue</NOTE>");
+        }
+        if (i == 25) {
+          out.write("<YEAR>unknown</YEAR>");
+        } else if (i == 27) {
+          out.write("<YEAR>1999.5</YEAR>");
+        } else if (i == 28) {
+          out.write("<YEAR>12345678901</YEAR>");
+        } else if (i != 26) {
+          out.write("<YEAR>" + (1980 + i) + "</YEAR>");
+        }
+        out.write("</CD>\n");
+      }
+      // The document is cut off before </CATALOG>
+    } finally {
+      out.close();
+    }
+
+    int oldPrefixElements = setPrefixElements(20);
+    try {
+      SchemaDescriptor sd = describe(input);
+      Assert.assertTrue(isStreamed(sd));
+
+      List<GenericRecord> records = new ArrayList<GenericRecord>();
+      Iterator it = sd.getIterator();
+      try {
+        while (it.hasNext()) {
+          records.add((GenericRecord) it.next());
+        }
+        Assert.fail("The unterminated document should not be read silently");
+      } catch (RuntimeException rex) {
+      }
+
+      // Every record is kept; missing fields are null, and values that
+      // don't fit the prefix's types are widened
+      Assert.assertEquals(30, records.size());
+      for (int i = 0; i < records.size(); i++) {
+        GenericRecord record = records.get(i);
+        Assert.assertTrue(GenericData.get().validate(sd.getSchema(), record));
+        Assert.assertEquals("title " + i, record.get("TITLE"));
+        Assert.assertEquals((i == 2) ? "reissue" : null, record.get("NOTE"));
+        Object year = record.get("YEAR");
+        if (i == 25) {
+          Assert.assertEquals("unknown", year);
+        } else if (i == 26) {
+          Assert.assertNull(year);
+        } else if (i == 27) {
+          Assert.assertEquals(1999.5, year);
+        } else if (i == 28) {
+          Assert.assertEquals(12345678901L, year);
+        } else {
+          Assert.assertEquals(1980 + i, year);
+        }
+      }
+    } finally {
+      setPrefixElements(oldPrefixElements);
+    }
+  }
+}
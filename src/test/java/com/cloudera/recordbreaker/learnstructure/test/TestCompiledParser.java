@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.DataInputStream;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.avro.generic.GenericContainer;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+
+/**
+ * TestCompiledParser checks that a CompiledParser returns exactly what
+ * InferredType.parseExhaustively() does, with and without record reuse.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestCompiledParser {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+  static String sampleFiles[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "simple1.txt", "wikipediatopics.txt"};
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  String toStr(GenericContainer gc) {
+    return (gc == null) ? null : gc.toString();
+  }
+
+  void checkFile(File workingDir, File inputData) throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    Path inputPath = new Path(inputData.getCanonicalPath());
+    Path parseTreeFile = new Path(workingDir.getCanonicalPath(), inputData.getName() + "." + LearnStructure.PARSER_FILENAME);
+    new LearnStructure().inferRecordFormat(localFS, inputPath, localFS, null, parseTreeFile, null, null, false, Integer.MAX_VALUE);
+
+    InferredType typeTree = null;
+    DataInputStream in = localFS.open(parseTreeFile);
+    try {
+      typeTree = InferredType.readType(in);
+    } finally {
+      in.close();
+    }
+
+    CompiledParser parser = new CompiledParser(typeTree);
+    CompiledParser reusingParser = new CompiledParser(typeTree, true);
+    parser.setWorkBudget(CompiledParser.UNLIMITED_WORK);
+    reusingParser.setWorkBudget(CompiledParser.UNLIMITED_WORK);
+    BufferedReader lines = new BufferedReader(new FileReader(inputData));
+    try {
+      String s = lines.readLine();
+      while (s != null) {
+        String expected = toStr(typeTree.parseExhaustively(s));
+        Assert.assertEquals("Parsers disagree on: " + s, expected, toStr(parser.parse(s)));
+        Assert.assertEquals("Reusing parser disagrees on: " + s, expected, toStr(reusingParser.parse(s)));
+        s = lines.readLine();
+      }
+    } finally {
+      lines.close();
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testSampleFiles() throws IOException {
+    File workingDir = tmpOutDir.newFolder("workingdir");
+    for (String fname: sampleFiles) {
+      checkFile(workingDir, new File(sampleDir, fname));
+    }
+  }
+}
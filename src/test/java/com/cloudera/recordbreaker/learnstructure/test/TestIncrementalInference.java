@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.ArrayList;
+
+import org.apache.avro.Schema;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.learnstructure.ChunkStore;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+import com.cloudera.recordbreaker.learnstructure.IncrementalInference;
+
+/**
+ * TestIncrementalInference learns a type tree from the first 30% of each sample
+ * file, extends it with the rest, and checks that the extended tree parses
+ * everything the original did, plus at least as much of the new data.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestIncrementalInference {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+  static String sampleFiles[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "simple1.txt", "wikipediatopics.txt"};
+
+  List<String> readLines(File inputData) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(inputData));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  boolean[] parses(InferredType typeTree, List<String> lines) {
+    CompiledParser parser = new CompiledParser(typeTree);
+    boolean results[] = new boolean[lines.size()];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = (parser.parse(lines.get(i)) != null);
+    }
+    return results;
+  }
+
+  int count(boolean results[]) {
+    int n = 0;
+    for (int i = 0; i < results.length; i++) {
+      if (results[i]) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  byte[] write(InferredType typeTree) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    typeTree.write(out);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  InferredType roundTrip(InferredType typeTree) throws IOException {
+    return InferredType.readType(new DataInputStream(new ByteArrayInputStream(write(typeTree))));
+  }
+
+  void checkFile(File inputData) throws IOException {
+    List<String> lines = readLines(inputData);
+    int cut = Math.max(2, lines.size() * 3 / 10);
+    List<String> oldLines = lines.subList(0, cut);
+    List<String> newLines = lines.subList(cut, lines.size());
+
+    ChunkStore store = new ChunkStore();
+    for (String s: oldLines) {
+      store.addLine(s);
+    }
+    InferredType typeTree = TypeInference.infer(store);
+    InferredType extended = roundTrip(IncrementalInference.extend(typeTree, newLines));
+
+    boolean oldBefore[] = parses(typeTree, oldLines);
+    boolean oldAfter[] = parses(extended, oldLines);
+    for (int i = 0; i < oldBefore.length; i++) {
+      if (oldBefore[i]) {
+        Assert.assertTrue(inputData.getName() + ": extended tree no longer parses: " + oldLines.get(i), oldAfter[i]);
+      }
+    }
+    boolean newAfter[] = parses(extended, newLines);
+    Assert.assertTrue(inputData.getName() + ": extended tree parses less of the new data", count(newAfter) >= count(parses(typeTree, newLines)));
+
+    // A tree that needs no widening comes back untouched
+    List<String> parsedLines = new ArrayList<String>();
+    for (int i = 0; i < newAfter.length; i++) {
+      if (newAfter[i]) {
+        parsedLines.add(newLines.get(i));
+      }
+    }
+    Assert.assertSame(extended, IncrementalInference.extend(extended, parsedLines));
+  }
+
+  @Test(timeout=60000)
+  public void testSampleFiles() throws IOException {
+    for (String fname: sampleFiles) {
+      checkFile(new File(sampleDir, fname));
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testWidening() throws IOException {
+    // Angioplasty's later lines need new structure that its first few lack
+    File inputData = new File(sampleDir, "angioplasty.txt");
+    List<String> lines = readLines(inputData);
+    int cut = lines.size() * 3 / 10;
+    ChunkStore store = new ChunkStore();
+    for (String s: lines.subList(0, cut)) {
+      store.addLine(s);
+    }
+    InferredType typeTree = TypeInference.infer(store);
+    List<String> newLines = lines.subList(cut, lines.size());
+    InferredType extended = IncrementalInference.extend(typeTree, newLines);
+    Assert.assertTrue(count(parses(extended, newLines)) > count(parses(typeTree, newLines)));
+  }
+
+  /**
+   * Zero the type-name counters, as if in a fresh JVM
+   */
+  void resetNameCounters() throws Exception {
+    String counters[][] = {{"BaseType", "fieldCounter"}, {"StructType", "recordCounter"}, {"ArrayType", "arrayCounter"}, {"UnionType", "unionCounter"}};
+    for (String counter[]: counters) {
+      Field f = Class.forName("com.cloudera.recordbreaker.learnstructure." + counter[0]).getDeclaredField(counter[1]);
+      f.setAccessible(true);
+      f.setInt(null, 0);
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testStoredTree() throws Exception {
+    // A tree learned in an earlier run is extended in a later one.
+    // With this cut, the new types would otherwise reuse the stored tree's names.
+    File inputData = new File(sampleDir, "angioplasty.txt");
+    List<String> lines = readLines(inputData);
+    int cut = lines.size() / 10;
+    resetNameCounters();
+    ChunkStore store = new ChunkStore();
+    for (String s: lines.subList(0, cut)) {
+      store.addLine(s);
+    }
+    byte stored[] = write(TypeInference.infer(store));
+
+    resetNameCounters();
+    InferredType typeTree = InferredType.readType(new DataInputStream(new ByteArrayInputStream(stored)));
+    List<String> newLines = lines.subList(cut, lines.size());
+    InferredType extended = IncrementalInference.extend(typeTree, newLines);
+    Assert.assertNotSame(typeTree, extended);
+    Schema schema = new Schema.Parser().parse(extended.getAvroSchema().toString());
+    Assert.assertEquals(schema, roundTrip(extended).getAvroSchema());
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.LineSampler;
+
+/**
+ * TestLineSampler checks that samplers count their byte budget in bytes,
+ * and that a budgeted reservoir sample is drawn from the whole file.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestLineSampler {
+  static int NUM_LINES = 10000;
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  /**
+   * Lines "line i", each followed by the given terminator
+   */
+  Path writeLines(String name, String suffix, String terminator) throws IOException {
+    File f = new File(tmpDir.getRoot(), name);
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      for (int i = 0; i < NUM_LINES; i++) {
+        out.write(("line " + i + suffix + terminator).getBytes("UTF-8"));
+      }
+    } finally {
+      out.close();
+    }
+    return new Path(f.getCanonicalPath());
+  }
+
+  static int lineNumber(String line) {
+    return Integer.parseInt(line.split(" ")[1]);
+  }
+
+  @Test(timeout=60000)
+  public void testBudgetInBytes() throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    // Each e-acute is two bytes
+    String suffix = " \u00e9\u00e9\u00e9";
+    Path p = writeLines("wide.txt", suffix, "\r\n");
+    byte firstLineBytes[] = ("line 0" + suffix).getBytes("UTF-8");
+    int lineBytes = firstLineBytes.length + 2;
+    // Decoded as InputStreamReader would
+    String firstLine = new String(firstLineBytes);
+
+    List<String> lines = LineSampler.getSampler(LineSampler.HEAD, 10 * lineBytes).sample(localFS, p, -1);
+    Assert.assertEquals(10, lines.size());
+    Assert.assertEquals(firstLine, lines.get(0));
+
+    lines = LineSampler.getSampler(LineSampler.BLOCK, 100 * lineBytes).sample(localFS, p, -1);
+    Assert.assertTrue(lines.size() <= 100 + 16);
+  }
+
+  @Test(timeout=60000)
+  public void testReservoirCoversFile() throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    Path p = writeLines("narrow.txt", "", "\n");
+    long fileLen = localFS.getFileStatus(p).getLen();
+
+    // A tenth of the file
+    List<String> lines = LineSampler.getSampler(LineSampler.RESERVOIR, fileLen / 10).sample(localFS, p, 200);
+    Assert.assertEquals(200, lines.size());
+    int prev = -1;
+    boolean sawLastTenth = false;
+    for (String line: lines) {
+      int lineNo = lineNumber(line);
+      Assert.assertEquals("line " + lineNo, line);
+      Assert.assertTrue("Lines must be distinct and in file order", lineNo > prev);
+      prev = lineNo;
+      sawLastTenth |= (lineNo >= NUM_LINES * 9 / 10);
+    }
+    Assert.assertTrue("Sample should reach the end of the file", sawLastTenth);
+
+    // The same sample every time
+    Assert.assertEquals(lines, LineSampler.getSampler(LineSampler.RESERVOIR, fileLen / 10).sample(localFS, p, 200));
+
+    // With room for the whole file, every line can be chosen
+    lines = LineSampler.getSampler(LineSampler.RESERVOIR, LineSampler.UNLIMITED_BYTES).sample(localFS, p, NUM_LINES);
+    Assert.assertEquals(NUM_LINES, lines.size());
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.lang.reflect.Field;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.learnstructure.ChunkStore;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.TypeInference;
+
+/**
+ * TestParallelInference checks that TypeInference builds the same type
+ * tree, down to the generated type names, whether discover()'s
+ * sub-problems run inline or on a thread pool.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestParallelInference {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+  static String sampleFiles[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "simple1.txt", "wikipediatopics.txt"};
+
+  // The global counters that InferredType names come from
+  static String counterClasses[] = {"BaseType", "StructType", "ArrayType", "UnionType"};
+  static String counterFields[] = {"fieldCounter", "recordCounter", "arrayCounter", "unionCounter"};
+
+  /**
+   * PARALLEL_THRESHOLD is package-private, so set it by reflection
+   */
+  static int setParallelThreshold(int threshold) throws Exception {
+    Field f = TypeInference.class.getDeclaredField("PARALLEL_THRESHOLD");
+    f.setAccessible(true);
+    int oldThreshold = f.getInt(null);
+    f.setInt(null, threshold);
+    return oldThreshold;
+  }
+
+  static Field counterField(int i) throws Exception {
+    Field f = Class.forName("com.cloudera.recordbreaker.learnstructure." + counterClasses[i]).getDeclaredField(counterFields[i]);
+    f.setAccessible(true);
+    return f;
+  }
+
+  static int[] getCounters() throws Exception {
+    int counters[] = new int[counterClasses.length];
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = counterField(i).getInt(null);
+    }
+    return counters;
+  }
+
+  static void setCounters(int counters[]) throws Exception {
+    for (int i = 0; i < counters.length; i++) {
+      counterField(i).setInt(null, counters[i]);
+    }
+  }
+
+  static ChunkStore readChunks(File inputData) throws IOException {
+    ChunkStore store = new ChunkStore();
+    BufferedReader in = new BufferedReader(new FileReader(inputData));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        store.addLine(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return store;
+  }
+
+  void checkFile(File inputData) throws Exception {
+    int startCounters[] = getCounters();
+    TypeInference.setParallelInference(false);
+    InferredType serialTree = TypeInference.infer(readChunks(inputData));
+    int endCounters[] = getCounters();
+
+    // Start the names from the same place
+    setCounters(startCounters);
+    TypeInference.setParallelInference(true);
+    InferredType parallelTree = null;
+    try {
+      parallelTree = TypeInference.infer(readChunks(inputData));
+    } finally {
+      TypeInference.setParallelInference(false);
+    }
+
+    String name = inputData.getName();
+    Assert.assertEquals(name + ": type trees differ", serialTree.toString(), parallelTree.toString());
+    Assert.assertEquals(name + ": schemas differ", serialTree.getAvroSchema(), parallelTree.getAvroSchema());
+    Assert.assertArrayEquals(name + ": different numbers of names used", endCounters, getCounters());
+  }
+
+  @Test(timeout=60000)
+  public void testSampleFiles() throws Exception {
+    // Every sub-problem bigger than a single chunk becomes a task
+    int oldThreshold = setParallelThreshold(2);
+    try {
+      for (String fname: sampleFiles) {
+        checkFile(new File(sampleDir, fname));
+      }
+    } finally {
+      setParallelThreshold(oldThreshold);
+    }
+  }
+}
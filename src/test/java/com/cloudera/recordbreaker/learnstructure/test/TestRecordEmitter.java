@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.JsonEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.recordbreaker.learnstructure.LearnStructure;
+import com.cloudera.recordbreaker.learnstructure.InferredType;
+import com.cloudera.recordbreaker.learnstructure.CompiledParser;
+
+/**
+ * TestRecordEmitter checks that the JSON, Avro and per-branch outputs that
+ * LearnStructure writes in a single parse of each sample file hold exactly
+ * what separate passes over the file, one per output, produce.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestRecordEmitter {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+  static String sampleFiles[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "simple1.txt", "wikipediatopics.txt"};
+
+  @Rule
+  public TemporaryFolder tmpOutDir = new TemporaryFolder();
+
+  static List<String> readLines(File inputData) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(inputData));
+    try {
+      String s = in.readLine();
+      while (s != null) {
+        lines.add(s);
+        s = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  static List<String> readAvro(FileSystem fs, Path p) throws IOException {
+    List<String> records = new ArrayList<String>();
+    if (! fs.exists(p)) {
+      return records;
+    }
+    InputStream in = fs.open(p);
+    DataFileStream<GenericContainer> avroIn = new DataFileStream<GenericContainer>(in, new GenericDatumReader<GenericContainer>());
+    try {
+      for (GenericContainer record: avroIn) {
+        records.add(record.toString());
+      }
+    } finally {
+      avroIn.close();
+    }
+    return records;
+  }
+
+  static byte[] readBytes(FileSystem fs, Path p) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    InputStream in = fs.open(p);
+    try {
+      byte buf[] = new byte[4096];
+      int numRead;
+      while ((numRead = in.read(buf)) > 0) {
+        bytes.write(buf, 0, numRead);
+      }
+    } finally {
+      in.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  void checkFile(File inputData, boolean parallel) throws IOException {
+    FileSystem localFS = FileSystem.getLocal(new Configuration());
+    Path inputPath = new Path(inputData.getCanonicalPath());
+    File outDir = new File(tmpOutDir.getRoot(), inputData.getName() + (parallel ? ".parallel" : ".serial"));
+    outDir.mkdir();
+    Path outPath = new Path(outDir.getCanonicalPath());
+    Path parseTreeFile = new Path(outPath, LearnStructure.PARSER_FILENAME);
+    Path jsonDataFile = new Path(outPath, LearnStructure.JSONDATA_FILENAME);
+    Path avroDataFile = new Path(outPath, LearnStructure.DATA_FILENAME);
+
+    // One parse, all three outputs
+    LearnStructure ls = new LearnStructure();
+    ls.setBranchDataDir(outPath);
+    LearnStructure.setParallelEmission(parallel);
+    try {
+      ls.inferRecordFormat(localFS, inputPath, localFS, null, parseTreeFile, jsonDataFile, avroDataFile, false, Integer.MAX_VALUE);
+    } finally {
+      LearnStructure.setParallelEmission(false);
+    }
+
+    InferredType typeTree = null;
+    DataInputStream in = localFS.open(parseTreeFile);
+    try {
+      typeTree = InferredType.readType(in);
+    } finally {
+      in.close();
+    }
+    Schema schema = typeTree.getAvroSchema();
+    boolean isUnion = (schema.getType() == Schema.Type.UNION);
+    int numBranches = isUnion ? schema.getTypes().size() : 1;
+
+    // The separate passes: JSON as it used to be written, then the records
+    // for the Avro file and each branch file
+    ByteArrayOutputStream expectedJson = new ByteArrayOutputStream();
+    GenericDatumWriter<GenericContainer> jsonWriter = new GenericDatumWriter<GenericContainer>(schema);
+    JsonEncoder encoder = EncoderFactory.get().jsonEncoder(schema, expectedJson);
+    CompiledParser parser = new CompiledParser(typeTree, true);
+    List<String> lines = readLines(inputData);
+    for (String line: lines) {
+      GenericContainer record = parser.parse(line);
+      if (record != null) {
+        jsonWriter.write(record, encoder);
+      }
+    }
+    encoder.flush();
+
+    List<String> expectedAvro = new ArrayList<String>();
+    List<List<String>> expectedBranches = new ArrayList<List<String>>();
+    for (int i = 0; i < numBranches; i++) {
+      expectedBranches.add(new ArrayList<String>());
+    }
+    parser = new CompiledParser(typeTree, true);
+    for (String line: lines) {
+      GenericContainer record = parser.parse(line);
+      if (record != null) {
+        expectedAvro.add(record.toString());
+      }
+    }
+    parser = new CompiledParser(typeTree, true);
+    for (String line: lines) {
+      GenericContainer record = parser.parse(line);
+      if (record != null) {
+        int branch = isUnion ? GenericData.get().resolveUnion(schema, record) : 0;
+        expectedBranches.get(branch).add(record.toString());
+      }
+    }
+
+    String name = inputData.getName() + (parallel ? " (parallel)" : "");
+    Assert.assertTrue(name + ": nothing parsed", expectedAvro.size() > 0);
+    Assert.assertTrue(name + ": JSON output differs", Arrays.equals(expectedJson.toByteArray(), readBytes(localFS, jsonDataFile)));
+    Assert.assertEquals(name + ": Avro output differs", expectedAvro, readAvro(localFS, avroDataFile));
+    for (int i = 0; i < numBranches; i++) {
+      Assert.assertEquals(name + ": branch " + i + " output differs", expectedBranches.get(i), readAvro(localFS, new Path(outPath, LearnStructure.BRANCHDATA_PREFIX + i + ".avro")));
+    }
+    Assert.assertFalse(localFS.exists(new Path(outPath, LearnStructure.BRANCHDATA_PREFIX + numBranches + ".avro")));
+  }
+
+  @Test(timeout=60000)
+  public void testSinglePass() throws IOException {
+    for (String fname: sampleFiles) {
+      checkFile(new File(sampleDir, fname), false);
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testParallelSinglePass() throws IOException {
+    for (String fname: sampleFiles) {
+      checkFile(new File(sampleDir, fname), true);
+    }
+  }
+}
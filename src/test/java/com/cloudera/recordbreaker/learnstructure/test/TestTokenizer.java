@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.recordbreaker.learnstructure.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.After;
+import org.junit.Test;
+
+import com.cloudera.recordbreaker.learnstructure.Tokenizer;
+
+/**
+ * TestTokenizer checks that the scanning tokenizer produces exactly the same
+ * tokens as the original regex tokenizer.
+ *
+ * @author "Michael Cafarella" <mjc@cloudera.com>
+ * @version 1.0
+ * @since 1.0
+ */
+public class TestTokenizer {
+  static File sampleDir = new File(System.getProperty("test.samples.dir", "src/samples"), "textdata");
+  static String sampleFiles[] = {"angioplasty.txt", "commonlog.txt", "courselisting.txt", "filelisting.txt", "flights.txt", "wikipediatopics.txt"};
+  static String sampleLines[] = {
+    "Jan 12 2010 12:01:33 [info] 10.0.0.1 drwxr-xr-x",
+    "2011/09/03 4.5-6.25 17-22 +5 -0.75 \"quoted, with commas\"",
+    "12 June 1999 July 4 1976 3.1.2012 *.12.* 1.2.3.4.",
+    "(unclosed {nested [brackets]} 'a' <b>) 00:00 23:59:60x",
+  };
+
+  String tokenizeStr(String s, boolean useRegex) throws IOException {
+    Tokenizer.setUseRegexTokenizer(useRegex);
+    List toks = Tokenizer.tokenize(s);
+    return (toks == null) ? null : toks.toString();
+  }
+
+  void checkLine(String s) throws IOException {
+    Assert.assertEquals("Tokenizers disagree on: " + s, tokenizeStr(s, true), tokenizeStr(s, false));
+  }
+
+  @Test
+  public void testSampleLines() throws IOException {
+    for (String s: sampleLines) {
+      checkLine(s);
+    }
+  }
+
+  @Test(timeout=60000)
+  public void testSampleFiles() throws IOException {
+    for (String fname: sampleFiles) {
+      BufferedReader in = new BufferedReader(new FileReader(new File(sampleDir, fname)));
+      try {
+        String s = in.readLine();
+        while (s != null) {
+          checkLine(s);
+          s = in.readLine();
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  @After
+  public void teardown() {
+    Tokenizer.setUseRegexTokenizer(false);
+  }
+}